@@ -2,10 +2,18 @@ package com.pine.rtcdemo.app;
 
 import android.app.Application;
 
+import com.pine.rtc.util.EncoderCapabilityCache;
+
 /**
  * Created by tanghongfeng on 2018/1/3.
  */
 
 public class MainApplication extends Application {
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // 后台预查询录制用的编码器能力，录制启动时直接命中缓存
+        EncoderCapabilityCache.getInstance().init(this);
+    }
 }
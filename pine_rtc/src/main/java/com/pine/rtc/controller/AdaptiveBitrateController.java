@@ -0,0 +1,190 @@
+package com.pine.rtc.controller;
+
+import org.webrtc.Logging;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Locale;
+
+/**
+ * 录屏视频码率自适应。
+ * <p>
+ * 每个采样周期由MediaRecordController提供三路输入：
+ * CPU占用(CpuMonitor，未知时为-1)、编码延迟(输出帧的时间戳与当前时间之差，反映编码器内部排队的深度)、
+ * 磁盘积压(已交给muxer的字节数与文件实际大小之差，反映磁盘写入跟不上的程度)。
+ * 任一输入超过上限且连续DOWN_SAMPLES个周期即降一档，全部低于下限且连续UP_SAMPLES个周期才升一档，
+ * 每次调整后至少保持HOLD_SAMPLES个周期，避免来回抖动。
+ * <p>
+ * 档位为初始码率的比例，最低不低于MIN_BIT_RATE。每个周期的输入和决策都以一行JSON输出到logcat(TAG为本类名)，
+ * 设置了trace文件时同时逐行写入文件(每行立即flush，录制异常中断时也不丢失)，便于离线调整阈值。
+ * <p>
+ * 非线程安全，只在mRecorderThread中调用。
+ */
+class AdaptiveBitrateController {
+    private static final String TAG = "AdaptiveBitrate";
+
+    static final int ACTION_HOLD = 0;
+    static final int ACTION_DOWN = 1;
+    static final int ACTION_UP = 2;
+
+    private static final float[] TIER_SCALES = {1.0f, 0.75f, 0.5f, 0.35f, 0.25f};
+    private static final int MIN_BIT_RATE = 300000;
+
+    private static final int CPU_HIGH = 80;
+    private static final int CPU_LOW = 50;
+    private static final long LATENCY_HIGH_MS = 500L;
+    private static final long LATENCY_LOW_MS = 150L;
+    // 磁盘积压超过多少秒的码率数据认为磁盘跟不上
+    private static final float DISK_BACKLOG_HIGH_SECONDS = 2f;
+    private static final float DISK_BACKLOG_LOW_SECONDS = 0.5f;
+
+    private static final int DOWN_SAMPLES = 2;
+    private static final int UP_SAMPLES = 5;
+    private static final int HOLD_SAMPLES = 3;
+
+    private static final String[] ACTION_NAMES = {"hold", "down", "up"};
+
+    private final int mBaseBitRate;
+    private int mTier;
+    private int mOverloadSamples;
+    private int mUnderloadSamples;
+    private int mHoldSamples;
+    private String mLastReason = "";
+    private BufferedWriter mTraceWriter;
+
+    AdaptiveBitrateController(int baseBitRate) {
+        mBaseBitRate = baseBitRate;
+    }
+
+    /**
+     * 打开trace文件(JSON Lines)，失败时只输出到logcat
+     */
+    void openTrace(String path) {
+        closeTrace();
+        if (path == null) {
+            return;
+        }
+        try {
+            mTraceWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(path, false), "UTF-8"));
+        } catch (IOException e) {
+            Logging.e(TAG, "open trace file failed: " + path, e);
+        }
+    }
+
+    void closeTrace() {
+        if (mTraceWriter != null) {
+            try {
+                mTraceWriter.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mTraceWriter = null;
+        }
+    }
+
+    /**
+     * 根据CPU占用选择起始档位，CPU已经很高时不必从满码率开始
+     */
+    void reset(int cpuPercent) {
+        mTier = cpuPercent >= CPU_HIGH ? 1 : 0;
+        mOverloadSamples = 0;
+        mUnderloadSamples = 0;
+        mHoldSamples = 0;
+    }
+
+    /**
+     * 输入一个周期的采样，返回ACTION_HOLD/ACTION_DOWN/ACTION_UP，档位变化后通过getBitRate取新码率
+     *
+     * @param timeMs           录制开始后的时间
+     * @param cpuPercent       CPU占用百分比，未知时为-1
+     * @param latencyMs        本周期内视频编码延迟的最大值，没有输出时为-1
+     * @param diskBacklogBytes 磁盘积压字节数，未知时为-1
+     * @param diskBytesPerSec  本周期内文件的增长速度
+     */
+    int onSample(long timeMs, int cpuPercent, long latencyMs, long diskBacklogBytes, long diskBytesPerSec) {
+        int bitRate = getBitRate();
+        long backlogHigh = (long) (bitRate / 8 * DISK_BACKLOG_HIGH_SECONDS);
+        long backlogLow = (long) (bitRate / 8 * DISK_BACKLOG_LOW_SECONDS);
+        String reason = null;
+        if (cpuPercent >= CPU_HIGH) {
+            reason = "cpu";
+        } else if (latencyMs >= LATENCY_HIGH_MS) {
+            reason = "latency";
+        } else if (diskBacklogBytes >= backlogHigh) {
+            reason = "disk";
+        }
+        boolean underload = reason == null && cpuPercent < CPU_LOW && latencyMs < LATENCY_LOW_MS
+                && diskBacklogBytes < backlogLow;
+        if (reason != null) {
+            mOverloadSamples++;
+            mUnderloadSamples = 0;
+        } else if (underload) {
+            mUnderloadSamples++;
+            mOverloadSamples = 0;
+        } else {
+            mOverloadSamples = 0;
+            mUnderloadSamples = 0;
+        }
+
+        int action = ACTION_HOLD;
+        if (mHoldSamples > 0) {
+            mHoldSamples--;
+        } else if (mOverloadSamples >= DOWN_SAMPLES && mTier < TIER_SCALES.length - 1
+                && scaledBitRate(mTier + 1) < bitRate) {
+            mTier++;
+            action = ACTION_DOWN;
+        } else if (mUnderloadSamples >= UP_SAMPLES && mTier > 0) {
+            mTier--;
+            action = ACTION_UP;
+            reason = "idle";
+        }
+        if (action != ACTION_HOLD) {
+            mOverloadSamples = 0;
+            mUnderloadSamples = 0;
+            mHoldSamples = HOLD_SAMPLES;
+            mLastReason = reason;
+        }
+        trace(timeMs, cpuPercent, latencyMs, diskBacklogBytes, diskBytesPerSec, action, reason);
+        return action;
+    }
+
+    int getTier() {
+        return mTier;
+    }
+
+    int getBitRate() {
+        return scaledBitRate(mTier);
+    }
+
+    String getLastReason() {
+        return mLastReason;
+    }
+
+    private int scaledBitRate(int tier) {
+        return Math.max(MIN_BIT_RATE, (int) (mBaseBitRate * TIER_SCALES[tier]));
+    }
+
+    private void trace(long timeMs, int cpuPercent, long latencyMs, long diskBacklogBytes,
+                       long diskBytesPerSec, int action, String reason) {
+        String line = String.format(Locale.US,
+                "{\"t\":%d,\"cpu\":%d,\"latencyMs\":%d,\"diskBacklog\":%d,\"diskRate\":%d,"
+                        + "\"tier\":%d,\"bitrate\":%d,\"action\":\"%s\",\"reason\":\"%s\"}",
+                timeMs, cpuPercent, latencyMs, diskBacklogBytes, diskBytesPerSec,
+                mTier, getBitRate(), ACTION_NAMES[action], reason == null ? "" : reason);
+        Logging.d(TAG, line);
+        if (mTraceWriter != null) {
+            try {
+                mTraceWriter.write(line);
+                mTraceWriter.newLine();
+                // 每秒只有一行，逐行flush；崩溃或被杀进程时trace才最有用，不能丢在缓冲区里
+                mTraceWriter.flush();
+            } catch (IOException e) {
+                Logging.e(TAG, "write trace failed", e);
+                closeTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.pine.rtc.controller;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * 测量目录所在存储的持续写入速度。
+ * <p>
+ * 按录制时的写入方式(定长块顺序写，定期fsync)写一个临时文件，统计总耗时和每次fsync的最大/平均延迟，结束后删除。
+ * 廉价SD卡的问题往往不在平均速度而在偶发的长时间fsync，所以同时给出最大延迟。
+ * 写入的是伪随机数据，避免带压缩的文件系统给出虚高的结果。
+ * <p>
+ * 只依赖java.io，可以直接在普通Linux文件系统上运行做压力测试。
+ */
+public class DiskThroughputProbe {
+    private static final String PROBE_FILE_PREFIX = ".disk_probe_";
+
+    private DiskThroughputProbe() {
+    }
+
+    /**
+     * 同步执行一次测量，耗时与totalBytes和存储速度成正比，不要在主线程调用
+     *
+     * @param dir          测量的目录
+     * @param totalBytes   写入的总字节数
+     * @param chunkSize    每次write的字节数
+     * @param syncInterval 每写多少字节fsync一次
+     */
+    public static Result run(File dir, long totalBytes, int chunkSize, long syncInterval) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Can not create directory: " + dir);
+        }
+        File file = new File(dir, PROBE_FILE_PREFIX + System.nanoTime());
+        byte[] chunk = new byte[chunkSize];
+        new Random(totalBytes).nextBytes(chunk);
+        FileOutputStream out = new FileOutputStream(file);
+        long written = 0L;
+        long unsynced = 0L;
+        long syncCount = 0L;
+        long totalSyncNs = 0L;
+        long maxSyncNs = 0L;
+        long start = System.nanoTime();
+        try {
+            while (written < totalBytes) {
+                int size = (int) Math.min(chunkSize, totalBytes - written);
+                // 每块改动一个字节，避免文件系统对重复数据去重
+                chunk[0] = (byte) written;
+                out.write(chunk, 0, size);
+                written += size;
+                unsynced += size;
+                if (unsynced >= syncInterval || written >= totalBytes) {
+                    long syncStart = System.nanoTime();
+                    out.getFD().sync();
+                    long syncNs = System.nanoTime() - syncStart;
+                    totalSyncNs += syncNs;
+                    maxSyncNs = Math.max(maxSyncNs, syncNs);
+                    syncCount++;
+                    unsynced = 0L;
+                }
+            }
+        } finally {
+            out.close();
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+        long elapsedNs = System.nanoTime() - start;
+        return new Result(written, elapsedNs, syncCount == 0 ? 0L : totalSyncNs / syncCount, maxSyncNs);
+    }
+
+    public static class Result {
+        public final long bytes;
+        public final long elapsedNs;
+        public final long averageSyncNs;
+        public final long maxSyncNs;
+
+        Result(long bytes, long elapsedNs, long averageSyncNs, long maxSyncNs) {
+            this.bytes = bytes;
+            this.elapsedNs = elapsedNs;
+            this.averageSyncNs = averageSyncNs;
+            this.maxSyncNs = maxSyncNs;
+        }
+
+        /**
+         * 持续写入速度(包括fsync)
+         */
+        public long getBytesPerSecond() {
+            return elapsedNs <= 0 ? Long.MAX_VALUE : (long) (bytes * 1000000000.0 / elapsedNs);
+        }
+
+        @Override
+        public String toString() {
+            return "wrote " + bytes + " bytes in " + elapsedNs / 1000000L + " ms, "
+                    + getBytesPerSecond() / 1024L + " KB/s, sync avg " + averageSyncNs / 1000000L
+                    + " ms, max " + maxSyncNs / 1000000L + " ms";
+        }
+    }
+}
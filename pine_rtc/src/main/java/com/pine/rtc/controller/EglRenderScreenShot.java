@@ -1,24 +1,15 @@
 package com.pine.rtc.controller;
 
-import android.annotation.TargetApi;
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
-import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.SystemClock;
 import android.text.TextUtils;
 
 import org.webrtc.EglRenderer;
 import org.webrtc.Logging;
 import org.webrtc.SurfaceViewRenderer;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-
 /**
  * Created by tanghongfeng on 2017/12/1.
  */
@@ -32,6 +23,9 @@ public class EglRenderScreenShot {
     private String mFilePath;
     private Handler mHandler;
     private OnShotListener mOnShotListener;
+    private Bitmap.CompressFormat mFormat = SnapshotEncoder.DEFAULT_FORMAT;
+    private int mQuality = SnapshotEncoder.DEFAULT_QUALITY;
+    private int mThumbnailSize = SnapshotEncoder.DEFAULT_THUMBNAIL_SIZE;
 
     private EglRenderer.FrameListener mRenderFrameListener = new EglRenderer.FrameListener() {
 
@@ -45,8 +39,7 @@ public class EglRenderScreenShot {
                         if (mOnShotListener != null) {
                             mOnShotListener.onScreenShot(bitmap);
                         }
-                        AsyncTask task = new SaveTask();
-                        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, bitmap);
+                        saveBitMap(bitmap);
                     }
                 }
             });
@@ -79,77 +72,76 @@ public class EglRenderScreenShot {
         return mInstance;
     }
 
-    public void screenShot() {
-        this.screenShot(mFilePath);
+    /**
+     * 设置截图保存的格式、质量和缩略图最长边(0表示不生成缩略图)，默认为SnapshotEncoder的默认值
+     */
+    public void setSnapshotFormat(Bitmap.CompressFormat format, int quality, int thumbnailSize) {
+        mFormat = format;
+        mQuality = quality;
+        mThumbnailSize = thumbnailSize;
+    }
+
+    public boolean screenShot() {
+        return this.screenShot(mFilePath);
     }
 
-    public void screenShot(String filePath) {
+    /**
+     * 编码队列已满时不截图，返回false
+     */
+    public boolean screenShot(String filePath) {
         if (mScreenShotRender == null) {
-            return;
+            return false;
+        }
+        if (!SnapshotEncoder.getInstance().canAccept()) {
+            Logging.w(TAG, "snapshot encoder is busy, skip screenshot");
+            return false;
         }
         mFilePath = filePath;
         mScreenShotRender.removeFrameListener(mRenderFrameListener);
         mScreenShotRender.addFrameListener(mRenderFrameListener, 1.0f);
+        return true;
     }
 
-    public class SaveTask extends AsyncTask<Bitmap, Void, String> {
-        @TargetApi(Build.VERSION_CODES.KITKAT)
-        @Override
-        protected String doInBackground(Bitmap... params) {
-            if (params == null || params.length < 1 || params[0] == null) {
-                return null;
-            }
-            Bitmap bitmap = params[0];
-            mFilePath = saveBitMap(bitmap);
-            return mFilePath;
-        }
-
-        @TargetApi(Build.VERSION_CODES.KITKAT)
-        @Override
-        protected void onPostExecute(String filePath) {
-            super.onPostExecute(filePath);
-            if (mOnShotListener != null) {
-                mOnShotListener.onScreenShotSave(filePath);
-            }
+    /**
+     * 基于当前的SurfaceViewRenderer创建FrameGrabber，用于按缩放、区域抓取RGBA/I420数据或周期采样，
+     * 未setupScreenShot时返回null。用完后调用FrameGrabber.release
+     */
+    public FrameGrabber createFrameGrabber() {
+        if (mScreenShotRender == null) {
+            return null;
         }
+        return new FrameGrabber(mScreenShotRender);
     }
 
-    private String saveBitMap(Bitmap bitmap) {
-        if (bitmap != null) {
-            try {
-                if (TextUtils.isEmpty(mFilePath)) {
-                    mFilePath = Environment.getExternalStorageDirectory().getPath()
-                            + "/rtc/" +
-                            SystemClock.currentThreadTimeMillis() + ".png";
-                }
-                File file = new File(mFilePath.substring(0, mFilePath.lastIndexOf("/")));
-                if (!file.exists()) {
-                    file.mkdir();
-                }
-                File fileImage = new File(mFilePath);
-                if (!fileImage.exists()) {
-                    fileImage.createNewFile();
-                }
-                FileOutputStream out = new FileOutputStream(fileImage);
-                if (out != null) {
-                    bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
-                    out.flush();
-                    out.close();
-                }
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                mFilePath = null;
-            } catch (IOException e) {
-                e.printStackTrace();
-                mFilePath = null;
-            }
+    private void saveBitMap(Bitmap bitmap) {
+        String path = mFilePath;
+        if (TextUtils.isEmpty(path)) {
+            path = Environment.getExternalStorageDirectory().getPath()
+                    + "/rtc/" +
+                    System.currentTimeMillis() + SnapshotEncoder.getExtension(mFormat);
+        }
+        SnapshotEncoder.Request request = new SnapshotEncoder.Request(bitmap, path)
+                .setFormat(mFormat, mQuality)
+                .setThumbnailSize(mThumbnailSize)
+                .setCallback(new SnapshotEncoder.Callback() {
+                    @Override
+                    public void onEncoded(SnapshotEncoder.Result result) {
+                        if (mOnShotListener != null) {
+                            mOnShotListener.onScreenShotSave(result.path);
+                        }
+                    }
+                }, mHandler);
+        if (!SnapshotEncoder.getInstance().submit(request) && mOnShotListener != null) {
+            mOnShotListener.onScreenShotSave(null);
         }
-        return mFilePath;
     }
 
     public static interface OnShotListener {
         void onScreenShot(Bitmap bitmap);
 
+        /**
+         * filePath为null表示保存失败
+         */
         void onScreenShotSave(String filePath);
     }
 }
@@ -0,0 +1,225 @@
+package com.pine.rtc.controller;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * muxer启动前的编码数据交织缓冲区。
+ * <p>
+ * muxer要等音视频两路的输出格式都确定后才能start，在此之前编码器已经输出的数据原来会被直接丢弃，
+ * 导致每段录制开头的声音或画面缺失。这里把这些数据拷贝到复用的buffer中暂存，
+ * muxer启动后按时间戳把两路交织写入(每一路内部保持编码器的输出顺序)。
+ * <p>
+ * 缓冲区的采样数和总字节数都有上限，超出时依次丢弃：第一个视频关键帧之前的视频帧(本来就无法解码)、
+ * 最早的音频帧；暂存的视频从关键帧开始后不再从头部丢弃，否则muxer启动后要等到下一个关键帧
+ * (最长I_FRAME_INTERVAL)才有画面，此时改为丢弃新到的视频帧，直到下一个关键帧。
+ * 写出时跳过第一个视频关键帧之前的视频帧。
+ * 统计：buffered - 暂存的采样数，reordered - 写出顺序与到达顺序不同的采样数，discarded - 丢弃的采样数。
+ * <p>
+ * 非线程安全，MediaRecordController中由mLock保护。
+ */
+class EncodedSampleBuffer {
+    private static final int BUFFER_ALIGN = 4096;
+
+    private final int mMaxSamples;
+    private final long mMaxBytes;
+    private final ArrayDeque<Sample> mAudioSamples = new ArrayDeque<Sample>();
+    private final ArrayDeque<Sample> mVideoSamples = new ArrayDeque<Sample>();
+    // 复用的Sample及其buffer
+    private final List<Sample> mFreeSamples = new ArrayList<Sample>();
+
+    private long mPendingBytes;
+    private long mSequence;
+    private long mLastWrittenSequence = -1L;
+    private boolean mVideoKeyFrameSeen;
+    // 因缓冲区已满丢弃了新到的视频帧，之后的非关键帧依赖它而无法解码
+    private boolean mDroppingVideo;
+
+    private long mBufferedCount;
+    private long mReorderedCount;
+    private long mDiscardedCount;
+
+    EncodedSampleBuffer(int maxSamples, long maxBytes) {
+        mMaxSamples = maxSamples;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * 拷贝一个编码采样，data的内容为[info.offset, info.offset + info.size)
+     */
+    void add(boolean isAudio, ByteBuffer data, MediaCodec.BufferInfo info) {
+        if (!isAudio && mDroppingVideo) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+                mDiscardedCount++;
+                return;
+            }
+            mDroppingVideo = false;
+        }
+        if (info.size > mMaxBytes) {
+            discardIncoming(isAudio);
+            return;
+        }
+        while (size() >= mMaxSamples || mPendingBytes + info.size > mMaxBytes) {
+            if (!discardOldest()) {
+                // 没有可以丢弃的旧数据，丢弃本次的采样
+                discardIncoming(isAudio);
+                return;
+            }
+        }
+        Sample sample = obtain(info.size);
+        data.position(info.offset);
+        data.limit(info.offset + info.size);
+        sample.mData.clear();
+        sample.mData.put(data);
+        sample.mData.flip();
+        sample.mIsAudio = isAudio;
+        sample.mPresentationTimeUs = info.presentationTimeUs;
+        sample.mFlags = info.flags;
+        sample.mSequence = mSequence++;
+        (isAudio ? mAudioSamples : mVideoSamples).addLast(sample);
+        mPendingBytes += info.size;
+        mBufferedCount++;
+    }
+
+    /**
+     * 取出时间戳最早的采样，用完后需调用recycle。没有可写的采样时返回null
+     */
+    Sample poll() {
+        while (!mVideoKeyFrameSeen && !mVideoSamples.isEmpty()) {
+            Sample head = mVideoSamples.peekFirst();
+            if ((head.mFlags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                mVideoKeyFrameSeen = true;
+                break;
+            }
+            // 第一个关键帧之前的视频帧无法解码
+            mVideoSamples.pollFirst();
+            mPendingBytes -= head.mData.limit();
+            mDiscardedCount++;
+            recycle(head);
+        }
+        Sample sample = pollEarliest();
+        if (sample == null) {
+            return null;
+        }
+        mPendingBytes -= sample.mData.limit();
+        if (sample.mSequence < mLastWrittenSequence) {
+            mReorderedCount++;
+        } else {
+            mLastWrittenSequence = sample.mSequence;
+        }
+        return sample;
+    }
+
+    void recycle(Sample sample) {
+        sample.mData.clear();
+        mFreeSamples.add(sample);
+    }
+
+    /**
+     * 丢弃所有暂存的数据并清零统计，buffer保留复用
+     */
+    void clear() {
+        Sample sample;
+        while ((sample = mAudioSamples.pollFirst()) != null) {
+            recycle(sample);
+        }
+        while ((sample = mVideoSamples.pollFirst()) != null) {
+            recycle(sample);
+        }
+        mPendingBytes = 0L;
+        mSequence = 0L;
+        mLastWrittenSequence = -1L;
+        mVideoKeyFrameSeen = false;
+        mDroppingVideo = false;
+        mBufferedCount = 0L;
+        mReorderedCount = 0L;
+        mDiscardedCount = 0L;
+    }
+
+    int size() {
+        return mAudioSamples.size() + mVideoSamples.size();
+    }
+
+    long getBufferedCount() {
+        return mBufferedCount;
+    }
+
+    long getReorderedCount() {
+        return mReorderedCount;
+    }
+
+    long getDiscardedCount() {
+        return mDiscardedCount;
+    }
+
+    private void discardIncoming(boolean isAudio) {
+        mDiscardedCount++;
+        if (!isAudio) {
+            mDroppingVideo = true;
+        }
+    }
+
+    /**
+     * 丢弃一个关键帧之前的视频帧或最早的音频帧，都没有时返回false
+     */
+    private boolean discardOldest() {
+        Sample sample = mVideoSamples.peekFirst();
+        if (sample != null && (sample.mFlags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+            // 头部的非关键帧只可能在第一个关键帧之前
+            mVideoSamples.pollFirst();
+        } else {
+            sample = mAudioSamples.pollFirst();
+        }
+        if (sample == null) {
+            return false;
+        }
+        mPendingBytes -= sample.mData.limit();
+        mDiscardedCount++;
+        recycle(sample);
+        return true;
+    }
+
+    private Sample pollEarliest() {
+        Sample audio = mAudioSamples.peekFirst();
+        Sample video = mVideoSamples.peekFirst();
+        if (audio == null && video == null) {
+            return null;
+        }
+        if (video == null || (audio != null && audio.mPresentationTimeUs <= video.mPresentationTimeUs)) {
+            return mAudioSamples.pollFirst();
+        }
+        return mVideoSamples.pollFirst();
+    }
+
+    private Sample obtain(int size) {
+        for (int i = mFreeSamples.size() - 1; i >= 0; i--) {
+            Sample sample = mFreeSamples.get(i);
+            if (sample.mData.capacity() >= size) {
+                mFreeSamples.remove(i);
+                return sample;
+            }
+        }
+        int capacity = (size + BUFFER_ALIGN - 1) / BUFFER_ALIGN * BUFFER_ALIGN;
+        return new Sample(ByteBuffer.allocateDirect(capacity));
+    }
+
+    static class Sample {
+        final ByteBuffer mData;
+        boolean mIsAudio;
+        long mPresentationTimeUs;
+        int mFlags;
+        long mSequence;
+
+        Sample(ByteBuffer data) {
+            mData = data;
+        }
+
+        void fillInfo(MediaCodec.BufferInfo info) {
+            info.set(0, mData.limit(), mPresentationTimeUs, mFlags);
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package com.pine.rtc.controller;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import org.webrtc.EglRenderer;
+import org.webrtc.Logging;
+import org.webrtc.SurfaceViewRenderer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 从SurfaceViewRenderer抓取视频帧，输出RGBA或I420数据到调用方提供的(池化的)ByteBuffer。
+ * <p>
+ * 基于EglRenderer.FrameListener：EglRenderer按scale在GPU上缩小后再读回，scale越小读回越快。
+ * 渲染线程只把Bitmap交给抓帧线程，区域裁剪、格式转换都在抓帧线程中完成。
+ * EglRenderer的FrameListener只触发一次，周期采样时由抓帧线程按间隔重新注册，调用方不需要处理。
+ * 已注册的listener还没触发时不重复注册，只有scale变化时才先移除再注册。
+ * <p>
+ * 每次抓帧的开销(抓帧线程中拷贝和转换的耗时)可以通过getLastCostMs/getAverageCostMs获取。
+ * 超过setMaxCostMs设置的预算时，下一次采样按比例推迟。下一次采样在本次完成后才开始计时，同一时间最多只有一次抓帧。
+ */
+public class FrameGrabber {
+    private static final String TAG = "FrameGrabber";
+
+    public static final int FORMAT_RGBA = 0;
+    public static final int FORMAT_I420 = 1;
+
+    private static final float COST_SMOOTHING = 0.2f;
+
+    private final SurfaceViewRenderer mRenderer;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // 以下配置在调用线程中设置，在抓帧线程中读取
+    private volatile float mScale = 1.0f;
+    private volatile RectF mRegion;
+    private volatile int mFormat = FORMAT_RGBA;
+    private volatile long mMaxCostMs;
+    private volatile BufferProvider mBufferProvider;
+
+    // 以下只在抓帧线程中访问
+    private Callback mCallback;
+    private long mIntervalMs;
+    private boolean mSampling;
+    // 已注册到EglRenderer、还没收到帧的listener，为null表示没有抓帧在进行
+    private GrabListener mPendingListener;
+    private byte[] mPixels;
+    // I420转换时两行Y和一行U、V的缓冲区
+    private byte[] mI420Rows;
+
+    private volatile long mLastCostMs;
+    private volatile float mAverageCostMs;
+    private volatile int mGrabCount;
+
+    public FrameGrabber(SurfaceViewRenderer renderer) {
+        mRenderer = renderer;
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * EglRenderer读回时的缩放比例，(0, 1]
+     */
+    public FrameGrabber setScale(float scale) {
+        if (scale <= 0f || scale > 1f) {
+            throw new IllegalArgumentException("scale must be in (0, 1]: " + scale);
+        }
+        mScale = scale;
+        return this;
+    }
+
+    /**
+     * 抓取的区域，以帧宽高归一化的坐标(0~1)表示，null为整帧
+     */
+    public FrameGrabber setRegion(RectF region) {
+        mRegion = region == null ? null : new RectF(region);
+        return this;
+    }
+
+    /**
+     * FORMAT_RGBA或FORMAT_I420，I420的宽高会向下取偶数
+     */
+    public FrameGrabber setFormat(int format) {
+        mFormat = format;
+        return this;
+    }
+
+    /**
+     * 单次抓帧的开销预算，超出时周期采样按比例推迟，0表示不限制
+     */
+    public FrameGrabber setMaxCostMs(long maxCostMs) {
+        mMaxCostMs = maxCostMs;
+        return this;
+    }
+
+    /**
+     * 输出buffer的来源，为null时每次分配新的direct buffer
+     */
+    public FrameGrabber setBufferProvider(BufferProvider provider) {
+        mBufferProvider = provider;
+        return this;
+    }
+
+    /**
+     * 抓取下一帧，callback在抓帧线程中回调
+     */
+    public void grab(final Callback callback) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCallback = callback;
+                mSampling = false;
+                arm();
+            }
+        });
+    }
+
+    /**
+     * 每intervalMs抓取一帧，直到stop
+     */
+    public void startSampling(final long intervalMs, final Callback callback) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.removeCallbacks(mSampleRunnable);
+                mCallback = callback;
+                mIntervalMs = intervalMs;
+                mSampling = true;
+                arm();
+            }
+        });
+    }
+
+    public void stop() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopInternal();
+            }
+        });
+    }
+
+    public void release() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopInternal();
+                mPixels = null;
+                mI420Rows = null;
+            }
+        });
+        mThread.quitSafely();
+    }
+
+    public long getLastCostMs() {
+        return mLastCostMs;
+    }
+
+    public long getAverageCostMs() {
+        return Math.round(mAverageCostMs);
+    }
+
+    public int getGrabCount() {
+        return mGrabCount;
+    }
+
+    private void stopInternal() {
+        mHandler.removeCallbacks(mSampleRunnable);
+        mSampling = false;
+        mCallback = null;
+        if (mPendingListener != null) {
+            mRenderer.removeFrameListener(mPendingListener);
+            mPendingListener = null;
+        }
+    }
+
+    private final Runnable mSampleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mSampling && mPendingListener == null) {
+                arm();
+            }
+        }
+    };
+
+    private void arm() {
+        float scale = mScale;
+        if (mPendingListener != null) {
+            if (mPendingListener.mScale == scale) {
+                // 上一次注册的还没触发，等它的帧即可
+                return;
+            }
+            mRenderer.removeFrameListener(mPendingListener);
+        }
+        mPendingListener = new GrabListener(scale);
+        mRenderer.addFrameListener(mPendingListener, scale);
+    }
+
+    private void scheduleNext(long delayMs) {
+        mHandler.postDelayed(mSampleRunnable, delayMs);
+    }
+
+    /**
+     * 每次注册一个新实例，用来区分到达的帧属于哪一次注册
+     */
+    private class GrabListener implements EglRenderer.FrameListener {
+        final float mScale;
+
+        GrabListener(float scale) {
+            mScale = scale;
+        }
+
+        // 在渲染线程中回调，EglRenderer回调后已移除该listener，只转交给抓帧线程
+        @Override
+        public void onFrame(final Bitmap bitmap) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onBitmap(GrabListener.this, bitmap);
+                }
+            });
+        }
+    }
+
+    private void onBitmap(GrabListener listener, Bitmap bitmap) {
+        // stop之后或被替换的listener到达的帧
+        if (listener != mPendingListener || mCallback == null) {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            return;
+        }
+        mPendingListener = null;
+        ByteBuffer buffer = null;
+        int format = mFormat;
+        int[] size = new int[2];
+        if (bitmap != null) {
+            long start = SystemClock.elapsedRealtime();
+            try {
+                buffer = convert(bitmap, format, size);
+            } finally {
+                bitmap.recycle();
+                updateCost(SystemClock.elapsedRealtime() - start);
+            }
+        }
+        if (buffer != null) {
+            mGrabCount++;
+            mCallback.onFrameGrabbed(buffer, format, size[0], size[1]);
+        }
+        if (mSampling) {
+            long delay = mIntervalMs;
+            long maxCost = mMaxCostMs;
+            if (maxCost > 0 && mLastCostMs > maxCost) {
+                delay = mIntervalMs * mLastCostMs / maxCost;
+                Logging.d(TAG, "grab cost " + mLastCostMs + " ms exceeds " + maxCost + " ms, next in " + delay);
+            }
+            scheduleNext(delay);
+        }
+    }
+
+    /**
+     * 裁剪并转换为目标格式，outSize返回宽高，帧太小无法转换时返回null
+     */
+    private ByteBuffer convert(Bitmap bitmap, int format, int[] outSize) {
+        int frameWidth = bitmap.getWidth();
+        int frameHeight = bitmap.getHeight();
+        RectF region = mRegion;
+        int left = 0;
+        int top = 0;
+        int width = frameWidth;
+        int height = frameHeight;
+        if (region != null) {
+            left = clamp(Math.round(region.left * frameWidth), 0, frameWidth - 1);
+            top = clamp(Math.round(region.top * frameHeight), 0, frameHeight - 1);
+            width = clamp(Math.round(region.right * frameWidth), left + 1, frameWidth) - left;
+            height = clamp(Math.round(region.bottom * frameHeight), top + 1, frameHeight) - top;
+        }
+        if (format == FORMAT_I420) {
+            width = Math.max(2, width & ~1);
+            height = Math.max(2, height & ~1);
+            if (left + width > frameWidth || top + height > frameHeight) {
+                Logging.w(TAG, "frame is too small for I420: " + frameWidth + "x" + frameHeight);
+                return null;
+            }
+        }
+        int pixelsSize = frameWidth * frameHeight * 4;
+        if (mPixels == null || mPixels.length < pixelsSize) {
+            mPixels = new byte[pixelsSize];
+        }
+        // ARGB_8888在内存中为RGBA顺序
+        bitmap.copyPixelsToBuffer(ByteBuffer.wrap(mPixels, 0, pixelsSize));
+        int size = format == FORMAT_I420 ? width * height * 3 / 2 : width * height * 4;
+        ByteBuffer buffer = obtainBuffer(size);
+        if (format == FORMAT_I420) {
+            if (mI420Rows == null || mI420Rows.length < width * 3) {
+                mI420Rows = new byte[width * 3];
+            }
+            rgbaToI420(mPixels, frameWidth * 4, left, top, width, height, mI420Rows, buffer);
+        } else {
+            for (int row = 0; row < height; row++) {
+                buffer.put(mPixels, ((top + row) * frameWidth + left) * 4, width * 4);
+            }
+        }
+        buffer.flip();
+        outSize[0] = width;
+        outSize[1] = height;
+        return buffer;
+    }
+
+    private ByteBuffer obtainBuffer(int size) {
+        BufferProvider provider = mBufferProvider;
+        ByteBuffer buffer = provider != null ? provider.obtain(size) : null;
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private void updateCost(long costMs) {
+        mLastCostMs = costMs;
+        mAverageCostMs = mGrabCount == 0 ? costMs
+                : mAverageCostMs + COST_SMOOTHING * (costMs - mAverageCostMs);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * BT.601有限范围，色度取2x2的平均值。width和height必须为偶数。
+     * 每两行转换到rows(至少width * 3字节)后按行写入dst，不经过整帧的中间数组；
+     * 从dst的position开始写入width * height * 3 / 2字节，结束后position在数据末尾
+     */
+    static void rgbaToI420(byte[] rgba, int rgbaStride, int left, int top, int width, int height,
+                           byte[] rows, ByteBuffer dst) {
+        int base = dst.position();
+        int uOffset = base + width * height;
+        int vOffset = uOffset + width * height / 4;
+        int chromaWidth = width / 2;
+        int yIndex0 = 0;
+        int yIndex1 = width;
+        int uIndex = width * 2;
+        int vIndex = uIndex + chromaWidth;
+        for (int y = 0; y < height; y += 2) {
+            int row0 = (top + y) * rgbaStride + left * 4;
+            int row1 = row0 + rgbaStride;
+            int cIndex = 0;
+            for (int x = 0; x < width; x += 2) {
+                int sumR = 0;
+                int sumG = 0;
+                int sumB = 0;
+                for (int i = 0; i < 4; i++) {
+                    int p = ((i & 2) == 0 ? row0 : row1) + (x + (i & 1)) * 4;
+                    int r = rgba[p] & 0xff;
+                    int g = rgba[p + 1] & 0xff;
+                    int b = rgba[p + 2] & 0xff;
+                    int index = ((i & 2) == 0 ? yIndex0 : yIndex1) + x + (i & 1);
+                    rows[index] = (byte) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+                    sumR += r;
+                    sumG += g;
+                    sumB += b;
+                }
+                int r = sumR >> 2;
+                int g = sumG >> 2;
+                int b = sumB >> 2;
+                rows[uIndex + cIndex] = (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+                rows[vIndex + cIndex] = (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+                cIndex++;
+            }
+            int chromaRow = (y / 2) * chromaWidth;
+            dst.position(base + y * width);
+            dst.put(rows, 0, width * 2);
+            dst.position(uOffset + chromaRow);
+            dst.put(rows, uIndex, chromaWidth);
+            dst.position(vOffset + chromaRow);
+            dst.put(rows, vIndex, chromaWidth);
+        }
+    }
+
+    public interface BufferProvider {
+        /**
+         * 返回容量不小于capacity的buffer，返回null或容量不足时由FrameGrabber分配
+         */
+        ByteBuffer obtain(int capacity);
+    }
+
+    public interface Callback {
+        /**
+         * 在抓帧线程中回调，buffer的position为0、limit为数据长度，用完后由调用方归还到自己的池中
+         */
+        void onFrameGrabbed(ByteBuffer buffer, int format, int width, int height);
+    }
+}
@@ -9,17 +9,18 @@ import android.hardware.display.VirtualDisplay;
 import android.media.Image;
 import android.media.ImageReader;
 import android.media.projection.MediaProjection;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.DisplayMetrics;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import org.webrtc.Logging;
+import org.webrtc.ThreadUtils;
+
 import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -27,6 +28,11 @@ import java.util.Date;
 
 /**
  * Created by tanghongfeng on 2017/12/1.
+ * <p>
+ * ImageReader的回调在单独的线程中执行，始终持有最新的一帧(VirtualDisplay只在画面变化时才出新帧)。
+ * 截图请求等待下一帧，FRAME_WAIT_TIMEOUT_MS内没有新帧说明画面没有变化，直接使用持有的最新一帧。
+ * 拷贝时按rowStride逐行去掉行尾的填充，写入复用的紧凑buffer后一次性拷贝到大小正好的Bitmap中，
+ * 每次截图只分配一个Bitmap。支持按固定间隔连续截取多帧(burst)。
  */
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
 public class MediaProjectionScreenShot {
@@ -42,6 +48,20 @@ public class MediaProjectionScreenShot {
     private int mWidth;
     private int mHeight;
     private OnShotListener mOnShotListener;
+    private Bitmap.CompressFormat mFormat = SnapshotEncoder.DEFAULT_FORMAT;
+    private int mQuality = SnapshotEncoder.DEFAULT_QUALITY;
+    private int mThumbnailSize = SnapshotEncoder.DEFAULT_THUMBNAIL_SIZE;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private static final int MAX_IMAGES = 2;
+    private static final long FRAME_WAIT_TIMEOUT_MS = 100L;
+    // 以下只在mImageThread中访问
+    private HandlerThread mImageThread;
+    private Handler mImageHandler;
+    private Image mLatestImage;
+    private ByteBuffer mTightBuffer;
+    private ShotRequest mWaitingRequest;
+    private BurstState mBurst;
 
     private static final String FILE_SAVE_DIR;
 
@@ -74,15 +94,59 @@ public class MediaProjectionScreenShot {
         mDensityDpi = densityDpi;
         mWidth = width;
         mHeight = height;
-        mImageReader = ImageReader.newInstance(
-                mWidth,
-                mHeight,
-                PixelFormat.RGBA_8888,
-                1);
+        if (mImageThread == null) {
+            mImageThread = new HandlerThread(TAG);
+            mImageThread.start();
+            mImageHandler = new Handler(mImageThread.getLooper());
+        }
+        ThreadUtils.invokeAtFrontUninterruptibly(mImageHandler, new Runnable() {
+            @Override
+            public void run() {
+                closeImageReader();
+                // 持有最新的一帧时编码端还需要一个buffer可写
+                mImageReader = ImageReader.newInstance(
+                        mWidth,
+                        mHeight,
+                        PixelFormat.RGBA_8888,
+                        MAX_IMAGES);
+                mImageReader.setOnImageAvailableListener(mImageAvailableListener, mImageHandler);
+            }
+        });
         setupVirtualDisplay();
         return mInstance;
     }
 
+    private final ImageReader.OnImageAvailableListener mImageAvailableListener =
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    // 先释放持有的一帧，acquireLatestImage才有足够的buffer
+                    if (mLatestImage != null) {
+                        mLatestImage.close();
+                        mLatestImage = null;
+                    }
+                    try {
+                        mLatestImage = reader.acquireLatestImage();
+                    } catch (IllegalStateException e) {
+                        Logging.e(TAG, "acquire image failed", e);
+                    }
+                    if (mLatestImage != null && mWaitingRequest != null) {
+                        mImageHandler.removeCallbacks(mFrameTimeoutRunnable);
+                        completeRequest();
+                    }
+                }
+            };
+
+    // 等不到新帧时画面没有变化，使用持有的最新一帧
+    private final Runnable mFrameTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mWaitingRequest != null) {
+                completeRequest();
+            }
+        }
+    };
+
     private void setupVirtualDisplay() {
         mVirtualDisplay = mMediaProjection.createVirtualDisplay("screen-mirror",
                 mWidth, mHeight, mDensityDpi,
@@ -90,115 +154,283 @@ public class MediaProjectionScreenShot {
                 mImageReader.getSurface(), null, null);
     }
 
-    public void startScreenShot() {
-        startScreenShot(mLocalUrl);
+    /**
+     * 设置截图保存的格式、质量和缩略图最长边(0表示不生成缩略图)，默认为SnapshotEncoder的默认值
+     */
+    public void setSnapshotFormat(Bitmap.CompressFormat format, int quality, int thumbnailSize) {
+        mFormat = format;
+        mQuality = quality;
+        mThumbnailSize = thumbnailSize;
     }
 
-    public void startScreenShot(String loc_url) {
+    public boolean startScreenShot() {
+        return startScreenShot(mLocalUrl);
+    }
+
+    /**
+     * 编码队列已满时不截图，返回false
+     */
+    public boolean startScreenShot(String loc_url) {
+        if (!SnapshotEncoder.getInstance().canAccept()) {
+            Logging.w(TAG, "snapshot encoder is busy, skip screenshot");
+            return false;
+        }
         if (mVirtualDisplay == null) {
             setupVirtualDisplay();
         }
         mLocalUrl = loc_url;
-        new Handler().postDelayed(new Runnable() {
+        final String path = getSavePath(loc_url);
+        requestFrame(new ShotRequest() {
+            @Override
+            void onFrame(final Bitmap bitmap, long timestampNs) {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (bitmap == null) {
+                            return;
+                        }
+                        if (mOnShotListener != null) {
+                            mOnShotListener.onFinish(bitmap);
+                        }
+                        saveBitmap(bitmap, path);
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 连续截取count帧，相邻两帧间隔intervalMs(按开始时间对齐，不累积误差)。
+     * 截取的帧不自动保存，通过listener在主线程回调；新的burst会取消还没完成的burst
+     */
+    public void startBurst(final int count, final long intervalMs, final OnBurstListener listener) {
+        if (mVirtualDisplay == null) {
+            setupVirtualDisplay();
+        }
+        mImageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mBurst != null) {
+                    mImageHandler.removeCallbacks(mBurst);
+                    finishBurst(mBurst);
+                }
+                mBurst = new BurstState(count, intervalMs, listener);
+                mBurst.run();
+            }
+        });
+    }
+
+    private void requestFrame(final ShotRequest request) {
+        mImageHandler.post(new Runnable() {
             @Override
             public void run() {
-                Image image = mImageReader.acquireLatestImage();
-                int width = image.getWidth();
-                int height = image.getHeight();
-                final Image.Plane[] planes = image.getPlanes();
-                final ByteBuffer buffer = planes[0].getBuffer();
-                //每个像素的间距
-                int pixelStride = planes[0].getPixelStride();
-                //总的间距
-                int rowStride = planes[0].getRowStride();
-                int rowPadding = rowStride - pixelStride * width;
-                Bitmap bitmap = Bitmap.createBitmap(width + rowPadding / pixelStride, height,
-                        Bitmap.Config.ARGB_8888);
-                bitmap.copyPixelsFromBuffer(buffer);
-                bitmap = Bitmap.createBitmap(bitmap, 0, 0, width, height);
-                image.close();
-                if (mOnShotListener != null) {
-                    mOnShotListener.onFinish(bitmap);
+                if (mWaitingRequest != null) {
+                    // 上一个请求还在等帧，先用当前最新的一帧完成它
+                    mImageHandler.removeCallbacks(mFrameTimeoutRunnable);
+                    completeRequest();
                 }
-                AsyncTask task = new SaveTask();
-                task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, bitmap);
+                mWaitingRequest = request;
+                mImageHandler.postDelayed(mFrameTimeoutRunnable, FRAME_WAIT_TIMEOUT_MS);
             }
-        }, 50);
+        });
     }
 
-    public void release(boolean destroy) {
+    private void completeRequest() {
+        ShotRequest request = mWaitingRequest;
+        mWaitingRequest = null;
+        Image image = mLatestImage;
+        if (image == null) {
+            Logging.w(TAG, "no frame available for screenshot");
+            request.onFrame(null, 0L);
+            return;
+        }
+        request.onFrame(copyToBitmap(image), image.getTimestamp());
+    }
+
+    /**
+     * 按rowStride去掉行尾填充后拷贝到大小正好的Bitmap，没有填充时直接拷贝
+     */
+    private Bitmap copyToBitmap(Image image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer buffer = plane.getBuffer();
+        //每个像素的间距
+        int pixelStride = plane.getPixelStride();
+        //总的间距
+        int rowStride = plane.getRowStride();
+        int rowBytes = pixelStride * width;
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        buffer.clear();
+        if (rowStride == rowBytes) {
+            buffer.limit(rowBytes * height);
+            bitmap.copyPixelsFromBuffer(buffer);
+            return bitmap;
+        }
+        int size = rowBytes * height;
+        if (mTightBuffer == null || mTightBuffer.capacity() < size) {
+            mTightBuffer = ByteBuffer.allocateDirect(size);
+        }
+        mTightBuffer.clear();
+        for (int row = 0; row < height; row++) {
+            buffer.limit(row * rowStride + rowBytes);
+            buffer.position(row * rowStride);
+            mTightBuffer.put(buffer);
+        }
+        mTightBuffer.flip();
+        bitmap.copyPixelsFromBuffer(mTightBuffer);
+        return bitmap;
+    }
+
+    private void finishBurst(final BurstState burst) {
+        if (mBurst == burst) {
+            mBurst = null;
+        }
+        final int captured = burst.mCaptured;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                burst.mListener.onBurstFinish(captured);
+            }
+        });
+    }
+
+    private abstract static class ShotRequest {
+        /**
+         * 在mImageThread中回调，没有可用的帧时bitmap为null
+         */
+        abstract void onFrame(Bitmap bitmap, long timestampNs);
+    }
+
+    private class BurstState implements Runnable {
+        final int mCount;
+        final long mIntervalMs;
+        final OnBurstListener mListener;
+        final long mStartMs = SystemClock.uptimeMillis();
+        int mRequested;
+        int mCaptured;
+
+        BurstState(int count, long intervalMs, OnBurstListener listener) {
+            mCount = count;
+            mIntervalMs = intervalMs;
+            mListener = listener;
+        }
+
+        @Override
+        public void run() {
+            if (mBurst != this) {
+                return;
+            }
+            final int index = mRequested++;
+            requestFrame(new ShotRequest() {
+                @Override
+                void onFrame(final Bitmap bitmap, final long timestampNs) {
+                    if (bitmap != null) {
+                        mCaptured++;
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                mListener.onBurstFrame(bitmap, index, timestampNs);
+                            }
+                        });
+                    }
+                    if (mRequested >= mCount) {
+                        finishBurst(BurstState.this);
+                    } else if (mBurst == BurstState.this) {
+                        mImageHandler.postAtTime(BurstState.this, mStartMs + mRequested * mIntervalMs);
+                    }
+                }
+            });
+        }
+    }
+
+    public void release(final boolean destroy) {
         if (mVirtualDisplay != null) {
             mVirtualDisplay.release();
             mVirtualDisplay = null;
         }
+        if (mImageHandler != null) {
+            ThreadUtils.invokeAtFrontUninterruptibly(mImageHandler, new Runnable() {
+                @Override
+                public void run() {
+                    mImageHandler.removeCallbacksAndMessages(null);
+                    mWaitingRequest = null;
+                    if (mBurst != null) {
+                        finishBurst(mBurst);
+                    }
+                    if (mLatestImage != null) {
+                        mLatestImage.close();
+                        mLatestImage = null;
+                    }
+                    if (destroy) {
+                        closeImageReader();
+                        mTightBuffer = null;
+                    }
+                }
+            });
+            if (destroy) {
+                mImageThread.quitSafely();
+                mImageThread = null;
+                mImageHandler = null;
+            }
+        }
         if (destroy) {
             mMediaProjection = null;
         }
     }
 
+    private void closeImageReader() {
+        if (mLatestImage != null) {
+            mLatestImage.close();
+            mLatestImage = null;
+        }
+        if (mImageReader != null) {
+            mImageReader.setOnImageAvailableListener(null, null);
+            mImageReader.close();
+            mImageReader = null;
+        }
+    }
+
     // call back listener
     public interface OnShotListener {
         void onFinish(Bitmap bitmap);
 
+        /**
+         * filePath为null表示保存失败
+         */
         void onSaveFinish(String filePath);
     }
 
-    public class SaveTask extends AsyncTask<Bitmap, Void, String> {
-        @TargetApi(Build.VERSION_CODES.KITKAT)
-        @Override
-        protected String doInBackground(Bitmap... params) {
-            if (params == null || params.length < 1 || params[0] == null) {
-                return null;
-            }
-            Bitmap bitmap = params[0];
-            File fileImage = saveBitMap(bitmap, mLocalUrl);
-            mLocalUrl = fileImage.getPath();
-            if (fileImage != null) {
-                return mLocalUrl;
-            }
-            return null;
-        }
+    public interface OnBurstListener {
+        void onBurstFrame(Bitmap bitmap, int index, long timestampNs);
 
-        @TargetApi(Build.VERSION_CODES.KITKAT)
-        @Override
-        protected void onPostExecute(String filePath) {
-            super.onPostExecute(filePath);
-            if (mOnShotListener != null) {
-                mOnShotListener.onSaveFinish(filePath);
-            }
+        void onBurstFinish(int capturedCount);
+    }
+
+    private String getSavePath(String url) {
+        if (!TextUtils.isEmpty(url)) {
+            return url;
         }
+        Date now = new Date();
+        DateFormat format = new SimpleDateFormat("yyyy_MM_dd_HH_mm_ss_SSS");
+        return FILE_SAVE_DIR + format.format(now) + SnapshotEncoder.getExtension(mFormat);
     }
 
-    private File saveBitMap(Bitmap bitmap, String url) {
-        File fileImage = null;
-        if (bitmap != null) {
-            try {
-                if (TextUtils.isEmpty(url)) {
-                    Date now = new Date();
-                    DateFormat format = new SimpleDateFormat("yyyy_MM_dd_HH_mm_ss");
-                    url = FILE_SAVE_DIR + format.format(now) + ".png";
-                }
-                fileImage = new File(url);
-                if (!fileImage.getParentFile().exists()) {
-                    fileImage.getParentFile().mkdirs();
-                }
-                if (!fileImage.exists()) {
-                    fileImage.createNewFile();
-                }
-                FileOutputStream out = new FileOutputStream(fileImage);
-                if (out != null) {
-                    bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
-                    out.flush();
-                    out.close();
-                }
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                fileImage = null;
-            } catch (IOException e) {
-                e.printStackTrace();
-                fileImage = null;
-            }
+    private void saveBitmap(Bitmap bitmap, String path) {
+        SnapshotEncoder.Request request = new SnapshotEncoder.Request(bitmap, path)
+                .setFormat(mFormat, mQuality)
+                .setThumbnailSize(mThumbnailSize)
+                .setCallback(new SnapshotEncoder.Callback() {
+                    @Override
+                    public void onEncoded(SnapshotEncoder.Result result) {
+                        if (mOnShotListener != null) {
+                            mOnShotListener.onSaveFinish(result.path);
+                        }
+                    }
+                }, mMainHandler);
+        if (!SnapshotEncoder.getInstance().submit(request) && mOnShotListener != null) {
+            mOnShotListener.onSaveFinish(null);
         }
-        return fileImage;
     }
 }
\ No newline at end of file
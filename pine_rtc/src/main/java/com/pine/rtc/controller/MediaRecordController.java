@@ -9,9 +9,11 @@ import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.media.projection.MediaProjection;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.DisplayMetrics;
 import android.util.Log;
@@ -19,6 +21,8 @@ import android.view.Surface;
 
 import androidx.annotation.RequiresApi;
 
+import com.pine.rtc.org.component.CpuMonitor;
+
 import org.webrtc.Logging;
 import org.webrtc.voiceengine.WebRtcAudioRecord;
 import org.webrtc.voiceengine.WebRtcAudioTrack;
@@ -26,7 +30,7 @@ import org.webrtc.voiceengine.WebRtcAudioTrack;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteOrder;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -40,8 +44,29 @@ public class MediaRecordController {
     private static final int I_FRAME_INTERVAL = 10; // 10 seconds between
     private static final String VIDEO_MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
     private static final String AUDIO_MIME_TYPE = MediaFormat.MIMETYPE_AUDIO_AAC;
-    private static final int QUEUE_MAX_COUNT = 100;
+    // 环形缓冲区可容纳的音频buffer个数(WebRtc每个buffer为10ms)
+    private static final int RING_BUFFER_COUNT = 100;
+    // 混音线程等待一个buffer数据的超时时间
+    private static final long AUDIO_WAIT_TIME_OUT_NS = 20000000L;
+    private static final long AUDIO_INPUT_TIME_OUT_US = 10000L;
+    // 混音器的时间戳容差/等待慢源的时间，以及每路源缓冲的时长
+    private static final long MIX_JITTER_WINDOW_US = 40000L;
+    private static final long MIX_CAPACITY_US = 1000000L;
+    // 混音输出块的时长
+    private static final int MIX_BLOCK_MS = 10;
     private static final long DEQUEUE_TIME_OUT = 100L;
+    // 异步模式下停止录制时等待编码器输出EOS的最长时间
+    private static final long ASYNC_STOP_TIME_OUT_MS = 1000L;
+    private static final int MAX_PENDING_AUDIO_INPUT = 32;
+    // 一次录制中编码器可恢复错误最多重启的次数
+    private static final int MAX_ENCODER_RESTARTS = 3;
+    // muxer启动前最多暂存的编码采样数和字节数
+    private static final int PRE_MUX_MAX_SAMPLES = 512;
+    private static final long PRE_MUX_MAX_BYTES = 4 * 1024 * 1024;
+    // AAC每声道的码率
+    private static final int AUDIO_BIT_RATE_PER_CHANNEL = 64000;
+    // 码率自适应的采样周期
+    private static final long BITRATE_SAMPLE_PERIOD_MS = 1000L;
 
     private static final int STATE_IDLE = 0;
     private static final int STATE_PREPARING = 1;
@@ -59,10 +84,15 @@ public class MediaRecordController {
     private int mWidth;
     private int mHeight;
     private int mBitRate;
+    // 本次录制的视频码率，startRecord时确定，不影响mBitRate
+    private int mRecordBitRate;
     private int mDensityDpi;
     private String mDstPath;
     private MediaProjection mMediaProjection;
     private VirtualDisplay mVirtualDisplay;
+    // 与通话共用的屏幕采集，设置后不再单独创建VirtualDisplay
+    private SharedScreenCapturer mSharedCapturer;
+    private SharedScreenCapturer mActiveSharedCapturer;
     private HandlerThread mRecorderThread;
     private int mState = STATE_IDLE;
     private Handler mRecorderThreadHandler;
@@ -72,15 +102,19 @@ public class MediaRecordController {
     private AtomicBoolean mVideoThreadCancel = new AtomicBoolean(true);
     private AtomicBoolean mAudioThreadCancel = new AtomicBoolean(true);
 
-    private LinkedBlockingQueue<AudioData> mAudioOutBufferQueue;
-    private int mAudioOutSource;
+    private PcmRingBuffer.OverflowPolicy mAudioOverflowPolicy = PcmRingBuffer.OverflowPolicy.DROP_OLDEST;
+    private long mAudioBlockTimeoutMs = 10L;
+    private PcmMixKernel.Strategy mAudioMixStrategy = PcmMixKernel.Strategy.SOFT_KNEE;
+
+    private volatile PcmRingBuffer mAudioOutRing;
+    private int mAudioOutAudioSource;
     private int mAudioOutFormat;
     private int mAudioOutSampleRate;
     private int mAudioOutChannels;
     private int mAudioOutBitsPerSample;
     private int mAudioOutBuffersPerSecond;
     private int mAudioOutBufferSize;
-    private LinkedBlockingQueue<AudioData> mAudioInBufferQueue;
+    private volatile PcmRingBuffer mAudioInRing;
     private int mAudioInFormat;
     private int mAudioInSampleRate;
     private int mAudioInChannels;
@@ -94,6 +128,14 @@ public class MediaRecordController {
     private int mAudioBitsPerSample;
     private int mAudioBuffersPerSecond;
     private int mAudioBufferSize;
+    // 混音线程专用，复用
+    private AudioData mAudioOutData;
+    private AudioData mAudioInData;
+    private PcmMixer mAudioMixer;
+    private PcmMixer.Source mAudioOutSource;
+    private PcmMixer.Source mAudioInSource;
+    private ByteBuffer mMixBuffer;
+    private int mMixFrames;
 
     private long mNanoTime;
     private MediaCodec mVideoCodec;
@@ -102,9 +144,52 @@ public class MediaRecordController {
     private int mVideoTrackIndex = -1;
     private int mAudioTrackIndex = -1;
     private AtomicBoolean mMuxerStarted = new AtomicBoolean(false);
-    private MediaMuxer mMediaMuxer;
+    private SegmentedMuxer mMediaMuxer;
+    // 分段录制：单段最大时长和大小，都为0时不分段
+    private long mSegmentDurationMs;
+    private long mSegmentMaxBytes;
+    // 预分配按多长的录制估算文件大小，0表示不预分配
+    private long mPreallocateDurationMs;
+    private boolean mSyncFrameRequested;
+    // muxer启动前编码器已输出的数据，由mLock保护
+    private final EncodedSampleBuffer mPreMuxSamples =
+            new EncodedSampleBuffer(PRE_MUX_MAX_SAMPLES, PRE_MUX_MAX_BYTES);
+    private final MediaCodec.BufferInfo mPreMuxBufferInfo = new MediaCodec.BufferInfo();
+    // muxer启动后是否已写入过视频关键帧，之前的视频帧无法解码，由mLock保护
+    private boolean mVideoKeyFrameWritten;
+
+    // 码率自适应，只在mRecorderThread中使用
+    private boolean mAdaptiveBitrate = true;
+    private String mBitrateTracePath;
+    private volatile CpuMonitor mCpuMonitor;
+    private AdaptiveBitrateController mBitrateController;
+    private long mBitrateStartMs;
+    private String mLastDiskPath;
+    private long mLastDiskLength;
+    // 本采样周期内视频编码延迟的最大值，由写视频数据的线程更新
+    private volatile long mMaxVideoLatencyUs = -1L;
 
     private Surface mSurface;
+    // 编码器出现可恢复错误时按原格式重新configure
+    private MediaFormat mAudioFormat;
+    private MediaFormat mVideoFormat;
+    private int mEncoderRestartCount;
+
+    // 异步模式：两个编码器和muxer都由mRecorderThread驱动(MediaCodec.Callback)，不再另开线程轮询
+    private boolean mUseAsyncCodec = true;
+    private boolean mAsyncRunning;
+    private boolean mAsyncStopping;
+    private boolean mAsyncDestroy;
+    private boolean mAudioEosQueued;
+    // 异步模式下最后一个送入音频编码器的输入的时间戳，EOS不能早于它
+    private long mLastQueuedAudioTimeUs;
+    private boolean mAudioEos;
+    private boolean mVideoEos;
+    private final int[] mFreeAudioInputs = new int[MAX_PENDING_AUDIO_INPUT];
+    private int mFreeAudioInputCount;
+    private final AtomicBoolean mAudioDrainPending = new AtomicBoolean(false);
+    private final MediaCodec.BufferInfo mAudioBufferInfo = new MediaCodec.BufferInfo();
+    private final MediaCodec.BufferInfo mVideoBufferInfo = new MediaCodec.BufferInfo();
 
     private static final String FILE_SAVE_DIR;
 
@@ -137,14 +222,14 @@ public class MediaRecordController {
                                                     int channels, int bitsPerSample, int buffersPerSecond,
                                                     int bufferSize) {
                     mIsAudioOutInit.set(true);
-                    mAudioOutSource = audioSource;
+                    mAudioOutAudioSource = audioSource;
                     mAudioOutFormat = audioFormat;
                     mAudioOutSampleRate = sampleRate;
                     mAudioOutChannels = channels;
                     mAudioOutBitsPerSample = bitsPerSample;
                     mAudioOutBuffersPerSecond = buffersPerSecond;
                     mAudioOutBufferSize = bufferSize;
-                    mAudioOutBufferQueue = new LinkedBlockingQueue<AudioData>(QUEUE_MAX_COUNT);
+                    mAudioOutRing = createAudioRing(sampleRate, channels, bitsPerSample, bufferSize);
                     if (mIsAudioInInit.get()) {
                         judgeAudioParams();
                     }
@@ -165,15 +250,8 @@ public class MediaRecordController {
 //                    Logging.d(TAG, "onWebRtcAudioRecording byteBuffer.capacity():" + byteBuffer.capacity()
 //                            + ", bytesRead:" + bytesRead + ", microphoneMute:" + microphoneMute);
                     if (!mAudioThreadCancel.get()) {
-                        final ByteBuffer cpBuffer = ByteBuffer.allocateDirect(bytesRead);
-                        cpBuffer.order(byteBuffer.order());
-                        cpBuffer.put(byteBuffer.array(), byteBuffer.arrayOffset(), bytesRead);
-                        cpBuffer.rewind();
-                        cpBuffer.limit(bytesRead);
-                        AudioData audioData = new AudioData(cpBuffer, System.nanoTime() / 1000L
-                                , bytesRead, 1);
-                        mAudioOutBufferQueue.offer(audioData);
-                        cpBuffer.clear();
+                        mAudioOutRing.write(byteBuffer, bytesRead, System.nanoTime() / 1000L);
+                        scheduleAudioDrain();
                     }
                 }
 
@@ -194,7 +272,7 @@ public class MediaRecordController {
                     mAudioInBitsPerSample = bitsPerSample;
                     mAudioInBuffersPerSecond = buffersPerSecond;
                     mAudioInBufferSize = bufferSize;
-                    mAudioInBufferQueue = new LinkedBlockingQueue<AudioData>(QUEUE_MAX_COUNT);
+                    mAudioInRing = createAudioRing(sampleRate, channels, bitsPerSample, bufferSize);
                     if (mIsAudioOutInit.get()) {
                         judgeAudioParams();
                     }
@@ -213,15 +291,8 @@ public class MediaRecordController {
 //                    Logging.d(TAG, "onWebRtcAudioTracking byteBuffer.capacity():" + byteBuffer.capacity()
 //                            + ", bytesWrite:" + bytesWrite + ", speakerMute:" + speakerMute);
                     if (!mAudioThreadCancel.get()) {
-                        final ByteBuffer cpBuffer = ByteBuffer.allocateDirect(bytesWrite);
-                        cpBuffer.order(byteBuffer.order());
-                        cpBuffer.put(byteBuffer.array(), byteBuffer.arrayOffset(), bytesWrite);
-                        cpBuffer.rewind();
-                        cpBuffer.limit(bytesWrite);
-                        AudioData audioData = new AudioData(cpBuffer, System.nanoTime() / 1000L,
-                                bytesWrite, 2);
-                        mAudioInBufferQueue.offer(audioData);
-                        cpBuffer.clear();
+                        mAudioInRing.write(byteBuffer, bytesWrite, System.nanoTime() / 1000L);
+                        scheduleAudioDrain();
                     }
                 }
 
@@ -233,6 +304,127 @@ public class MediaRecordController {
         }
     }
 
+    private PcmRingBuffer createAudioRing(int sampleRate, int channels, int bitsPerSample, int bufferSize) {
+        PcmRingBuffer ring = new PcmRingBuffer(bufferSize * RING_BUFFER_COUNT,
+                channels * bitsPerSample / 8, mAudioOverflowPolicy, mAudioBlockTimeoutMs);
+        ring.setBytesPerSecond(sampleRate * channels * bitsPerSample / 8);
+        return ring;
+    }
+
+    /**
+     * 设置音频环形缓冲区写满时的处理策略，在WebRtc音频初始化之前调用才生效
+     *
+     * @param policy         DROP_OLDEST/DROP_NEWEST/BLOCK
+     * @param blockTimeoutMs BLOCK策略下WebRtc音频线程最多等待的时间
+     */
+    public void setAudioOverflowPolicy(PcmRingBuffer.OverflowPolicy policy, long blockTimeoutMs) {
+        mAudioOverflowPolicy = policy;
+        mAudioBlockTimeoutMs = blockTimeoutMs;
+    }
+
+    /**
+     * 是否使用异步(MediaCodec.Callback)的编码流水线，默认开启，需在startRecord之前设置。
+     * 关闭时使用原来的三个轮询线程。
+     */
+    public void setUseAsyncCodec(boolean useAsyncCodec) {
+        mUseAsyncCodec = useAsyncCodec;
+    }
+
+    /**
+     * 设置分段录制，需在startRecord之前设置。当前段时长或大小达到上限后在下一个关键帧切换到新文件，
+     * 文件名为 录制路径_000.mp4、录制路径_001.mp4 ...，同时生成 录制路径.index.json 记录各段的时间范围，
+     * 此时OnRecordListener.onFinish返回索引文件的路径。
+     *
+     * @param maxDurationMs 单段最大时长，0表示不限
+     * @param maxBytes      单段最大字节数，0表示不限
+     */
+    public void setSegmentPolicy(long maxDurationMs, long maxBytes) {
+        mSegmentDurationMs = maxDurationMs;
+        mSegmentMaxBytes = maxBytes;
+    }
+
+    /**
+     * 设置录制文件的预分配，需在startRecord之前设置。按当前码率估算plannedDurationMs的文件大小
+     * (分段时不超过单段的上限)预先分配空间，结束时截掉没有用到的部分。0表示不预分配，需要API 26以上
+     */
+    public void setPreallocation(long plannedDurationMs) {
+        mPreallocateDurationMs = plannedDurationMs;
+    }
+
+    /**
+     * 设置视频码率，下次startRecord时生效，码率自适应以此为最高档
+     */
+    public void setVideoBitRate(int bitRate) {
+        mBitRate = bitRate;
+    }
+
+    /**
+     * 初始视频码率
+     */
+    public int getVideoBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * 音频编码码率
+     */
+    public int getAudioBitRate() {
+        return AUDIO_BIT_RATE_PER_CHANNEL * Math.max(1, mAudioChannels);
+    }
+
+    private long getPreallocateBytes() {
+        if (mPreallocateDurationMs <= 0) {
+            return 0L;
+        }
+        long durationMs = mSegmentDurationMs > 0
+                ? Math.min(mPreallocateDurationMs, mSegmentDurationMs) : mPreallocateDurationMs;
+        long bytes = RecordingStorage.estimateBytes(mRecordBitRate, getAudioBitRate(), durationMs);
+        return mSegmentMaxBytes > 0 ? Math.min(bytes, mSegmentMaxBytes) : bytes;
+    }
+
+    /**
+     * 设置是否根据CPU占用、编码延迟和磁盘写入速度动态调整视频码率，默认开启，需在startRecord之前设置
+     *
+     * @param enabled   是否开启
+     * @param tracePath 每次决策的输入和结果以JSON Lines写入该文件，为null时只输出到logcat
+     */
+    public void setAdaptiveBitrate(boolean enabled, String tracePath) {
+        mAdaptiveBitrate = enabled;
+        mBitrateTracePath = tracePath;
+    }
+
+    /**
+     * 设置码率自适应使用的CPU监控，为null时不考虑CPU占用
+     */
+    public void setCpuMonitor(CpuMonitor cpuMonitor) {
+        mCpuMonitor = cpuMonitor;
+    }
+
+    /**
+     * 使用与通话共用的屏幕采集，下次startRecord时生效；为null时恢复为录屏单独创建VirtualDisplay
+     */
+    public void setSharedCapturer(SharedScreenCapturer capturer) {
+        mSharedCapturer = capturer;
+    }
+
+    /**
+     * 当前视频编码码率
+     */
+    public int getCurrentVideoBitRate() {
+        AdaptiveBitrateController controller = mBitrateController;
+        return controller != null ? controller.getBitRate() : mBitRate;
+    }
+
+    /**
+     * 设置录制时麦克风与远端声音的混音策略，默认SOFT_KNEE
+     */
+    public void setAudioMixStrategy(PcmMixKernel.Strategy strategy) {
+        mAudioMixStrategy = strategy;
+        if (mAudioMixer != null) {
+            mAudioMixer.setStrategy(strategy);
+        }
+    }
+
     private synchronized void judgeAudioParams() {
         Logging.d(TAG, "judgeAudioParams mAudioInSampleRate:" + mAudioInSampleRate
                 + ", mAudioOutSampleRate:" + mAudioOutSampleRate
@@ -246,6 +438,19 @@ public class MediaRecordController {
         mAudioChannels = Math.max(mAudioInChannels, mAudioOutChannels);
         mAudioBitsPerSample = Math.max(mAudioInBitsPerSample, mAudioOutBitsPerSample);
         mAudioBufferSize = Math.max(mAudioInBufferSize, mAudioOutBufferSize);
+        mAudioOutData = new AudioData(ByteBuffer.allocateDirect(mAudioOutBufferSize)
+                .order(ByteOrder.nativeOrder()), 0L, 0, 1);
+        mAudioInData = new AudioData(ByteBuffer.allocateDirect(mAudioInBufferSize)
+                .order(ByteOrder.nativeOrder()), 0L, 0, 2);
+        // 两路统一重采样到较高的采样率和声道数后再混音
+        mAudioMixer = new PcmMixer(mAudioSampleRate, mAudioChannels,
+                MIX_JITTER_WINDOW_US, MIX_CAPACITY_US);
+        mAudioOutSource = mAudioMixer.addSource(mAudioOutSampleRate, mAudioOutChannels);
+        mAudioInSource = mAudioMixer.addSource(mAudioInSampleRate, mAudioInChannels);
+        mAudioMixer.setStrategy(mAudioMixStrategy);
+        mMixFrames = mAudioSampleRate * MIX_BLOCK_MS / 1000;
+        mMixBuffer = ByteBuffer.allocateDirect(mMixFrames * mAudioMixer.getFrameSize())
+                .order(ByteOrder.nativeOrder());
     }
 
     public void setupController(OnRecordListener listener, MediaProjection mp) {
@@ -274,6 +479,13 @@ public class MediaRecordController {
     }
 
     public void startRecord(String filePath) {
+        startRecord(filePath, mBitRate);
+    }
+
+    /**
+     * 以videoBitRate录制本次，码率自适应以此为最高档；只对本次录制有效，setVideoBitRate设置的码率不变
+     */
+    public void startRecord(String filePath, int videoBitRate) {
         if (!mIsCreate.get()) {
             throw new RuntimeException("you need call onCreate method of MediaRecordController before start record");
         }
@@ -286,6 +498,7 @@ public class MediaRecordController {
             file.getParentFile().mkdirs();
         }
         mNanoTime = System.nanoTime();
+        mRecordBitRate = videoBitRate;
         mRecorderThreadHandler.post(new Runnable() {
             @Override
             public void run() {
@@ -304,16 +517,41 @@ public class MediaRecordController {
                         mVideoThread.join();
                     }
                     prepareEncoder();
-                    mMediaMuxer = new MediaMuxer(mDstPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                    mAudioMixer.reset();
+                    mMediaMuxer = new SegmentedMuxer(mDstPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4,
+                            mSegmentDurationMs, mSegmentMaxBytes, getPreallocateBytes());
+                    mSyncFrameRequested = false;
+                    synchronized (mLock) {
+                        mPreMuxSamples.clear();
+                        mVideoKeyFrameWritten = false;
+                    }
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
-                mVirtualDisplay = mMediaProjection.createVirtualDisplay(TAG + "-display",
-                        mWidth, mHeight, mDensityDpi,
-                        DisplayManager.VIRTUAL_DISPLAY_FLAG_PUBLIC, mSurface, null, null);
-                Log.d(TAG, "created virtual display: " + mVirtualDisplay);
+                SharedScreenCapturer sharedCapturer = mSharedCapturer;
+                if (sharedCapturer != null) {
+                    // 屏幕只合成一次，由共用的采集线程画到编码器的输入Surface
+                    sharedCapturer.setMediaProjection(mMediaProjection);
+                    sharedCapturer.setRecorderSurface(mSurface, mWidth, mHeight);
+                    mActiveSharedCapturer = sharedCapturer;
+                    Log.d(TAG, "attached to shared screen capturer");
+                } else {
+                    mVirtualDisplay = mMediaProjection.createVirtualDisplay(TAG + "-display",
+                            mWidth, mHeight, mDensityDpi,
+                            DisplayManager.VIRTUAL_DISPLAY_FLAG_PUBLIC, mSurface, null, null);
+                    Log.d(TAG, "created virtual display: " + mVirtualDisplay);
+                }
+
+                startBitrateAdaptation();
+                if (mUseAsyncCodec) {
+                    // 编码输出由回调直接写入muxer，音频输入在WebRtc回调写入环形缓冲区后被调度到本线程
+                    mAsyncRunning = true;
+                    mAudioThreadCancel.set(false);
+                    mState = STATE_RECORDING;
+                    return;
+                }
 
                 mAudioThreadCancel.set(false);
                 mAudioFeedThread = new Thread(new Runnable() {
@@ -367,6 +605,10 @@ public class MediaRecordController {
             mRecorderThreadHandler.post(new Runnable() {
                 @Override
                 public void run() {
+                    if (mAsyncRunning) {
+                        beginAsyncStop(destroy);
+                        return;
+                    }
                     try {
                         if (mAudioFeedThread != null && mAudioFeedThread.isAlive()) {
                             mAudioThreadCancel.set(true);
@@ -386,184 +628,641 @@ public class MediaRecordController {
                         mAudioThreadCancel.set(true);
                         mVideoThreadCancel.set(true);
                     }
-                    if (mVirtualDisplay != null) {
-                        mVirtualDisplay.release();
-                    }
-                    if (destroy) {
-                        mMediaProjection = null;
-                    }
-                    if (mAudioCodec != null) {
-                        mAudioCodec.stop();
-                        mAudioCodec.release();
-                        mAudioCodec = null;
-                    }
-                    if (mVideoCodec != null) {
-                        mVideoCodec.stop();
-                        mVideoCodec.release();
-                        mVideoCodec = null;
-                    }
-                    mAudioTrackIndex = -1;
-                    mVideoTrackIndex = -1;
-                    if (mMuxerStarted.get()) {
-                        mMuxerStarted.set(false);
-                        if (mMediaMuxer != null) {
-                            mMediaMuxer.stop();
-                            mMediaMuxer.release();
-                            mMediaMuxer = null;
-                        }
-                    }
-                    if (mOnRecordListener != null && mState != STATE_IDLE) {
-                        mOnRecordListener.onFinish(mDstPath);
-                    }
-                    if (destroy) {
-                        mOnRecordListener = null;
-                    }
-                    mState = STATE_IDLE;
-                    Logging.d(TAG, "released");
+                    releaseEncoderAndMuxer(destroy);
                 }
             });
         }
     }
 
-    private boolean feedAudioData() {
-        if (mAudioOutBufferQueue.size() < 1 || mAudioInBufferQueue.size() < 1) {
-            try {
-                Thread.sleep(5);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            return false;
+    private void releaseEncoderAndMuxer(boolean destroy) {
+        mRecorderThreadHandler.removeCallbacks(mAsyncStopTimeoutRunnable);
+        mRecorderThreadHandler.removeCallbacks(mBitrateRunnable);
+        if (mBitrateController != null) {
+            mBitrateController.closeTrace();
+        }
+        mAsyncRunning = false;
+        mAsyncStopping = false;
+        mFreeAudioInputCount = 0;
+        if (mVirtualDisplay != null) {
+            mVirtualDisplay.release();
+            mVirtualDisplay = null;
+        }
+        if (mActiveSharedCapturer != null) {
+            // 停止编码器之前解绑输入Surface
+            mActiveSharedCapturer.setRecorderSurface(null, 0, 0);
+            mActiveSharedCapturer = null;
         }
-        AudioData audioOut = mAudioOutBufferQueue.poll();
-        AudioData audioIn = mAudioInBufferQueue.poll();
-        ByteBuffer audioOutBuffer = audioOut.mData;
-        ByteBuffer audioInBuffer = audioIn.mData;
-        int outSize = audioOut.mSize;
-        int inSize = audioIn.mSize;
-        int size = Math.max(outSize, inSize);
-        long timeUs = audioOut.mPresentationTimeUs;
-        byte[][] bMulRoadAudios = new byte[2][size];
-        audioOutBuffer.get(bMulRoadAudios[0], 0, size);
-        audioInBuffer.get(bMulRoadAudios[1], 0, size);
-        if (outSize > inSize) {
-            for (int i = inSize; i < outSize; i++) {
-                bMulRoadAudios[1][i] = 0x00;
+        if (destroy) {
+            mMediaProjection = null;
+        }
+        if (mAudioCodec != null) {
+            stopEncoder(mAudioCodec);
+            mAudioCodec.release();
+            mAudioCodec = null;
+        }
+        if (mVideoCodec != null) {
+            stopEncoder(mVideoCodec);
+            mVideoCodec.release();
+            mVideoCodec = null;
+        }
+        mAudioTrackIndex = -1;
+        mVideoTrackIndex = -1;
+        if (mAudioOutRing != null) {
+            mAudioOutRing.clear();
+        }
+        if (mAudioInRing != null) {
+            mAudioInRing.clear();
+        }
+        Logging.d(TAG, "audio ring overrun count:" + getAudioOverrunCount()
+                + " (oversize:" + getAudioRingOversizeCount() + ", full:" + getAudioRingFullCount() + ")"
+                + ", underrun count:" + getAudioUnderrunCount()
+                + ", mix clipped samples:"
+                + (mAudioMixer != null ? mAudioMixer.getTotalClippedCount() : 0));
+        String outputPath = mDstPath;
+        synchronized (mLock) {
+            Logging.d(TAG, "pre-mux samples buffered:" + mPreMuxSamples.getBufferedCount()
+                    + ", reordered:" + mPreMuxSamples.getReorderedCount()
+                    + ", discarded:" + (mPreMuxSamples.getDiscardedCount() + mPreMuxSamples.size()));
+            if (mMediaMuxer != null) {
+                outputPath = mMediaMuxer.getOutputPath();
+                if (mMuxerStarted.get()) {
+                    mMediaMuxer.stop();
+                }
+                mMediaMuxer.release();
+                mMediaMuxer = null;
             }
-        } else {
-            for (int i = outSize; i < inSize; i++) {
-                bMulRoadAudios[0][i] = 0x00;
+            mMuxerStarted.set(false);
+        }
+        if (mOnRecordListener != null && mState != STATE_IDLE) {
+            mOnRecordListener.onFinish(outputPath);
+        }
+        if (destroy) {
+            mOnRecordListener = null;
+        }
+        mState = STATE_IDLE;
+        Logging.d(TAG, "released");
+    }
+
+    private void stopEncoder(MediaCodec codec) {
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            // 出现致命错误后编码器处于Error状态，直接release
+            Logging.e(TAG, "stop encoder failed", e);
+        }
+    }
+
+    private void scheduleAudioDrain() {
+        if (mUseAsyncCodec && mRecorderThreadHandler != null
+                && mAudioDrainPending.compareAndSet(false, true)) {
+            mRecorderThreadHandler.post(mAudioDrainRunnable);
+        }
+    }
+
+    private final Runnable mAudioDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mAudioDrainPending.set(false);
+            if (!mAsyncRunning || mAsyncStopping) {
+                return;
             }
+            drainAudioRing(mAudioOutRing, mAudioOutData, mAudioOutBufferSize, mAudioOutSource);
+            drainAudioRing(mAudioInRing, mAudioInData, mAudioInBufferSize, mAudioInSource);
+            fillAudioInputs();
         }
-        byte[] mixAudio = averageMix(bMulRoadAudios);
-        int index = mAudioCodec.dequeueInputBuffer((System.nanoTime() - mNanoTime) / 1000L);
-        if (index >= 0) {
+    };
+
+    /**
+     * 异步模式下把混音器已就绪的数据填入空闲的音频编码器输入buffer，只在mRecorderThread中调用
+     */
+    private void fillAudioInputs() {
+        int size = mMixFrames * mAudioMixer.getFrameSize();
+        while (mFreeAudioInputCount > 0) {
+            if (mAsyncStopping) {
+                if (!mAudioEosQueued) {
+                    int index = mFreeAudioInputs[--mFreeAudioInputCount];
+                    // 已送入但还没编码输出的数据时间戳都晚于已写入muxer的，EOS要排在它们之后
+                    mAudioCodec.queueInputBuffer(index, 0, 0,
+                            Math.max(mLastQueuedAudioTimeUs, mLastAudioPresentationTimeUs),
+                            MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    mAudioEosQueued = true;
+                }
+                return;
+            }
+            long timeUs = mAudioMixer.mix(mMixBuffer, mMixFrames);
+            if (timeUs < 0) {
+                return;
+            }
+            int index = mFreeAudioInputs[--mFreeAudioInputCount];
             ByteBuffer inputBuffer = mAudioCodec.getInputBuffer(index);
             inputBuffer.clear();
-            inputBuffer.put(mixAudio);
-            mAudioCodec.queueInputBuffer(index, 0, size,
-                    timeUs, // presentationTimeUs要与视频的一致（MediaProjection使用的是System.nanoTime() / 1000L）
-                    mAudioThreadCancel.get() ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+            mMixBuffer.clear();
+            mMixBuffer.limit(size);
+            inputBuffer.put(mMixBuffer);
+            mAudioCodec.queueInputBuffer(index, 0, size, timeUs, 0);
+            mLastQueuedAudioTimeUs = Math.max(mLastQueuedAudioTimeUs, timeUs);
         }
-        return false;
     }
 
-    private boolean writeAudioData() {
-        MediaCodec.BufferInfo audioBufferInfo = new MediaCodec.BufferInfo();
-        int outIndex = mAudioCodec.dequeueOutputBuffer(audioBufferInfo, DEQUEUE_TIME_OUT);
-        if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-            // 后续输出格式变化
-            if (mMuxerStarted.get()) {
-                throw new IllegalStateException("output format already changed!");
+    private void beginAsyncStop(boolean destroy) {
+        if (mAsyncStopping) {
+            mAsyncDestroy |= destroy;
+            return;
+        }
+        mAsyncStopping = true;
+        mAsyncDestroy = destroy;
+        mAudioThreadCancel.set(true);
+        mVideoThreadCancel.set(true);
+        try {
+            mVideoCodec.signalEndOfInputStream();
+        } catch (IllegalStateException e) {
+            Logging.e(TAG, "signalEndOfInputStream failed", e);
+            mVideoEos = true;
+        }
+        fillAudioInputs();
+        mRecorderThreadHandler.postDelayed(mAsyncStopTimeoutRunnable, ASYNC_STOP_TIME_OUT_MS);
+    }
+
+    private void checkAsyncStopFinished() {
+        if (mAsyncStopping && mAudioEos && mVideoEos) {
+            // 不在编码器回调中直接stop编码器
+            mRecorderThreadHandler.removeCallbacks(mAsyncStopTimeoutRunnable);
+            mRecorderThreadHandler.post(mAsyncStopTimeoutRunnable);
+        }
+    }
+
+    // 等待EOS超时或两路都已EOS时完成释放
+    private final Runnable mAsyncStopTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mAsyncStopping) {
+                if (!mAudioEos || !mVideoEos) {
+                    Logging.w(TAG, "wait for encoder EOS time out, audioEos:" + mAudioEos
+                            + ", videoEos:" + mVideoEos);
+                }
+                releaseEncoderAndMuxer(mAsyncDestroy);
             }
-            MediaFormat newFormat = mAudioCodec.getOutputFormat();
-            mAudioTrackIndex = mMediaMuxer.addTrack(newFormat);
-            synchronized (mLock) {
-                if (mAudioTrackIndex >= 0 && mVideoTrackIndex >= 0) {
-                    mMediaMuxer.start();
-                    mMuxerStarted.set(true);
-                    Logging.d(TAG, "started media muxer, mAudioTrackIndex=" + mAudioTrackIndex
-                            + ",mVideoTrackIndex=" + mVideoTrackIndex);
+        }
+    };
+
+    private void setEncoderCallback(MediaCodec codec, MediaCodec.Callback callback) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            codec.setCallback(callback, mRecorderThreadHandler);
+        } else {
+            // 5.x上回调投递到创建编码器的线程(mRecorderThread)的looper
+            codec.setCallback(callback);
+        }
+    }
+
+    /**
+     * 异步模式的编码器回调，都在mRecorderThread中执行
+     */
+    private class EncoderCallback extends MediaCodec.Callback {
+        private final boolean mIsAudio;
+        // 出错后重启的编码器，已添加过轨道时不再重复添加
+        private final boolean mRestarted;
+
+        EncoderCallback(boolean isAudio, boolean restarted) {
+            mIsAudio = isAudio;
+            mRestarted = restarted;
+        }
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            if (!mIsAudio || codec != mAudioCodec) {
+                return;
+            }
+            if (mFreeAudioInputCount < mFreeAudioInputs.length) {
+                mFreeAudioInputs[mFreeAudioInputCount++] = index;
+            }
+            fillAudioInputs();
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            if (codec != (mIsAudio ? mAudioCodec : mVideoCodec)) {
+                return;
+            }
+            writeEncodedSample(mIsAudio, codec.getOutputBuffer(index), info);
+            codec.releaseOutputBuffer(index, false);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (mIsAudio) {
+                    mAudioEos = true;
+                } else {
+                    mVideoEos = true;
                 }
+                checkAsyncStopFinished();
             }
-        } else if (outIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-            // 请求超时
-            try {
-                // wait 10ms
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
+        }
+
+        @Override
+        public void onError(final MediaCodec codec, MediaCodec.CodecException e) {
+            Logging.e(TAG, (mIsAudio ? "audio" : "video") + " encoder error, transient:"
+                    + e.isTransient() + ", recoverable:" + e.isRecoverable(), e);
+            if (e.isTransient()) {
+                // 编码器稍后会自行重试，录制继续
+                return;
             }
-        } else if (outIndex >= 0) {
-            // 获取到的实时音频数据
-            ByteBuffer encodedData = mAudioCodec.getOutputBuffer(outIndex);
-            if ((audioBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                // The codec config data was pulled out and fed to the muxer
-                // when we got
-                // the INFO_OUTPUT_FORMAT_CHANGED status.
-                // Ignore it.
-                Logging.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                audioBufferInfo.size = 0;
+            final boolean recoverable = e.isRecoverable();
+            // 与checkAsyncStopFinished一样，不在编码器回调中直接stop编码器
+            mRecorderThreadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mAsyncRunning || codec != (mIsAudio ? mAudioCodec : mVideoCodec)) {
+                        return;
+                    }
+                    if (recoverable && !mAsyncStopping && restartEncoder(mIsAudio)) {
+                        return;
+                    }
+                    releaseEncoderAndMuxer(mAsyncDestroy);
+                }
+            });
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            if (mRestarted && (mIsAudio ? mAudioTrackIndex : mVideoTrackIndex) >= 0) {
+                // 按原格式重启，继续写入原来的轨道
+                Logging.d(TAG, (mIsAudio ? "audio" : "video") + " encoder restarted, format:" + format);
+                return;
+            }
+            onEncoderFormatChanged(mIsAudio, format);
+        }
+    }
+
+    /**
+     * 编码器出现可恢复错误后按原格式stop、configure、start，视频编码器需要重新绑定输入Surface
+     *
+     * @return 重启失败或次数超限时返回false
+     */
+    private boolean restartEncoder(boolean isAudio) {
+        if (mEncoderRestartCount >= MAX_ENCODER_RESTARTS) {
+            Logging.w(TAG, "too many encoder restarts: " + mEncoderRestartCount);
+            return false;
+        }
+        mEncoderRestartCount++;
+        MediaCodec codec = isAudio ? mAudioCodec : mVideoCodec;
+        try {
+            codec.stop();
+            setEncoderCallback(codec, new EncoderCallback(isAudio, true));
+            if (isAudio) {
+                mFreeAudioInputCount = 0;
+                codec.configure(mAudioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                codec.start();
+            } else {
+                mVideoFormat.setInteger(MediaFormat.KEY_BIT_RATE, mBitrateController.getBitRate());
+                codec.configure(mVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                Surface oldSurface = mSurface;
+                mSurface = codec.createInputSurface();
+                codec.start();
+                if (mVirtualDisplay != null) {
+                    mVirtualDisplay.setSurface(mSurface);
+                }
+                if (mActiveSharedCapturer != null) {
+                    mActiveSharedCapturer.setRecorderSurface(mSurface, mWidth, mHeight);
+                }
+                oldSurface.release();
             }
-            if (audioBufferInfo.size == 0) {
-                Logging.d(TAG, "info.size == 0, drop it.");
-                encodedData = null;
+        } catch (IllegalStateException e) {
+            Logging.e(TAG, "restart " + (isAudio ? "audio" : "video") + " encoder failed", e);
+            return false;
+        }
+        Logging.d(TAG, (isAudio ? "audio" : "video") + " encoder restarted, count:" + mEncoderRestartCount);
+        return true;
+    }
+
+    private void onEncoderFormatChanged(boolean isAudio, MediaFormat newFormat) {
+        // 后续输出格式变化
+        if (mMuxerStarted.get()) {
+            throw new IllegalStateException("output format already changed!");
+        }
+        synchronized (mLock) {
+            if (isAudio) {
+                mAudioTrackIndex = mMediaMuxer.addTrack(newFormat);
+            } else {
+                mVideoTrackIndex = mMediaMuxer.addTrack(newFormat);
             }
-            if (encodedData != null && mMuxerStarted.get()
-                    && mLastAudioPresentationTimeUs < audioBufferInfo.presentationTimeUs) {
-                mMediaMuxer.writeSampleData(mAudioTrackIndex, encodedData, audioBufferInfo);
-                mLastAudioPresentationTimeUs = audioBufferInfo.presentationTimeUs;
+            if (mAudioTrackIndex >= 0 && mVideoTrackIndex >= 0) {
+                mMediaMuxer.start();
+                mMuxerStarted.set(true);
+                Logging.d(TAG, "started media muxer, mAudioTrackIndex=" + mAudioTrackIndex
+                        + ",mVideoTrackIndex=" + mVideoTrackIndex);
+                flushPreMuxSamples();
+                if (!mVideoKeyFrameWritten) {
+                    // 暂存的视频中没有关键帧，不等I_FRAME_INTERVAL
+                    requestSyncFrame();
+                }
             }
-            mAudioCodec.releaseOutputBuffer(outIndex, false);
-            if ((audioBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                return true;
+        }
+    }
+
+    private void writeEncodedSample(boolean isAudio, ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // The codec config data was pulled out and fed to the muxer
+            // when we got
+            // the INFO_OUTPUT_FORMAT_CHANGED status.
+            // Ignore it.
+            Logging.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            return;
+        }
+        if (info.size == 0 || encodedData == null) {
+            Logging.d(TAG, "info.size == 0, drop it.");
+            return;
+        }
+        if (!isAudio) {
+            long latencyUs = System.nanoTime() / 1000L - info.presentationTimeUs;
+            if (latencyUs > mMaxVideoLatencyUs) {
+                mMaxVideoLatencyUs = latencyUs;
             }
         }
-        return false;
+        // 轮询模式下音视频在不同线程写入，分段切换时不能并发
+        synchronized (mLock) {
+            if (mMediaMuxer == null) {
+                return;
+            }
+            if (!mMuxerStarted.get()) {
+                // 另一路的格式还没确定，先暂存
+                mPreMuxSamples.add(isAudio, encodedData, info);
+                return;
+            }
+            writeSampleLocked(isAudio, encodedData, info);
+        }
     }
 
-    private boolean writeVideoData() {
-        MediaCodec.BufferInfo videoBufferInfo = new MediaCodec.BufferInfo();
-        int outIndex = mVideoCodec.dequeueOutputBuffer(videoBufferInfo, DEQUEUE_TIME_OUT);
-        if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-            // 后续输出格式变化
-            if (mMuxerStarted.get()) {
-                throw new IllegalStateException("output format already changed!");
+    private void writeSampleLocked(boolean isAudio, ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        if (isAudio) {
+            if (mLastAudioPresentationTimeUs < info.presentationTimeUs) {
+                mMediaMuxer.writeSampleData(mAudioTrackIndex, encodedData, info);
+                mLastAudioPresentationTimeUs = info.presentationTimeUs;
             }
-            MediaFormat newFormat = mVideoCodec.getOutputFormat();
-            mVideoTrackIndex = mMediaMuxer.addTrack(newFormat);
+        } else {
+            if (!mVideoKeyFrameWritten) {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+                    // 第一个关键帧之前的视频帧无法解码
+                    return;
+                }
+                mVideoKeyFrameWritten = true;
+            }
+            mMediaMuxer.writeSampleData(mVideoTrackIndex, encodedData, info);
+            requestSyncFrameIfRotationDue(info);
+        }
+    }
+
+    /**
+     * muxer启动后按时间戳交织写入暂存的数据，需持有mLock
+     */
+    private void flushPreMuxSamples() {
+        EncodedSampleBuffer.Sample sample;
+        while ((sample = mPreMuxSamples.poll()) != null) {
+            sample.fillInfo(mPreMuxBufferInfo);
+            writeSampleLocked(sample.mIsAudio, sample.mData, mPreMuxBufferInfo);
+            mPreMuxSamples.recycle(sample);
+        }
+        Logging.d(TAG, "flushed pre-mux samples, buffered:" + mPreMuxSamples.getBufferedCount()
+                + ", reordered:" + mPreMuxSamples.getReorderedCount()
+                + ", discarded:" + mPreMuxSamples.getDiscardedCount());
+    }
+
+    /**
+     * 本次录制muxer启动前暂存的编码采样数
+     */
+    public long getPreMuxBufferedCount() {
+        synchronized (mLock) {
+            return mPreMuxSamples.getBufferedCount();
+        }
+    }
+
+    /**
+     * 本次录制暂存数据写出时与到达顺序不同(被交织重排)的采样数
+     */
+    public long getPreMuxReorderedCount() {
+        synchronized (mLock) {
+            return mPreMuxSamples.getReorderedCount();
+        }
+    }
+
+    /**
+     * 本次录制暂存时因超出上限或关键帧之前而丢弃的采样数
+     */
+    public long getPreMuxDiscardedCount() {
+        synchronized (mLock) {
+            return mPreMuxSamples.getDiscardedCount();
+        }
+    }
+
+    private void startBitrateAdaptation() {
+        if (!mAdaptiveBitrate || mBitrateController == null) {
+            return;
+        }
+        mBitrateController.openTrace(mBitrateTracePath);
+        mBitrateStartMs = SystemClock.elapsedRealtime();
+        mLastDiskPath = null;
+        mLastDiskLength = 0L;
+        mMaxVideoLatencyUs = -1L;
+        mRecorderThreadHandler.postDelayed(mBitrateRunnable, BITRATE_SAMPLE_PERIOD_MS);
+    }
+
+    // 每个周期采集一次CPU、编码延迟和磁盘积压，由AdaptiveBitrateController决定是否调整码率
+    private final Runnable mBitrateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mState != STATE_RECORDING || mVideoCodec == null || mBitrateController == null) {
+                return;
+            }
+            CpuMonitor cpuMonitor = mCpuMonitor;
+            int cpu = cpuMonitor != null ? cpuMonitor.getCpuUsageCurrent() : -1;
+            long latencyUs = mMaxVideoLatencyUs;
+            mMaxVideoLatencyUs = -1L;
+            long diskBacklog = -1L;
+            long diskRate = 0L;
             synchronized (mLock) {
-                if (mAudioTrackIndex >= 0 && mVideoTrackIndex >= 0) {
-                    mMediaMuxer.start();
-                    mMuxerStarted.set(true);
-                    Logging.d(TAG, "started media muxer, mAudioTrackIndex=" + mAudioTrackIndex
-                            + ",mVideoTrackIndex=" + mVideoTrackIndex);
+                if (mMediaMuxer != null && mMuxerStarted.get()) {
+                    String path = mMediaMuxer.getCurrentPath();
+                    long length = mMediaMuxer.getCurrentFileBytes();
+                    if (length >= 0) {
+                        diskBacklog = Math.max(0L, mMediaMuxer.getCurrentBytes() - length);
+                        if (path.equals(mLastDiskPath)) {
+                            diskRate = (length - mLastDiskLength) * 1000L / BITRATE_SAMPLE_PERIOD_MS;
+                        }
+                        mLastDiskPath = path;
+                        mLastDiskLength = length;
+                    }
                 }
             }
+            int action = mBitrateController.onSample(SystemClock.elapsedRealtime() - mBitrateStartMs,
+                    cpu, latencyUs < 0 ? -1L : latencyUs / 1000L, diskBacklog, diskRate);
+            if (action != AdaptiveBitrateController.ACTION_HOLD) {
+                try {
+                    Bundle params = new Bundle();
+                    params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, mBitrateController.getBitRate());
+                    // 换档后从关键帧开始，码率控制重新收敛更快
+                    params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+                    mVideoCodec.setParameters(params);
+                    Logging.d(TAG, "video bitrate -> " + mBitrateController.getBitRate()
+                            + ", tier:" + mBitrateController.getTier()
+                            + ", reason:" + mBitrateController.getLastReason());
+                } catch (IllegalStateException e) {
+                    Logging.e(TAG, "set video bitrate failed", e);
+                }
+            }
+            mRecorderThreadHandler.postDelayed(this, BITRATE_SAMPLE_PERIOD_MS);
+        }
+    };
+
+    /**
+     * 当前段已到上限时请求一个关键帧，不必等到I_FRAME_INTERVAL才切换分段
+     */
+    private void requestSyncFrameIfRotationDue(MediaCodec.BufferInfo info) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+            mSyncFrameRequested = false;
+        } else if (!mSyncFrameRequested && mMediaMuxer.isRotationDue()) {
+            requestSyncFrame();
+        }
+    }
+
+    private void requestSyncFrame() {
+        if (mVideoCodec == null || mSyncFrameRequested) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mVideoCodec.setParameters(params);
+        mSyncFrameRequested = true;
+    }
+
+    /**
+     * 音频环形缓冲区写满导致数据被丢弃的次数(麦克风和远端之和)
+     */
+    public long getAudioOverrunCount() {
+        long count = 0L;
+        if (mAudioOutRing != null) {
+            count += mAudioOutRing.getOverrunCount();
+        }
+        if (mAudioInRing != null) {
+            count += mAudioInRing.getOverrunCount();
+        }
+        return count;
+    }
+
+    /**
+     * 混音线程等待超时仍拿不到一个buffer数据的次数(麦克风和远端之和)
+     */
+    public long getAudioUnderrunCount() {
+        long count = 0L;
+        if (mAudioOutRing != null) {
+            count += mAudioOutRing.getUnderrunCount();
+        }
+        if (mAudioInRing != null) {
+            count += mAudioInRing.getUnderrunCount();
+        }
+        return count;
+    }
+
+    /**
+     * 单次音频数据比整个环形缓冲区还大而被丢弃的次数(麦克风和远端之和)，是getAudioOverrunCount的一部分
+     */
+    public long getAudioRingOversizeCount() {
+        long count = 0L;
+        if (mAudioOutRing != null) {
+            count += mAudioOutRing.getOversizeCount();
+        }
+        if (mAudioInRing != null) {
+            count += mAudioInRing.getOversizeCount();
+        }
+        return count;
+    }
+
+    /**
+     * 写入时环形缓冲区已无足够空闲空间(混音线程跟不上)的次数(麦克风和远端之和)。
+     * DROP_OLDEST和DROP_NEWEST下每次都计入getAudioOverrunCount，BLOCK下只有等待超时才计入
+     */
+    public long getAudioRingFullCount() {
+        long count = 0L;
+        if (mAudioOutRing != null) {
+            count += mAudioOutRing.getFullCount();
+        }
+        if (mAudioInRing != null) {
+            count += mAudioInRing.getFullCount();
+        }
+        return count;
+    }
+
+    private boolean feedAudioData() {
+        // 把两路环形缓冲区中已有的数据按时间戳送入混音器
+        drainAudioRing(mAudioOutRing, mAudioOutData, mAudioOutBufferSize, mAudioOutSource);
+        drainAudioRing(mAudioInRing, mAudioInData, mAudioInBufferSize, mAudioInSource);
+        boolean mixed = false;
+        long timeUs;
+        while ((timeUs = mAudioMixer.mix(mMixBuffer, mMixFrames)) >= 0) {
+            mixed = true;
+            int size = mMixFrames * mAudioMixer.getFrameSize();
+            int index = mAudioCodec.dequeueInputBuffer(AUDIO_INPUT_TIME_OUT_US);
+            if (index >= 0) {
+                ByteBuffer inputBuffer = mAudioCodec.getInputBuffer(index);
+                inputBuffer.clear();
+                mMixBuffer.clear();
+                mMixBuffer.limit(size);
+                inputBuffer.put(mMixBuffer);
+                mAudioCodec.queueInputBuffer(index, 0, size,
+                        timeUs, // presentationTimeUs要与视频的一致（MediaProjection使用的是System.nanoTime() / 1000L）
+                        mAudioThreadCancel.get() ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+            }
+        }
+        if (!mixed) {
+            // 以麦克风数据为节拍，有数据时由WebRtc录制线程唤醒
+            mAudioOutRing.awaitData(mAudioOutBufferSize, AUDIO_WAIT_TIME_OUT_NS);
+        }
+        return false;
+    }
+
+    private void drainAudioRing(PcmRingBuffer ring, AudioData audioData, int size,
+                                PcmMixer.Source source) {
+        while (ring.available() >= size) {
+            readAudioData(ring, audioData, size);
+            if (audioData.mSize > 0) {
+                mAudioMixer.push(source, audioData.mData, 0, audioData.mSize,
+                        audioData.mPresentationTimeUs);
+            }
+        }
+    }
+
+    private void readAudioData(PcmRingBuffer ring, AudioData audioData, int size) {
+        ByteBuffer buffer = audioData.mData;
+        buffer.clear();
+        audioData.mPresentationTimeUs = ring.read(buffer, size);
+        buffer.flip();
+        audioData.mSize = buffer.limit();
+    }
+
+    private boolean writeAudioData() {
+        return drainEncoder(true, mAudioCodec, mAudioBufferInfo);
+    }
+
+    private boolean writeVideoData() {
+        return drainEncoder(false, mVideoCodec, mVideoBufferInfo);
+    }
+
+    /**
+     * 轮询模式下取出一次编码输出
+     *
+     * @return 已输出EOS时返回true
+     */
+    private boolean drainEncoder(boolean isAudio, MediaCodec codec, MediaCodec.BufferInfo bufferInfo) {
+        int outIndex = codec.dequeueOutputBuffer(bufferInfo, DEQUEUE_TIME_OUT);
+        if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            onEncoderFormatChanged(isAudio, codec.getOutputFormat());
         } else if (outIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
             // 请求超时
             try {
+                // wait 10ms
                 Thread.sleep(10);
             } catch (InterruptedException e) {
             }
         } else if (outIndex >= 0) {
-            // 获取到的实时帧视频数据
-            ByteBuffer encodedData = mVideoCodec.getOutputBuffer(outIndex);
-            if ((videoBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                // The codec config data was pulled out and fed to the muxer
-                // when we got
-                // the INFO_OUTPUT_FORMAT_CHANGED status.
-                // Ignore it.
-                Logging.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                videoBufferInfo.size = 0;
-            }
-            if (videoBufferInfo.size == 0) {
-                Logging.d(TAG, "info.size == 0, drop it.");
-                encodedData = null;
-            }
-            if (encodedData != null && mMuxerStarted.get()) {
-                mMediaMuxer.writeSampleData(mVideoTrackIndex, encodedData, videoBufferInfo);
-            }
-            mVideoCodec.releaseOutputBuffer(outIndex, false);
-            if ((videoBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            // 获取到的实时音视频数据
+            writeEncodedSample(isAudio, codec.getOutputBuffer(outIndex), bufferInfo);
+            codec.releaseOutputBuffer(outIndex, false);
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                 return true;
             }
         }
@@ -571,70 +1270,47 @@ public class MediaRecordController {
     }
 
     private void prepareEncoder() throws IOException {
+        mAudioEosQueued = false;
+        mAudioEos = false;
+        mVideoEos = false;
+        mFreeAudioInputCount = 0;
+        mLastAudioPresentationTimeUs = 0L;
+        mLastQueuedAudioTimeUs = 0L;
         MediaFormat audioFormat = MediaFormat.createAudioFormat(AUDIO_MIME_TYPE, mAudioSampleRate, mAudioChannels);
         audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-        audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, mAudioBitsPerSample * mAudioSampleRate * 4);
-        audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, mAudioBufferSize);
+        // AAC-LC不需要PCM级别的码率，原来的 bitsPerSample * sampleRate * 4 远超编码器的上限
+        audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, AUDIO_BIT_RATE_PER_CHANNEL * mAudioChannels);
+        audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE,
+                Math.max(mAudioBufferSize, mMixBuffer.capacity()));
         Log.d(TAG, "created audio format: " + audioFormat);
         mAudioCodec = MediaCodec.createEncoderByType(AUDIO_MIME_TYPE);
+        if (mUseAsyncCodec) {
+            setEncoderCallback(mAudioCodec, new EncoderCallback(true, false));
+        }
         mAudioCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mAudioCodec.start();
+        mAudioFormat = audioFormat;
+        mEncoderRestartCount = 0;
 
         MediaFormat videoFormat = MediaFormat.createVideoFormat(VIDEO_MIME_TYPE, mWidth, mHeight);
         videoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+        mBitrateController = new AdaptiveBitrateController(mRecordBitRate);
+        CpuMonitor cpuMonitor = mCpuMonitor;
+        mBitrateController.reset(mAdaptiveBitrate && cpuMonitor != null
+                ? cpuMonitor.getCpuUsageCurrent() : -1);
+        videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, mBitrateController.getBitRate());
         videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
         videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
         Log.d(TAG, "created video format: " + videoFormat);
         mVideoCodec = MediaCodec.createEncoderByType(VIDEO_MIME_TYPE);
+        if (mUseAsyncCodec) {
+            setEncoderCallback(mVideoCodec, new EncoderCallback(false, false));
+        }
         mVideoCodec.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mSurface = mVideoCodec.createInputSurface();
         Log.d(TAG, "created input surface: " + mSurface);
         mVideoCodec.start();
-    }
-
-    /**
-     * 采用简单的平均算法 average audio mixing algorithm
-     * 这种算法会降低录制的音量
-     */
-    private byte[] averageMix(byte[][] bMulRoadAudios) {
-        if (bMulRoadAudios == null || bMulRoadAudios.length == 0) {
-            return null;
-        }
-        byte[] realMixAudio = bMulRoadAudios[0];
-        if (bMulRoadAudios.length == 1) {
-            return realMixAudio;
-        }
-        for (int rw = 0; rw < bMulRoadAudios.length; ++rw) {
-            if (bMulRoadAudios[rw].length != realMixAudio.length) {
-                Logging.d(TAG, "column of the road of audio + " + rw + " is different.");
-                return null;
-            }
-        }
-        int row = bMulRoadAudios.length;
-        int column = realMixAudio.length / 2;
-        short[][] sMulRoadAudios = new short[row][column];
-        for (int r = 0; r < row; ++r) {
-            for (int c = 0; c < column; ++c) {
-                sMulRoadAudios[r][c] = (short) ((bMulRoadAudios[r][c * 2] & 0xff) | (bMulRoadAudios[r][c * 2 + 1] & 0xff) << 8);
-            }
-        }
-        short[] sMixAudio = new short[column];
-        int mixVal;
-        int sr = 0;
-        for (int sc = 0; sc < column; ++sc) {
-            mixVal = 0;
-            sr = 0;
-            for (; sr < row; ++sr) {
-                mixVal += sMulRoadAudios[sr][sc];
-            }
-            sMixAudio[sc] = (short) (mixVal / row);
-        }
-        for (sr = 0; sr < column; ++sr) {
-            realMixAudio[sr * 2] = (byte) (sMixAudio[sr] & 0x00FF);
-            realMixAudio[sr * 2 + 1] = (byte) ((sMixAudio[sr] & 0xFF00) >> 8);
-        }
-        return realMixAudio;
+        mVideoFormat = videoFormat;
     }
 
     // call back listener
@@ -642,7 +1318,7 @@ public class MediaRecordController {
         void onFinish(String filePath);
     }
 
-    class AudioData {
+    static class AudioData {
         ByteBuffer mData;
         long mPresentationTimeUs;
         int mSize;
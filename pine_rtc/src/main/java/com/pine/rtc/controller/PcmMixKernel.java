@@ -0,0 +1,240 @@
+package com.pine.rtc.controller;
+
+import java.nio.ShortBuffer;
+
+/**
+ * 16bit PCM混音内核，直接在本机字节序的ShortBuffer上运算，稳定状态下没有任何分配。
+ * <p>
+ * 用法：reset -> 对每一路源调用accumulate -> finish输出。
+ * 增益使用Q8定点数(256为1.0)，累加在int数组中完成，内层循环都是简单的计数循环，便于JIT向量化。
+ * <p>
+ * 混音策略：
+ * SATURATE - 直接相加，超出16bit范围时截断；
+ * SOFT_KNEE - 直接相加，超过拐点后平滑压缩并渐近满幅，不会产生硬截断；
+ * NORMALIZED - 按各路增益之和归一化(增益都为1时即为平均，与原averageMix一致)。
+ * <p>
+ * clippedCount为相加结果超出16bit范围的采样数，即按直接截断会失真的采样数，
+ * SOFT_KNEE下这些采样被压缩而不是截断，NORMALIZED下基本为0。
+ * <p>
+ * 非线程安全。
+ */
+public class PcmMixKernel {
+    public enum Strategy {
+        SATURATE,
+        SOFT_KNEE,
+        NORMALIZED
+    }
+
+    private static final int GAIN_SHIFT = 8;
+    private static final int GAIN_ONE = 1 << GAIN_SHIFT;
+    private static final float MAX_GAIN = 16f;
+    private static final int FULL_SCALE = Short.MAX_VALUE;
+    // 软拐点默认为满幅的3/4
+    private static final int DEFAULT_KNEE = FULL_SCALE * 3 / 4;
+
+    private Strategy mStrategy;
+    private int mKnee = DEFAULT_KNEE;
+    private int[] mAccumulator = new int[0];
+    private int mSamples;
+    private int mGainSum;
+    private int mLastClippedCount;
+    private long mTotalClippedCount;
+
+    public PcmMixKernel(Strategy strategy) {
+        mStrategy = strategy == null ? Strategy.SOFT_KNEE : strategy;
+    }
+
+    public void setStrategy(Strategy strategy) {
+        mStrategy = strategy == null ? Strategy.SOFT_KNEE : strategy;
+    }
+
+    public Strategy getStrategy() {
+        return mStrategy;
+    }
+
+    /**
+     * 设置SOFT_KNEE的拐点，取值为满幅的比例(0, 1)
+     */
+    public void setKnee(float ratio) {
+        if (ratio <= 0f || ratio >= 1f) {
+            throw new IllegalArgumentException("knee ratio must be in (0, 1)");
+        }
+        mKnee = (int) (FULL_SCALE * ratio);
+    }
+
+    /**
+     * 开始新的一块，清空累加器
+     *
+     * @param samples 采样数(帧数 * 声道数)
+     */
+    public void reset(int samples) {
+        if (mAccumulator.length < samples) {
+            mAccumulator = new int[samples];
+        }
+        int[] acc = mAccumulator;
+        for (int i = 0; i < samples; i++) {
+            acc[i] = 0;
+        }
+        mSamples = samples;
+        mGainSum = 0;
+    }
+
+    /**
+     * 把src[srcOffset, srcOffset + samples)按gain累加到累加器的[accOffset, accOffset + samples)。
+     * 一路源可以分多段累加(例如环形缓冲区回绕)，此时只有第一段的countGain为true。
+     */
+    public void accumulate(ShortBuffer src, int srcOffset, int accOffset, int samples,
+                           float gain, boolean countGain) {
+        int gainQ = toGainQ(gain);
+        if (countGain) {
+            mGainSum += gainQ;
+        }
+        if (gainQ == 0) {
+            return;
+        }
+        int[] acc = mAccumulator;
+        if (src.hasArray()) {
+            short[] data = src.array();
+            int base = src.arrayOffset() + srcOffset;
+            if (gainQ == GAIN_ONE) {
+                for (int i = 0; i < samples; i++) {
+                    acc[accOffset + i] += data[base + i] << GAIN_SHIFT;
+                }
+            } else {
+                for (int i = 0; i < samples; i++) {
+                    acc[accOffset + i] += data[base + i] * gainQ;
+                }
+            }
+        } else {
+            for (int i = 0; i < samples; i++) {
+                acc[accOffset + i] += src.get(srcOffset + i) * gainQ;
+            }
+        }
+    }
+
+    /**
+     * 按当前策略把累加结果写入out[outOffset, outOffset + samples)
+     *
+     * @return 本块超出16bit范围的采样数
+     */
+    public int finish(ShortBuffer out, int outOffset) {
+        int samples = mSamples;
+        int[] acc = mAccumulator;
+        int clipped = 0;
+        switch (mStrategy) {
+            case NORMALIZED:
+                clipped = normalize(acc, samples);
+                break;
+            case SOFT_KNEE:
+                clipped = softKnee(acc, samples);
+                break;
+            case SATURATE:
+            default:
+                clipped = saturate(acc, samples);
+                break;
+        }
+        if (out.hasArray()) {
+            short[] data = out.array();
+            int base = out.arrayOffset() + outOffset;
+            for (int i = 0; i < samples; i++) {
+                data[base + i] = (short) acc[i];
+            }
+        } else {
+            for (int i = 0; i < samples; i++) {
+                out.put(outOffset + i, (short) acc[i]);
+            }
+        }
+        mLastClippedCount = clipped;
+        mTotalClippedCount += clipped;
+        return clipped;
+    }
+
+    /**
+     * 一次混合多路等长的输入
+     *
+     * @param gains 每一路的增益，为null时都为1
+     * @return 本块超出16bit范围的采样数
+     */
+    public int mix(ShortBuffer[] sources, float[] gains, int sourceCount, ShortBuffer out, int samples) {
+        reset(samples);
+        for (int s = 0; s < sourceCount; s++) {
+            accumulate(sources[s], 0, 0, samples, gains == null ? 1f : gains[s], true);
+        }
+        return finish(out, 0);
+    }
+
+    private int saturate(int[] acc, int samples) {
+        int clipped = 0;
+        for (int i = 0; i < samples; i++) {
+            int v = acc[i] >> GAIN_SHIFT;
+            if (v > FULL_SCALE) {
+                v = FULL_SCALE;
+                clipped++;
+            } else if (v < -FULL_SCALE - 1) {
+                v = -FULL_SCALE - 1;
+                clipped++;
+            }
+            acc[i] = v;
+        }
+        return clipped;
+    }
+
+    private int softKnee(int[] acc, int samples) {
+        int knee = mKnee;
+        int range = FULL_SCALE - knee;
+        int clipped = 0;
+        for (int i = 0; i < samples; i++) {
+            int v = acc[i] >> GAIN_SHIFT;
+            int abs = v < 0 ? -v : v;
+            if (abs > knee) {
+                if (abs > FULL_SCALE) {
+                    clipped++;
+                }
+                // y = knee + range * d / (d + range)，拐点处斜率为1，渐近满幅
+                int d = abs - knee;
+                int y = knee + (int) ((long) range * d / (d + range));
+                v = v < 0 ? -y : y;
+            }
+            acc[i] = v;
+        }
+        return clipped;
+    }
+
+    private int normalize(int[] acc, int samples) {
+        int gainSum = mGainSum;
+        int clipped = 0;
+        if (gainSum <= 0) {
+            for (int i = 0; i < samples; i++) {
+                acc[i] = 0;
+            }
+            return 0;
+        }
+        for (int i = 0; i < samples; i++) {
+            int v = acc[i] / gainSum;
+            if (v > FULL_SCALE) {
+                v = FULL_SCALE;
+                clipped++;
+            } else if (v < -FULL_SCALE - 1) {
+                v = -FULL_SCALE - 1;
+                clipped++;
+            }
+            acc[i] = v;
+        }
+        return clipped;
+    }
+
+    private static int toGainQ(float gain) {
+        if (gain <= 0f) {
+            return 0;
+        }
+        return Math.round(Math.min(gain, MAX_GAIN) * GAIN_ONE);
+    }
+
+    public int getLastClippedCount() {
+        return mLastClippedCount;
+    }
+
+    public long getTotalClippedCount() {
+        return mTotalClippedCount;
+    }
+}
@@ -0,0 +1,417 @@
+package com.pine.rtc.controller;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * N路16bit PCM混音器，纯Java实现，不依赖Android。
+ * <p>
+ * 每一路源可以有各自的采样率和声道数，push时先转换声道、再线性插值重采样到输出格式，
+ * 按时间戳写入该源自己的环形缓冲区(以输出帧为下标)，所有源共用一个以第一个时间戳为原点的时钟。
+ * 时间戳与期望位置的偏差在抖动窗口内视为连续数据，超出则重新对齐，中间的空缺保持为静音。
+ * <p>
+ * mix时只有所有源都写到了块尾，或者最快的源已超过块尾一个抖动窗口(慢的源视为缺数据)才会输出，
+ * 读出的数据会被清零，因此没有写入的位置天然就是静音。各路的相加由PcmMixKernel按所选策略完成。
+ * <p>
+ * 非线程安全，push和mix需要在同一个线程中调用。
+ */
+public class PcmMixer {
+    private static final long US_PER_SECOND = 1000000L;
+
+    private final int mSampleRate;
+    private final int mChannels;
+    private final long mJitterFrames;
+    private final int mCapacityFrames;
+    private final List<Source> mSources = new ArrayList<Source>();
+    private final PcmMixKernel mKernel = new PcmMixKernel(PcmMixKernel.Strategy.SOFT_KNEE);
+    // 缓存最近一次输出目标的ShortBuffer视图，避免每次mix都创建
+    private Object mOutTarget;
+    private ShortBuffer mOutView;
+
+    private boolean mHasOrigin;
+    private long mOriginUs;
+    // 下一次mix输出的起始帧
+    private long mCursorFrame;
+    // 所有源中写入最远的位置
+    private long mLatestFrame;
+
+    /**
+     * @param sampleRate     输出采样率
+     * @param channels       输出声道数
+     * @param jitterWindowUs 抖动窗口，决定时间戳容差以及等待慢源的最长时间
+     * @param capacityUs     每一路源缓冲的时长，需大于抖动窗口
+     */
+    public PcmMixer(int sampleRate, int channels, long jitterWindowUs, long capacityUs) {
+        if (sampleRate <= 0 || channels <= 0) {
+            throw new IllegalArgumentException("invalid output format: " + sampleRate + "Hz, " + channels + "ch");
+        }
+        if (capacityUs <= jitterWindowUs) {
+            throw new IllegalArgumentException("capacity must be larger than jitter window");
+        }
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mJitterFrames = jitterWindowUs * sampleRate / US_PER_SECOND;
+        mCapacityFrames = (int) (capacityUs * sampleRate / US_PER_SECOND);
+    }
+
+    public void setStrategy(PcmMixKernel.Strategy strategy) {
+        mKernel.setStrategy(strategy);
+    }
+
+    /**
+     * 最近一次mix中超出16bit范围的采样数
+     */
+    public int getLastClippedCount() {
+        return mKernel.getLastClippedCount();
+    }
+
+    public long getTotalClippedCount() {
+        return mKernel.getTotalClippedCount();
+    }
+
+    public Source addSource(int sampleRate, int channels) {
+        Source source = new Source(sampleRate, channels);
+        mSources.add(source);
+        return source;
+    }
+
+    public void removeSource(Source source) {
+        mSources.remove(source);
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /**
+     * 输出一帧(所有声道)的字节数
+     */
+    public int getFrameSize() {
+        return mChannels * 2;
+    }
+
+    /**
+     * 清空所有源的数据并重置时钟
+     */
+    public void reset() {
+        mHasOrigin = false;
+        mCursorFrame = 0L;
+        mLatestFrame = 0L;
+        for (int i = 0; i < mSources.size(); i++) {
+            mSources.get(i).reset();
+        }
+    }
+
+    /**
+     * 写入一段交错的16bit PCM，按pcm的字节序从offset处读取size字节
+     *
+     * @param timestampUs 这段数据第一个采样的时间
+     */
+    public void push(Source source, ByteBuffer pcm, int offset, int size, long timestampUs) {
+        int frames = size / source.mFrameSize;
+        source.align(timestampUs);
+        int index = offset;
+        for (int f = 0; f < frames; f++) {
+            for (int c = 0; c < source.mChannels; c++) {
+                source.mInFrame[c] = pcm.getShort(index);
+                index += 2;
+            }
+            source.consumeFrame();
+        }
+    }
+
+    /**
+     * 写入一段交错的16bit PCM
+     *
+     * @param frames      帧数(每帧包含source的所有声道)
+     * @param timestampUs 这段数据第一个采样的时间
+     */
+    public void push(Source source, short[] pcm, int offset, int frames, long timestampUs) {
+        source.align(timestampUs);
+        int index = offset;
+        for (int f = 0; f < frames; f++) {
+            for (int c = 0; c < source.mChannels; c++) {
+                source.mInFrame[c] = pcm[index++];
+            }
+            source.consumeFrame();
+        }
+    }
+
+    /**
+     * 数据足够时混出frames帧，以本机字节序写入out的[0, frames * frameSize)
+     *
+     * @return 输出数据的时间戳(us)，数据不足时返回-1
+     */
+    public long mix(ByteBuffer out, int frames) {
+        if (!sumBlock(frames)) {
+            return -1L;
+        }
+        if (mOutTarget != out) {
+            ByteBuffer duplicate = out.duplicate();
+            duplicate.clear();
+            mOutView = duplicate.order(out.order()).asShortBuffer();
+            mOutTarget = out;
+        }
+        mKernel.finish(mOutView, 0);
+        return advance(frames);
+    }
+
+    /**
+     * 数据足够时混出frames帧写入out[offset, offset + frames * channels)
+     *
+     * @return 输出数据的时间戳(us)，数据不足时返回-1
+     */
+    public long mix(short[] out, int offset, int frames) {
+        if (!sumBlock(frames)) {
+            return -1L;
+        }
+        if (mOutTarget != out) {
+            mOutView = ShortBuffer.wrap(out);
+            mOutTarget = out;
+        }
+        mKernel.finish(mOutView, offset);
+        return advance(frames);
+    }
+
+    /**
+     * 是否已可以混出frames帧
+     */
+    public boolean isReady(int frames) {
+        if (!mHasOrigin || mSources.isEmpty()) {
+            return false;
+        }
+        long blockEnd = mCursorFrame + frames;
+        if (mLatestFrame >= blockEnd + mJitterFrames) {
+            return true;
+        }
+        for (int i = 0; i < mSources.size(); i++) {
+            if (mSources.get(i).mWriteFrame < blockEnd) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean sumBlock(int frames) {
+        if (!isReady(frames)) {
+            return false;
+        }
+        int samples = frames * mChannels;
+        mKernel.reset(samples);
+        int sourceCount = mSources.size();
+        for (int s = 0; s < sourceCount; s++) {
+            Source source = mSources.get(s);
+            short[] data = source.mData;
+            int index = (int) (mCursorFrame % mCapacityFrames) * mChannels;
+            int first = Math.min(samples, data.length - index);
+            mKernel.accumulate(source.mDataView, index, 0, first, source.mGain, true);
+            // 读出后清零，未写入的位置即为静音
+            Arrays.fill(data, index, index + first, (short) 0);
+            if (first < samples) {
+                mKernel.accumulate(source.mDataView, 0, first, samples - first, source.mGain, false);
+                Arrays.fill(data, 0, samples - first, (short) 0);
+            }
+        }
+        return true;
+    }
+
+    private long advance(int frames) {
+        long timeUs = mOriginUs + mCursorFrame * US_PER_SECOND / mSampleRate;
+        mCursorFrame += frames;
+        return timeUs;
+    }
+
+    private long toFrame(long timestampUs) {
+        return (timestampUs - mOriginUs) * mSampleRate / US_PER_SECOND;
+    }
+
+    /**
+     * 一路输入源，保存重采样状态和以输出帧为下标的环形缓冲区
+     */
+    public class Source {
+        private final int mSampleRate;
+        private final int mChannels;
+        private final int mFrameSize;
+        // 每个输出帧对应的输入帧数
+        private final double mStep;
+        private final short[] mData;
+        private final ShortBuffer mDataView;
+        private float mGain = 1f;
+        private final int[] mInFrame;
+        private final int[] mPrevFrame;
+        private final int[] mCurFrame;
+        private boolean mHasPrev;
+        private double mPhase;
+        private boolean mStarted;
+        // 下一个输出帧写入的位置
+        private long mWriteFrame;
+
+        private long mGapCount;
+        private long mLateFrames;
+        private long mOverrunFrames;
+
+        private Source(int sampleRate, int channels) {
+            if (sampleRate <= 0 || channels <= 0) {
+                throw new IllegalArgumentException("invalid source format: " + sampleRate + "Hz, " + channels + "ch");
+            }
+            mSampleRate = sampleRate;
+            mChannels = channels;
+            mFrameSize = channels * 2;
+            mStep = (double) sampleRate / PcmMixer.this.mSampleRate;
+            mData = new short[mCapacityFrames * PcmMixer.this.mChannels];
+            mDataView = ShortBuffer.wrap(mData);
+            mInFrame = new int[channels];
+            mPrevFrame = new int[PcmMixer.this.mChannels];
+            mCurFrame = new int[PcmMixer.this.mChannels];
+        }
+
+        public int getSampleRate() {
+            return mSampleRate;
+        }
+
+        public int getChannels() {
+            return mChannels;
+        }
+
+        /**
+         * 设置该路的增益，1为原始音量
+         */
+        public void setGain(float gain) {
+            mGain = gain;
+        }
+
+        public float getGain() {
+            return mGain;
+        }
+
+        /**
+         * 时间戳超出抖动窗口而重新对齐的次数
+         */
+        public long getGapCount() {
+            return mGapCount;
+        }
+
+        /**
+         * 到达时已经被mix过、只能丢弃的帧数
+         */
+        public long getLateFrames() {
+            return mLateFrames;
+        }
+
+        /**
+         * 超前太多、缓冲区放不下而丢弃的帧数
+         */
+        public long getOverrunFrames() {
+            return mOverrunFrames;
+        }
+
+        private void reset() {
+            for (int i = 0; i < mData.length; i++) {
+                mData[i] = 0;
+            }
+            mHasPrev = false;
+            mPhase = 0d;
+            mStarted = false;
+            mWriteFrame = 0L;
+        }
+
+        private void align(long timestampUs) {
+            if (!mHasOrigin) {
+                mHasOrigin = true;
+                mOriginUs = timestampUs;
+                mCursorFrame = 0L;
+                mLatestFrame = 0L;
+            }
+            long frame = toFrame(timestampUs);
+            if (!mStarted) {
+                mStarted = true;
+                mWriteFrame = frame;
+                mHasPrev = false;
+                return;
+            }
+            long drift = frame - mWriteFrame;
+            if (drift > mJitterFrames || drift < -mJitterFrames) {
+                // 超出抖动窗口：重新对齐，中间空缺保持静音；不跨空缺插值
+                mGapCount++;
+                mWriteFrame = frame;
+                mHasPrev = false;
+                mPhase = 0d;
+            }
+        }
+
+        private void consumeFrame() {
+            mapChannels(mInFrame, mCurFrame);
+            if (!mHasPrev) {
+                copy(mCurFrame, mPrevFrame);
+                mHasPrev = true;
+                mPhase = 0d;
+                return;
+            }
+            // 在prev和cur之间按输出采样间隔插值
+            while (mPhase < 1d) {
+                emit(mPhase);
+                mPhase += mStep;
+            }
+            mPhase -= 1d;
+            copy(mCurFrame, mPrevFrame);
+        }
+
+        private void emit(double phase) {
+            long frame = mWriteFrame++;
+            if (frame + 1 > mLatestFrame) {
+                mLatestFrame = frame + 1;
+            }
+            if (frame < mCursorFrame) {
+                mLateFrames++;
+                return;
+            }
+            if (frame >= mCursorFrame + mCapacityFrames) {
+                mOverrunFrames++;
+                return;
+            }
+            int outChannels = PcmMixer.this.mChannels;
+            int index = (int) (frame % mCapacityFrames) * outChannels;
+            for (int c = 0; c < outChannels; c++) {
+                int prev = mPrevFrame[c];
+                mData[index + c] = (short) (prev + (int) Math.round((mCurFrame[c] - prev) * phase));
+            }
+        }
+
+        /**
+         * 声道转换：输出声道多于输入时复制最后一个声道(单声道即复制到所有声道)，
+         * 少于输入时多出的输入声道平均后并入最后一个输出声道
+         */
+        private void mapChannels(int[] in, int[] out) {
+            int outChannels = out.length;
+            if (mChannels == outChannels) {
+                copy(in, out);
+            } else if (mChannels < outChannels) {
+                for (int c = 0; c < outChannels; c++) {
+                    out[c] = in[Math.min(c, mChannels - 1)];
+                }
+            } else {
+                for (int c = 0; c < outChannels - 1; c++) {
+                    out[c] = in[c];
+                }
+                int sum = 0;
+                for (int c = outChannels - 1; c < mChannels; c++) {
+                    sum += in[c];
+                }
+                out[outChannels - 1] = sum / (mChannels - outChannels + 1);
+            }
+        }
+
+        private void copy(int[] src, int[] dst) {
+            for (int i = 0; i < dst.length; i++) {
+                dst[i] = src[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.pine.rtc.controller;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 单生产者/单消费者(SPSC)的PCM字节环形缓冲区，无锁。
+ * <p>
+ * 生产者为WebRtc的音频录制/播放线程，消费者为录制的混音线程。
+ * 读写位置均为单调递增的long，实际下标为 pos % capacity。
+ * 消费者在数据不足时park等待，生产者写入后unpark唤醒，不再需要sleep轮询。
+ * <p>
+ * 写满时按OverflowPolicy处理：
+ * DROP_OLDEST - 丢弃最旧的数据腾出空间(生产者通过CAS推进读位置)；
+ * DROP_NEWEST - 丢弃本次写入的数据；
+ * BLOCK - 生产者最多等待blockTimeoutNs，超时后丢弃本次写入。
+ * 任何一种丢弃都计入overrunCount；消费者等待超时拿不到足够数据计入underrunCount。
+ * <p>
+ * 环在创建时一次性分配，写入不会再分配内存。overrunCount之外还区分两种原因：
+ * oversizeCount - 单次写入比整个环还大、只能丢弃的次数，每次都同时计入overrunCount；
+ * fullCount - 写入时环已没有足够空闲空间(消费端跟不上)的次数，DROP_OLDEST和DROP_NEWEST下每次都伴随overrun，
+ * BLOCK下等到空间时不算overrun。
+ */
+public class PcmRingBuffer {
+    public enum OverflowPolicy {
+        DROP_OLDEST,
+        DROP_NEWEST,
+        BLOCK
+    }
+
+    private final byte[] mBuffer;
+    private final int mCapacity;
+    // 一个采样帧(所有声道)的字节数，丢弃旧数据时按帧对齐，避免读出错位的采样
+    private final int mFrameSize;
+    private final OverflowPolicy mPolicy;
+    private final long mBlockTimeoutNs;
+
+    private final AtomicLong mWritePos = new AtomicLong(0L);
+    private final AtomicLong mReadPos = new AtomicLong(0L);
+    // 最近一次写入结束位置对应的采集时间，用于推算读取位置的时间戳
+    private volatile long mLastWriteEndPos;
+    private volatile long mLastWriteTimeUs;
+    private volatile int mBytesPerSecond;
+
+    private volatile Thread mWaitingConsumer;
+    private volatile Thread mWaitingProducer;
+
+    private final AtomicLong mOverrunCount = new AtomicLong(0L);
+    private final AtomicLong mOverrunBytes = new AtomicLong(0L);
+    private final AtomicLong mUnderrunCount = new AtomicLong(0L);
+    private final AtomicLong mOversizeCount = new AtomicLong(0L);
+    private final AtomicLong mFullCount = new AtomicLong(0L);
+
+    public PcmRingBuffer(int capacity, int frameSize, OverflowPolicy policy, long blockTimeoutMs) {
+        if (capacity <= 0 || frameSize <= 0 || capacity % frameSize != 0) {
+            throw new IllegalArgumentException("capacity must be a positive multiple of frameSize");
+        }
+        mBuffer = new byte[capacity];
+        mCapacity = capacity;
+        mFrameSize = frameSize;
+        mPolicy = policy == null ? OverflowPolicy.DROP_OLDEST : policy;
+        mBlockTimeoutNs = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+    }
+
+    /**
+     * 生产者调用，写入src中[0, size)的数据
+     *
+     * @return 实际写入的字节数，被丢弃时返回0
+     */
+    public int write(ByteBuffer src, int size, long timeUs) {
+        if (size <= 0) {
+            return 0;
+        }
+        if (size > mCapacity) {
+            // 单次数据比整个环还大，只能丢弃
+            mOversizeCount.incrementAndGet();
+            recordOverrun(size);
+            return 0;
+        }
+        long writePos = mWritePos.get();
+        long free = mCapacity - (writePos - mReadPos.get());
+        if (free < size) {
+            mFullCount.incrementAndGet();
+            switch (mPolicy) {
+                case DROP_NEWEST:
+                    recordOverrun(size);
+                    return 0;
+                case BLOCK:
+                    if (!awaitSpace(size)) {
+                        recordOverrun(size);
+                        return 0;
+                    }
+                    break;
+                case DROP_OLDEST:
+                default:
+                    dropOldest(writePos, size);
+                    break;
+            }
+        }
+        int index = (int) (writePos % mCapacity);
+        int first = Math.min(size, mCapacity - index);
+        // WebRtc传入的是direct buffer，没有array，分两次批量拷贝；
+        // 不用duplicate()以免每次写入都分配对象，拷贝后恢复src的position
+        int position = src.position();
+        src.position(0);
+        src.get(mBuffer, index, first);
+        if (first < size) {
+            src.get(mBuffer, 0, size - first);
+        }
+        src.position(position);
+        mLastWriteEndPos = writePos + size;
+        mLastWriteTimeUs = timeUs;
+        // 发布写位置，消费者看到新位置时数据一定已写入
+        mWritePos.set(writePos + size);
+        Thread consumer = mWaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return size;
+    }
+
+    private void dropOldest(long writePos, int size) {
+        while (true) {
+            long readPos = mReadPos.get();
+            long need = size - (mCapacity - (writePos - readPos));
+            if (need <= 0) {
+                return;
+            }
+            need = (need + mFrameSize - 1) / mFrameSize * mFrameSize;
+            if (mReadPos.compareAndSet(readPos, readPos + need)) {
+                recordOverrun(need);
+                return;
+            }
+        }
+    }
+
+    private boolean awaitSpace(int size) {
+        long deadline = System.nanoTime() + mBlockTimeoutNs;
+        mWaitingProducer = Thread.currentThread();
+        try {
+            while (mCapacity - (mWritePos.get() - mReadPos.get()) < size) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0L) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            return true;
+        } finally {
+            mWaitingProducer = null;
+        }
+    }
+
+    private void recordOverrun(long bytes) {
+        mOverrunCount.incrementAndGet();
+        mOverrunBytes.addAndGet(bytes);
+    }
+
+    /**
+     * 消费者调用，等待至少minBytes可读
+     *
+     * @return 超时仍不足时返回false，并计入underrunCount
+     */
+    public boolean awaitData(int minBytes, long timeoutNs) {
+        if (available() >= minBytes) {
+            return true;
+        }
+        long deadline = System.nanoTime() + timeoutNs;
+        mWaitingConsumer = Thread.currentThread();
+        try {
+            while (available() < minBytes) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0L || Thread.currentThread().isInterrupted()) {
+                    mUnderrunCount.incrementAndGet();
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            return true;
+        } finally {
+            mWaitingConsumer = null;
+        }
+    }
+
+    /**
+     * 消费者调用，读取size字节到dst的当前position，不足size时不读取任何数据
+     *
+     * @return 读取位置的时间戳(us)，数据不足时返回-1
+     */
+    public long read(ByteBuffer dst, int size) {
+        int start = dst.position();
+        while (true) {
+            long readPos = mReadPos.get();
+            long writePos = mWritePos.get();
+            if (writePos - readPos < size) {
+                return -1L;
+            }
+            int index = (int) (readPos % mCapacity);
+            int first = Math.min(size, mCapacity - index);
+            dst.position(start);
+            dst.put(mBuffer, index, first);
+            if (first < size) {
+                dst.put(mBuffer, 0, size - first);
+            }
+            // DROP_OLDEST时生产者可能已推进了读位置并覆盖了刚读出的数据，需要重读
+            if (mReadPos.compareAndSet(readPos, readPos + size)) {
+                Thread producer = mWaitingProducer;
+                if (producer != null) {
+                    LockSupport.unpark(producer);
+                }
+                return timestampOf(readPos);
+            }
+        }
+    }
+
+    private long timestampOf(long pos) {
+        long endPos = mLastWriteEndPos;
+        long endTimeUs = mLastWriteTimeUs;
+        if (mBytesPerSecond <= 0) {
+            return endTimeUs;
+        }
+        return endTimeUs - (endPos - pos) * 1000000L / mBytesPerSecond;
+    }
+
+    /**
+     * 设置PCM格式每秒的字节数，用于由字节位置推算时间戳
+     */
+    public void setBytesPerSecond(int bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    public int available() {
+        return (int) (mWritePos.get() - mReadPos.get());
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * 丢弃所有未读数据，只能在消费者线程或生产者已停止时调用
+     */
+    public void clear() {
+        mReadPos.set(mWritePos.get());
+    }
+
+    public long getOverrunCount() {
+        return mOverrunCount.get();
+    }
+
+    public long getOverrunBytes() {
+        return mOverrunBytes.get();
+    }
+
+    public long getUnderrunCount() {
+        return mUnderrunCount.get();
+    }
+
+    public long getOversizeCount() {
+        return mOversizeCount.get();
+    }
+
+    public long getFullCount() {
+        return mFullCount.get();
+    }
+}
@@ -0,0 +1,243 @@
+package com.pine.rtc.controller;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.StatFs;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import org.webrtc.Logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 录制文件的存储评估。
+ * <p>
+ * 录制前根据码率估算文件大小，检查剩余空间，并结合DiskThroughputProbe测得的持续写入速度给出建议：
+ * 写入速度不到录制码率的THROUGHPUT_HEADROOM倍时降低视频码率，降到MIN_VIDEO_BIT_RATE仍不够时只提示。
+ * 留余量是因为MediaMuxer的写入是突发的，廉价SD卡在fsync时会有秒级的停顿。
+ * <p>
+ * 同时提供文件预分配：用posix_fallocate一次分配好空间，减少录制过程中文件系统分配块的开销和碎片，
+ * 结束时按MP4的顶层box截掉多余的部分。
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class RecordingStorage {
+    private static final String TAG = "RecordingStorage";
+
+    /**
+     * 开始录制要求的最小剩余空间
+     */
+    public static final long MIN_FREE_BYTES = 1024L * 1024L * 1024L;
+
+    public static final int RESULT_OK = 0;
+    // 写入速度偏低，已经是最低码率，只能提示
+    public static final int RESULT_SLOW_DISK = 1;
+    // 写入速度不够，建议使用Plan.videoBitRate
+    public static final int RESULT_DOWNGRADE = 2;
+    // 剩余空间不足
+    public static final int RESULT_NO_SPACE = 3;
+
+    // MP4容器的额外开销(moov、box头等)
+    private static final float CONTAINER_OVERHEAD = 0.02f;
+    private static final float THROUGHPUT_HEADROOM = 4f;
+    private static final int MIN_VIDEO_BIT_RATE = 300000;
+
+    private static final long PROBE_BYTES = 16L * 1024L * 1024L;
+    private static final int PROBE_CHUNK_SIZE = 256 * 1024;
+    private static final long PROBE_SYNC_INTERVAL = 1024L * 1024L;
+
+    private static final ConcurrentHashMap<String, DiskThroughputProbe.Result> sProbeResults =
+            new ConcurrentHashMap<String, DiskThroughputProbe.Result>();
+
+    private RecordingStorage() {
+    }
+
+    /**
+     * 按码率估算录制文件的大小
+     */
+    public static long estimateBytes(int videoBitRate, int audioBitRate, long durationMs) {
+        double bytes = ((long) videoBitRate + audioBitRate) / 8.0 * durationMs / 1000.0;
+        return (long) (bytes * (1f + CONTAINER_OVERHEAD));
+    }
+
+    public static long getAvailableBytes(File dir) {
+        File path = dir;
+        while (path != null && !path.exists()) {
+            path = path.getParentFile();
+        }
+        if (path == null) {
+            return 0L;
+        }
+        return new StatFs(path.getPath()).getAvailableBytes();
+    }
+
+    /**
+     * 在后台线程中测量目录的写入速度，结果通过getProbeResult获取。同一目录只测量一次
+     */
+    public static void probeAsync(final File dir) {
+        final String key = dir.getAbsolutePath();
+        if (sProbeResults.containsKey(key)) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DiskThroughputProbe.Result result = DiskThroughputProbe.run(dir, PROBE_BYTES,
+                            PROBE_CHUNK_SIZE, PROBE_SYNC_INTERVAL);
+                    sProbeResults.put(key, result);
+                    Logging.d(TAG, "disk probe " + key + ": " + result);
+                } catch (IOException e) {
+                    Logging.e(TAG, "disk probe failed: " + key, e);
+                }
+            }
+        }, "DiskThroughputProbe");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * 目录的写入速度测量结果，还没测量或测量失败时返回null
+     */
+    public static DiskThroughputProbe.Result getProbeResult(File dir) {
+        return sProbeResults.get(dir.getAbsolutePath());
+    }
+
+    /**
+     * 评估在dir中以给定码率录制plannedDurationMs是否可行，没有测速结果时只检查空间
+     */
+    public static Plan plan(File dir, int videoBitRate, int audioBitRate, long plannedDurationMs) {
+        long available = getAvailableBytes(dir);
+        long estimated = estimateBytes(videoBitRate, audioBitRate, plannedDurationMs);
+        DiskThroughputProbe.Result probe = getProbeResult(dir);
+        long throughput = probe != null ? probe.getBytesPerSecond() : -1L;
+        if (available < MIN_FREE_BYTES || available - MIN_FREE_BYTES / 2 < estimated) {
+            return new Plan(RESULT_NO_SPACE, videoBitRate, estimated, available, throughput);
+        }
+        if (throughput < 0) {
+            return new Plan(RESULT_OK, videoBitRate, estimated, available, throughput);
+        }
+        long required = (long) (((long) videoBitRate + audioBitRate) / 8 * THROUGHPUT_HEADROOM);
+        if (throughput >= required) {
+            return new Plan(RESULT_OK, videoBitRate, estimated, available, throughput);
+        }
+        int downgraded = (int) Math.min(Integer.MAX_VALUE, throughput * 8 / (long) THROUGHPUT_HEADROOM) - audioBitRate;
+        if (downgraded < MIN_VIDEO_BIT_RATE) {
+            return new Plan(RESULT_SLOW_DISK, videoBitRate, estimated, available, throughput);
+        }
+        return new Plan(RESULT_DOWNGRADE, downgraded,
+                estimateBytes(downgraded, audioBitRate, plannedDurationMs), available, throughput);
+    }
+
+    /**
+     * 打开文件并预分配bytes字节，文件系统不支持(如FAT、FUSE)或空间不足时返回null，调用方按普通方式写入
+     */
+    public static RandomAccessFile openPreallocated(String path, long bytes) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(path, "rw");
+            file.setLength(0L);
+            Os.posix_fallocate(file.getFD(), 0L, bytes);
+            return file;
+        } catch (IOException e) {
+            Logging.e(TAG, "open " + path + " failed", e);
+        } catch (ErrnoException e) {
+            Logging.w(TAG, "preallocate " + bytes + " bytes for " + path + " failed: " + e.getMessage());
+        }
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * muxer结束后截掉预分配而没有用到的部分并关闭文件
+     */
+    public static void closePreallocated(RandomAccessFile file) {
+        try {
+            long end = findMp4End(file);
+            if (end > 0 && end < file.length()) {
+                file.setLength(end);
+            }
+        } catch (IOException e) {
+            Logging.e(TAG, "trim preallocated file failed", e);
+        } finally {
+            try {
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 依次跳过MP4的顶层box，返回最后一个完整box的结束位置；预分配的空间都是0，遇到非法的box头即停止
+     */
+    static long findMp4End(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        long position = 0L;
+        while (position + 8 <= length) {
+            file.seek(position);
+            long size = file.readInt() & 0xffffffffL;
+            int type = file.readInt();
+            if (!isBoxType(type)) {
+                break;
+            }
+            if (size == 1) {
+                if (position + 16 > length) {
+                    break;
+                }
+                size = file.readLong();
+            } else if (size == 0) {
+                // 延伸到文件末尾的box，无法判断实际长度
+                return length;
+            }
+            if (size < 8 || position + size > length) {
+                break;
+            }
+            position += size;
+        }
+        return position;
+    }
+
+    private static boolean isBoxType(int type) {
+        for (int i = 0; i < 4; i++) {
+            int c = (type >>> (i * 8)) & 0xff;
+            if (c < 0x20 || c > 0x7e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static class Plan {
+        public final int result;
+        // 建议使用的视频码率，RESULT_DOWNGRADE时低于请求的码率
+        public final int videoBitRate;
+        public final long estimatedBytes;
+        public final long availableBytes;
+        // 测得的持续写入速度，没有测速结果时为-1
+        public final long throughputBytesPerSec;
+
+        Plan(int result, int videoBitRate, long estimatedBytes, long availableBytes, long throughputBytesPerSec) {
+            this.result = result;
+            this.videoBitRate = videoBitRate;
+            this.estimatedBytes = estimatedBytes;
+            this.availableBytes = availableBytes;
+            this.throughputBytesPerSec = throughputBytesPerSec;
+        }
+
+        @Override
+        public String toString() {
+            return "result: " + result + ", video bitrate: " + videoBitRate + ", estimated: " + estimatedBytes
+                    + ", available: " + availableBytes + ", throughput: " + throughputBytesPerSec;
+        }
+    }
+}
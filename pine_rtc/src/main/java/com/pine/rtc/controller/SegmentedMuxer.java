@@ -0,0 +1,304 @@
+package com.pine.rtc.controller;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.Logging;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分段写MP4的MediaMuxer封装，接口与MediaMuxer保持一致。
+ * <p>
+ * MediaMuxer只有在stop时才会写入moov，进程崩溃或没有走到stop时整个文件都无法播放。
+ * 开启分段后，当前段的时长或大小达到上限时，在下一个视频关键帧处结束当前段(写入moov)并开始新的一段，
+ * 崩溃最多只丢失当前这一段。每次开始/结束一段都会原子地重写索引文件，记录各段的文件名和时间范围。
+ * <p>
+ * 最大时长和最大大小都为0时不分段，直接写入dstPath，不生成索引文件。
+ * 设置了预分配大小时(需要API 26以上按文件描述符创建MediaMuxer)，每段文件先预分配空间，结束时截掉多余的部分。
+ * 只能在一个线程中使用(MediaRecordController中由mLock保护)。
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class SegmentedMuxer {
+    private static final String TAG = "SegmentedMuxer";
+    private static final String SEGMENT_SUFFIX = ".mp4";
+    private static final String INDEX_SUFFIX = ".index.json";
+
+    private final String mDstPath;
+    private final int mOutputFormat;
+    private final long mMaxDurationUs;
+    private final long mMaxBytes;
+    private final long mPreallocateBytes;
+    private final List<MediaFormat> mTrackFormats = new ArrayList<MediaFormat>();
+    private final List<Segment> mSegments = new ArrayList<Segment>();
+
+    private MediaMuxer mMuxer;
+    private Segment mCurrent;
+    private int mVideoTrack = -1;
+    private boolean mStarted;
+
+    SegmentedMuxer(String dstPath, int outputFormat, long maxDurationMs, long maxBytes) throws IOException {
+        this(dstPath, outputFormat, maxDurationMs, maxBytes, 0L);
+    }
+
+    /**
+     * @param preallocateBytes 每段预分配的字节数，0表示不预分配
+     */
+    SegmentedMuxer(String dstPath, int outputFormat, long maxDurationMs, long maxBytes,
+                   long preallocateBytes) throws IOException {
+        mDstPath = dstPath;
+        mOutputFormat = outputFormat;
+        mMaxDurationUs = maxDurationMs * 1000L;
+        mMaxBytes = maxBytes;
+        mPreallocateBytes = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ? preallocateBytes : 0L;
+        openSegment();
+    }
+
+    boolean isSegmented() {
+        return mMaxDurationUs > 0 || mMaxBytes > 0;
+    }
+
+    /**
+     * 分段时返回索引文件路径，否则返回dstPath
+     */
+    String getOutputPath() {
+        return isSegmented() ? getIndexPath() : mDstPath;
+    }
+
+    /**
+     * 当前正在写的文件
+     */
+    String getCurrentPath() {
+        return mCurrent.mPath;
+    }
+
+    /**
+     * 已交给当前段muxer的字节数，与文件实际大小的差即为还未落盘的数据
+     */
+    long getCurrentBytes() {
+        return mCurrent.mBytes;
+    }
+
+    /**
+     * 当前段已经写入文件的字节数。预分配时文件长度没有意义，
+     * 改用文件偏移(MediaMuxer内部dup了文件描述符，与mFile共享偏移)
+     */
+    long getCurrentFileBytes() {
+        RandomAccessFile file = mCurrent.mFile;
+        if (file != null) {
+            try {
+                return file.getFilePointer();
+            } catch (IOException e) {
+                return -1L;
+            }
+        }
+        return new File(mCurrent.mPath).length();
+    }
+
+    int addTrack(MediaFormat format) {
+        int track = mMuxer.addTrack(format);
+        mTrackFormats.add(format);
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (mime != null && mime.startsWith("video/")) {
+            mVideoTrack = track;
+        }
+        return track;
+    }
+
+    void start() {
+        mMuxer.start();
+        mStarted = true;
+    }
+
+    /**
+     * 当前段是否已达到上限，等待下一个视频关键帧切换
+     */
+    boolean isRotationDue() {
+        if (!isSegmented() || mCurrent == null || mCurrent.mStartUs < 0) {
+            return false;
+        }
+        return (mMaxDurationUs > 0 && mCurrent.mEndUs - mCurrent.mStartUs >= mMaxDurationUs)
+                || (mMaxBytes > 0 && mCurrent.mBytes >= mMaxBytes);
+    }
+
+    void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (trackIndex == mVideoTrack && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0
+                && isRotationDue()) {
+            try {
+                rotate();
+            } catch (IOException e) {
+                // 新的一段打不开时继续写当前段
+                Logging.e(TAG, "rotate segment failed", e);
+            }
+        }
+        mMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+        Segment segment = mCurrent;
+        if (segment.mStartUs < 0 || bufferInfo.presentationTimeUs < segment.mStartUs) {
+            segment.mStartUs = bufferInfo.presentationTimeUs;
+        }
+        if (bufferInfo.presentationTimeUs > segment.mEndUs) {
+            segment.mEndUs = bufferInfo.presentationTimeUs;
+        }
+        segment.mBytes += bufferInfo.size;
+    }
+
+    void stop() {
+        if (mStarted) {
+            mMuxer.stop();
+            mStarted = false;
+        }
+        mCurrent.mComplete = true;
+        writeIndex();
+    }
+
+    void release() {
+        if (mMuxer != null) {
+            mMuxer.release();
+            mMuxer = null;
+        }
+        if (mCurrent != null) {
+            closeSegmentFile(mCurrent);
+        }
+    }
+
+    private void rotate() throws IOException {
+        MediaMuxer oldMuxer = mMuxer;
+        Segment oldSegment = mCurrent;
+        openSegment();
+        for (int i = 0; i < mTrackFormats.size(); i++) {
+            mMuxer.addTrack(mTrackFormats.get(i));
+        }
+        mMuxer.start();
+        oldMuxer.stop();
+        oldMuxer.release();
+        closeSegmentFile(oldSegment);
+        oldSegment.mComplete = true;
+        writeIndex();
+        Logging.d(TAG, "segment " + oldSegment.mPath + " closed, " + oldSegment.mBytes + " bytes, "
+                + (oldSegment.mEndUs - oldSegment.mStartUs) / 1000L + " ms");
+    }
+
+    private void openSegment() throws IOException {
+        String path = isSegmented() ? segmentPath(mSegments.size()) : mDstPath;
+        RandomAccessFile file = null;
+        if (mPreallocateBytes > 0) {
+            file = RecordingStorage.openPreallocated(path, mPreallocateBytes);
+        }
+        if (file != null) {
+            mMuxer = createMuxer(file);
+        } else {
+            mMuxer = new MediaMuxer(path, mOutputFormat);
+        }
+        mCurrent = new Segment(path);
+        mCurrent.mFile = file;
+        mSegments.add(mCurrent);
+        if (isSegmented()) {
+            writeIndex();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private MediaMuxer createMuxer(RandomAccessFile file) throws IOException {
+        try {
+            return new MediaMuxer(file.getFD(), mOutputFormat);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * muxer release之后调用，截掉预分配多出的部分
+     */
+    private void closeSegmentFile(Segment segment) {
+        if (segment.mFile != null) {
+            RecordingStorage.closePreallocated(segment.mFile);
+            segment.mFile = null;
+        }
+    }
+
+    private String segmentPath(int index) {
+        String base = mDstPath.endsWith(SEGMENT_SUFFIX)
+                ? mDstPath.substring(0, mDstPath.length() - SEGMENT_SUFFIX.length()) : mDstPath;
+        return String.format("%s_%03d%s", base, index, SEGMENT_SUFFIX);
+    }
+
+    private String getIndexPath() {
+        String base = mDstPath.endsWith(SEGMENT_SUFFIX)
+                ? mDstPath.substring(0, mDstPath.length() - SEGMENT_SUFFIX.length()) : mDstPath;
+        return base + INDEX_SUFFIX;
+    }
+
+    /**
+     * 先写临时文件再rename，保证索引文件任何时候都是完整的
+     */
+    private void writeIndex() {
+        if (!isSegmented()) {
+            return;
+        }
+        File indexFile = new File(getIndexPath());
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            JSONArray segments = new JSONArray();
+            for (int i = 0; i < mSegments.size(); i++) {
+                Segment segment = mSegments.get(i);
+                JSONObject json = new JSONObject();
+                json.put("file", new File(segment.mPath).getName());
+                json.put("startUs", segment.mStartUs);
+                json.put("endUs", segment.mEndUs);
+                json.put("bytes", segment.mBytes);
+                json.put("complete", segment.mComplete);
+                segments.put(json);
+            }
+            JSONObject index = new JSONObject();
+            index.put("segments", segments);
+            out = new FileOutputStream(tmpFile);
+            out.write(index.toString().getBytes("UTF-8"));
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(indexFile)) {
+                Logging.e(TAG, "rename index file failed: " + indexFile);
+            }
+        } catch (JSONException e) {
+            Logging.e(TAG, "write index failed", e);
+        } catch (IOException e) {
+            Logging.e(TAG, "write index failed", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static class Segment {
+        final String mPath;
+        long mStartUs = -1L;
+        long mEndUs = -1L;
+        long mBytes;
+        boolean mComplete;
+        // 预分配时muxer写入的文件，否则为null
+        RandomAccessFile mFile;
+
+        Segment(String path) {
+            mPath = path;
+        }
+    }
+}
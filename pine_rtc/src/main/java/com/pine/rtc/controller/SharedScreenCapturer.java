@@ -0,0 +1,464 @@
+package com.pine.rtc.controller;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.SurfaceTexture;
+import android.hardware.display.DisplayManager;
+import android.hardware.display.VirtualDisplay;
+import android.media.projection.MediaProjection;
+import android.opengl.EGL14;
+import android.opengl.EGLExt;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+
+import org.webrtc.EglBase;
+import org.webrtc.GlRectDrawer;
+import org.webrtc.GlUtil;
+import org.webrtc.Logging;
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.ThreadUtils;
+import org.webrtc.VideoCapturer;
+
+/**
+ * 通话和录屏共用一个VirtualDisplay的屏幕采集。
+ * <p>
+ * 原来通话用ScreenCapturerAndroid、录屏用MediaRecordController各自创建VirtualDisplay，屏幕要合成两次。
+ * 这里只创建一个VirtualDisplay，输出到本类自己的SurfaceTexture，每帧在采集线程中用GL分别画到两个消费者：
+ * WebRTC视频源(SurfaceTextureHelper的SurfaceTexture)和录屏编码器的输入Surface。
+ * 两个消费者都挂在同一个EGL共享组下，OES纹理只需更新一次。
+ * <p>
+ * WebRTC一侧还在使用上一帧纹理时本帧跳过(计为丢帧)，避免阻塞录屏；编码器一侧不丢帧，编码器跟不上时自然反压。
+ * 每个消费者分别统计帧数、丢帧数和提交耗时：采集线程中绘制+swapBuffers所花的CPU时间，不是GPU执行时间，
+ * 驱动异步执行时GPU的工作大部分不计入。GLES20没有计时查询，开启setFinishForTiming后glFinish等待GPU完成，
+ * 此时的耗时才包含GPU执行时间。
+ * <p>
+ * MediaProjection可以在startCapture之后再设置，两者都就绪且至少有一个消费者时才创建VirtualDisplay。
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class SharedScreenCapturer implements VideoCapturer {
+    private static final String TAG = "SharedScreenCapturer";
+    private static final int DISPLAY_FLAGS =
+            DisplayManager.VIRTUAL_DISPLAY_FLAG_PUBLIC | DisplayManager.VIRTUAL_DISPLAY_FLAG_PRESENTATION;
+    private static final int VIRTUAL_DISPLAY_DPI = 400;
+
+    private final EglBase.Context mSharedContext;
+    private final HandlerThread mCaptureThread;
+    private final Handler mCaptureHandler;
+    private final float[] mTransformMatrix = new float[16];
+
+    // 以下只在采集线程中访问
+    private MediaProjection mMediaProjection;
+    private VirtualDisplay mVirtualDisplay;
+    private EglBase mCaptureEgl;
+    private int mOesTextureId;
+    private SurfaceTexture mSurfaceTexture;
+    private Surface mInputSurface;
+    private volatile int mWidth;
+    private volatile int mHeight;
+    private boolean mFinishForTiming;
+    private boolean mDisposed;
+    // 采集线程是否已退出，在synchronized方法中写入
+    private volatile boolean mThreadQuit;
+    private volatile long mCapturedFramesCount;
+
+    // WebRTC视频源
+    private SurfaceTextureHelper mSurfaceTextureHelper;
+    private CapturerObserver mCapturerObserver;
+    private EglBase mSourceEgl;
+    private GlRectDrawer mSourceDrawer;
+    private final ConsumerStats mSourceStats = new ConsumerStats("webrtc");
+
+    // 录屏编码器
+    private EglBase mRecorderEgl;
+    private GlRectDrawer mRecorderDrawer;
+    private final ConsumerStats mRecorderStats = new ConsumerStats("recorder");
+
+    /**
+     * @param sharedContext 与PeerConnectionFactory使用的EGL上下文一致，SurfaceTextureHelper的纹理才能共享
+     */
+    public SharedScreenCapturer(EglBase.Context sharedContext) {
+        mSharedContext = sharedContext;
+        mCaptureThread = new HandlerThread(TAG);
+        mCaptureThread.start();
+        mCaptureHandler = new Handler(mCaptureThread.getLooper());
+    }
+
+    /**
+     * 设置屏幕采集授权，可以在startCapture之后调用
+     */
+    public synchronized void setMediaProjection(final MediaProjection mediaProjection) {
+        invokeOnCaptureThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mDisposed) {
+                    return;
+                }
+                mMediaProjection = mediaProjection;
+                updateVirtualDisplay();
+            }
+        });
+    }
+
+    /**
+     * 绑定或解绑(surface为null)录屏编码器的输入Surface。
+     * 没有通话采集时VirtualDisplay按录屏的宽高创建，否则按通话采集的宽高创建，画到编码器时缩放。
+     * 返回后旧的Surface不再被使用，可以释放编码器
+     */
+    public synchronized void setRecorderSurface(final Surface surface, final int width, final int height) {
+        invokeOnCaptureThread(new Runnable() {
+            @Override
+            public void run() {
+                releaseRecorderSurface();
+                if (surface == null || mDisposed) {
+                    updateVirtualDisplay();
+                    return;
+                }
+                if (mSourceEgl == null && mVirtualDisplay == null) {
+                    mWidth = width;
+                    mHeight = height;
+                }
+                mRecorderEgl = EglBase.create(mSharedContext, EglBase.CONFIG_RECORDABLE);
+                mRecorderEgl.createSurface(surface);
+                mRecorderEgl.makeCurrent();
+                mRecorderDrawer = new GlRectDrawer();
+                mRecorderStats.reset();
+                updateVirtualDisplay();
+            }
+        });
+    }
+
+    /**
+     * 统计提交耗时时是否glFinish等待GPU执行完成，开启后耗时包含GPU执行时间，但会阻塞采集线程，只在调试时开启
+     */
+    public void setFinishForTiming(final boolean finish) {
+        mCaptureHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mFinishForTiming = finish;
+            }
+        });
+    }
+
+    public long getCapturedFramesCount() {
+        return mCapturedFramesCount;
+    }
+
+    public ConsumerStats getSourceStats() {
+        return mSourceStats;
+    }
+
+    public ConsumerStats getRecorderStats() {
+        return mRecorderStats;
+    }
+
+    @Override
+    public synchronized void initialize(SurfaceTextureHelper surfaceTextureHelper, Context applicationContext,
+                                        CapturerObserver capturerObserver) {
+        if (capturerObserver == null) {
+            throw new RuntimeException("capturerObserver not set.");
+        }
+        if (surfaceTextureHelper == null) {
+            throw new RuntimeException("surfaceTextureHelper not set.");
+        }
+        mSurfaceTextureHelper = surfaceTextureHelper;
+        mCapturerObserver = capturerObserver;
+    }
+
+    @Override
+    public synchronized void startCapture(final int width, final int height, int ignoredFramerate) {
+        // 在采集线程中写入，invokeOnCaptureThread返回后读取；线程已退出时runnable不执行，保持false
+        final boolean[] started = new boolean[1];
+        invokeOnCaptureThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mDisposed) {
+                    return;
+                }
+                if (mSourceEgl != null) {
+                    // 已经在采集
+                    started[0] = true;
+                    return;
+                }
+                // EGL surface的大小在创建时确定，先设置缓冲区大小
+                mSurfaceTextureHelper.getSurfaceTexture().setDefaultBufferSize(width, height);
+                EglBase sourceEgl = null;
+                try {
+                    sourceEgl = EglBase.create(mSharedContext, EglBase.CONFIG_PLAIN);
+                    sourceEgl.createSurface(mSurfaceTextureHelper.getSurfaceTexture());
+                    sourceEgl.makeCurrent();
+                } catch (RuntimeException e) {
+                    Logging.e(TAG, "Failed to create EGL surface for video source", e);
+                    if (sourceEgl != null) {
+                        sourceEgl.release();
+                    }
+                    return;
+                }
+                mWidth = width;
+                mHeight = height;
+                if (mSurfaceTexture != null) {
+                    mSurfaceTexture.setDefaultBufferSize(width, height);
+                }
+                if (mVirtualDisplay != null) {
+                    mVirtualDisplay.resize(width, height, VIRTUAL_DISPLAY_DPI);
+                }
+                mSourceEgl = sourceEgl;
+                mSourceDrawer = new GlRectDrawer();
+                mSourceStats.reset();
+                mSurfaceTextureHelper.startListening(mSourceListener);
+                updateVirtualDisplay();
+                started[0] = true;
+            }
+        });
+        mCapturerObserver.onCapturerStarted(started[0]);
+    }
+
+    @Override
+    public synchronized void stopCapture() {
+        invokeOnCaptureThread(new Runnable() {
+            @Override
+            public void run() {
+                releaseSourceSurface();
+                updateVirtualDisplay();
+            }
+        });
+    }
+
+    @Override
+    public synchronized void changeCaptureFormat(final int width, final int height, int ignoredFramerate) {
+        invokeOnCaptureThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mDisposed) {
+                    return;
+                }
+                mWidth = width;
+                mHeight = height;
+                if (mSurfaceTexture != null) {
+                    mSurfaceTexture.setDefaultBufferSize(width, height);
+                }
+                if (mSourceEgl != null) {
+                    mSurfaceTextureHelper.getSurfaceTexture().setDefaultBufferSize(width, height);
+                }
+                if (mVirtualDisplay != null) {
+                    mVirtualDisplay.resize(width, height, VIRTUAL_DISPLAY_DPI);
+                }
+            }
+        });
+    }
+
+    @Override
+    public synchronized void dispose() {
+        invokeOnCaptureThread(new Runnable() {
+            @Override
+            public void run() {
+                mDisposed = true;
+                releaseSourceSurface();
+                releaseRecorderSurface();
+                releaseVirtualDisplay();
+                if (mSurfaceTexture != null) {
+                    mCaptureEgl.makeCurrent();
+                    mSurfaceTexture.setOnFrameAvailableListener(null);
+                    mInputSurface.release();
+                    mSurfaceTexture.release();
+                    GLES20.glDeleteTextures(1, new int[]{mOesTextureId}, 0);
+                    mInputSurface = null;
+                    mSurfaceTexture = null;
+                }
+                if (mCaptureEgl != null) {
+                    mCaptureEgl.release();
+                    mCaptureEgl = null;
+                }
+                mMediaProjection = null;
+            }
+        });
+        mThreadQuit = true;
+        mCaptureThread.quitSafely();
+    }
+
+    /**
+     * 在采集线程中同步执行，dispose之后不再执行(线程已退出，等待会一直阻塞)
+     */
+    private void invokeOnCaptureThread(Runnable runnable) {
+        if (mThreadQuit) {
+            Logging.w(TAG, "Capturer is disposed");
+            return;
+        }
+        ThreadUtils.invokeAtFrontUninterruptibly(mCaptureHandler, runnable);
+    }
+
+    @Override
+    public boolean isScreencast() {
+        return true;
+    }
+
+    private final SurfaceTextureHelper.OnTextureFrameAvailableListener mSourceListener =
+            new SurfaceTextureHelper.OnTextureFrameAvailableListener() {
+                @Override
+                public void onTextureFrameAvailable(int oesTextureId, float[] transformMatrix, long timestampNs) {
+                    mCapturerObserver.onTextureFrameCaptured(mWidth, mHeight, oesTextureId,
+                            transformMatrix, 0, timestampNs);
+                }
+            };
+
+    private final SurfaceTexture.OnFrameAvailableListener mFrameAvailableListener =
+            new SurfaceTexture.OnFrameAvailableListener() {
+                @Override
+                public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+                    onCaptureFrame();
+                }
+            };
+
+    /**
+     * 采集线程中更新一次纹理，再依次画到录屏编码器和WebRTC视频源
+     */
+    private void onCaptureFrame() {
+        if (mSurfaceTexture == null) {
+            return;
+        }
+        mCaptureEgl.makeCurrent();
+        mSurfaceTexture.updateTexImage();
+        mSurfaceTexture.getTransformMatrix(mTransformMatrix);
+        long timestampNs = mSurfaceTexture.getTimestamp();
+        mCapturedFramesCount++;
+        if (mRecorderEgl != null) {
+            drawFrame(mRecorderEgl, mRecorderDrawer, mRecorderStats, timestampNs);
+        }
+        if (mSourceEgl != null) {
+            if (mSurfaceTextureHelper.isTextureInUse()) {
+                // WebRTC还没处理完上一帧，不等待
+                mSourceStats.mDroppedCount++;
+            } else {
+                drawFrame(mSourceEgl, mSourceDrawer, mSourceStats, timestampNs);
+            }
+        }
+    }
+
+    private void drawFrame(EglBase eglBase, GlRectDrawer drawer, ConsumerStats stats, long timestampNs) {
+        long start = System.nanoTime();
+        eglBase.makeCurrent();
+        drawer.drawOes(mOesTextureId, mTransformMatrix, mWidth, mHeight,
+                0, 0, eglBase.surfaceWidth(), eglBase.surfaceHeight());
+        if (mFinishForTiming) {
+            GLES20.glFinish();
+        }
+        // 编码器和SurfaceTextureHelper都以这个时间戳为帧时间，与MediaRecordController的音频同为System.nanoTime()
+        EGLExt.eglPresentationTimeANDROID(EGL14.eglGetCurrentDisplay(),
+                EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW), timestampNs);
+        eglBase.swapBuffers();
+        // 只是提交到驱动的CPU时间，见类注释
+        stats.onFrame(System.nanoTime() - start);
+    }
+
+    private void updateVirtualDisplay() {
+        boolean hasConsumer = mSourceEgl != null || mRecorderEgl != null;
+        if (!hasConsumer || mMediaProjection == null || mDisposed) {
+            releaseVirtualDisplay();
+            return;
+        }
+        if (mVirtualDisplay != null || mWidth <= 0 || mHeight <= 0) {
+            return;
+        }
+        if (mSurfaceTexture == null) {
+            mCaptureEgl = EglBase.create(mSharedContext, EglBase.CONFIG_PIXEL_BUFFER);
+            mCaptureEgl.createDummyPbufferSurface();
+            mCaptureEgl.makeCurrent();
+            mOesTextureId = GlUtil.generateTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES);
+            mSurfaceTexture = new SurfaceTexture(mOesTextureId);
+            mSurfaceTexture.setOnFrameAvailableListener(mFrameAvailableListener, mCaptureHandler);
+            mInputSurface = new Surface(mSurfaceTexture);
+        }
+        mSurfaceTexture.setDefaultBufferSize(mWidth, mHeight);
+        mVirtualDisplay = mMediaProjection.createVirtualDisplay(TAG, mWidth, mHeight,
+                VIRTUAL_DISPLAY_DPI, DISPLAY_FLAGS, mInputSurface, null, null);
+        Logging.d(TAG, "created virtual display " + mWidth + "x" + mHeight);
+    }
+
+    private void releaseVirtualDisplay() {
+        if (mVirtualDisplay != null) {
+            mVirtualDisplay.release();
+            mVirtualDisplay = null;
+            Logging.d(TAG, "released virtual display, captured frames: " + mCapturedFramesCount);
+        }
+    }
+
+    private void releaseSourceSurface() {
+        if (mSourceEgl == null) {
+            return;
+        }
+        mSurfaceTextureHelper.stopListening();
+        mSourceEgl.makeCurrent();
+        mSourceDrawer.release();
+        mSourceDrawer = null;
+        mSourceEgl.release();
+        mSourceEgl = null;
+        Logging.d(TAG, mSourceStats.toString());
+        mCapturerObserver.onCapturerStopped();
+    }
+
+    private void releaseRecorderSurface() {
+        if (mRecorderEgl == null) {
+            return;
+        }
+        mRecorderEgl.makeCurrent();
+        mRecorderDrawer.release();
+        mRecorderDrawer = null;
+        mRecorderEgl.release();
+        mRecorderEgl = null;
+        Logging.d(TAG, mRecorderStats.toString());
+    }
+
+    /**
+     * 单个消费者的统计，只在采集线程中写入
+     */
+    public static class ConsumerStats {
+        private final String mName;
+        private volatile long mFrameCount;
+        private volatile long mDroppedCount;
+        private volatile long mTotalSubmitTimeNs;
+        private volatile long mLastSubmitTimeNs;
+
+        ConsumerStats(String name) {
+            mName = name;
+        }
+
+        void onFrame(long submitTimeNs) {
+            mFrameCount++;
+            mTotalSubmitTimeNs += submitTimeNs;
+            mLastSubmitTimeNs = submitTimeNs;
+        }
+
+        void reset() {
+            mFrameCount = 0L;
+            mDroppedCount = 0L;
+            mTotalSubmitTimeNs = 0L;
+            mLastSubmitTimeNs = 0L;
+        }
+
+        public long getFrameCount() {
+            return mFrameCount;
+        }
+
+        public long getDroppedCount() {
+            return mDroppedCount;
+        }
+
+        public long getLastSubmitTimeNs() {
+            return mLastSubmitTimeNs;
+        }
+
+        public long getAverageSubmitTimeNs() {
+            long frames = mFrameCount;
+            return frames == 0 ? 0L : mTotalSubmitTimeNs / frames;
+        }
+
+        @Override
+        public String toString() {
+            return mName + " frames: " + mFrameCount + ", dropped: " + mDroppedCount
+                    + ", average submit time: " + getAverageSubmitTimeNs() / 1000 + " us";
+        }
+    }
+}
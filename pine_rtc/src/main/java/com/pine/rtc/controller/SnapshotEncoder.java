@@ -0,0 +1,254 @@
+package com.pine.rtc.controller;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import org.webrtc.Logging;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 截图的后台编码服务，EglRenderScreenShot和MediaProjectionScreenShot共用。
+ * <p>
+ * 只有一个工作线程，队列长度固定为MAX_PENDING：编码比截图慢时submit直接返回false，
+ * 调用方应在截图前用canAccept判断，避免截了图又编不出来。
+ * 支持JPEG/WebP/PNG及质量设置，同时按最长边生成缩略图。
+ * 先写入临时文件并fsync，再rename到目标路径，不会留下写了一半的图片。
+ */
+public class SnapshotEncoder {
+    private static final String TAG = "SnapshotEncoder";
+
+    private static final int MAX_PENDING = 2;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String THUMBNAIL_SUFFIX = "_thumb";
+
+    public static final Bitmap.CompressFormat DEFAULT_FORMAT = Bitmap.CompressFormat.JPEG;
+    public static final int DEFAULT_QUALITY = 90;
+    /**
+     * 缩略图最长边的默认像素，0表示不生成缩略图
+     */
+    public static final int DEFAULT_THUMBNAIL_SIZE = 320;
+
+    private static final SnapshotEncoder sInstance = new SnapshotEncoder();
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private SnapshotEncoder() {
+        mExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_PENDING), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, TAG);
+            }
+        });
+    }
+
+    public static SnapshotEncoder getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * 队列是否还能接受新的编码请求
+     */
+    public boolean canAccept() {
+        return mExecutor.getQueue().remainingCapacity() > 0;
+    }
+
+    /**
+     * 排队中和正在编码的请求数
+     */
+    public int getPendingCount() {
+        return mExecutor.getQueue().size() + mExecutor.getActiveCount();
+    }
+
+    /**
+     * 提交编码请求，队列已满时返回false且不会回调
+     */
+    public boolean submit(final Request request) {
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    final Result result = encode(request);
+                    if (request.mCallback == null) {
+                        return;
+                    }
+                    Handler handler = request.mHandler != null ? request.mHandler : mMainHandler;
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            request.mCallback.onEncoded(result);
+                        }
+                    });
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            Logging.w(TAG, "encoder is busy, drop snapshot " + request.mPath);
+            return false;
+        }
+    }
+
+    /**
+     * 格式对应的文件扩展名(带".")
+     */
+    public static String getExtension(Bitmap.CompressFormat format) {
+        if (format == Bitmap.CompressFormat.PNG) {
+            return ".png";
+        } else if (format == Bitmap.CompressFormat.WEBP) {
+            return ".webp";
+        }
+        return ".jpg";
+    }
+
+    private static Result encode(Request request) {
+        long start = SystemClock.elapsedRealtime();
+        File file = new File(request.mPath);
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            Logging.e(TAG, "Can not create directory: " + parent);
+            return new Result(null, null, null, 0L);
+        }
+        if (!writeAtomically(request.mBitmap, request.mFormat, request.mQuality, file)) {
+            return new Result(null, null, null, 0L);
+        }
+        Bitmap thumbnail = null;
+        String thumbnailPath = null;
+        if (request.mThumbnailSize > 0) {
+            thumbnail = createThumbnail(request.mBitmap, request.mThumbnailSize);
+            File thumbnailFile = new File(getThumbnailPath(request.mPath));
+            if (writeAtomically(thumbnail, request.mFormat, request.mQuality, thumbnailFile)) {
+                thumbnailPath = thumbnailFile.getPath();
+            }
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Logging.d(TAG, "encoded " + request.mBitmap.getWidth() + "x" + request.mBitmap.getHeight()
+                + " " + request.mFormat + " in " + elapsed + " ms");
+        return new Result(file.getPath(), thumbnailPath, thumbnail, elapsed);
+    }
+
+    private static boolean writeAtomically(Bitmap bitmap, Bitmap.CompressFormat format, int quality,
+                                           File file) {
+        File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmpFile);
+            BufferedOutputStream buffered = new BufferedOutputStream(out, OUTPUT_BUFFER_SIZE);
+            if (!bitmap.compress(format, quality, buffered)) {
+                throw new IOException("compress " + format + " failed");
+            }
+            buffered.flush();
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("rename to " + file + " failed");
+            }
+            return true;
+        } catch (IOException e) {
+            Logging.e(TAG, "write snapshot failed: " + file, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (tmpFile.exists() && !tmpFile.delete()) {
+            Logging.w(TAG, "Delete tmp file failed: " + tmpFile);
+        }
+        return false;
+    }
+
+    private static Bitmap createThumbnail(Bitmap bitmap, int maxSize) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (width <= maxSize && height <= maxSize) {
+            return bitmap;
+        }
+        float scale = (float) maxSize / Math.max(width, height);
+        return Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale)), true);
+    }
+
+    private static String getThumbnailPath(String path) {
+        int dot = path.lastIndexOf('.');
+        if (dot <= path.lastIndexOf('/')) {
+            return path + THUMBNAIL_SUFFIX;
+        }
+        return path.substring(0, dot) + THUMBNAIL_SUFFIX + path.substring(dot);
+    }
+
+    public static class Request {
+        private final Bitmap mBitmap;
+        private final String mPath;
+        private Bitmap.CompressFormat mFormat = DEFAULT_FORMAT;
+        private int mQuality = DEFAULT_QUALITY;
+        private int mThumbnailSize = DEFAULT_THUMBNAIL_SIZE;
+        private Callback mCallback;
+        private Handler mHandler;
+
+        public Request(Bitmap bitmap, String path) {
+            mBitmap = bitmap;
+            mPath = path;
+        }
+
+        /**
+         * PNG忽略quality
+         */
+        public Request setFormat(Bitmap.CompressFormat format, int quality) {
+            mFormat = format;
+            mQuality = quality;
+            return this;
+        }
+
+        public Request setThumbnailSize(int thumbnailSize) {
+            mThumbnailSize = thumbnailSize;
+            return this;
+        }
+
+        /**
+         * handler为null时在主线程回调
+         */
+        public Request setCallback(Callback callback, Handler handler) {
+            mCallback = callback;
+            mHandler = handler;
+            return this;
+        }
+    }
+
+    public static class Result {
+        // 编码或写入失败时为null
+        public final String path;
+        public final String thumbnailPath;
+        public final Bitmap thumbnail;
+        public final long encodeTimeMs;
+
+        Result(String path, String thumbnailPath, Bitmap thumbnail, long encodeTimeMs) {
+            this.path = path;
+            this.thumbnailPath = thumbnailPath;
+            this.thumbnail = thumbnail;
+            this.encodeTimeMs = encodeTimeMs;
+        }
+    }
+
+    public interface Callback {
+        void onEncoded(Result result);
+    }
+}
@@ -47,6 +47,11 @@ public interface AppRTCClient {
      */
     void sendLocalIceCandidateRemovals(final IceCandidate[] candidates);
 
+    /**
+     * Send the Ice candidates collected so far without waiting for the batching window to end.
+     */
+    void flushLocalIceCandidates();
+
     /**
      * Disconnect from room.
      */
@@ -10,25 +10,40 @@
 
 package com.pine.rtc.org.component;
 
+import android.os.SystemClock;
+import android.util.Log;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.Scanner;
 
 /**
  * Asynchronous http requests implementation.
+ * <p>
+ * <p>Requests run on the shared HttpRequestExecutor, in order per host except for retries. Responses are always read
+ * to the end and the connection is not disconnected on success, so HttpURLConnection can reuse
+ * the TCP and TLS session for the next request to the same host.
  */
 public class AsyncHttpURLConnection {
+    private static final String TAG = "AsyncHttpURLConnection";
     private static final int HTTP_TIMEOUT_MS = 8000;
+    private static final long RETRY_DELAY_MS = 250;
     private final String mMethod;
     private final String mOriginUrl;
     private final String mUrl;
     private final String mMessage;
     private final AsyncHttpEvents mEvents;
     private String mContentType;
+    private int mTimeoutMs = HTTP_TIMEOUT_MS;
+    private int mMaxRetries;
+    // Status of the last non-200 response, only used by the running attempt.
+    private int mLastResponseCode;
+    private String mLastStatusLine;
 
     public AsyncHttpURLConnection(String method, String originUrl, String url, String message, AsyncHttpEvents events) {
         this.mMethod = method;
@@ -38,28 +53,92 @@ public class AsyncHttpURLConnection {
         this.mEvents = events;
     }
 
-    // Return the contents of an InputStream as a String.
+    // Return the contents of an InputStream as a String, reading it to the end.
     private static String drainStream(InputStream in) {
-        Scanner s = new Scanner(in).useDelimiter("\\A");
-        return s.hasNext() ? s.next() : "";
+        Scanner s = new Scanner(in, "UTF-8").useDelimiter("\\A");
+        String result = s.hasNext() ? s.next() : "";
+        s.close();
+        return result;
     }
 
     public void setContentType(String contentType) {
         this.mContentType = contentType;
     }
 
+    /**
+     * Sets the connect and read timeout of each attempt, 8 seconds by default.
+     */
+    public void setTimeoutMs(int timeoutMs) {
+        this.mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Sets how many times the request is repeated after an I/O error, a timeout or a 5xx
+     * response, with a doubling delay starting at 250 ms. 0 by default, only set it for requests
+     * that are safe to repeat. A retried request is queued again after the delay, so requests to
+     * the same host sent during the delay may arrive before it.
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.mMaxRetries = maxRetries;
+    }
+
     public void send() {
+        send(0, 0, 0);
+    }
+
+    // Queues attempt |attempt| of the request after |delayMs|. |startMs| is the start of the
+    // first attempt, for the latency histograms.
+    private void send(final int attempt, final long startMs, long delayMs) {
         Runnable runHttp = new Runnable() {
             public void run() {
-                sendHttpMessage();
+                sendHttpMessage(attempt, attempt == 0 ? SystemClock.elapsedRealtime() : startMs);
             }
         };
-        new Thread(runHttp).start();
+        if (delayMs > 0) {
+            HttpRequestExecutor.getInstance().executeDelayed(getHost(mUrl), runHttp, delayMs);
+        } else {
+            HttpRequestExecutor.getInstance().execute(getHost(mUrl), runHttp);
+        }
     }
 
-    private void sendHttpMessage() {
+    private void sendHttpMessage(int attempt, long startMs) {
+        String error;
+        boolean retryable = true;
+        try {
+            String response = sendHttpMessageOnce();
+            if (response != null) {
+                recordLatency(startMs, true);
+                mEvents.onHttpComplete(response);
+                return;
+            }
+            error = "Non-200 response to " + mMethod + " to URL: " + mUrl + " : " + mLastStatusLine;
+            retryable = mLastResponseCode >= 500;
+        } catch (SocketTimeoutException e) {
+            error = "HTTP " + mMethod + " to " + mUrl + " timeout";
+        } catch (IOException e) {
+            error = "HTTP " + mMethod + " to " + mUrl + " error: " + e.getMessage();
+        }
+        if (retryable && attempt < mMaxRetries) {
+            // Queued again instead of sleeping, so the host slot is free during the backoff.
+            Log.w(TAG, error + ", retry " + (attempt + 1) + " of " + mMaxRetries);
+            send(attempt + 1, startMs, RETRY_DELAY_MS << attempt);
+            return;
+        }
+        recordLatency(startMs, false);
+        mEvents.onHttpError(error);
+    }
+
+    private void recordLatency(long startMs, boolean success) {
+        HttpRequestExecutor.getInstance().recordLatency(
+                getEndpoint(mMethod, mUrl), SystemClock.elapsedRealtime() - startMs, success);
+    }
+
+    /**
+     * Sends the request once. Returns the response, or null for a non-200 response.
+     */
+    private String sendHttpMessageOnce() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
         try {
-            HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
             byte[] postData = new byte[0];
             if (mMessage != null) {
                 postData = mMessage.getBytes("UTF-8");
@@ -67,8 +146,8 @@ public class AsyncHttpURLConnection {
             connection.setRequestMethod(mMethod);
             connection.setUseCaches(false);
             connection.setDoInput(true);
-            connection.setConnectTimeout(HTTP_TIMEOUT_MS);
-            connection.setReadTimeout(HTTP_TIMEOUT_MS);
+            connection.setConnectTimeout(mTimeoutMs);
+            connection.setReadTimeout(mTimeoutMs);
             // TODO(glaznev) - query request origin from pref_room_server_url_key preferences.
             connection.addRequestProperty("origin", mOriginUrl);
             boolean doOutput = false;
@@ -93,20 +172,45 @@ public class AsyncHttpURLConnection {
             // Get response.
             int responseCode = connection.getResponseCode();
             if (responseCode != 200) {
-                mEvents.onHttpError("Non-200 response to " + mMethod + " to URL: " + mUrl + " : "
-                        + connection.getHeaderField(null));
-                connection.disconnect();
-                return;
+                mLastResponseCode = responseCode;
+                mLastStatusLine = connection.getHeaderField(null);
+                // Read the error body as well, otherwise the connection can't be reused.
+                InputStream errorStream = connection.getErrorStream();
+                if (errorStream != null) {
+                    drainStream(errorStream);
+                }
+                return null;
             }
-            InputStream responseStream = connection.getInputStream();
-            String response = drainStream(responseStream);
-            responseStream.close();
-            connection.disconnect();
-            mEvents.onHttpComplete(response);
-        } catch (SocketTimeoutException e) {
-            mEvents.onHttpError("HTTP " + mMethod + " to " + mUrl + " timeout");
+            // Closing the drained stream returns the connection to the keep-alive pool.
+            return drainStream(connection.getInputStream());
         } catch (IOException e) {
-            mEvents.onHttpError("HTTP " + mMethod + " to " + mUrl + " error: " + e.getMessage());
+            // The connection may be broken, don't let it be reused.
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    // Requests are queued per host and port.
+    static String getHost(String url) {
+        try {
+            URL parsed = new URL(url);
+            return parsed.getHost() + ":" + parsed.getPort();
+        } catch (MalformedURLException e) {
+            // Fails again when sent and is reported through onHttpError.
+            return url;
+        }
+    }
+
+    // The method, host and first path segment, e.g. "POST apprtc.appspot.com/message". The rest of
+    // the path holds room and client ids.
+    static String getEndpoint(String method, String url) {
+        try {
+            URL parsed = new URL(url);
+            String path = parsed.getPath();
+            int end = path.indexOf('/', 1);
+            return method + " " + parsed.getHost() + (end < 0 ? path : path.substring(0, end));
+        } catch (MalformedURLException e) {
+            return method + " " + url;
         }
     }
 
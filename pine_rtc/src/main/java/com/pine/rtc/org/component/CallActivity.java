@@ -868,6 +868,18 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
         });
     }
 
+    @Override
+    public void onIceGatheringComplete() {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (appRtcClient != null) {
+                    appRtcClient.flushLocalIceCandidates();
+                }
+            }
+        });
+    }
+
     @Override
     public void onIceConnected() {
         final long delta = System.currentTimeMillis() - callStartedTimeMs;
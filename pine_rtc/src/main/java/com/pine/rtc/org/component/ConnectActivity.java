@@ -36,6 +36,7 @@ import android.widget.TextView;
 
 import com.pine.rtc.R;
 import com.pine.rtc.ui.activity.VideoPlayerActivity;
+import com.pine.rtc.util.EncoderCapabilityCache;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -123,6 +124,8 @@ public class ConnectActivity extends Activity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        // Probe the recording encoders in the background before a call starts.
+        EncoderCapabilityCache.getInstance().init(this);
 
         // Get setting keys.
         PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
@@ -268,6 +271,8 @@ public class ConnectActivity extends Activity {
     @Override
     public void onResume() {
         super.onResume();
+        // Refresh the TURN servers known from earlier joins before the next one needs them.
+        IceServerCache.getInstance().prefetch();
         String room = sharedPref.getString(mKeyPrefRoom, "");
         roomEditText.setText(room);
         mRoomList = new ArrayList<String>();
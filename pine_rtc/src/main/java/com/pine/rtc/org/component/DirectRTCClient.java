@@ -12,16 +12,20 @@ package com.pine.rtc.org.component;
 
 import android.util.Log;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.webrtc.IceCandidate;
 import org.webrtc.PeerConnection;
 import org.webrtc.SessionDescription;
 
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -29,6 +33,9 @@ import java.util.regex.Pattern;
  * Implementation of AppRTCClient that uses direct TCP connection as the signaling channel.
  * This eliminates the need for an external server. This class does not support loopback
  * connections.
+ * <p>
+ * <p>Connecting to a local IP address listens for exactly one peer. To take calls from many peers on
+ * one port use DirectSignalingServer, which creates one DirectRTCClient per accepted session.
  */
 public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChannelEvents {
     private static final String TAG = "DirectRTCClient";
@@ -50,42 +57,81 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
             // Optional port number
             + "(:(\\d+))?");
     private static final int DEFAULT_PORT = 8888;
+    // Shared by all clients, only posts the candidate flushes to the client's executor.
+    private static final ScheduledExecutorService sFlushTimer =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG + "Timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
     private final ExecutorService mExecutor;
-    private final SignalingEvents mEvents;
-    private TCPChannelClient mTcpClient;
+    // False for sessions of DirectSignalingServer, which share the server's executor.
+    private final boolean mOwnsExecutor;
+    private SignalingEvents mEvents;
+    private final boolean mUseNioTransport;
+    private TCPChannel mTcpClient;
     private RoomConnectionParameters mConnectionParameters;
     // All alterations of the room state should be done from inside the looper thread.
     private ConnectionState mRoomState;
+    // Accessed only on the looper thread.
+    private IceCandidateBatcher mCandidateBatcher =
+            new IceCandidateBatcher(IceCandidateBatcher.DEFAULT_WINDOW_MS);
+    private boolean mFlushScheduled;
+    // Decodes TCP messages, used only on the looper thread.
+    private final SignalingMessageCodec mCodec = new SignalingMessageCodec();
 
     public DirectRTCClient(SignalingEvents events) {
+        this(events, false);
+    }
+
+    /**
+     * @param useNioTransport Use NioTCPChannelClient instead of the blocking TCPChannelClient.
+     *                        Peers using either transport can talk to each other.
+     */
+    public DirectRTCClient(SignalingEvents events, boolean useNioTransport) {
         this.mEvents = events;
+        this.mUseNioTransport = useNioTransport;
 
         mExecutor = Executors.newSingleThreadExecutor();
+        mOwnsExecutor = true;
         mRoomState = ConnectionState.NEW;
     }
 
-    // Put a |key|->|value| mapping in |json|.
-    private static void jsonPut(JSONObject json, String key, Object value) {
-        try {
-            json.put(key, value);
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
-        }
+    /**
+     * Creates the client of an already accepted DirectSignalingServer session. connectToRoom must
+     * not be called, the server fires onTCPConnected(true) once the events are set.
+     */
+    DirectRTCClient(ExecutorService executor, TCPChannel channel) {
+        this.mUseNioTransport = true;
+        this.mExecutor = executor;
+        this.mOwnsExecutor = false;
+        this.mTcpClient = channel;
+        mRoomState = ConnectionState.NEW;
     }
 
-    // Converts a Java candidate to a JSONObject.
-    private static JSONObject toJsonCandidate(final IceCandidate candidate) {
-        JSONObject json = new JSONObject();
-        jsonPut(json, "label", candidate.sdpMLineIndex);
-        jsonPut(json, "id", candidate.sdpMid);
-        jsonPut(json, "candidate", candidate.sdp);
-        return json;
+    /**
+     * Sets the events of a DirectSignalingServer session. Runs on the looper thread.
+     */
+    void setEvents(SignalingEvents events) {
+        this.mEvents = events;
     }
 
-    // Converts a JSON candidate to a Java object.
-    private static IceCandidate toJavaCandidate(JSONObject json) throws JSONException {
-        return new IceCandidate(
-                json.getString("id"), json.getInt("label"), json.getString("candidate"));
+    /**
+     * Sets how long local ICE candidates are collected before being sent in one message, 0 sends
+     * every candidate right away (the default). Only enable it when the peer is known to
+     * understand the batched "candidates" message, older peers drop it.
+     */
+    public void setCandidateBatchWindowMs(final long windowMs) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                flushLocalIceCandidatesInternal();
+                mCandidateBatcher = new IceCandidateBatcher(windowMs);
+            }
+        });
     }
 
     /**
@@ -149,7 +195,11 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
             port = DEFAULT_PORT;
         }
 
-        mTcpClient = new TCPChannelClient(mExecutor, this, ip, port);
+        if (mUseNioTransport) {
+            mTcpClient = new NioTCPChannelClient(mExecutor, this, ip, port);
+        } else {
+            mTcpClient = new TCPChannelClient(mExecutor, this, ip, port);
+        }
     }
 
     /**
@@ -159,12 +209,15 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
      */
     private void disconnectFromRoomInternal() {
         mRoomState = ConnectionState.CLOSED;
+        mCandidateBatcher.clear();
 
         if (mTcpClient != null) {
             mTcpClient.disconnect();
             mTcpClient = null;
         }
-        mExecutor.shutdown();
+        if (mOwnsExecutor) {
+            mExecutor.shutdown();
+        }
     }
 
     @Override
@@ -176,10 +229,8 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
                     reportError("Sending offer SDP in non connected state.");
                     return;
                 }
-                JSONObject json = new JSONObject();
-                jsonPut(json, "sdp", sdp.description);
-                jsonPut(json, "type", "offer");
-                sendMessage(json.toString());
+                sendMessage(
+                        SignalingMessageCodec.encodeSdp(SignalingMessageCodec.TYPE_OFFER, sdp.description));
             }
         });
     }
@@ -189,10 +240,8 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
         mExecutor.execute(new Runnable() {
             @Override
             public void run() {
-                JSONObject json = new JSONObject();
-                jsonPut(json, "sdp", sdp.description);
-                jsonPut(json, "type", "answer");
-                sendMessage(json.toString());
+                sendMessage(
+                        SignalingMessageCodec.encodeSdp(SignalingMessageCodec.TYPE_ANSWER, sdp.description));
             }
         });
     }
@@ -205,17 +254,21 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
         mExecutor.execute(new Runnable() {
             @Override
             public void run() {
-                JSONObject json = new JSONObject();
-                jsonPut(json, "type", "candidate");
-                jsonPut(json, "label", candidate.sdpMLineIndex);
-                jsonPut(json, "id", candidate.sdpMid);
-                jsonPut(json, "candidate", candidate.sdp);
-
+                if (mCandidateBatcher.isBatching()) {
+                    if (mRoomState != ConnectionState.CONNECTED) {
+                        reportError("Sending ICE candidate in non connected state.");
+                        return;
+                    }
+                    if (mCandidateBatcher.add(candidate)) {
+                        scheduleFlush();
+                    }
+                    return;
+                }
                 if (mRoomState != ConnectionState.CONNECTED) {
                     reportError("Sending ICE candidate in non connected state.");
                     return;
                 }
-                sendMessage(json.toString());
+                sendMessage(SignalingMessageCodec.encodeCandidate(candidate));
             }
         });
     }
@@ -228,23 +281,86 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
         mExecutor.execute(new Runnable() {
             @Override
             public void run() {
-                JSONObject json = new JSONObject();
-                jsonPut(json, "type", "remove-candidates");
-                JSONArray jsonArray = new JSONArray();
-                for (final IceCandidate candidate : candidates) {
-                    jsonArray.put(toJsonCandidate(candidate));
+                if (mCandidateBatcher.isBatching()) {
+                    if (mRoomState != ConnectionState.CONNECTED) {
+                        reportError("Sending ICE candidate removals in non connected state.");
+                        return;
+                    }
+                    if (mCandidateBatcher.remove(candidates)) {
+                        scheduleFlush();
+                    }
+                    return;
                 }
-                jsonPut(json, "candidates", jsonArray);
-
                 if (mRoomState != ConnectionState.CONNECTED) {
                     reportError("Sending ICE candidate removals in non connected state.");
                     return;
                 }
-                sendMessage(json.toString());
+                sendMessage(SignalingMessageCodec.encodeCandidates(
+                        SignalingMessageCodec.TYPE_REMOVE_CANDIDATES, Arrays.asList(candidates)));
             }
         });
     }
 
+    /**
+     * Send the collected Ice candidates right away, called once ICE gathering is complete.
+     */
+    @Override
+    public void flushLocalIceCandidates() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                flushLocalIceCandidatesInternal();
+            }
+        });
+    }
+
+    private final Runnable mFlushCandidatesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mFlushScheduled) {
+                            flushLocalIceCandidatesInternal();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Disconnected before the window ended.
+            }
+        }
+    };
+
+    // Runs on the looper thread.
+    private void scheduleFlush() {
+        mFlushScheduled = true;
+        sFlushTimer.schedule(
+                mFlushCandidatesRunnable, mCandidateBatcher.getWindowMs(), TimeUnit.MILLISECONDS);
+    }
+
+    // Sends pending removals and candidates - runs on the looper thread.
+    private void flushLocalIceCandidatesInternal() {
+        mFlushScheduled = false;
+        if (mCandidateBatcher.isEmpty()) {
+            return;
+        }
+        final IceCandidate[] removals = mCandidateBatcher.takeRemovals();
+        final List<IceCandidate> adds = mCandidateBatcher.takeAdds();
+        if (mRoomState != ConnectionState.CONNECTED) {
+            reportError("Sending ICE candidates in non connected state.");
+            return;
+        }
+        if (removals.length > 0) {
+            sendMessage(SignalingMessageCodec.encodeCandidates(
+                    SignalingMessageCodec.TYPE_REMOVE_CANDIDATES, Arrays.asList(removals)));
+        }
+        if (!adds.isEmpty()) {
+            sendMessage(SignalingMessageCodec.encodeCandidates(
+                    SignalingMessageCodec.TYPE_CANDIDATES, adds));
+        }
+    }
+
     /**
      * If the client is the server side, this will trigger onConnectedToRoom.
      */
@@ -270,24 +386,21 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
     @Override
     public void onTCPMessage(String msg) {
         try {
-            JSONObject json = new JSONObject(msg);
-            String type = json.optString("type");
-            if (type.equals("candidate")) {
-                mEvents.onRemoteIceCandidate(toJavaCandidate(json));
-            } else if (type.equals("remove-candidates")) {
-                JSONArray candidateArray = json.getJSONArray("candidates");
-                IceCandidate[] candidates = new IceCandidate[candidateArray.length()];
-                for (int i = 0; i < candidateArray.length(); ++i) {
-                    candidates[i] = toJavaCandidate(candidateArray.getJSONObject(i));
+            SignalingMessageCodec.Message message = mCodec.decode(msg);
+            String type = message.type;
+            if (type.equals(SignalingMessageCodec.TYPE_CANDIDATE)) {
+                mEvents.onRemoteIceCandidate(message.candidate);
+            } else if (type.equals(SignalingMessageCodec.TYPE_CANDIDATES)) {
+                for (IceCandidate candidate : message.candidates) {
+                    mEvents.onRemoteIceCandidate(candidate);
                 }
-                mEvents.onRemoteIceCandidatesRemoved(candidates);
-            } else if (type.equals("answer")) {
-                SessionDescription sdp = new SessionDescription(
-                        SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
+            } else if (type.equals(SignalingMessageCodec.TYPE_REMOVE_CANDIDATES)) {
+                mEvents.onRemoteIceCandidatesRemoved(message.candidates);
+            } else if (type.equals(SignalingMessageCodec.TYPE_ANSWER)) {
+                SessionDescription sdp = new SessionDescription(message.getSdpType(), message.sdp);
                 mEvents.onRemoteDescription(sdp);
-            } else if (type.equals("offer")) {
-                SessionDescription sdp = new SessionDescription(
-                        SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
+            } else if (type.equals(SignalingMessageCodec.TYPE_OFFER)) {
+                SessionDescription sdp = new SessionDescription(message.getSdpType(), message.sdp);
 
                 SignalingParameters parameters = new SignalingParameters(
                         // Ice servers are not needed for direct connections.
@@ -0,0 +1,519 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package com.pine.rtc.org.component;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Direct signaling server accepting many concurrent peers on one port. Every accepted connection is
+ * a session with its own DirectRTCClient, and therefore its own SignalingEvents and connection
+ * state. Peers are plain DirectRTCClients connecting to this IP, using either transport.
+ * <p>
+ * <p>A single selector thread accepts, reads and writes for all sessions, using the framing of
+ * TCPFrameCodec. Events of all sessions are dispatched on one executor, in order per session.
+ * <p>
+ * <p>Back-pressure: a session stops being read while more than maxPendingBytes of its outgoing
+ * data is queued or more than MAX_PENDING_MESSAGES of its incoming messages wait for the
+ * executor. A session whose outgoing queue grows beyond OVERFLOW_FACTOR * maxPendingBytes is
+ * closed.
+ * <p>
+ * <p>Idle timeout: disabled by default. Signaling is silent once a call is set up and
+ * DirectRTCClient peers send no keepalive, so a timeout would hang up healthy calls. Peers that go
+ * away without closing their socket are reaped by SO_KEEPALIVE. With setIdleTimeoutMs, a session
+ * is closed when nothing was received from its peer for the timeout, whether or not it is set up;
+ * only use it with peers that send something within the timeout.
+ */
+public class DirectSignalingServer {
+    private static final String TAG = "DirectSignalingServer";
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 0;
+    public static final int DEFAULT_MAX_PENDING_BYTES = 256 * 1024;
+
+    private static final int MAX_PENDING_MESSAGES = 64;
+    private static final int OVERFLOW_FACTOR = 4;
+    private static final long TIMER_INTERVAL_MS = 1000;
+    private static final int SOCKET_BUFFER_SIZE = 64 * 1024;
+
+    private final ExecutorService mExecutor;
+    private final boolean mOwnsExecutor;
+    private final SessionListener mListener;
+    private final String mIp;
+    private final int mPort;
+    private long mIdleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+    private int mMaxPendingBytes = DEFAULT_MAX_PENDING_BYTES;
+
+    // Lock for the sessions and their write queues.
+    private final Object mLock = new Object();
+    private final Set<Session> mSessions = new HashSet<Session>();
+    // Sessions whose interest ops must be updated by the selector thread.
+    private final Set<Session> mDirtySessions = new HashSet<Session>();
+    private Selector mSelector;
+    private ServerSocketChannel mServerChannel;
+    private boolean mStopped;
+
+    /**
+     * Callback interface for accepted sessions. All callbacks are invoked on the executor thread.
+     */
+    public interface SessionListener {
+        /**
+         * A peer connected. Returns the events for the session, or null to reject it. The client
+         * reports onConnectedToRoom as the initiator right after this returns.
+         */
+        AppRTCClient.SignalingEvents onSessionAccepted(AppRTCClient client, String remoteAddress);
+
+        void onServerError(String description);
+    }
+
+    /**
+     * @param executor Executor for the events of all sessions, null to create a single thread
+     *                 executor owned by the server.
+     * @param ip       Local IP address to listen on, 0.0.0.0 or :: for all interfaces.
+     */
+    public DirectSignalingServer(ExecutorService executor, SessionListener listener, String ip, int port) {
+        this.mOwnsExecutor = executor == null;
+        this.mExecutor = executor != null ? executor : Executors.newSingleThreadExecutor();
+        this.mListener = listener;
+        this.mIp = ip;
+        this.mPort = port;
+    }
+
+    /**
+     * Closes sessions that receive nothing from their peer for this long, 0 (the default) to
+     * disable. Applies to set up sessions as well. Must be called before start.
+     */
+    public void setIdleTimeoutMs(long idleTimeoutMs) {
+        mIdleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Outgoing bytes a session may queue before it stops being read. Must be called before start.
+     */
+    public void setMaxPendingBytes(int maxPendingBytes) {
+        mMaxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Starts listening on the selector thread.
+     */
+    public void start() {
+        final InetAddress address;
+        try {
+            address = InetAddress.getByName(mIp);
+        } catch (UnknownHostException e) {
+            reportError("Invalid IP address.");
+            return;
+        }
+        try {
+            synchronized (mLock) {
+                mSelector = Selector.open();
+                mServerChannel = ServerSocketChannel.open();
+                mServerChannel.configureBlocking(false);
+                mServerChannel.socket().setReuseAddress(true);
+                mServerChannel.socket().bind(new InetSocketAddress(address, mPort));
+                mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+            }
+        } catch (IOException e) {
+            reportError("Failed to create server socket: " + e.getMessage());
+            stop();
+            return;
+        }
+        Log.d(TAG, "Listening on [" + address.getHostAddress() + "]:" + mPort);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSelectorLoop();
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Stops listening and closes all sessions, firing onChannelClose for each of them. An executor
+     * owned by the server is shut down only after those callbacks, and whatever they post to it
+     * (such as disconnectFromRoom of the session's client), have run.
+     */
+    public void stop() {
+        List<Session> sessions;
+        synchronized (mLock) {
+            if (mStopped) {
+                return;
+            }
+            mStopped = true;
+            sessions = new ArrayList<Session>(mSessions);
+        }
+        for (Session session : sessions) {
+            session.close(null);
+        }
+        synchronized (mLock) {
+            try {
+                if (mServerChannel != null) {
+                    mServerChannel.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close server socket: " + e.getMessage());
+            }
+            if (mSelector != null) {
+                mSelector.wakeup();
+            }
+        }
+        if (mOwnsExecutor) {
+            // Queued behind the onTCPClose of every session. Tasks posted by those callbacks are
+            // already queued when this runs and still execute after shutdown().
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mExecutor.shutdown();
+                }
+            });
+        }
+    }
+
+    public int getSessionCount() {
+        synchronized (mLock) {
+            return mSessions.size();
+        }
+    }
+
+    private void runSelectorLoop() {
+        Log.d(TAG, "Selector thread started...");
+        long lastSweep = System.currentTimeMillis();
+        try {
+            while (true) {
+                mSelector.select(TIMER_INTERVAL_MS);
+                synchronized (mLock) {
+                    if (mStopped) {
+                        break;
+                    }
+                    for (Session session : mDirtySessions) {
+                        session.updateInterestOpsLocked();
+                    }
+                    mDirtySessions.clear();
+                }
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptSessions();
+                        continue;
+                    }
+                    Session session = (Session) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            session.onWritable();
+                        }
+                        if (key.isValid() && key.isReadable() && !session.readMessages()) {
+                            session.close(null);
+                        }
+                    } catch (IOException e) {
+                        session.close("Session error: " + e.getMessage());
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= TIMER_INTERVAL_MS) {
+                    lastSweep = now;
+                    closeIdleSessions(now);
+                }
+            }
+        } catch (IOException e) {
+            synchronized (mLock) {
+                // If the server was stopped, this is expected.
+                if (mStopped) {
+                    return;
+                }
+            }
+            reportError("Selector error: " + e.getMessage());
+            stop();
+        } finally {
+            Log.d(TAG, "Selector thread exiting...");
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close selector: " + e.getMessage());
+            }
+        }
+    }
+
+    private void acceptSessions() throws IOException {
+        while (true) {
+            SocketChannel channel = mServerChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            Socket socket = channel.socket();
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.setSendBufferSize(SOCKET_BUFFER_SIZE);
+            socket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+            final Session session = new Session(channel);
+            synchronized (mLock) {
+                session.mKey = channel.register(mSelector, SelectionKey.OP_READ, session);
+                mSessions.add(session);
+            }
+            final String remoteAddress = String.valueOf(socket.getRemoteSocketAddress());
+            Log.d(TAG, "Session accepted from " + remoteAddress);
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    DirectRTCClient client = new DirectRTCClient(mExecutor, session);
+                    AppRTCClient.SignalingEvents events = mListener.onSessionAccepted(client, remoteAddress);
+                    if (events == null) {
+                        Log.d(TAG, "Session rejected: " + remoteAddress);
+                        session.close(null);
+                        return;
+                    }
+                    client.setEvents(events);
+                    session.mClient = client;
+                    client.onTCPConnected(true);
+                }
+            });
+        }
+    }
+
+    private void closeIdleSessions(long now) {
+        if (mIdleTimeoutMs <= 0) {
+            return;
+        }
+        List<Session> idle = new ArrayList<Session>();
+        synchronized (mLock) {
+            for (Session session : mSessions) {
+                if (now - session.mLastActivityMs > mIdleTimeoutMs) {
+                    idle.add(session);
+                }
+            }
+        }
+        for (Session session : idle) {
+            session.close("Session idle for " + mIdleTimeoutMs + " ms.");
+        }
+    }
+
+    private void markDirtyLocked(Session session) {
+        if (mDirtySessions.add(session)) {
+            mSelector.wakeup();
+        }
+    }
+
+    private void reportError(final String message) {
+        Log.e(TAG, "Server error: " + message);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onServerError(message);
+            }
+        });
+    }
+
+    /**
+     * One accepted connection, the TCPChannel of its DirectRTCClient.
+     */
+    private class Session implements TCPChannel {
+        private final SocketChannel mChannel;
+        private final TCPFrameCodec mCodec = new TCPFrameCodec();
+        // Guarded by mLock.
+        private final ArrayDeque<ByteBuffer> mWriteQueue = new ArrayDeque<ByteBuffer>();
+        private long mPendingBytes;
+        private SelectionKey mKey;
+        private boolean mClosed;
+        // Incoming messages waiting for the executor.
+        private final AtomicInteger mPendingMessages = new AtomicInteger();
+        // Selector thread only, the time anything was last received from the peer.
+        private long mLastActivityMs = System.currentTimeMillis();
+        // Executor thread only, null until the session is accepted by the listener.
+        private DirectRTCClient mClient;
+
+        Session(SocketChannel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public void send(String message) {
+            ByteBuffer[] buffers = mCodec.encode(message);
+            String error = null;
+            synchronized (mLock) {
+                if (mClosed) {
+                    return;
+                }
+                for (ByteBuffer buffer : buffers) {
+                    mWriteQueue.add(buffer);
+                    mPendingBytes += buffer.remaining();
+                }
+                try {
+                    flushLocked();
+                } catch (IOException e) {
+                    error = "Failed to write to socket: " + e.getMessage();
+                }
+                if (error == null && mPendingBytes > (long) mMaxPendingBytes * OVERFLOW_FACTOR) {
+                    error = "Send queue overflow: " + mPendingBytes + " bytes.";
+                }
+                if (error == null && !mWriteQueue.isEmpty()) {
+                    markDirtyLocked(this);
+                }
+            }
+            if (error != null) {
+                close(error);
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            close(null);
+        }
+
+        // Selector thread.
+        void onWritable() throws IOException {
+            synchronized (mLock) {
+                flushLocked();
+                updateInterestOpsLocked();
+            }
+        }
+
+        /**
+         * Reads and dispatches all available messages. Selector thread.
+         *
+         * @return false if the peer closed the connection.
+         */
+        boolean readMessages() throws IOException {
+            while (true) {
+                ByteBuffer buffer = mCodec.getReadBuffer();
+                int read = mChannel.read(buffer);
+                if (read < 0) {
+                    return false;
+                }
+                if (read > 0) {
+                    mLastActivityMs = System.currentTimeMillis();
+                }
+                boolean filled = !buffer.hasRemaining();
+                mCodec.decode(mMessageListener);
+                if (mPendingMessages.get() > MAX_PENDING_MESSAGES) {
+                    synchronized (mLock) {
+                        updateInterestOpsLocked();
+                    }
+                    return true;
+                }
+                if (!filled) {
+                    return true;
+                }
+            }
+        }
+
+        private final TCPFrameCodec.MessageListener mMessageListener =
+                new TCPFrameCodec.MessageListener() {
+                    @Override
+                    public void onMessage(final String message) {
+                        mPendingMessages.incrementAndGet();
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (mPendingMessages.decrementAndGet() == MAX_PENDING_MESSAGES) {
+                                    synchronized (mLock) {
+                                        if (!mClosed) {
+                                            markDirtyLocked(Session.this);
+                                        }
+                                    }
+                                }
+                                if (mClient != null) {
+                                    Log.v(TAG, "Receive: " + message);
+                                    mClient.onTCPMessage(message);
+                                }
+                            }
+                        });
+                    }
+                };
+
+        // Must be called with mLock held.
+        private void flushLocked() throws IOException {
+            if (mWriteQueue.isEmpty()) {
+                return;
+            }
+            mPendingBytes -= mChannel.write(mWriteQueue.toArray(new ByteBuffer[mWriteQueue.size()]));
+            while (!mWriteQueue.isEmpty() && !mWriteQueue.peekFirst().hasRemaining()) {
+                mWriteQueue.pollFirst();
+            }
+        }
+
+        // Must be called with mLock held, on the selector thread.
+        void updateInterestOpsLocked() {
+            if (mClosed || !mKey.isValid()) {
+                return;
+            }
+            int ops = 0;
+            if (mPendingBytes <= mMaxPendingBytes && mPendingMessages.get() <= MAX_PENDING_MESSAGES) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!mWriteQueue.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            mKey.interestOps(ops);
+        }
+
+        /**
+         * Closes the connection if still open and fires onTCPError (if error is not null) and
+         * onTCPClose on the client.
+         */
+        void close(final String error) {
+            synchronized (mLock) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                mSessions.remove(this);
+                mDirtySessions.remove(this);
+                mWriteQueue.clear();
+                if (mKey != null) {
+                    mKey.cancel();
+                }
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to close session: " + e.getMessage());
+                }
+            }
+            if (error != null) {
+                Log.w(TAG, error);
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (mClient == null) {
+                        return;
+                    }
+                    if (error != null) {
+                        mClient.onTCPError(error);
+                    }
+                    mClient.onTCPClose();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package com.pine.rtc.org.component;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared executor for AsyncHttpURLConnection requests, replacing one thread per request.
+ * <p>
+ * <p>Requests run on a bounded pool of threads and are queued per host: at most
+ * getMaxRequestsPerHost() requests to a host run at a time, in submission order. With the default
+ * of one, requests to a host are sent back to back on the same kept-alive connection and the
+ * signaling messages posted to the room server arrive in the order they were sent.
+ * HttpURLConnection keeps idle connections alive as long as each response is read to the end and
+ * disconnect() is not called, see AsyncHttpURLConnection.
+ * <p>
+ * <p>Retries are queued again with executeDelayed() instead of waiting on a pool thread, so the
+ * host is free for other requests during the backoff.
+ * <p>
+ * <p>Latencies are kept per endpoint (method, host and first path segment, so that room and
+ * client ids do not create new endpoints) in histograms with fixed buckets.
+ */
+public class HttpRequestExecutor {
+    private static final int POOL_SIZE = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final int DEFAULT_MAX_REQUESTS_PER_HOST = 1;
+
+    private static HttpRequestExecutor sInstance;
+    private static final ScheduledExecutorService sDelayTimer =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "HttpRequestDelay");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final ThreadPoolExecutor mExecutor;
+    // Guarded by this.
+    private final Map<String, ArrayDeque<Runnable>> mHostQueues =
+            new HashMap<String, ArrayDeque<Runnable>>();
+    private final Map<String, Integer> mHostRunning = new HashMap<String, Integer>();
+    private final Map<String, LatencyHistogram> mHistograms =
+            new LinkedHashMap<String, LatencyHistogram>();
+    private int mMaxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+
+    private HttpRequestExecutor() {
+        mExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "HttpRequest-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized HttpRequestExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new HttpRequestExecutor();
+        }
+        return sInstance;
+    }
+
+    public synchronized int getMaxRequestsPerHost() {
+        return mMaxRequestsPerHost;
+    }
+
+    /**
+     * Sets how many requests to one host may run at the same time. Requests to a host are only
+     * guaranteed to be sent in order with the default of one.
+     */
+    public synchronized void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        if (maxRequestsPerHost < 1) {
+            throw new IllegalArgumentException("maxRequestsPerHost must be positive");
+        }
+        mMaxRequestsPerHost = maxRequestsPerHost;
+        for (String host : mHostQueues.keySet().toArray(new String[0])) {
+            startNext(host);
+        }
+    }
+
+    /**
+     * Queues a request to |host|, runs it on the pool once fewer than getMaxRequestsPerHost()
+     * requests to the host are running.
+     */
+    public synchronized void execute(String host, Runnable request) {
+        enqueue(host, request, false);
+    }
+
+    /**
+     * Queues a request to |host| after |delayMs|, ahead of the requests already waiting for the
+     * host. Used for retries: the host is not blocked during the delay, so requests queued in the
+     * meantime may be sent before the retried one.
+     */
+    public void executeDelayed(final String host, final Runnable request, long delayMs) {
+        sDelayTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (HttpRequestExecutor.this) {
+                    enqueue(host, request, true);
+                }
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Must be called with the lock held.
+    private void enqueue(final String host, final Runnable request, boolean first) {
+        ArrayDeque<Runnable> queue = mHostQueues.get(host);
+        if (queue == null) {
+            queue = new ArrayDeque<Runnable>();
+            mHostQueues.put(host, queue);
+        }
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    request.run();
+                } finally {
+                    onRequestDone(host);
+                }
+            }
+        };
+        if (first) {
+            queue.addFirst(task);
+        } else {
+            queue.add(task);
+        }
+        startNext(host);
+    }
+
+    private synchronized void onRequestDone(String host) {
+        Integer running = mHostRunning.get(host);
+        if (running == null || running <= 1) {
+            mHostRunning.remove(host);
+        } else {
+            mHostRunning.put(host, running - 1);
+        }
+        startNext(host);
+    }
+
+    // Must be called with the lock held.
+    private void startNext(String host) {
+        ArrayDeque<Runnable> queue = mHostQueues.get(host);
+        Integer running = mHostRunning.get(host);
+        int count = running == null ? 0 : running;
+        while (queue != null && !queue.isEmpty() && count < mMaxRequestsPerHost) {
+            count++;
+            mHostRunning.put(host, count);
+            mExecutor.execute(queue.poll());
+        }
+        if (queue != null && queue.isEmpty()) {
+            mHostQueues.remove(host);
+        }
+    }
+
+    /**
+     * Records the latency of a request, including retries.
+     */
+    public synchronized void recordLatency(String endpoint, long latencyMs, boolean success) {
+        LatencyHistogram histogram = mHistograms.get(endpoint);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            mHistograms.put(endpoint, histogram);
+        }
+        histogram.add(latencyMs, success);
+    }
+
+    /**
+     * Returns a copy of the latency histograms, keyed by endpoint.
+     */
+    public synchronized Map<String, LatencyHistogram> getLatencyHistograms() {
+        Map<String, LatencyHistogram> copy = new LinkedHashMap<String, LatencyHistogram>();
+        for (Map.Entry<String, LatencyHistogram> entry : mHistograms.entrySet()) {
+            copy.put(entry.getKey(), new LatencyHistogram(entry.getValue()));
+        }
+        return copy;
+    }
+
+    public synchronized void resetLatencyHistograms() {
+        mHistograms.clear();
+    }
+
+    /**
+     * Latency histogram of one endpoint.
+     */
+    public static class LatencyHistogram {
+        // Upper bounds of the buckets in ms, the last bucket holds everything above.
+        static final long[] BUCKET_BOUNDS_MS = {10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+        private final long[] mBuckets;
+        private int mCount;
+        private int mErrorCount;
+        private long mTotalMs;
+        private long mMaxMs;
+
+        LatencyHistogram() {
+            mBuckets = new long[BUCKET_BOUNDS_MS.length + 1];
+        }
+
+        LatencyHistogram(LatencyHistogram other) {
+            mBuckets = other.mBuckets.clone();
+            mCount = other.mCount;
+            mErrorCount = other.mErrorCount;
+            mTotalMs = other.mTotalMs;
+            mMaxMs = other.mMaxMs;
+        }
+
+        void add(long latencyMs, boolean success) {
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MS.length && latencyMs > BUCKET_BOUNDS_MS[bucket]) {
+                bucket++;
+            }
+            mBuckets[bucket]++;
+            mCount++;
+            if (!success) {
+                mErrorCount++;
+            }
+            mTotalMs += latencyMs;
+            mMaxMs = Math.max(mMaxMs, latencyMs);
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public int getErrorCount() {
+            return mErrorCount;
+        }
+
+        public long getAverageMs() {
+            return mCount == 0 ? 0 : mTotalMs / mCount;
+        }
+
+        public long getMaxMs() {
+            return mMaxMs;
+        }
+
+        /**
+         * Returns the upper bound of the bucket holding the given percentile (0-100), or the
+         * maximum latency for the last bucket.
+         */
+        public long getPercentileMs(int percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, ((long) mCount * percentile + 99) / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return Math.min(BUCKET_BOUNDS_MS[i], mMaxMs);
+                }
+            }
+            return mMaxMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "n=%d errors=%d avg=%dms p50<=%dms p90<=%dms max=%dms",
+                    mCount, mErrorCount, getAverageMs(), getPercentileMs(50), getPercentileMs(90),
+                    mMaxMs);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *  Copyright 2014 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package com.pine.rtc.org.component;
+
+import org.webrtc.IceCandidate;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Collects local ICE candidates and removals for a short window so that they are signaled in one
+ * "candidates" message instead of one message per candidate.
+ * <p>
+ * <p>Duplicates of pending or already sent candidates are dropped. A removal of a candidate that
+ * is still pending cancels the add, a removal of an unknown candidate is dropped, and adding a
+ * candidate whose removal is pending cancels the removal.
+ * <p>
+ * <p>The batcher is not thread safe and does not schedule anything itself: add and remove return
+ * true when the batch becomes non-empty, the caller then flushes it after getWindowMs() on its
+ * looper thread, or right away once ICE gathering completes.
+ * <p>
+ * <p>Message format: {"type": "candidates", "candidates": [{"label", "id", "candidate"}, ...]},
+ * encoded by SignalingMessageCodec. Removals keep using the "remove-candidates" message. Receivers
+ * accept both the batched and the single "candidate" message.
+ * <p>
+ * <p>Peers built before the "candidates" message existed drop it as unexpected, so batching is
+ * off by default and must only be enabled when the remote side is known to understand it.
+ */
+public class IceCandidateBatcher {
+    // Batching disabled, see the class comment.
+    public static final long DEFAULT_WINDOW_MS = 0;
+
+    private final long mWindowMs;
+    private final LinkedHashMap<String, IceCandidate> mPendingAdds =
+            new LinkedHashMap<String, IceCandidate>();
+    private final LinkedHashMap<String, IceCandidate> mPendingRemovals =
+            new LinkedHashMap<String, IceCandidate>();
+    private final Set<String> mSent = new HashSet<String>();
+
+    /**
+     * @param windowMs How long candidates are collected before being sent, 0 to send every
+     *                 candidate right away in the single "candidate" message.
+     */
+    public IceCandidateBatcher(long windowMs) {
+        mWindowMs = windowMs;
+    }
+
+    public long getWindowMs() {
+        return mWindowMs;
+    }
+
+    public boolean isBatching() {
+        return mWindowMs > 0;
+    }
+
+    /**
+     * @return true if the batch was empty and the caller should schedule a flush.
+     */
+    public boolean add(IceCandidate candidate) {
+        boolean wasEmpty = isEmpty();
+        String key = getKey(candidate);
+        if (mPendingRemovals.remove(key) != null) {
+            // The peer still has it, the removal was not sent yet.
+            return false;
+        }
+        if (!mSent.contains(key) && !mPendingAdds.containsKey(key)) {
+            mPendingAdds.put(key, candidate);
+        }
+        return wasEmpty && !isEmpty();
+    }
+
+    /**
+     * @return true if the batch was empty and the caller should schedule a flush.
+     */
+    public boolean remove(IceCandidate[] candidates) {
+        boolean wasEmpty = isEmpty();
+        for (IceCandidate candidate : candidates) {
+            String key = getKey(candidate);
+            if (mPendingAdds.remove(key) == null && mSent.contains(key)) {
+                mPendingRemovals.put(key, candidate);
+            }
+        }
+        return wasEmpty && !isEmpty();
+    }
+
+    public boolean isEmpty() {
+        return mPendingAdds.isEmpty() && mPendingRemovals.isEmpty();
+    }
+
+    /**
+     * Takes the pending removals, to be sent before the adds. Call takeAdds right after.
+     */
+    public IceCandidate[] takeRemovals() {
+        IceCandidate[] removals = mPendingRemovals.values().toArray(
+                new IceCandidate[mPendingRemovals.size()]);
+        mSent.removeAll(mPendingRemovals.keySet());
+        mPendingRemovals.clear();
+        return removals;
+    }
+
+    public List<IceCandidate> takeAdds() {
+        List<IceCandidate> adds = new ArrayList<IceCandidate>(mPendingAdds.values());
+        mSent.addAll(mPendingAdds.keySet());
+        mPendingAdds.clear();
+        return adds;
+    }
+
+    /**
+     * Forgets pending and sent candidates, for a new call.
+     */
+    public void clear() {
+        mPendingAdds.clear();
+        mPendingRemovals.clear();
+        mSent.clear();
+    }
+
+    private static String getKey(IceCandidate candidate) {
+        return candidate.sdpMid + "\n" + candidate.sdpMLineIndex + "\n" + candidate.sdp;
+    }
+}
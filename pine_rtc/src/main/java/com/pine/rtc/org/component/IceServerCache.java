@@ -0,0 +1,323 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package com.pine.rtc.org.component;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.PeerConnection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Scanner;
+
+/**
+ * Cache of the TURN servers returned by the room's ice_server_url, so that joining a room does not
+ * wait for the TURN request.
+ * <p>
+ * <p>An entry lives for the credential lifetime of the response ("lifetimeDuration": "86400s" or
+ * "ttl": 86400, DEFAULT_LIFETIME_MS if neither is present), minus a margin so that credentials
+ * handed out are still valid while the call is set up. Past half of the lifetime an entry is
+ * still served right away, and a refresh is started in the background. Only missing or expired
+ * entries are fetched on the caller's thread; the caller waits for a refresh that is already
+ * running, and takes over one that is still queued on HttpRequestExecutor. The caller is often a
+ * room server response running on the executor, holding the slot of a host that may also serve
+ * the TURN servers, so it never waits for a queued request. prefetch() refreshes the known
+ * entries ahead of a join, ConnectActivity calls it when shown; an entry is known after the first
+ * join of the process.
+ * <p>
+ * <p>Requests go through HttpRequestExecutor and are recorded in its latency histograms. Hits,
+ * stale hits, misses and refreshes are counted.
+ */
+public class IceServerCache {
+    private static final String TAG = "IceServerCache";
+    private static final int TURN_HTTP_TIMEOUT_MS = 5000;
+    static final long DEFAULT_LIFETIME_MS = 10 * 60 * 1000;
+    // Credentials must stay valid for at least this long after being handed out.
+    private static final long EXPIRY_MARGIN_MS = 5 * 60 * 1000;
+    // Delay before retrying a failed refresh of an entry that is still valid.
+    private static final long REFRESH_RETRY_MS = 30 * 1000;
+
+    private static IceServerCache sInstance;
+
+    // All guarded by this.
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    private int mHitCount;
+    private int mStaleHitCount;
+    private int mMissCount;
+    private int mRefreshCount;
+    private int mRefreshErrorCount;
+
+    private static class Entry {
+        final String url;
+        final String referer;
+        LinkedList<PeerConnection.IceServer> servers;
+        long refreshAtMs;
+        long expiresAtMs;
+        // A refresh waits on HttpRequestExecutor.
+        boolean queued;
+        // A request is running.
+        boolean fetching;
+
+        Entry(String url, String referer) {
+            this.url = url;
+            this.referer = referer;
+        }
+
+        boolean isValid(long nowMs) {
+            return servers != null && nowMs < expiresAtMs;
+        }
+    }
+
+    public static synchronized IceServerCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new IceServerCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the TURN servers of |url|, from the cache if still valid. Blocks while fetching a
+     * missing or expired entry, must be run off the main thread.
+     */
+    public LinkedList<PeerConnection.IceServer> getIceServers(String url, String referer)
+            throws IOException, JSONException {
+        Entry entry;
+        synchronized (this) {
+            entry = getEntry(url, referer);
+            long now = SystemClock.elapsedRealtime();
+            if (entry.isValid(now)) {
+                if (now >= entry.refreshAtMs) {
+                    mStaleHitCount++;
+                    refreshLocked(entry);
+                } else {
+                    mHitCount++;
+                }
+                return new LinkedList<PeerConnection.IceServer>(entry.servers);
+            }
+            mMissCount++;
+            // Wait for a prefetch or refresh already running instead of fetching twice. A queued
+            // one is cancelled and fetched here.
+            long deadline = now + TURN_HTTP_TIMEOUT_MS;
+            while (entry.fetching && now < deadline) {
+                try {
+                    wait(deadline - now);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                now = SystemClock.elapsedRealtime();
+            }
+            if (entry.isValid(now)) {
+                return new LinkedList<PeerConnection.IceServer>(entry.servers);
+            }
+            entry.queued = false;
+            entry.fetching = true;
+        }
+        return new LinkedList<PeerConnection.IceServer>(fetch(entry));
+    }
+
+    /**
+     * Refreshes the known entries that are missing, expired or past half of their lifetime in the
+     * background.
+     */
+    public synchronized void prefetch() {
+        long now = SystemClock.elapsedRealtime();
+        for (Entry entry : mEntries.values()) {
+            if (!entry.isValid(now) || now >= entry.refreshAtMs) {
+                refreshLocked(entry);
+            }
+        }
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getStaleHitCount() {
+        return mStaleHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getRefreshCount() {
+        return mRefreshCount;
+    }
+
+    public synchronized int getRefreshErrorCount() {
+        return mRefreshErrorCount;
+    }
+
+    /**
+     * Drops all entries and counters.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mHitCount = 0;
+        mStaleHitCount = 0;
+        mMissCount = 0;
+        mRefreshCount = 0;
+        mRefreshErrorCount = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "hits=" + mHitCount + " staleHits=" + mStaleHitCount + " misses=" + mMissCount
+                + " refreshes=" + mRefreshCount + " refreshErrors=" + mRefreshErrorCount;
+    }
+
+    // Must be called with the lock held.
+    private Entry getEntry(String url, String referer) {
+        String key = url + "\n" + referer;
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(url, referer);
+            mEntries.put(key, entry);
+        }
+        return entry;
+    }
+
+    // Must be called with the lock held.
+    private void refreshLocked(final Entry entry) {
+        if (entry.queued || entry.fetching) {
+            return;
+        }
+        entry.queued = true;
+        HttpRequestExecutor.getInstance().execute(AsyncHttpURLConnection.getHost(entry.url), new Runnable() {
+            @Override
+            public void run() {
+                synchronized (IceServerCache.this) {
+                    // Cancelled by getIceServers(), which fetched the entry itself.
+                    if (!entry.queued) {
+                        return;
+                    }
+                    entry.queued = false;
+                    entry.fetching = true;
+                    mRefreshCount++;
+                }
+                try {
+                    fetch(entry);
+                } catch (IOException e) {
+                    onRefreshError(e);
+                } catch (JSONException e) {
+                    onRefreshError(e);
+                }
+            }
+        });
+    }
+
+    private synchronized void onRefreshError(Exception e) {
+        Log.e(TAG, "TURN refresh error: " + e.toString());
+        mRefreshErrorCount++;
+    }
+
+    /**
+     * Requests the TURN servers and stores them in |entry|, whose fetching flag must be set.
+     */
+    private LinkedList<PeerConnection.IceServer> fetch(Entry entry)
+            throws IOException, JSONException {
+        LinkedList<PeerConnection.IceServer> servers = null;
+        long lifetimeMs = 0;
+        long startMs = SystemClock.elapsedRealtime();
+        try {
+            Log.d(TAG, "Request TURN from: " + entry.url);
+            HttpURLConnection connection = (HttpURLConnection) new URL(entry.url).openConnection();
+            connection.setDoOutput(true);
+            connection.setRequestProperty("REFERER", entry.referer);
+            connection.setConnectTimeout(TURN_HTTP_TIMEOUT_MS);
+            connection.setReadTimeout(TURN_HTTP_TIMEOUT_MS);
+            int responseCode = connection.getResponseCode();
+            if (responseCode != 200) {
+                String statusLine = connection.getHeaderField(null);
+                connection.disconnect();
+                throw new IOException("Non-200 response when requesting TURN server from "
+                        + entry.url + " : " + statusLine);
+            }
+            // Reading to the end returns the connection to the keep-alive pool.
+            String response = drainStream(connection.getInputStream());
+            Log.d(TAG, "TURN response: " + response);
+            JSONObject responseJSON = new JSONObject(response);
+            servers = parseIceServers(responseJSON);
+            lifetimeMs = parseLifetimeMs(responseJSON);
+        } finally {
+            long nowMs = SystemClock.elapsedRealtime();
+            HttpRequestExecutor.getInstance().recordLatency(
+                    AsyncHttpURLConnection.getEndpoint("TURN", entry.url), nowMs - startMs,
+                    servers != null);
+            synchronized (this) {
+                if (servers != null) {
+                    entry.servers = servers;
+                    entry.refreshAtMs = nowMs + lifetimeMs / 2;
+                    entry.expiresAtMs =
+                            nowMs + lifetimeMs - Math.min(EXPIRY_MARGIN_MS, lifetimeMs / 4);
+                } else {
+                    // Keep serving the old servers, without a request per join.
+                    entry.refreshAtMs = nowMs + REFRESH_RETRY_MS;
+                }
+                entry.fetching = false;
+                notifyAll();
+            }
+        }
+        return servers;
+    }
+
+    private static LinkedList<PeerConnection.IceServer> parseIceServers(JSONObject responseJSON)
+            throws JSONException {
+        LinkedList<PeerConnection.IceServer> turnServers = new LinkedList<PeerConnection.IceServer>();
+        JSONArray iceServers = responseJSON.getJSONArray("iceServers");
+        for (int i = 0; i < iceServers.length(); ++i) {
+            JSONObject server = iceServers.getJSONObject(i);
+            JSONArray turnUrls = server.getJSONArray("urls");
+            String username = server.has("username") ? server.getString("username") : "";
+            String credential = server.has("credential") ? server.getString("credential") : "";
+            for (int j = 0; j < turnUrls.length(); j++) {
+                String turnUrl = turnUrls.getString(j);
+                turnServers.add(new PeerConnection.IceServer(turnUrl, username, credential));
+            }
+        }
+        return turnServers;
+    }
+
+    // The credential lifetime, "lifetimeDuration": "86400s" (Network Traversal Service) or
+    // "ttl": 86400 (TURN REST API).
+    private static long parseLifetimeMs(JSONObject responseJSON) {
+        long seconds = -1;
+        String duration = responseJSON.optString("lifetimeDuration");
+        if (duration.endsWith("s")) {
+            try {
+                seconds = (long) Double.parseDouble(duration.substring(0, duration.length() - 1));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid lifetimeDuration: " + duration);
+            }
+        } else if (responseJSON.has("ttl")) {
+            seconds = responseJSON.optLong("ttl", -1);
+        }
+        return seconds > 0 ? seconds * 1000 : DEFAULT_LIFETIME_MS;
+    }
+
+    // Return the contents of an InputStream as a String.
+    private static String drainStream(InputStream in) {
+        Scanner s = new Scanner(in, "UTF-8").useDelimiter("\\A");
+        String result = s.hasNext() ? s.next() : "";
+        s.close();
+        return result;
+    }
+}
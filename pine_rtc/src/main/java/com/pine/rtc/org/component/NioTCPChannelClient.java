@@ -0,0 +1,369 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package com.pine.rtc.org.component;
+
+import android.util.Log;
+
+import org.webrtc.ThreadUtils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Non-blocking alternative to TCPChannelClient built on a SocketChannel and a Selector. Has the
+ * same constructor, threading rules and TCPChannelEvents as TCPChannelClient.
+ * <p>
+ * <p>Messages use the framing of TCPFrameCodec, falling back to newline terminated lines for peers
+ * using TCPChannelClient. Sockets are opened with TCP_NODELAY. Sends are written directly from the
+ * executor thread with a gathering write of the queued buffers; whatever the socket does not
+ * accept is written by the selector thread once the socket becomes writable.
+ */
+public class NioTCPChannelClient implements TCPChannel {
+    private static final String TAG = "NioTCPChannelClient";
+    private static final int SOCKET_BUFFER_SIZE = 64 * 1024;
+
+    private final ExecutorService mExecutor;
+    private final ThreadUtils.ThreadChecker mExecutorThreadCheck;
+    private final TCPChannelClient.TCPChannelEvents mEventListener;
+    private final TCPFrameCodec mCodec = new TCPFrameCodec();
+
+    // Lock for the channels, the write queue and the closed state.
+    private final Object mLock = new Object();
+    private final ArrayDeque<ByteBuffer> mWriteQueue = new ArrayDeque<ByteBuffer>();
+    private Selector mSelector;
+    private ServerSocketChannel mServerChannel;
+    private SocketChannel mChannel;
+    // Set when the write queue is not empty and the selector should wait for OP_WRITE.
+    private boolean mWritePending;
+    private boolean mClosed;
+
+    /**
+     * Initializes the NioTCPChannelClient. If IP is a local IP address, starts a listening server
+     * on that IP. If not, instead connects to the IP.
+     *
+     * @param eventListener Listener that will receive events from the client.
+     * @param ip            IP address to listen on or connect to.
+     * @param port          Port to listen on or connect to.
+     */
+    public NioTCPChannelClient(ExecutorService executor,
+                               TCPChannelClient.TCPChannelEvents eventListener, String ip, int port) {
+        this.mExecutor = executor;
+        mExecutorThreadCheck = new ThreadUtils.ThreadChecker();
+        mExecutorThreadCheck.detachThread();
+        this.mEventListener = eventListener;
+
+        final InetAddress address;
+        try {
+            address = InetAddress.getByName(ip);
+        } catch (UnknownHostException e) {
+            reportError("Invalid IP address.");
+            return;
+        }
+
+        try {
+            mSelector = Selector.open();
+        } catch (IOException e) {
+            reportError("Failed to open selector: " + e.getMessage());
+            return;
+        }
+
+        final boolean isServer = address.isAnyLocalAddress();
+        final int finalPort = port;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSelectorLoop(address, finalPort, isServer);
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Disconnects the client if not already disconnected. This will fire the onTCPClose event.
+     */
+    @Override
+    public void disconnect() {
+        mExecutorThreadCheck.checkIsOnValidThread();
+
+        close();
+    }
+
+    /**
+     * Sends a message on the socket.
+     *
+     * @param message Message to be sent.
+     */
+    @Override
+    public void send(String message) {
+        mExecutorThreadCheck.checkIsOnValidThread();
+
+        Log.v(TAG, "Send: " + message);
+        ByteBuffer[] buffers = mCodec.encode(message);
+        synchronized (mLock) {
+            if (mChannel == null || mClosed) {
+                reportError("Sending data on closed socket.");
+                return;
+            }
+            for (ByteBuffer buffer : buffers) {
+                mWriteQueue.add(buffer);
+            }
+            try {
+                flushLocked();
+            } catch (IOException e) {
+                reportError("Failed to write to socket: " + e.getMessage());
+                return;
+            }
+            if (!mWriteQueue.isEmpty() && !mWritePending) {
+                mWritePending = true;
+                mSelector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * The selector thread. Connects or accepts, then reads until the socket is closed.
+     */
+    private void runSelectorLoop(InetAddress address, int port, boolean isServer) {
+        Log.d(TAG, "Selector thread started...");
+        try {
+            synchronized (mLock) {
+                if (mClosed) {
+                    return;
+                }
+                if (isServer) {
+                    Log.d(TAG, "Listening on [" + address.getHostAddress() + "]:" + port);
+                    mServerChannel = ServerSocketChannel.open();
+                    mServerChannel.configureBlocking(false);
+                    mServerChannel.socket().setReuseAddress(true);
+                    mServerChannel.socket().bind(new InetSocketAddress(address, port));
+                    mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+                } else {
+                    Log.d(TAG, "Connecting to [" + address.getHostAddress() + "]:" + port);
+                    SocketChannel channel = SocketChannel.open();
+                    configureChannel(channel);
+                    if (channel.connect(new InetSocketAddress(address, port))) {
+                        channel.register(mSelector, SelectionKey.OP_READ);
+                        onChannelConnected(channel, false);
+                    } else {
+                        channel.register(mSelector, SelectionKey.OP_CONNECT);
+                    }
+                }
+            }
+
+            while (true) {
+                mSelector.select();
+                SelectionKey channelKey;
+                synchronized (mLock) {
+                    if (mClosed) {
+                        break;
+                    }
+                    channelKey = mChannel != null ? mChannel.keyFor(mSelector) : null;
+                    if (channelKey != null && channelKey.isValid()) {
+                        channelKey.interestOps(mWritePending
+                                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                    }
+                }
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptConnection();
+                    } else if (key.isConnectable()) {
+                        SocketChannel channel = (SocketChannel) key.channel();
+                        channel.finishConnect();
+                        key.interestOps(SelectionKey.OP_READ);
+                        synchronized (mLock) {
+                            onChannelConnected(channel, false);
+                        }
+                    } else {
+                        if (key.isWritable()) {
+                            synchronized (mLock) {
+                                flushLocked();
+                                if (mWriteQueue.isEmpty()) {
+                                    mWritePending = false;
+                                    key.interestOps(SelectionKey.OP_READ);
+                                }
+                            }
+                        }
+                        if (key.isValid() && key.isReadable() && !readMessages((SocketChannel) key.channel())) {
+                            Log.d(TAG, "Peer closed the connection.");
+                            close();
+                            break;
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            synchronized (mLock) {
+                // If the client was disconnected, this is expected.
+                if (!mClosed) {
+                    reportError("Socket error: " + e.getMessage());
+                }
+            }
+        } finally {
+            Log.d(TAG, "Selector thread exiting...");
+            close();
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close selector: " + e.getMessage());
+            }
+        }
+    }
+
+    private void acceptConnection() throws IOException {
+        synchronized (mLock) {
+            SocketChannel channel = mServerChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            // Only one peer is served, stop listening.
+            mServerChannel.close();
+            mServerChannel = null;
+            configureChannel(channel);
+            channel.register(mSelector, SelectionKey.OP_READ);
+            onChannelConnected(channel, true);
+        }
+    }
+
+    private static void configureChannel(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        Socket socket = channel.socket();
+        socket.setTcpNoDelay(true);
+        socket.setSendBufferSize(SOCKET_BUFFER_SIZE);
+        socket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+    }
+
+    // Must be called with mLock held.
+    private void onChannelConnected(SocketChannel channel, final boolean isServer) {
+        Log.d(TAG, "TCP connection established.");
+        mChannel = channel;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Log.v(TAG, "Run onTCPConnected");
+                mEventListener.onTCPConnected(isServer);
+            }
+        });
+    }
+
+    /**
+     * Reads and dispatches all available messages.
+     *
+     * @return false if the peer closed the connection.
+     */
+    private boolean readMessages(SocketChannel channel) throws IOException {
+        while (true) {
+            ByteBuffer buffer = mCodec.getReadBuffer();
+            int read = channel.read(buffer);
+            if (read < 0) {
+                return false;
+            }
+            boolean filled = !buffer.hasRemaining();
+            mCodec.decode(mMessageListener);
+            // Only read again if the buffer was full, saving a read() returning 0 per message.
+            if (!filled) {
+                return true;
+            }
+        }
+    }
+
+    private final TCPFrameCodec.MessageListener mMessageListener =
+            new TCPFrameCodec.MessageListener() {
+                @Override
+                public void onMessage(final String message) {
+                    mExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            Log.v(TAG, "Receive: " + message);
+                            mEventListener.onTCPMessage(message);
+                        }
+                    });
+                }
+            };
+
+    // Must be called with mLock held. Writes as much of the queue as the socket accepts.
+    private void flushLocked() throws IOException {
+        if (mWriteQueue.isEmpty()) {
+            return;
+        }
+        mChannel.write(mWriteQueue.toArray(new ByteBuffer[mWriteQueue.size()]));
+        while (!mWriteQueue.isEmpty() && !mWriteQueue.peekFirst().hasRemaining()) {
+            mWriteQueue.pollFirst();
+        }
+    }
+
+    /**
+     * Closes the sockets if still open. Fires onTCPClose if a connection was established.
+     */
+    private void close() {
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mWriteQueue.clear();
+            try {
+                if (mServerChannel != null) {
+                    mServerChannel.close();
+                    mServerChannel = null;
+                }
+            } catch (IOException e) {
+                reportError("Failed to close server socket: " + e.getMessage());
+            }
+            if (mSelector != null) {
+                mSelector.wakeup();
+            }
+            if (mChannel == null) {
+                return;
+            }
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                reportError("Failed to close socket: " + e.getMessage());
+            }
+            mChannel = null;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mEventListener.onTCPClose();
+                }
+            });
+        }
+    }
+
+    /**
+     * Helper method for firing onTCPError events. Calls onTCPError on the executor thread.
+     */
+    private void reportError(final String message) {
+        Log.e(TAG, "TCP Error: " + message);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mEventListener.onTCPError(message);
+            }
+        });
+    }
+}
@@ -1071,6 +1071,12 @@ public class PeerConnectionClient {
          */
         void onIceCandidatesRemoved(final IceCandidate[] candidates);
 
+        /**
+         * Callback fired once ICE gathering is complete (IceGatheringState is
+         * COMPLETE), no more local Ice candidates will be generated.
+         */
+        void onIceGatheringComplete();
+
         /**
          * Callback fired once connection is established (IceConnectionState is
          * CONNECTED).
@@ -1237,6 +1243,14 @@ public class PeerConnectionClient {
         @Override
         public void onIceGatheringChange(PeerConnection.IceGatheringState newState) {
             Log.d(TAG, "IceGatheringState: " + newState);
+            if (newState == PeerConnection.IceGatheringState.COMPLETE) {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mEvents.onIceGatheringComplete();
+                    }
+                });
+            }
         }
 
         @Override
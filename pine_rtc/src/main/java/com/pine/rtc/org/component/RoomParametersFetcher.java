@@ -23,11 +23,8 @@ import org.webrtc.PeerConnection;
 import org.webrtc.SessionDescription;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.Collections;
 import java.util.LinkedList;
-import java.util.Scanner;
 
 /**
  * AsyncTask that converts an AppRTC room URL into the set of signaling
@@ -36,7 +33,6 @@ import java.util.Scanner;
 public class RoomParametersFetcher {
     private static final String TAG = "RoomRTCClient";
 
-    private static final int TURN_HTTP_TIMEOUT_MS = 5000;
     private final RoomParametersFetcherEvents mEvents;
     private final String mOriginRoomUrl;
     private final String mRoomUrl;
@@ -51,12 +47,6 @@ public class RoomParametersFetcher {
         this.mEvents = events;
     }
 
-    // Return the contents of an InputStream as a String.
-    private static String drainStream(InputStream in) {
-        Scanner s = new Scanner(in).useDelimiter("\\A");
-        return s.hasNext() ? s.next() : "";
-    }
-
     public void makeRequest() {
         Log.d(TAG, "Connecting to room: " + mRoomUrl);
         mHttpConnection =
@@ -98,18 +88,18 @@ public class RoomParametersFetcher {
                 iceCandidates = new LinkedList<IceCandidate>();
                 String messagesString = roomJson.getString("messages");
                 JSONArray messages = new JSONArray(messagesString);
+                SignalingMessageCodec codec = new SignalingMessageCodec();
                 for (int i = 0; i < messages.length(); ++i) {
                     String messageString = messages.getString(i);
-                    JSONObject message = new JSONObject(messageString);
-                    String messageType = message.getString("type");
+                    SignalingMessageCodec.Message message = codec.decode(messageString);
+                    String messageType = message.type;
                     Log.d(TAG, "GAE->C #" + i + " : " + messageString);
-                    if (messageType.equals("offer")) {
-                        offerSdp = new SessionDescription(
-                                SessionDescription.Type.fromCanonicalForm(messageType), message.getString("sdp"));
-                    } else if (messageType.equals("candidate")) {
-                        IceCandidate candidate = new IceCandidate(
-                                message.getString("id"), message.getInt("label"), message.getString("candidate"));
-                        iceCandidates.add(candidate);
+                    if (messageType.equals(SignalingMessageCodec.TYPE_OFFER)) {
+                        offerSdp = new SessionDescription(message.getSdpType(), message.sdp);
+                    } else if (messageType.equals(SignalingMessageCodec.TYPE_CANDIDATE)) {
+                        iceCandidates.add(message.candidate);
+                    } else if (messageType.equals(SignalingMessageCodec.TYPE_CANDIDATES)) {
+                        Collections.addAll(iceCandidates, message.candidates);
                     } else {
                         Log.e(TAG, "Unknown message: " + messageString);
                     }
@@ -132,8 +122,11 @@ public class RoomParametersFetcher {
             }
             // Request TURN servers.
             if (!isTurnPresent && !roomJson.optString("ice_server_url").isEmpty()) {
-                LinkedList<PeerConnection.IceServer> turnServers =
-                        requestTurnServers(roomJson.getString("ice_server_url"));
+                // Served from the cache unless missing or expired.
+                IceServerCache iceServerCache = IceServerCache.getInstance();
+                LinkedList<PeerConnection.IceServer> turnServers = iceServerCache.getIceServers(
+                        roomJson.getString("ice_server_url"), mOriginRoomUrl);
+                Log.d(TAG, "TURN cache: " + iceServerCache);
                 for (PeerConnection.IceServer turnServer : turnServers) {
                     Log.d(TAG, "TurnServer: " + turnServer);
                     iceServers.add(turnServer);
@@ -150,41 +143,6 @@ public class RoomParametersFetcher {
         }
     }
 
-    // Requests & returns a TURN ICE Server based on a request URL.  Must be run
-    // off the main thread!
-    private LinkedList<PeerConnection.IceServer> requestTurnServers(String url)
-            throws IOException, JSONException {
-        LinkedList<PeerConnection.IceServer> turnServers = new LinkedList<PeerConnection.IceServer>();
-        Log.d(TAG, "Request TURN from: " + url);
-        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-        connection.setDoOutput(true);
-        connection.setRequestProperty("REFERER", mOriginRoomUrl);
-        connection.setConnectTimeout(TURN_HTTP_TIMEOUT_MS);
-        connection.setReadTimeout(TURN_HTTP_TIMEOUT_MS);
-        int responseCode = connection.getResponseCode();
-        if (responseCode != 200) {
-            throw new IOException("Non-200 response when requesting TURN server from " + url + " : "
-                    + connection.getHeaderField(null));
-        }
-        InputStream responseStream = connection.getInputStream();
-        String response = drainStream(responseStream);
-        connection.disconnect();
-        Log.d(TAG, "TURN response: " + response);
-        JSONObject responseJSON = new JSONObject(response);
-        JSONArray iceServers = responseJSON.getJSONArray("iceServers");
-        for (int i = 0; i < iceServers.length(); ++i) {
-            JSONObject server = iceServers.getJSONObject(i);
-            JSONArray turnUrls = server.getJSONArray("urls");
-            String username = server.has("username") ? server.getString("username") : "";
-            String credential = server.has("credential") ? server.getString("credential") : "";
-            for (int j = 0; j < turnUrls.length(); j++) {
-                String turnUrl = turnUrls.getString(j);
-                turnServers.add(new PeerConnection.IceServer(turnUrl, username, credential));
-            }
-        }
-        return turnServers;
-    }
-
     // Return the list of ICE servers described by a WebRTCPeerConnection
     // configuration string.
     private LinkedList<PeerConnection.IceServer> iceServersFromPCConfigJSON(String pcConfig)
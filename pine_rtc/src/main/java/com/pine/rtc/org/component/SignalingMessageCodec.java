@@ -0,0 +1,656 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package com.pine.rtc.org.component;
+
+import org.json.JSONException;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming JSON reader and writer for the fixed set of signaling messages: offer, answer,
+ * candidate, candidates, remove-candidates and bye, plus the register and send commands of the
+ * WebSocket server.
+ * <p>
+ * <p>Decoding walks the message once without building a DOM. The WebSocket envelope
+ * {"msg": "<message>", "error": "..."} carries the message as an escaped JSON string; it is decoded
+ * in the same pass by unescaping the envelope string on the fly instead of extracting it first.
+ * Strings without escape sequences are taken with a single substring, the others are unescaped
+ * into a reused builder. Unknown fields are skipped.
+ * <p>
+ * <p>Decoding errors are reported as JSONException, like the org.json code this replaces. A
+ * decoder instance is not thread safe, the encode methods are static.
+ */
+final class SignalingMessageCodec {
+    static final String TYPE_OFFER = "offer";
+    static final String TYPE_ANSWER = "answer";
+    static final String TYPE_CANDIDATE = "candidate";
+    static final String TYPE_CANDIDATES = "candidates";
+    static final String TYPE_REMOVE_CANDIDATES = "remove-candidates";
+    static final String TYPE_BYE = "bye";
+
+    private static final int MAX_DEPTH = 32;
+    private static final int NO_CHAR = -2;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final StringBuilder mBuilder = new StringBuilder(1024);
+    private String mText;
+    private int mPos;
+    // True while reading a message embedded in an envelope string.
+    private boolean mNested;
+    private int mPeeked = NO_CHAR;
+
+    /**
+     * A decoded signaling message. Only the fields of its type are set.
+     */
+    static final class Message {
+        // The "type" field, empty if missing. Null for an envelope without a message.
+        String type;
+        // offer, answer.
+        String sdp;
+        // candidate.
+        IceCandidate candidate;
+        // candidates, remove-candidates.
+        IceCandidate[] candidates;
+        // The "error" field of an envelope, empty if missing.
+        String error = "";
+
+        SessionDescription.Type getSdpType() {
+            return SessionDescription.Type.fromCanonicalForm(type);
+        }
+    }
+
+    /**
+     * Decodes a signaling message as sent on the TCP channel or stored by the room server.
+     */
+    Message decode(String text) throws JSONException {
+        reset(text);
+        Message message = new Message();
+        if (nextNonWhitespace() != '{') {
+            throw syntaxError("Expected '{'");
+        }
+        readMessage(message);
+        expectEnd();
+        return message;
+    }
+
+    /**
+     * Decodes a WebSocket server message {"msg": "<message>", "error": "..."}. The type of the
+     * returned message is null if "msg" is empty.
+     */
+    Message decodeEnvelope(String text) throws JSONException {
+        reset(text);
+        Message message = new Message();
+        boolean hasMsg = false;
+        if (nextNonWhitespace() != '{') {
+            throw syntaxError("Expected '{'");
+        }
+        int c = nextNonWhitespace();
+        while (c != '}') {
+            String key = readKey(c);
+            if (key.equals("msg")) {
+                if (nextNonWhitespace() != '"') {
+                    throw new JSONException("Value at msg is not a string");
+                }
+                hasMsg = true;
+                readEmbeddedMessage(message);
+            } else if (key.equals("error")) {
+                message.error = readStringValue(key);
+            } else {
+                skipValue(nextNonWhitespace(), 0);
+            }
+            c = nextNonWhitespace();
+            if (c == ',') {
+                c = nextNonWhitespace();
+            } else if (c != '}') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+        }
+        if (!hasMsg) {
+            throw new JSONException("No value for msg");
+        }
+        expectEnd();
+        return message;
+    }
+
+    // Reads the envelope string holding a message, the opening quote is consumed.
+    private void readEmbeddedMessage(Message message) throws JSONException {
+        if (mPos < mText.length() && mText.charAt(mPos) == '"') {
+            mPos++;
+            message.type = null;
+            return;
+        }
+        mNested = true;
+        if (nextNonWhitespace() != '{') {
+            throw syntaxError("Expected '{' in msg");
+        }
+        readMessage(message);
+        if (nextNonWhitespace() != -1) {
+            throw syntaxError("Unexpected data after msg");
+        }
+        mNested = false;
+        if (next() != '"') {
+            throw syntaxError("Unterminated msg");
+        }
+    }
+
+    // Reads the fields of a message, the opening brace is consumed.
+    private void readMessage(Message message) throws JSONException {
+        String type = "";
+        String sdp = null;
+        String id = null;
+        int label = -1;
+        String candidate = null;
+        IceCandidate[] candidates = null;
+        int c = nextNonWhitespace();
+        while (c != '}') {
+            String key = readKey(c);
+            if (key.equals("type")) {
+                type = readStringValue(key);
+            } else if (key.equals("sdp")) {
+                sdp = readStringValue(key);
+            } else if (key.equals("id")) {
+                id = readStringValue(key);
+            } else if (key.equals("label")) {
+                label = readIntValue(key);
+            } else if (key.equals("candidate")) {
+                candidate = readStringValue(key);
+            } else if (key.equals("candidates")) {
+                candidates = readCandidates();
+            } else {
+                skipValue(nextNonWhitespace(), 0);
+            }
+            c = nextNonWhitespace();
+            if (c == ',') {
+                c = nextNonWhitespace();
+            } else if (c != '}') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+        }
+        message.type = type;
+        if (type.equals(TYPE_OFFER) || type.equals(TYPE_ANSWER)) {
+            message.sdp = require(sdp, "sdp");
+        } else if (type.equals(TYPE_CANDIDATE)) {
+            message.candidate = toCandidate(id, label, candidate);
+        } else if (type.equals(TYPE_CANDIDATES) || type.equals(TYPE_REMOVE_CANDIDATES)) {
+            message.candidates = require(candidates, "candidates");
+        }
+    }
+
+    private IceCandidate[] readCandidates() throws JSONException {
+        if (nextNonWhitespace() != '[') {
+            throw new JSONException("Value at candidates is not a JSONArray");
+        }
+        List<IceCandidate> candidates = new ArrayList<IceCandidate>();
+        int c = nextNonWhitespace();
+        while (c != ']') {
+            if (c != '{') {
+                throw new JSONException("Value at candidates[" + candidates.size()
+                        + "] is not a JSONObject");
+            }
+            candidates.add(readCandidate());
+            c = nextNonWhitespace();
+            if (c == ',') {
+                c = nextNonWhitespace();
+            } else if (c != ']') {
+                throw syntaxError("Expected ',' or ']'");
+            }
+        }
+        return candidates.toArray(new IceCandidate[candidates.size()]);
+    }
+
+    // Reads {"label", "id", "candidate"}, the opening brace is consumed.
+    private IceCandidate readCandidate() throws JSONException {
+        String id = null;
+        int label = -1;
+        String candidate = null;
+        int c = nextNonWhitespace();
+        while (c != '}') {
+            String key = readKey(c);
+            if (key.equals("id")) {
+                id = readStringValue(key);
+            } else if (key.equals("label")) {
+                label = readIntValue(key);
+            } else if (key.equals("candidate")) {
+                candidate = readStringValue(key);
+            } else {
+                skipValue(nextNonWhitespace(), 0);
+            }
+            c = nextNonWhitespace();
+            if (c == ',') {
+                c = nextNonWhitespace();
+            } else if (c != '}') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+        }
+        return toCandidate(id, label, candidate);
+    }
+
+    private static IceCandidate toCandidate(String id, int label, String candidate)
+            throws JSONException {
+        if (label < 0) {
+            throw new JSONException("No value for label");
+        }
+        return new IceCandidate(require(id, "id"), label, require(candidate, "candidate"));
+    }
+
+    private static <T> T require(T value, String key) throws JSONException {
+        if (value == null) {
+            throw new JSONException("No value for " + key);
+        }
+        return value;
+    }
+
+    // Reads a key and the following colon, c is the first character.
+    private String readKey(int c) throws JSONException {
+        if (c != '"') {
+            throw syntaxError("Expected a key");
+        }
+        String key = readString();
+        if (nextNonWhitespace() != ':') {
+            throw syntaxError("Expected ':' after " + key);
+        }
+        return key;
+    }
+
+    private String readStringValue(String key) throws JSONException {
+        if (nextNonWhitespace() != '"') {
+            throw new JSONException("Value at " + key + " is not a string");
+        }
+        return readString();
+    }
+
+    private int readIntValue(String key) throws JSONException {
+        int c = nextNonWhitespace();
+        boolean negative = c == '-';
+        if (negative) {
+            c = next();
+        }
+        if (c < '0' || c > '9') {
+            throw new JSONException("Value at " + key + " is not an int");
+        }
+        long value = 0;
+        while (c >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            if (value > Integer.MAX_VALUE) {
+                throw new JSONException("Value at " + key + " is out of range");
+            }
+            c = peek();
+            if (c >= '0' && c <= '9') {
+                next();
+            }
+        }
+        if (c == '.' || c == 'e' || c == 'E') {
+            throw new JSONException("Value at " + key + " is not an int");
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    // Reads a string, the opening quote is consumed.
+    private String readString() throws JSONException {
+        return mNested ? readNestedString() : readPlainString();
+    }
+
+    private String readPlainString() throws JSONException {
+        String text = mText;
+        int length = text.length();
+        int pos = mPos;
+        int run = pos;
+        StringBuilder builder = null;
+        while (pos < length) {
+            char c = text.charAt(pos);
+            if (c == '"') {
+                mPos = pos + 1;
+                if (builder == null) {
+                    // No escape sequences, take the characters as they are.
+                    return text.substring(run, pos);
+                }
+                return builder.append(text, run, pos).toString();
+            }
+            if (c != '\\') {
+                pos++;
+                continue;
+            }
+            if (builder == null) {
+                builder = mBuilder;
+                builder.setLength(0);
+            }
+            builder.append(text, run, pos);
+            mPos = pos + 1;
+            builder.append((char) readEscapeRaw());
+            pos = mPos;
+            run = pos;
+        }
+        mPos = pos;
+        throw syntaxError("Unterminated string");
+    }
+
+    // Reads a string of the message embedded in the envelope string, unescaping both levels.
+    // Runs of characters without escape sequences are copied at once.
+    private String readNestedString() throws JSONException {
+        String text = mText;
+        int length = text.length();
+        int pos = mPos;
+        int run = pos;
+        StringBuilder builder = mBuilder;
+        builder.setLength(0);
+        while (pos < length) {
+            char c = text.charAt(pos);
+            if (c == '"') {
+                // The envelope string ends inside the string.
+                break;
+            }
+            if (c != '\\') {
+                pos++;
+                continue;
+            }
+            builder.append(text, run, pos);
+            mPos = pos + 1;
+            int value = readEscapeRaw();
+            if (value == '"') {
+                return builder.toString();
+            }
+            if (value == '\\') {
+                // An escape sequence of the embedded message, itself escaped in the envelope.
+                value = readEscape();
+            }
+            builder.append((char) value);
+            pos = mPos;
+            run = pos;
+        }
+        mPos = pos;
+        throw syntaxError("Unterminated string");
+    }
+
+    private void skipValue(int c, int depth) throws JSONException {
+        if (depth > MAX_DEPTH) {
+            throw syntaxError("Nesting too deep");
+        }
+        if (c == '"') {
+            readString();
+        } else if (c == '{' || c == '[') {
+            int close = c == '{' ? '}' : ']';
+            c = nextNonWhitespace();
+            while (c != close) {
+                if (close == '}') {
+                    readKey(c);
+                    c = nextNonWhitespace();
+                }
+                skipValue(c, depth + 1);
+                c = nextNonWhitespace();
+                if (c == ',') {
+                    c = nextNonWhitespace();
+                } else if (c != close) {
+                    throw syntaxError("Expected ',' or '" + (char) close + "'");
+                }
+            }
+        } else if ((c >= '0' && c <= '9') || c == '-' || (c >= 'a' && c <= 'z')) {
+            // Numbers, true, false and null.
+            while (true) {
+                c = peek();
+                if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || c == '.' || c == '+'
+                        || c == '-' || c == 'E') {
+                    next();
+                } else {
+                    break;
+                }
+            }
+        } else {
+            throw syntaxError("Unexpected character");
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Character stream. While mNested is set, the stream is the unescaped content of the
+    // envelope string and ends (-1) at its closing quote.
+
+    private void reset(String text) {
+        mText = text;
+        mPos = 0;
+        mNested = false;
+        mPeeked = NO_CHAR;
+    }
+
+    private int peek() throws JSONException {
+        if (mPeeked == NO_CHAR) {
+            mPeeked = read();
+        }
+        return mPeeked;
+    }
+
+    private int next() throws JSONException {
+        if (mPeeked != NO_CHAR) {
+            int c = mPeeked;
+            mPeeked = NO_CHAR;
+            return c;
+        }
+        return read();
+    }
+
+    private int nextNonWhitespace() throws JSONException {
+        int c = next();
+        while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            c = next();
+        }
+        return c;
+    }
+
+    private int read() throws JSONException {
+        if (mPos >= mText.length()) {
+            return -1;
+        }
+        char c = mText.charAt(mPos++);
+        if (!mNested) {
+            return c;
+        }
+        if (c == '"') {
+            // End of the envelope string, left for the envelope reader.
+            mPos--;
+            return -1;
+        }
+        return c == '\\' ? readEscapeRaw() : c;
+    }
+
+    // Reads an escape sequence of the current stream, the backslash is consumed.
+    private int readEscape() throws JSONException {
+        int c = next();
+        if (c == 'u') {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = (value << 4) | hexValue(next());
+            }
+            return value;
+        }
+        return unescape(c);
+    }
+
+    // Reads an escape sequence of the envelope string, the backslash is consumed.
+    private int readEscapeRaw() throws JSONException {
+        if (mPos >= mText.length()) {
+            throw syntaxError("Unterminated escape sequence");
+        }
+        char c = mText.charAt(mPos++);
+        if (c == 'u') {
+            if (mPos + 4 > mText.length()) {
+                throw syntaxError("Unterminated escape sequence");
+            }
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = (value << 4) | hexValue(mText.charAt(mPos++));
+            }
+            return value;
+        }
+        return unescape(c);
+    }
+
+    private int unescape(int c) throws JSONException {
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                return c;
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            default:
+                throw syntaxError("Invalid escape sequence");
+        }
+    }
+
+    private int hexValue(int c) throws JSONException {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        throw syntaxError("Invalid escape sequence");
+    }
+
+    private void expectEnd() throws JSONException {
+        if (nextNonWhitespace() != -1) {
+            throw syntaxError("Unexpected data after message");
+        }
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + mPos + (mNested ? " of msg" : ""));
+    }
+
+    // ---------------------------------------------------------------------
+    // Encoding.
+
+    static String encodeSdp(String type, String sdp) {
+        StringBuilder builder = new StringBuilder(sdp.length() + sdp.length() / 16 + 32);
+        builder.append("{\"sdp\":");
+        appendString(builder, sdp);
+        builder.append(",\"type\":\"").append(type).append("\"}");
+        return builder.toString();
+    }
+
+    static String encodeCandidate(IceCandidate candidate) {
+        StringBuilder builder = new StringBuilder(candidate.sdp.length() + 64);
+        builder.append("{\"type\":\"candidate\",");
+        appendCandidateFields(builder, candidate);
+        builder.append('}');
+        return builder.toString();
+    }
+
+    /**
+     * Encodes a candidates or remove-candidates message.
+     */
+    static String encodeCandidates(String type, List<IceCandidate> candidates) {
+        StringBuilder builder = new StringBuilder(candidates.size() * 160 + 48);
+        builder.append("{\"type\":\"").append(type).append("\",\"candidates\":[");
+        for (int i = 0; i < candidates.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append('{');
+            appendCandidateFields(builder, candidates.get(i));
+            builder.append('}');
+        }
+        builder.append("]}");
+        return builder.toString();
+    }
+
+    static String encodeBye() {
+        return "{\"type\":\"bye\"}";
+    }
+
+    static String encodeRegister(String roomId, String clientId) {
+        StringBuilder builder = new StringBuilder(64);
+        builder.append("{\"cmd\":\"register\",\"roomid\":");
+        appendString(builder, roomId);
+        builder.append(",\"clientid\":");
+        appendString(builder, clientId);
+        builder.append('}');
+        return builder.toString();
+    }
+
+    /**
+     * Wraps an encoded message in the send command of the WebSocket server.
+     */
+    static String encodeSend(String message) {
+        StringBuilder builder = new StringBuilder(message.length() + message.length() / 8 + 32);
+        builder.append("{\"cmd\":\"send\",\"msg\":");
+        appendString(builder, message);
+        builder.append('}');
+        return builder.toString();
+    }
+
+    private static void appendCandidateFields(StringBuilder builder, IceCandidate candidate) {
+        builder.append("\"label\":").append(candidate.sdpMLineIndex).append(",\"id\":");
+        appendString(builder, candidate.sdpMid);
+        builder.append(",\"candidate\":");
+        appendString(builder, candidate.sdp);
+    }
+
+    // Appends a quoted JSON string, copying runs without special characters at once. U+2028 and
+    // U+2029 are escaped as well, they end a line in JavaScript.
+    private static void appendString(StringBuilder builder, String value) {
+        builder.append('"');
+        int start = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+                continue;
+            }
+            builder.append(value, start, i);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                case '\b':
+                    builder.append("\\b");
+                    break;
+                case '\f':
+                    builder.append("\\f");
+                    break;
+                default:
+                    builder.append("\\u")
+                            .append(HEX_DIGITS[(c >> 12) & 0xf])
+                            .append(HEX_DIGITS[(c >> 8) & 0xf])
+                            .append(HEX_DIGITS[(c >> 4) & 0xf])
+                            .append(HEX_DIGITS[c & 0xf]);
+                    break;
+            }
+        }
+        builder.append(value, start, length);
+        builder.append('"');
+    }
+}
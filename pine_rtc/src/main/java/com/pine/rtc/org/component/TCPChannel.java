@@ -0,0 +1,28 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package com.pine.rtc.org.component;
+
+/**
+ * Signaling transport used by DirectRTCClient. Implemented by the blocking TCPChannelClient and
+ * by the selector based NioTCPChannelClient, both dispatching TCPChannelEvents on the executor
+ * thread passed in their constructors.
+ */
+public interface TCPChannel {
+    /**
+     * Disconnects the channel if not already disconnected. This will fire the onTCPClose event.
+     */
+    void disconnect();
+
+    /**
+     * Sends a message on the channel. Must be called on the executor thread.
+     */
+    void send(String message);
+}
@@ -32,7 +32,7 @@ import java.util.concurrent.ExecutorService;
  * passed in a constructor, otherwise exception will be thrown.
  * All events are dispatched on the same thread.
  */
-public class TCPChannelClient {
+public class TCPChannelClient implements TCPChannel {
     private static final String TAG = "TCPChannelClient";
 
     private final ExecutorService mExecutor;
@@ -75,6 +75,7 @@ public class TCPChannelClient {
     /**
      * Disconnects the client if not already disconnected. This will fire the onTCPClose event.
      */
+    @Override
     public void disconnect() {
         mExecutorThreadCheck.checkIsOnValidThread();
 
@@ -86,6 +87,7 @@ public class TCPChannelClient {
      *
      * @param message Message to be sent.
      */
+    @Override
     public void send(String message) {
         mExecutorThreadCheck.checkIsOnValidThread();
 
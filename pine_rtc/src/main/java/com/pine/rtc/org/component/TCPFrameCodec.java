@@ -0,0 +1,145 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package com.pine.rtc.org.component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Message framing for the NIO signaling transport, one instance per connection.
+ * <p>
+ * <p>A framed message is a 0x00 marker, a 4 byte big-endian payload length and the UTF-8
+ * payload. Text messages never start with 0x00, so framed and newline terminated messages can be
+ * told apart at every message boundary and both are always accepted.
+ * <p>
+ * <p>Peers using the blocking TCPChannelClient only understand newline terminated lines. Until
+ * the peer is known to understand framing, messages are sent as lines terminated with "\r\n":
+ * BufferedReader.readLine() treats that as a single terminator, while a NIO peer takes it as a
+ * signal that framing is supported. Receiving a "\r\n" line or a framed message switches the
+ * sending side to framing.
+ */
+final class TCPFrameCodec {
+    static final byte FRAME_MARKER = 0;
+    static final int HEADER_SIZE = 5;
+    static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    private static final ByteBuffer LINE_TERMINATOR =
+            ByteBuffer.wrap(new byte[]{'\r', '\n'}).asReadOnlyBuffer();
+
+    private ByteBuffer mReadBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    // Written by the reading thread, read by the sending thread.
+    private volatile boolean mPeerSupportsFraming;
+
+    /**
+     * Callback for decoded messages, invoked on the thread calling decode().
+     */
+    interface MessageListener {
+        void onMessage(String message);
+    }
+
+    boolean isPeerSupportsFraming() {
+        return mPeerSupportsFraming;
+    }
+
+    /**
+     * Returns the buffer the next read should go into. Grows the buffer when it is full.
+     */
+    ByteBuffer getReadBuffer() {
+        if (!mReadBuffer.hasRemaining()) {
+            ensureCapacity(mReadBuffer.capacity() * 2);
+        }
+        return mReadBuffer;
+    }
+
+    /**
+     * Decodes all complete messages in the read buffer and keeps the remaining partial message.
+     *
+     * @throws IOException if the peer violates the framing.
+     */
+    void decode(MessageListener listener) throws IOException {
+        ByteBuffer buffer = mReadBuffer;
+        buffer.flip();
+        byte[] array = buffer.array();
+        int base = buffer.arrayOffset();
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            if (array[base + start] == FRAME_MARKER) {
+                if (buffer.remaining() < HEADER_SIZE) {
+                    break;
+                }
+                int length = buffer.getInt(start + 1);
+                if (length < 0 || length > MAX_MESSAGE_SIZE) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                if (buffer.remaining() < HEADER_SIZE + length) {
+                    buffer.compact();
+                    ensureCapacity(HEADER_SIZE + length);
+                    return;
+                }
+                mPeerSupportsFraming = true;
+                listener.onMessage(new String(array, base + start + HEADER_SIZE, length, UTF_8));
+                buffer.position(start + HEADER_SIZE + length);
+            } else {
+                int end = indexOfNewline(array, base + start, base + buffer.limit()) - base;
+                if (end < 0) {
+                    if (buffer.remaining() > MAX_MESSAGE_SIZE) {
+                        throw new IOException("Line exceeds " + MAX_MESSAGE_SIZE + " bytes");
+                    }
+                    break;
+                }
+                int lineEnd = end;
+                if (lineEnd > start && array[base + lineEnd - 1] == '\r') {
+                    lineEnd--;
+                    mPeerSupportsFraming = true;
+                }
+                listener.onMessage(new String(array, base + start, lineEnd - start, UTF_8));
+                buffer.position(end + 1);
+            }
+        }
+        buffer.compact();
+    }
+
+    /**
+     * Encodes a message for a gathering write, framed if the peer is known to support it.
+     */
+    ByteBuffer[] encode(String message) {
+        ByteBuffer payload = UTF_8.encode(message);
+        if (!mPeerSupportsFraming) {
+            return new ByteBuffer[]{payload, LINE_TERMINATOR.duplicate()};
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(FRAME_MARKER).putInt(payload.remaining());
+        header.flip();
+        return new ByteBuffer[]{header, payload};
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (mReadBuffer.capacity() >= capacity) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        mReadBuffer.flip();
+        buffer.put(mReadBuffer);
+        mReadBuffer = buffer;
+    }
+
+    private static int indexOfNewline(byte[] array, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (array[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -15,8 +15,6 @@ import android.util.Log;
 
 import com.pine.rtc.org.component.AsyncHttpURLConnection.AsyncHttpEvents;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -99,22 +97,15 @@ public class WebSocketChannelClient {
             return;
         }
         Log.d(TAG, "Registering WebSocket for room " + roomID + ". ClientID: " + clientID);
-        JSONObject json = new JSONObject();
-        try {
-            json.put("cmd", "register");
-            json.put("roomid", roomID);
-            json.put("clientid", clientID);
-            Log.d(TAG, "C->WSS: " + json.toString());
-            mWs.sendTextMessage(json.toString());
-            mState = WebSocketConnectionState.REGISTERED;
-            // Send any previously accumulated messages.
-            for (String sendMessage : mWsSendQueue) {
-                send(sendMessage);
-            }
-            mWsSendQueue.clear();
-        } catch (JSONException e) {
-            reportError("WebSocket register JSON error: " + e.getMessage());
+        String message = SignalingMessageCodec.encodeRegister(roomID, clientID);
+        Log.d(TAG, "C->WSS: " + message);
+        mWs.sendTextMessage(message);
+        mState = WebSocketConnectionState.REGISTERED;
+        // Send any previously accumulated messages.
+        for (String sendMessage : mWsSendQueue) {
+            send(sendMessage);
         }
+        mWsSendQueue.clear();
     }
 
     public void send(String message) {
@@ -132,16 +123,9 @@ public class WebSocketChannelClient {
                 Log.e(TAG, "WebSocket send() in error or closed state : " + message);
                 return;
             case REGISTERED:
-                JSONObject json = new JSONObject();
-                try {
-                    json.put("cmd", "send");
-                    json.put("msg", message);
-                    message = json.toString();
-                    Log.d(TAG, "C->WSS: " + message);
-                    mWs.sendTextMessage(message);
-                } catch (JSONException e) {
-                    reportError("WebSocket send JSON error: " + e.getMessage());
-                }
+                message = SignalingMessageCodec.encodeSend(message);
+                Log.d(TAG, "C->WSS: " + message);
+                mWs.sendTextMessage(message);
                 break;
         }
     }
@@ -158,7 +142,7 @@ public class WebSocketChannelClient {
         Log.d(TAG, "Disconnect WebSocket. State: " + mState);
         if (mState == WebSocketConnectionState.REGISTERED) {
             // Send "bye" to WebSocket server.
-            send("{\"type\": \"bye\"}");
+            send(SignalingMessageCodec.encodeBye());
             mState = WebSocketConnectionState.CONNECTED;
             // Send http DELETE to http WebSocket server.
             sendWSSMessage("DELETE", "");
@@ -214,6 +198,10 @@ public class WebSocketChannelClient {
                     public void onHttpComplete(String response) {
                     }
                 });
+        if (method.equals("DELETE")) {
+            // Deleting the registration again is harmless.
+            httpConnection.setMaxRetries(1);
+        }
         httpConnection.send();
     }
 
@@ -17,12 +17,15 @@ import android.util.Log;
 import com.pine.rtc.org.component.AsyncHttpURLConnection.AsyncHttpEvents;
 import com.pine.rtc.org.component.RoomParametersFetcher.RoomParametersFetcherEvents;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.webrtc.IceCandidate;
 import org.webrtc.SessionDescription;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Negotiates signaling for chatting with https://appr.tc "rooms".
  * Uses the client<->server specifics of the apprtc AppEngine webapp.
@@ -47,6 +50,11 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
     private RoomConnectionParameters mConnectionParameters;
     private String mMessageUrl;
     private String mLeaveUrl;
+    // Accessed only on the looper thread.
+    // Decodes WebSocket messages, used only on the looper thread.
+    private final SignalingMessageCodec mCodec = new SignalingMessageCodec();
+    private IceCandidateBatcher mCandidateBatcher =
+            new IceCandidateBatcher(IceCandidateBatcher.DEFAULT_WINDOW_MS);
 
     public WebSocketRTCClient(SignalingEvents events) {
         this.mEvents = events;
@@ -56,15 +64,6 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
         mHandler = new Handler(handlerThread.getLooper());
     }
 
-    // Put a |key|->|value| mapping in |json|.
-    private static void jsonPut(JSONObject json, String key, Object value) {
-        try {
-            json.put(key, value);
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     // --------------------------------------------------------------------
     // AppRTCClient interface implementation.
     // Asynchronously connect to an AppRTC room URL using supplied connection
@@ -80,6 +79,21 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
         });
     }
 
+    /**
+     * Sets how long local ICE candidates are collected before being sent in one message, 0 sends
+     * every candidate right away (the default). Only enable it when the peer is known to
+     * understand the batched "candidates" message, older peers drop it.
+     */
+    public void setCandidateBatchWindowMs(final long windowMs) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                flushLocalIceCandidatesInternal();
+                mCandidateBatcher = new IceCandidateBatcher(windowMs);
+            }
+        });
+    }
+
     @Override
     public void disconnectFromRoom() {
         mHandler.post(new Runnable() {
@@ -121,6 +135,8 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
     // Disconnect from room and send bye messages - runs on a local looper thread.
     private void disconnectFromRoomInternal() {
         Log.d(TAG, "Disconnect. Room state: " + mRoomState);
+        mHandler.removeCallbacks(mFlushCandidatesRunnable);
+        mCandidateBatcher.clear();
         if (mRoomState == ConnectionState.CONNECTED) {
             Log.d(TAG, "Closing room.");
             sendPostMessage(MessageType.LEAVE, mLeaveUrl, null);
@@ -129,6 +145,10 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
         if (mWsClient != null) {
             mWsClient.disconnect(true);
         }
+        for (Map.Entry<String, HttpRequestExecutor.LatencyHistogram> entry
+                : HttpRequestExecutor.getInstance().getLatencyHistograms().entrySet()) {
+            Log.d(TAG, "HTTP " + entry.getKey() + ": " + entry.getValue());
+        }
     }
 
     // Helper functions to get connection, post message and leave message URLs
@@ -196,10 +216,8 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
                     reportError("Sending offer SDP in non connected state.");
                     return;
                 }
-                JSONObject json = new JSONObject();
-                jsonPut(json, "sdp", sdp.description);
-                jsonPut(json, "type", "offer");
-                sendPostMessage(MessageType.MESSAGE, mMessageUrl, json.toString());
+                sendPostMessage(MessageType.MESSAGE, mMessageUrl,
+                        SignalingMessageCodec.encodeSdp(SignalingMessageCodec.TYPE_OFFER, sdp.description));
                 if (mConnectionParameters.loopback) {
                     // In loopback mode rename this offer to answer and route it back.
                     SessionDescription sdpAnswer = new SessionDescription(
@@ -220,10 +238,8 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
                     Log.e(TAG, "Sending answer in loopback mode.");
                     return;
                 }
-                JSONObject json = new JSONObject();
-                jsonPut(json, "sdp", sdp.description);
-                jsonPut(json, "type", "answer");
-                mWsClient.send(json.toString());
+                mWsClient.send(
+                        SignalingMessageCodec.encodeSdp(SignalingMessageCodec.TYPE_ANSWER, sdp.description));
             }
         });
     }
@@ -234,24 +250,30 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
         mHandler.post(new Runnable() {
             @Override
             public void run() {
-                JSONObject json = new JSONObject();
-                jsonPut(json, "type", "candidate");
-                jsonPut(json, "label", candidate.sdpMLineIndex);
-                jsonPut(json, "id", candidate.sdpMid);
-                jsonPut(json, "candidate", candidate.sdp);
+                if (mCandidateBatcher.isBatching()) {
+                    if (mInitiator && mRoomState != ConnectionState.CONNECTED) {
+                        reportError("Sending ICE candidate in non connected state.");
+                        return;
+                    }
+                    if (mCandidateBatcher.add(candidate)) {
+                        mHandler.postDelayed(mFlushCandidatesRunnable, mCandidateBatcher.getWindowMs());
+                    }
+                    return;
+                }
+                String message = SignalingMessageCodec.encodeCandidate(candidate);
                 if (mInitiator) {
                     // Call initiator sends ice candidates to GAE server.
                     if (mRoomState != ConnectionState.CONNECTED) {
                         reportError("Sending ICE candidate in non connected state.");
                         return;
                     }
-                    sendPostMessage(MessageType.MESSAGE, mMessageUrl, json.toString());
+                    sendPostMessage(MessageType.MESSAGE, mMessageUrl, message);
                     if (mConnectionParameters.loopback) {
                         mEvents.onRemoteIceCandidate(candidate);
                     }
                 } else {
                     // Call receiver sends ice candidates to websocket server.
-                    mWsClient.send(json.toString());
+                    mWsClient.send(message);
                 }
             }
         });
@@ -263,31 +285,94 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
         mHandler.post(new Runnable() {
             @Override
             public void run() {
-                JSONObject json = new JSONObject();
-                jsonPut(json, "type", "remove-candidates");
-                JSONArray jsonArray = new JSONArray();
-                for (final IceCandidate candidate : candidates) {
-                    jsonArray.put(toJsonCandidate(candidate));
+                if (mCandidateBatcher.isBatching()) {
+                    if (mInitiator && mRoomState != ConnectionState.CONNECTED) {
+                        reportError("Sending ICE candidate removals in non connected state.");
+                        return;
+                    }
+                    if (mCandidateBatcher.remove(candidates)) {
+                        mHandler.postDelayed(mFlushCandidatesRunnable, mCandidateBatcher.getWindowMs());
+                    }
+                    return;
                 }
-                jsonPut(json, "candidates", jsonArray);
+                String message = SignalingMessageCodec.encodeCandidates(
+                        SignalingMessageCodec.TYPE_REMOVE_CANDIDATES, Arrays.asList(candidates));
                 if (mInitiator) {
                     // Call initiator sends ice candidates to GAE server.
                     if (mRoomState != ConnectionState.CONNECTED) {
                         reportError("Sending ICE candidate removals in non connected state.");
                         return;
                     }
-                    sendPostMessage(MessageType.MESSAGE, mMessageUrl, json.toString());
+                    sendPostMessage(MessageType.MESSAGE, mMessageUrl, message);
                     if (mConnectionParameters.loopback) {
                         mEvents.onRemoteIceCandidatesRemoved(candidates);
                     }
                 } else {
                     // Call receiver sends ice candidates to websocket server.
-                    mWsClient.send(json.toString());
+                    mWsClient.send(message);
                 }
             }
         });
     }
 
+    // Send the collected Ice candidates right away, called once ICE gathering is complete.
+    @Override
+    public void flushLocalIceCandidates() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                flushLocalIceCandidatesInternal();
+            }
+        });
+    }
+
+    private final Runnable mFlushCandidatesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushLocalIceCandidatesInternal();
+        }
+    };
+
+    // Sends pending removals and candidates - runs on a local looper thread.
+    private void flushLocalIceCandidatesInternal() {
+        mHandler.removeCallbacks(mFlushCandidatesRunnable);
+        if (mCandidateBatcher.isEmpty()) {
+            return;
+        }
+        final IceCandidate[] removals = mCandidateBatcher.takeRemovals();
+        final List<IceCandidate> adds = mCandidateBatcher.takeAdds();
+        if (mInitiator && mRoomState != ConnectionState.CONNECTED) {
+            reportError("Sending ICE candidates in non connected state.");
+            return;
+        }
+        if (removals.length > 0) {
+            sendCandidateMessage(SignalingMessageCodec.encodeCandidates(
+                    SignalingMessageCodec.TYPE_REMOVE_CANDIDATES, Arrays.asList(removals)));
+            if (mInitiator && mConnectionParameters.loopback) {
+                mEvents.onRemoteIceCandidatesRemoved(removals);
+            }
+        }
+        if (!adds.isEmpty()) {
+            sendCandidateMessage(SignalingMessageCodec.encodeCandidates(
+                    SignalingMessageCodec.TYPE_CANDIDATES, adds));
+            if (mInitiator && mConnectionParameters.loopback) {
+                for (IceCandidate candidate : adds) {
+                    mEvents.onRemoteIceCandidate(candidate);
+                }
+            }
+        }
+    }
+
+    private void sendCandidateMessage(String message) {
+        if (mInitiator) {
+            // Call initiator sends ice candidates to GAE server.
+            sendPostMessage(MessageType.MESSAGE, mMessageUrl, message);
+        } else {
+            // Call receiver sends ice candidates to websocket server.
+            mWsClient.send(message);
+        }
+    }
+
     // --------------------------------------------------------------------
     // WebSocketChannelEvents interface implementation.
     // All events are called by WebSocketChannelClient on a local looper thread
@@ -299,45 +384,42 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
             return;
         }
         try {
-            JSONObject json = new JSONObject(msg);
-            String msgText = json.getString("msg");
-            String errorText = json.optString("error");
-            if (msgText.length() > 0) {
-                json = new JSONObject(msgText);
-                String type = json.optString("type");
-                if (type.equals("candidate")) {
-                    mEvents.onRemoteIceCandidate(toJavaCandidate(json));
-                } else if (type.equals("remove-candidates")) {
-                    JSONArray candidateArray = json.getJSONArray("candidates");
-                    IceCandidate[] candidates = new IceCandidate[candidateArray.length()];
-                    for (int i = 0; i < candidateArray.length(); ++i) {
-                        candidates[i] = toJavaCandidate(candidateArray.getJSONObject(i));
+            // Decodes the envelope and the message in it in one pass.
+            SignalingMessageCodec.Message message = mCodec.decodeEnvelope(msg);
+            String type = message.type;
+            if (type != null) {
+                if (type.equals(SignalingMessageCodec.TYPE_CANDIDATE)) {
+                    mEvents.onRemoteIceCandidate(message.candidate);
+                } else if (type.equals(SignalingMessageCodec.TYPE_CANDIDATES)) {
+                    for (IceCandidate candidate : message.candidates) {
+                        mEvents.onRemoteIceCandidate(candidate);
                     }
-                    mEvents.onRemoteIceCandidatesRemoved(candidates);
-                } else if (type.equals("answer")) {
+                } else if (type.equals(SignalingMessageCodec.TYPE_REMOVE_CANDIDATES)) {
+                    mEvents.onRemoteIceCandidatesRemoved(message.candidates);
+                } else if (type.equals(SignalingMessageCodec.TYPE_ANSWER)) {
                     if (mInitiator) {
                         SessionDescription sdp = new SessionDescription(
-                                SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
+                                message.getSdpType(), message.sdp);
                         mEvents.onRemoteDescription(sdp);
                     } else {
                         reportError("Received answer for call initiator: " + msg);
                     }
-                } else if (type.equals("offer")) {
+                } else if (type.equals(SignalingMessageCodec.TYPE_OFFER)) {
                     if (!mInitiator) {
                         SessionDescription sdp = new SessionDescription(
-                                SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
+                                message.getSdpType(), message.sdp);
                         mEvents.onRemoteDescription(sdp);
                     } else {
                         reportError("Received offer for call receiver: " + msg);
                     }
-                } else if (type.equals("bye")) {
+                } else if (type.equals(SignalingMessageCodec.TYPE_BYE)) {
                     mEvents.onChannelClose();
                 } else {
                     reportError("Unexpected WebSocket message: " + msg);
                 }
             } else {
-                if (errorText != null && errorText.length() > 0) {
-                    reportError("WebSocket error message: " + errorText);
+                if (message.error.length() > 0) {
+                    reportError("WebSocket error message: " + message.error);
                 } else {
                     reportError("Unexpected WebSocket message: " + msg);
                 }
@@ -403,24 +485,13 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
                         }
                     }
                 });
+        if (messageType == MessageType.LEAVE) {
+            // Leaving the room again is harmless.
+            httpConnection.setMaxRetries(1);
+        }
         httpConnection.send();
     }
 
-    // Converts a Java candidate to a JSONObject.
-    private JSONObject toJsonCandidate(final IceCandidate candidate) {
-        JSONObject json = new JSONObject();
-        jsonPut(json, "label", candidate.sdpMLineIndex);
-        jsonPut(json, "id", candidate.sdpMid);
-        jsonPut(json, "candidate", candidate.sdp);
-        return json;
-    }
-
-    // Converts a JSON candidate to a Java object.
-    private IceCandidate toJavaCandidate(JSONObject json) throws JSONException {
-        return new IceCandidate(
-                json.getString("id"), json.getInt("label"), json.getString("candidate"));
-    }
-
     private enum ConnectionState {NEW, CONNECTED, CLOSED, ERROR}
 
     private enum MessageType {MESSAGE, LEAVE}
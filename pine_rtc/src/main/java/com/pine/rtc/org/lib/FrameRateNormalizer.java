@@ -0,0 +1,83 @@
+package com.pine.rtc.org.lib;
+
+/**
+ * 把可变帧率的帧对齐到固定帧率的时间槽。
+ * <p>
+ * 时间槽间隔为 1s / targetFps，以第一帧的时间为起点。
+ * 每来一帧取离它最近的时间槽作为它的时间戳：
+ * 比下一个时间槽早半个间隔以上的帧被丢弃；
+ * 与上一帧之间空出的时间槽用上一帧补齐(最多MAX_REPEAT个，更长的空隙保留为时间戳的跳变)。
+ * <p>
+ * 非线程安全，只在渲染线程中使用。
+ */
+class FrameRateNormalizer {
+    // 长时间没有新帧时最多补的帧数
+    private static final int MAX_REPEAT = 4;
+
+    private final long mIntervalUs;
+    private long mNextSlotUs = -1L;
+    private long mFrameTimeUs;
+    private long mRepeatStartUs;
+    private int mRepeatCount;
+    private long mRepeatedFramesCount;
+    private long mDroppedFramesCount;
+
+    FrameRateNormalizer(int targetFps) {
+        if (targetFps <= 0) {
+            throw new IllegalArgumentException("targetFps must be positive");
+        }
+        mIntervalUs = 1000000L / targetFps;
+    }
+
+    /**
+     * @param timeUs 帧的到达时间
+     * @return false表示丢弃这一帧
+     */
+    boolean onFrame(long timeUs) {
+        if (mNextSlotUs < 0) {
+            mFrameTimeUs = timeUs;
+            mRepeatCount = 0;
+            mNextSlotUs = timeUs + mIntervalUs;
+            return true;
+        }
+        long half = mIntervalUs / 2;
+        if (timeUs < mNextSlotUs - half) {
+            mDroppedFramesCount++;
+            return false;
+        }
+        // 当前帧落在第slot个时间槽，之前的slot个时间槽由上一帧补齐
+        long slot = (timeUs - mNextSlotUs + half) / mIntervalUs;
+        mRepeatCount = (int) Math.min(slot, MAX_REPEAT);
+        mRepeatStartUs = mNextSlotUs + (slot - mRepeatCount) * mIntervalUs;
+        mFrameTimeUs = mNextSlotUs + slot * mIntervalUs;
+        mNextSlotUs = mFrameTimeUs + mIntervalUs;
+        mRepeatedFramesCount += mRepeatCount;
+        return true;
+    }
+
+    /**
+     * 当前帧之前需要重复上一帧的次数
+     */
+    int getRepeatCount() {
+        return mRepeatCount;
+    }
+
+    long getRepeatTimeUs(int index) {
+        return mRepeatStartUs + index * mIntervalUs;
+    }
+
+    /**
+     * 当前帧对齐后的时间戳
+     */
+    long getFrameTimeUs() {
+        return mFrameTimeUs;
+    }
+
+    long getRepeatedFramesCount() {
+        return mRepeatedFramesCount;
+    }
+
+    long getDroppedFramesCount() {
+        return mDroppedFramesCount;
+    }
+}
@@ -2,9 +2,11 @@ package com.pine.rtc.org.lib;
 
 import android.annotation.TargetApi;
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -21,9 +23,9 @@ import org.webrtc.VideoRenderer;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import static org.webrtc.VideoFileRenderer.nativeCreateNativeByteBuffer;
-import static org.webrtc.VideoFileRenderer.nativeFreeNativeByteBuffer;
 import static org.webrtc.VideoFileRenderer.nativeI420Scale;
 
 /**
@@ -36,6 +38,20 @@ import static org.webrtc.VideoFileRenderer.nativeI420Scale;
 @TargetApi(Build.VERSION_CODES.KITKAT)
 public class VideoFileRenderer implements VideoRenderer.Callbacks {
     private static final String TAG = "VideoFileRenderer";
+    // 编码器没有空闲输入buffer时最多暂存的帧数
+    private static final int PENDING_FRAME_POOL_SIZE = 3;
+    private static final int DEFAULT_FRAME_QUEUE_SIZE = 4;
+    private static final long STATS_INTERVAL_MS = 1000L;
+
+    /**
+     * 帧队列满时的处理策略
+     */
+    public enum FrameDropPolicy {
+        // 丢弃队列中最旧的一帧，保留最新的画面
+        DROP_OLDEST,
+        // 丢弃新到的帧直到队列清空，之后的第一帧请求编码为关键帧
+        SKIP_TO_KEY_FRAME
+    }
 
     private HandlerThread mRenderThread;
     private final Object mHandlerLock = new Object();
@@ -47,7 +63,6 @@ public class VideoFileRenderer implements VideoRenderer.Callbacks {
     private int mOutputFileWidth;
     private int mOutputFileHeight;
     private int mOutputFrameSize;
-    private ByteBuffer mOutputFrameBuffer;
     private String mOutputFileName;
     private PeerConnectionClient mClient;
     private EglBase.Context mSharedContext;
@@ -59,7 +74,43 @@ public class VideoFileRenderer implements VideoRenderer.Callbacks {
     private MediaCodec mMediaCodec;
     private MediaMuxer mMediaMuxer;
     private int mVideoTrackIndex;
+    private boolean mMuxerStarted;
     private boolean mIsRecording;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    // 编码器输入buffer的布局
+    private boolean mInputPlanar;
+    private int mInputStride;
+    private int mInputSliceHeight;
+    // 需要转换布局时的中转帧，以及编码器没有空闲输入buffer时暂存帧的预分配池，只在渲染线程中使用
+    private RawFrame mScratchFrame;
+    private final ArrayDeque<RawFrame> mPendingFrames = new ArrayDeque<RawFrame>();
+    private final ArrayDeque<RawFrame> mFreeFrames = new ArrayDeque<RawFrame>();
+    private int mDroppedFramesCount;
+    private long mLastPresentationTimeUs;
+    // 帧率归一化，为null时按到达时间(可变帧率)编码
+    private int mTargetFrameRate;
+    private FrameRateNormalizer mFrameRateNormalizer;
+    private RawFrame mLastRawFrame;
+    private boolean mLastRawFrameValid;
+    // 纹理帧异步读回(PBO)，实际是否开启取决于GLES版本
+    private boolean mAsyncReadback;
+    private volatile long mLastReadbackTimeNs;
+    private volatile long mAverageReadbackTimeNs;
+
+    // renderFrame与渲染线程之间的有界帧队列，队列中的帧都还没有renderFrameDone
+    private final Object mFrameQueueLock = new Object();
+    private final ArrayDeque<QueuedFrame> mFrameQueue = new ArrayDeque<QueuedFrame>();
+    private final ArrayDeque<QueuedFrame> mFreeQueuedFrames = new ArrayDeque<QueuedFrame>();
+    private final AtomicBoolean mDrainFramesPosted = new AtomicBoolean(false);
+    private int mFrameQueueCapacity = DEFAULT_FRAME_QUEUE_SIZE;
+    private FrameDropPolicy mFrameDropPolicy = FrameDropPolicy.DROP_OLDEST;
+    private boolean mSkippingFrames;
+    private boolean mKeyFrameRequested;
+    private long mQueuedFramesCount;
+    private long mQueueDroppedFramesCount;
+    private long mEncodedFramesCount;
+    private long mLastStatsTimeMs;
 
     public VideoFileRenderer(int muxType, PeerConnectionClient client, final EglBase.Context sharedContext) {
         mMuxType = muxType;
@@ -74,7 +125,30 @@ public class VideoFileRenderer implements VideoRenderer.Callbacks {
             mOutputFileWidth = outputFileWidth;
             mOutputFileHeight = outputFileHeight;
             mOutputFrameSize = outputFileWidth * outputFileHeight * 3 / 2;
-            mOutputFrameBuffer = ByteBuffer.allocateDirect(mOutputFrameSize);
+            mScratchFrame = new RawFrame(mOutputFrameSize);
+            mPendingFrames.clear();
+            mFreeFrames.clear();
+            for (int i = 0; i < PENDING_FRAME_POOL_SIZE; i++) {
+                mFreeFrames.add(new RawFrame(mOutputFrameSize));
+            }
+            mDroppedFramesCount = 0;
+            mEncodedFramesCount = 0L;
+            mLastPresentationTimeUs = 0L;
+            if (mTargetFrameRate > 0) {
+                mFrameRateNormalizer = new FrameRateNormalizer(mTargetFrameRate);
+                mLastRawFrame = new RawFrame(mOutputFrameSize);
+            } else {
+                mFrameRateNormalizer = null;
+                mLastRawFrame = null;
+            }
+            mLastRawFrameValid = false;
+            synchronized (mFrameQueueLock) {
+                mQueuedFramesCount = 0L;
+                mQueueDroppedFramesCount = 0L;
+                mSkippingFrames = false;
+                mKeyFrameRequested = false;
+            }
+            mMuxerStarted = false;
             mVideoOutFile = new FileOutputStream(outputFile);
             mRenderThread = new HandlerThread("VideoFileRenderer");
             mRenderThread.start();
@@ -89,13 +163,19 @@ public class VideoFileRenderer implements VideoRenderer.Callbacks {
             if (properties == null) {
                 throw new RuntimeException("Can not find HW encoder for " + mimeType);
             } else {
-                int fps = 15;
+                if (!properties.isSizeSupported(outputFileWidth, outputFileHeight)) {
+                    Logging.w(TAG, "Output size " + outputFileWidth + "x" + outputFileHeight
+                            + " exceeds encoder max " + properties.maxWidth + "x" + properties.maxHeight);
+                }
+                // 未归一化时帧率只是给码率控制的参考值，实际时间戳取帧的到达时间
+                int fps = mTargetFrameRate > 0 ? mTargetFrameRate : 15;
                 if (properties.bitrateAdjustmentType == MediaCodecVideoEncoderUtil.BitrateAdjustmentType.FRAMERATE_ADJUSTMENT) {
                     fps = 30;
                 } else {
                     fps = Math.min(fps, 30);
                 }
-                mMediaCodec = MediaCodec.createEncoderByType(mimeType);
+                // 颜色格式是按具体编码器查到的，必须用同一个编码器
+                mMediaCodec = MediaCodec.createByCodecName(properties.codecName);
                 MediaFormat mediaFormat = MediaFormat.createVideoFormat(mimeType,
                         outputFileWidth, outputFileHeight);
                 mediaFormat.setInteger(MediaFormat.KEY_WIDTH, outputFileWidth);
@@ -106,6 +186,7 @@ public class VideoFileRenderer implements VideoRenderer.Callbacks {
                 mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 20);
                 mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
                 mMediaCodec.start();
+                setupInputLayout(properties.colorFormat);
 
                 mMediaMuxer = new MediaMuxer(outputFile, mMuxType);
 
@@ -115,6 +196,9 @@ public class VideoFileRenderer implements VideoRenderer.Callbacks {
                         mEglBase.createDummyPbufferSurface();
                         mEglBase.makeCurrent();
                         mYuvConverter = new YuvConverter();
+                        // 帧率归一化需要当前帧立即可用，不能延迟一帧
+                        boolean async = mYuvConverter.setAsyncReadback(mAsyncReadback && mFrameRateNormalizer == null);
+                        Logging.d(TAG, "Texture readback: " + (async ? "async" : "sync"));
                     }
                 });
 
@@ -131,71 +215,449 @@ public class VideoFileRenderer implements VideoRenderer.Callbacks {
             mIsFirstRender = false;
             onRecorderStart();
         }
-        if (mRenderThread.isAlive()) {
-            mRenderThreadHandler.post(new Runnable() {
-                public void run() {
-                    renderFrameOnRenderThread(frame);
+        if (!mIsRecording || mRenderThread == null || !mRenderThread.isAlive()) {
+            VideoRenderer.renderFrameDone(frame);
+            return;
+        }
+        // 以到达时间作为时间戳，与MediaRecordController的音视频使用同一个时钟
+        long arrivalTimeUs = System.nanoTime() / 1000L;
+        VideoRenderer.I420Frame droppedFrame = null;
+        synchronized (mFrameQueueLock) {
+            if (mSkippingFrames) {
+                if (mFrameQueue.isEmpty()) {
+                    mSkippingFrames = false;
+                    mKeyFrameRequested = true;
+                } else {
+                    droppedFrame = frame;
                 }
-            });
+            }
+            if (droppedFrame == null) {
+                if (mFrameQueue.size() >= mFrameQueueCapacity) {
+                    if (mFrameDropPolicy == FrameDropPolicy.SKIP_TO_KEY_FRAME) {
+                        droppedFrame = frame;
+                        mSkippingFrames = true;
+                    } else {
+                        QueuedFrame oldest = mFrameQueue.pollFirst();
+                        droppedFrame = oldest.mFrame;
+                        oldest.mFrame = null;
+                        mFreeQueuedFrames.addLast(oldest);
+                    }
+                }
+                if (droppedFrame != frame) {
+                    QueuedFrame queued = mFreeQueuedFrames.pollFirst();
+                    if (queued == null) {
+                        queued = new QueuedFrame();
+                    }
+                    queued.mFrame = frame;
+                    queued.mArrivalTimeUs = arrivalTimeUs;
+                    mFrameQueue.addLast(queued);
+                    mQueuedFramesCount++;
+                }
+            }
+            if (droppedFrame != null) {
+                mQueueDroppedFramesCount++;
+            }
+        }
+        // 丢弃的帧立即释放，不占用WebRtc解码器的buffer
+        if (droppedFrame != null) {
+            VideoRenderer.renderFrameDone(droppedFrame);
+        }
+        if (mDrainFramesPosted.compareAndSet(false, true)
+                && !mRenderThreadHandler.post(mDrainFramesRunnable)) {
+            // 渲染线程已经退出
+            mDrainFramesPosted.set(false);
+            clearFrameQueue();
         }
     }
 
-    private void renderFrameOnRenderThread(VideoRenderer.I420Frame frame) {
-        float frameAspectRatio = (float) frame.rotatedWidth() / (float) frame.rotatedHeight();
-        float[] rotatedSamplingMatrix = RendererCommon.rotateTextureMatrix(frame.samplingMatrix, (float) frame.rotationDegree);
-        float[] layoutMatrix = RendererCommon.getLayoutMatrix(false, frameAspectRatio,
-                (float) mOutputFileWidth / (float) mOutputFileHeight);
-        float[] texMatrix = RendererCommon.multiplyMatrices(rotatedSamplingMatrix, layoutMatrix);
+    private final Runnable mDrainFramesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mDrainFramesPosted.set(false);
+            while (true) {
+                VideoRenderer.I420Frame frame;
+                long arrivalTimeUs;
+                boolean keyFrame;
+                synchronized (mFrameQueueLock) {
+                    QueuedFrame queued = mFrameQueue.pollFirst();
+                    if (queued == null) {
+                        break;
+                    }
+                    frame = queued.mFrame;
+                    arrivalTimeUs = queued.mArrivalTimeUs;
+                    queued.mFrame = null;
+                    mFreeQueuedFrames.addLast(queued);
+                    keyFrame = mKeyFrameRequested;
+                    mKeyFrameRequested = false;
+                }
+                if (mMediaCodec == null) {
+                    VideoRenderer.renderFrameDone(frame);
+                    continue;
+                }
+                if (keyFrame) {
+                    requestKeyFrame();
+                }
+                renderFrameOnRenderThread(frame, arrivalTimeUs);
+            }
+            long now = System.currentTimeMillis();
+            if (now - mLastStatsTimeMs >= STATS_INTERVAL_MS) {
+                mLastStatsTimeMs = now;
+                onRecorderStats();
+            }
+        }
+    };
+
+    private void requestKeyFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mMediaCodec.setParameters(params);
+    }
+
+    /**
+     * 释放队列中还没有编码的帧
+     */
+    private void clearFrameQueue() {
+        while (true) {
+            VideoRenderer.I420Frame frame;
+            synchronized (mFrameQueueLock) {
+                QueuedFrame queued = mFrameQueue.pollFirst();
+                if (queued == null) {
+                    return;
+                }
+                frame = queued.mFrame;
+                queued.mFrame = null;
+                mFreeQueuedFrames.addLast(queued);
+                mQueueDroppedFramesCount++;
+            }
+            VideoRenderer.renderFrameDone(frame);
+        }
+    }
+
+    /**
+     * 设置录制的目标帧率，需在startRecord之前设置。
+     * 大于0时按目标帧率的时间槽补帧(重复上一帧)或丢帧；默认0，按帧的到达时间编码(可变帧率)。
+     */
+    public void setTargetFrameRate(int fps) {
+        mTargetFrameRate = Math.max(0, fps);
+    }
+
+    /**
+     * 纹理帧是否使用异步读回(GLES3 PBO)，需在startRecord之前设置。
+     * 开启后第N帧读回时编码第N-1帧，多一帧延迟但渲染线程不用等待GPU；GLES3不可用或开启了帧率归一化时仍为同步读回
+     */
+    public void setAsyncReadback(boolean async) {
+        mAsyncReadback = async;
+    }
+
+    /**
+     * 最近一个纹理帧的读回耗时，没有纹理帧时为0
+     */
+    public long getLastReadbackTimeNs() {
+        return mLastReadbackTimeNs;
+    }
+
+    public long getAverageReadbackTimeNs() {
+        return mAverageReadbackTimeNs;
+    }
+
+    /**
+     * 设置帧队列的长度和队列满时的处理策略
+     */
+    public void setFrameQueuePolicy(int capacity, FrameDropPolicy policy) {
+        synchronized (mFrameQueueLock) {
+            mFrameQueueCapacity = Math.max(1, capacity);
+            mFrameDropPolicy = policy == null ? FrameDropPolicy.DROP_OLDEST : policy;
+        }
+    }
+
+    /**
+     * 每帧最多一次拷贝：
+     * 编码器有空闲输入buffer且布局与I420一致时，yuv帧直接缩放进输入buffer；
+     * 否则先缩放/读回到中转帧，再按编码器的布局拷贝进输入buffer；
+     * 没有空闲输入buffer时读回到预分配的暂存帧，等有空闲输入buffer时再拷贝进去，暂存帧用完时丢弃最旧的一帧。
+     * <p>
+     * 开启帧率归一化时，每帧都读回到mLastRawFrame，补帧时重复提交上一帧。
+     */
+    private void renderFrameOnRenderThread(VideoRenderer.I420Frame frame, long arrivalTimeUs) {
         try {
-            ByteBuffer buffer = nativeCreateNativeByteBuffer(mOutputFrameSize);
-            if (frame.yuvFrame) {
-                Logging.d(TAG, "renderFrameOnRenderThread frame is yuvFrame");
-                nativeI420Scale(frame.yuvPlanes[0], frame.yuvStrides[0], frame.yuvPlanes[1],
-                        frame.yuvStrides[1], frame.yuvPlanes[2], frame.yuvStrides[2],
-                        frame.width, frame.height, mOutputFrameBuffer,
-                        mOutputFileWidth, mOutputFileHeight);
-                buffer.put(mOutputFrameBuffer.array(), mOutputFrameBuffer.arrayOffset(), mOutputFrameSize);
-
-                /** Test Code (not correct) begin **/
-//                nativeI420Scale(frame.yuvPlanes[0], frame.yuvStrides[0], frame.yuvPlanes[1],
-//                        frame.yuvStrides[1], frame.yuvPlanes[2], frame.yuvStrides[2],
-//                        frame.width, frame.height, mOutputFrameBuffer,
-//                        mOutputFileWidth, mOutputFileHeight);
-//                mYuvConverter.yuvRotate90(mOutputFrameBuffer, buffer, mOutputFileWidth,
-//                        mOutputFileHeight);
-
-//                ByteBuffer byteBuffer = ByteBuffer.allocateDirect(frame.width * frame.height * 3 / 2);
-//                mYuvConverter.scaleYuvAndRotate90(byteBuffer, frame.yuvPlanes[0],
-//                        frame.yuvPlanes[1], frame.yuvPlanes[2],
-//                        frame.width, frame.height);
-//                buffer.put(byteBuffer.array(), byteBuffer.arrayOffset(), frame.width * frame.height * 3 / 2);
-                /** Test Code (not correct) end **/
+            feedPendingFrames();
+            FrameRateNormalizer normalizer = mFrameRateNormalizer;
+            if (normalizer != null) {
+                if (!normalizer.onFrame(arrivalTimeUs)) {
+                    return;
+                }
+                // 两帧间隔较大时先用上一帧补齐中间的时间槽
+                if (mLastRawFrameValid) {
+                    for (int i = 0; i < normalizer.getRepeatCount(); i++) {
+                        submitRawFrame(mLastRawFrame, normalizer.getRepeatTimeUs(i));
+                    }
+                }
+                renderRawFrame(frame, mLastRawFrame);
+                mLastRawFrameValid = true;
+                submitRawFrame(mLastRawFrame, nextPresentationTimeUs(normalizer.getFrameTimeUs()));
+            } else if (!frame.yuvFrame && mYuvConverter.isAsyncReadback()) {
+                // 异步读回得到的是上一个纹理帧，时间戳随帧一起带回
+                long readyTimeUs = renderTextureFrameAsync(frame, mScratchFrame, arrivalTimeUs);
+                if (readyTimeUs >= 0) {
+                    submitRawFrame(mScratchFrame, readyTimeUs);
+                }
             } else {
-                Logging.d(TAG, "renderFrameOnRenderThread frame is not yuvFrame");
-                mYuvConverter.convert(mOutputFrameBuffer, mOutputFileWidth,
-                        mOutputFileHeight, mOutputFileWidth, frame.textureId, texMatrix);
-                buffer.put(mOutputFrameBuffer.array(), mOutputFrameBuffer.arrayOffset(), mOutputFrameSize);
-//                int stride = mOutputFileWidth;
-//                byte[] data = mOutputFrameBuffer.array();
-//                int offset = mOutputFrameBuffer.arrayOffset();
-//                buffer.put(data, offset, mOutputFileWidth * mOutputFileHeight);
-//                int r;
-//                for (r = mOutputFileHeight; r < mOutputFileHeight * 3 / 2; ++r) {
-//                    buffer.put(data, offset + r * stride, stride / 2);
-//                }
-//                for (r = mOutputFileHeight; r < mOutputFileHeight * 3 / 2; ++r) {
-//                    buffer.put(data, offset + r * stride + stride / 2, stride / 2);
-//                }
+                long presentationTimeUs = nextPresentationTimeUs(arrivalTimeUs);
+                int index = mPendingFrames.isEmpty() ? mMediaCodec.dequeueInputBuffer(0) : -1;
+                if (index >= 0) {
+                    ByteBuffer inputBuffer = getCodecInputBuffer(index);
+                    inputBuffer.clear();
+                    int size;
+                    if (frame.yuvFrame && isInputTightI420()) {
+                        nativeI420Scale(frame.yuvPlanes[0], frame.yuvStrides[0], frame.yuvPlanes[1],
+                                frame.yuvStrides[1], frame.yuvPlanes[2], frame.yuvStrides[2],
+                                frame.width, frame.height, inputBuffer,
+                                mOutputFileWidth, mOutputFileHeight);
+                        size = mOutputFrameSize;
+                    } else {
+                        renderRawFrame(frame, mScratchFrame);
+                        size = copyToInputBuffer(mScratchFrame, inputBuffer);
+                    }
+                    mMediaCodec.queueInputBuffer(index, 0, size, presentationTimeUs, 0);
+                } else {
+                    RawFrame pending = obtainPendingFrame();
+                    renderRawFrame(frame, pending);
+                    pending.mPresentationTimeUs = presentationTimeUs;
+                    mPendingFrames.addLast(pending);
+                }
             }
             mRawFramesCount++;
-            buffer.rewind();
-            writeFrameBufferToFile(buffer, frame.yuvFrame);
-            nativeFreeNativeByteBuffer(buffer);
+            drainEncoder();
         } finally {
             VideoRenderer.renderFrameDone(frame);
         }
     }
 
+    /**
+     * 时间戳必须严格递增
+     */
+    private long nextPresentationTimeUs(long timeUs) {
+        if (timeUs <= mLastPresentationTimeUs) {
+            timeUs = mLastPresentationTimeUs + 1;
+        }
+        mLastPresentationTimeUs = timeUs;
+        return timeUs;
+    }
+
+    /**
+     * 提交一个已读回的帧：有空闲输入buffer时直接拷贝进去，否则拷贝到暂存帧
+     */
+    private void submitRawFrame(RawFrame raw, long presentationTimeUs) {
+        presentationTimeUs = nextPresentationTimeUs(presentationTimeUs);
+        int index = mPendingFrames.isEmpty() ? mMediaCodec.dequeueInputBuffer(0) : -1;
+        if (index >= 0) {
+            ByteBuffer inputBuffer = getCodecInputBuffer(index);
+            inputBuffer.clear();
+            int size = copyToInputBuffer(raw, inputBuffer);
+            mMediaCodec.queueInputBuffer(index, 0, size, presentationTimeUs, 0);
+        } else {
+            RawFrame pending = obtainPendingFrame();
+            ByteBuffer src = raw.mData.duplicate();
+            src.clear();
+            pending.mData.clear();
+            pending.mData.put(src);
+            pending.mData.clear();
+            pending.mConverterLayout = raw.mConverterLayout;
+            pending.mPresentationTimeUs = presentationTimeUs;
+            mPendingFrames.addLast(pending);
+        }
+    }
+
+    private RawFrame obtainPendingFrame() {
+        RawFrame pending = mFreeFrames.pollFirst();
+        if (pending == null) {
+            pending = mPendingFrames.pollFirst();
+            mDroppedFramesCount++;
+        }
+        return pending;
+    }
+
+    /**
+     * 把帧缩放(yuv帧)或读回(纹理帧)到raw中，不做布局转换
+     */
+    private void renderRawFrame(VideoRenderer.I420Frame frame, RawFrame raw) {
+        raw.mData.clear();
+        if (frame.yuvFrame) {
+            nativeI420Scale(frame.yuvPlanes[0], frame.yuvStrides[0], frame.yuvPlanes[1],
+                    frame.yuvStrides[1], frame.yuvPlanes[2], frame.yuvStrides[2],
+                    frame.width, frame.height, raw.mData,
+                    mOutputFileWidth, mOutputFileHeight);
+            raw.mConverterLayout = false;
+        } else {
+            mYuvConverter.convert(raw.mData, mOutputFileWidth,
+                    mOutputFileHeight, mOutputFileWidth, frame.textureId, getTextureMatrix(frame));
+            raw.mConverterLayout = true;
+            updateReadbackTime();
+        }
+    }
+
+    /**
+     * 发起纹理帧的异步读回，并把上一个纹理帧读回到raw中
+     *
+     * @return raw中的帧的到达时间，没有可用的帧时返回-1
+     */
+    private long renderTextureFrameAsync(VideoRenderer.I420Frame frame, RawFrame raw, long arrivalTimeUs) {
+        raw.mData.clear();
+        long readyTimeUs = mYuvConverter.convertAsync(raw.mData, mOutputFileWidth, mOutputFileHeight,
+                mOutputFileWidth, frame.textureId, getTextureMatrix(frame), arrivalTimeUs);
+        raw.mConverterLayout = true;
+        updateReadbackTime();
+        return readyTimeUs;
+    }
+
+    /**
+     * 停止录制时取出还在异步读回中的最后一帧
+     */
+    private void flushAsyncReadback() {
+        if (mYuvConverter == null || !mYuvConverter.isAsyncReadback()) {
+            return;
+        }
+        mScratchFrame.mData.clear();
+        long readyTimeUs = mYuvConverter.flushAsync(mScratchFrame.mData);
+        if (readyTimeUs >= 0) {
+            mScratchFrame.mConverterLayout = true;
+            submitRawFrame(mScratchFrame, readyTimeUs);
+            feedPendingFrames();
+            drainEncoder();
+        }
+    }
+
+    private float[] getTextureMatrix(VideoRenderer.I420Frame frame) {
+        float frameAspectRatio = (float) frame.rotatedWidth() / (float) frame.rotatedHeight();
+        float[] rotatedSamplingMatrix = RendererCommon.rotateTextureMatrix(frame.samplingMatrix,
+                (float) frame.rotationDegree);
+        float[] layoutMatrix = RendererCommon.getLayoutMatrix(false, frameAspectRatio,
+                (float) mOutputFileWidth / (float) mOutputFileHeight);
+        return RendererCommon.multiplyMatrices(rotatedSamplingMatrix, layoutMatrix);
+    }
+
+    private void updateReadbackTime() {
+        mLastReadbackTimeNs = mYuvConverter.getLastReadbackTimeNs();
+        mAverageReadbackTimeNs = mYuvConverter.getAverageReadbackTimeNs();
+    }
+
+    /**
+     * 把暂存的帧按顺序送入空闲的编码器输入buffer
+     */
+    private void feedPendingFrames() {
+        while (!mPendingFrames.isEmpty()) {
+            int index = mMediaCodec.dequeueInputBuffer(0);
+            if (index < 0) {
+                return;
+            }
+            RawFrame pending = mPendingFrames.pollFirst();
+            ByteBuffer inputBuffer = getCodecInputBuffer(index);
+            inputBuffer.clear();
+            int size = copyToInputBuffer(pending, inputBuffer);
+            mMediaCodec.queueInputBuffer(index, 0, size, pending.mPresentationTimeUs, 0);
+            mFreeFrames.addLast(pending);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private ByteBuffer getCodecInputBuffer(int index) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return mMediaCodec.getInputBuffer(index);
+        }
+        return mMediaCodec.getInputBuffers()[index];
+    }
+
+    private void setupInputLayout(int colorFormat) {
+        // Google/IMG的Flexible编码器在ByteBuffer输入时按I420处理
+        mInputPlanar = colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar
+                || colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible;
+        mInputStride = mOutputFileWidth;
+        mInputSliceHeight = mOutputFileHeight;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            MediaFormat inputFormat = mMediaCodec.getInputFormat();
+            if (inputFormat.containsKey("stride")) {
+                mInputStride = Math.max(mOutputFileWidth, inputFormat.getInteger("stride"));
+            }
+            if (inputFormat.containsKey("slice-height")) {
+                mInputSliceHeight = Math.max(mOutputFileHeight, inputFormat.getInteger("slice-height"));
+            }
+        }
+        Logging.d(TAG, "encoder input color format:0x" + Integer.toHexString(colorFormat)
+                + ", planar:" + mInputPlanar + ", stride:" + mInputStride
+                + ", sliceHeight:" + mInputSliceHeight);
+    }
+
+    private boolean isInputTightI420() {
+        return mInputPlanar && mInputStride == mOutputFileWidth && mInputSliceHeight == mOutputFileHeight;
+    }
+
+    /**
+     * 按编码器的输入布局(I420或NV12，带stride/sliceHeight)拷贝一帧，这是每帧唯一的一次拷贝
+     *
+     * @return 写入的字节数
+     */
+    private int copyToInputBuffer(RawFrame raw, ByteBuffer dst) {
+        int width = mOutputFileWidth;
+        int height = mOutputFileHeight;
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int dstStride = mInputStride;
+        int dstSliceHeight = mInputSliceHeight;
+        int frameSize = dstStride * dstSliceHeight * 3 / 2;
+        if (frameSize > dst.capacity()) {
+            // 编码器报告的对齐方式放不下，退回紧凑布局
+            dstStride = width;
+            dstSliceHeight = height;
+            frameSize = mOutputFrameSize;
+        }
+        ByteBuffer src = raw.mData;
+        // YuvConverter的输出中U、V并排在同一行，行宽为width
+        int srcChromaStride = raw.mConverterLayout ? width : chromaWidth;
+        int srcU = width * height;
+        int srcV = raw.mConverterLayout ? srcU + chromaWidth : srcU + chromaWidth * chromaHeight;
+
+        copyPlane(src, 0, width, dst, 0, dstStride, width, height);
+        int dstChroma = dstStride * dstSliceHeight;
+        if (mInputPlanar) {
+            int dstChromaStride = dstStride / 2;
+            int dstV = dstChroma + dstChromaStride * (dstSliceHeight / 2);
+            copyPlane(src, srcU, srcChromaStride, dst, dstChroma, dstChromaStride, chromaWidth, chromaHeight);
+            copyPlane(src, srcV, srcChromaStride, dst, dstV, dstChromaStride, chromaWidth, chromaHeight);
+        } else {
+            for (int row = 0; row < chromaHeight; row++) {
+                int u = srcU + row * srcChromaStride;
+                int v = srcV + row * srcChromaStride;
+                int d = dstChroma + row * dstStride;
+                for (int col = 0; col < chromaWidth; col++) {
+                    dst.put(d + 2 * col, src.get(u + col));
+                    dst.put(d + 2 * col + 1, src.get(v + col));
+                }
+            }
+        }
+        dst.clear();
+        return frameSize;
+    }
+
+    private static void copyPlane(ByteBuffer src, int srcOffset, int srcStride,
+                                  ByteBuffer dst, int dstOffset, int dstStride, int width, int height) {
+        ByteBuffer srcView = src.duplicate();
+        if (srcStride == width && dstStride == width) {
+            srcView.limit(srcOffset + width * height).position(srcOffset);
+            dst.limit(dstOffset + width * height).position(dstOffset);
+            dst.put(srcView);
+            dst.clear();
+            return;
+        }
+        for (int row = 0; row < height; row++) {
+            int s = srcOffset + row * srcStride;
+            int d = dstOffset + row * dstStride;
+            srcView.limit(s + width).position(s);
+            dst.limit(d + width).position(d);
+            dst.put(srcView);
+        }
+        dst.clear();
+    }
+
 //    private void writeFrameBufferToFile(final ByteBuffer buffer) {
 //        try {
 //            mVideoOutFile.write("FRAME\n".getBytes());
@@ -252,46 +714,42 @@ public class VideoFileRenderer implements VideoRenderer.Callbacks {
 //        nativeFreeNativeByteBuffer(buffer);
 //    }
 
-    private void writeFrameBufferToFile(final ByteBuffer buffer, boolean isYUVFrame) {
-        ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
-        ByteBuffer[] outputBuffers = mMediaCodec.getOutputBuffers();
-        int inputBufferIndex = mMediaCodec.dequeueInputBuffer(0);
-        if (inputBufferIndex >= 0) {
-            ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
-            inputBuffer.clear();
-            inputBuffer.put(buffer);
-            mMediaCodec.queueInputBuffer(inputBufferIndex, 0, mOutputFrameSize,
-                    1000000 * mRawFramesCount / 20, 0);
-        }
-        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private void drainEncoder() {
         while (mIsRecording) {
-            int encoderStatus = mMediaCodec.dequeueOutputBuffer(bufferInfo, 50);
+            int encoderStatus = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 0);
             if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                Logging.d(TAG, "encoderStatus INFO_TRY_AGAIN_LATER");
+                return;
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                 Logging.d(TAG, "encoderStatus INFO_OUTPUT_BUFFERS_CHANGED");
-                outputBuffers = mMediaCodec.getOutputBuffers();
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                 Logging.d(TAG, "encoderStatus INFO_OUTPUT_FORMAT_CHANGED");
                 MediaFormat newFormat = mMediaCodec.getOutputFormat();
                 newFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 1920 * 1080);
-                newFormat.setInteger(MediaFormat.KEY_CAPTURE_RATE, 15);
                 mVideoTrackIndex = mMediaMuxer.addTrack(newFormat);
                 mMediaMuxer.start();
+                mMuxerStarted = true;
             } else if (encoderStatus < 0) {
                 Logging.d(TAG, "encoderStatus < 0");
             } else {
-                Logging.d(TAG, "encoderStatus write bufferInfo.flags :" + bufferInfo.flags + ", bufferInfo.size: " + bufferInfo.size);
-                ByteBuffer encodedData = outputBuffers[encoderStatus];
-                if (bufferInfo.size != 0) {
-                    mMediaMuxer.writeSampleData(mVideoTrackIndex, encodedData, bufferInfo);
+                ByteBuffer encodedData = getCodecOutputBuffer(encoderStatus);
+                if (mBufferInfo.size != 0 && mMuxerStarted
+                        && (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    mMediaMuxer.writeSampleData(mVideoTrackIndex, encodedData, mBufferInfo);
+                    mEncodedFramesCount++;
                 }
                 mMediaCodec.releaseOutputBuffer(encoderStatus, false);
-                break;
             }
         }
     }
 
+    @SuppressWarnings("deprecation")
+    private ByteBuffer getCodecOutputBuffer(int index) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return mMediaCodec.getOutputBuffer(index);
+        }
+        return mMediaCodec.getOutputBuffers()[index];
+    }
+
     public void startRecord(String outputFile, int outputFileWidth, int outputFileHeight) {
         try {
             setupRecorder(outputFile, outputFileWidth, outputFileHeight);
@@ -316,6 +774,15 @@ public class VideoFileRenderer implements VideoRenderer.Callbacks {
         mClient.removeVideoRender(VideoFileRenderer.this);
         mRenderThreadHandler.post(new Runnable() {
             public void run() {
+                clearFrameQueue();
+                try {
+                    flushAsyncReadback();
+                } catch (RuntimeException e) {
+                    Logging.e(TAG, "Flush async readback failed", e);
+                }
+                if (mListener != null) {
+                    onRecorderStats();
+                }
                 try {
                     mMediaCodec.flush();
                     mMediaCodec.release();
@@ -333,8 +800,14 @@ public class VideoFileRenderer implements VideoRenderer.Callbacks {
                             onRecorderComplete();
                             Logging.d(TAG, "Video written to disk as "
                                     + mOutputFileName + ". Number frames are "
-                                    + mRawFramesCount + " and the dimension of the frames are "
-                                    + mOutputFileWidth + "x" + mOutputFileHeight + ".");
+                                    + mRawFramesCount + " (" + mDroppedFramesCount
+                                    + " dropped) and the dimension of the frames are "
+                                    + mOutputFileWidth + "x" + mOutputFileHeight + "."
+                                    + (mFrameRateNormalizer != null ? " Normalized to "
+                                    + mTargetFrameRate + " fps, repeated "
+                                    + mFrameRateNormalizer.getRepeatedFramesCount() + ", skipped "
+                                    + mFrameRateNormalizer.getDroppedFramesCount() + "." : "")
+                                    + " Average readback time " + mAverageReadbackTimeNs / 1000 + " us.");
                         }
                     }
                 } catch (IOException e) {
@@ -360,6 +833,7 @@ public class VideoFileRenderer implements VideoRenderer.Callbacks {
         }
         mRenderThreadHandler.post(new Runnable() {
             public void run() {
+                clearFrameQueue();
                 try {
                     if (mMediaCodec != null) {
                         mMediaCodec.flush();
@@ -415,6 +889,27 @@ public class VideoFileRenderer implements VideoRenderer.Callbacks {
         });
     }
 
+    private void onRecorderStats() {
+        if (mListener == null) {
+            return;
+        }
+        final long queued;
+        final long dropped;
+        synchronized (mFrameQueueLock) {
+            queued = mQueuedFramesCount;
+            dropped = mQueueDroppedFramesCount + mDroppedFramesCount;
+        }
+        final long encoded = mEncodedFramesCount;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) {
+                    mListener.onRecorderStats(queued, dropped, encoded);
+                }
+            }
+        });
+    }
+
     private void onRecorderError() {
         mMainHandler.post(new Runnable() {
             @Override
@@ -424,6 +919,24 @@ public class VideoFileRenderer implements VideoRenderer.Callbacks {
         });
     }
 
+    private static class QueuedFrame {
+        VideoRenderer.I420Frame mFrame;
+        long mArrivalTimeUs;
+    }
+
+    /**
+     * 预分配的一帧，raw布局为I420或YuvConverter的输出布局
+     */
+    private static class RawFrame {
+        final ByteBuffer mData;
+        boolean mConverterLayout;
+        long mPresentationTimeUs;
+
+        RawFrame(int size) {
+            mData = ByteBuffer.allocateDirect(size);
+        }
+    }
+
     public void setRecorderListener(IRecorderListener listener) {
         mListener = listener;
     }
@@ -436,5 +949,14 @@ public class VideoFileRenderer implements VideoRenderer.Callbacks {
         void onRecorderComplete();
 
         void onRecorderError();
+
+        /**
+         * 周期性(约每秒)和结束录制时回调
+         *
+         * @param queuedFrames  进入帧队列的帧数
+         * @param droppedFrames 因队列满或编码器来不及而丢弃的帧数
+         * @param encodedFrames 编码后写入文件的帧数
+         */
+        void onRecorderStats(long queuedFrames, long droppedFrames, long encodedFrames);
     }
 }
@@ -1,10 +1,14 @@
 package com.pine.rtc.org.lib;
 
+import android.annotation.TargetApi;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
 
 import org.webrtc.GlShader;
 import org.webrtc.GlTextureFrameBuffer;
 import org.webrtc.GlUtil;
+import org.webrtc.Logging;
 import org.webrtc.RendererCommon;
 import org.webrtc.ThreadUtils;
 
@@ -16,6 +20,11 @@ import java.nio.FloatBuffer;
  */
 
 public class YuvConverter {
+    private static final String TAG = "YuvConverter";
+    // 异步读回的PBO个数，读回延迟一帧
+    private static final int PBO_COUNT = 2;
+    // 读回耗时的指数平均系数
+    private static final float READBACK_TIME_ALPHA = 0.1f;
     private static final FloatBuffer DEVICE_RECTANGLE =
             GlUtil.createFloatBuffer(new float[]{-1.0F, -1.0F, 1.0F, -1.0F, -1.0F, 1.0F, 1.0F, 1.0F});
     private static final FloatBuffer TEXTURE_RECTANGLE =
@@ -29,6 +38,20 @@ public class YuvConverter {
     private final int mCoeffsLoc;
     private final ThreadUtils.ThreadChecker mThreadChecker = new ThreadUtils.ThreadChecker();
     private boolean mReleased = false;
+    private final YuvKernels mYuvKernels = new YuvKernels(null);
+
+    // 异步读回(GLES3 PBO)：第N帧开始读回时取出第N-1帧的数据
+    private boolean mAsyncReadback;
+    private boolean mAsyncSupported;
+    private int[] mPbos;
+    private final long[] mPboTags = new long[PBO_COUNT];
+    private int mPboSize;
+    private int mPboWidth;
+    private int mPboHeight;
+    private int mPboIndex;
+    private int mPendingPboCount;
+    private long mLastReadbackTimeNs;
+    private float mAverageReadbackTimeNs;
 
     public YuvConverter() {
         this.mThreadChecker.checkIsOnValidThread();
@@ -41,9 +64,185 @@ public class YuvConverter {
         GLES20.glUniform1i(this.mShader.getUniformLocation("oesTex"), 0);
         this.mShader.setVertexAttribArray("in_pos", 2, DEVICE_RECTANGLE);
         this.mShader.setVertexAttribArray("in_tc", 2, TEXTURE_RECTANGLE);
+        // 按offset读回到PBO的glReadPixels在API 24才有Java接口
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        this.mAsyncSupported = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                && version != null && version.startsWith("OpenGL ES 3");
+    }
+
+    /**
+     * 开启异步读回，GLES3不可用时仍为同步读回
+     *
+     * @return 是否真正开启了异步读回
+     */
+    public boolean setAsyncReadback(boolean async) {
+        this.mThreadChecker.checkIsOnValidThread();
+        if (!async || !this.mAsyncSupported) {
+            releasePbos();
+            this.mAsyncReadback = false;
+        } else {
+            this.mAsyncReadback = true;
+        }
+        return this.mAsyncReadback;
+    }
+
+    public boolean isAsyncReadback() {
+        return this.mAsyncReadback;
+    }
+
+    /**
+     * 最近一帧读回(同步时为glReadPixels，异步时为发起读回+映射上一帧+拷贝)在渲染线程中的耗时
+     */
+    public long getLastReadbackTimeNs() {
+        return this.mLastReadbackTimeNs;
+    }
+
+    public long getAverageReadbackTimeNs() {
+        return (long) this.mAverageReadbackTimeNs;
     }
 
     public void convert(ByteBuffer buf, int width, int height, int stride, int srcTextureId, float[] transformMatrix) {
+        int size = drawYuv(width, height, stride, srcTextureId, transformMatrix);
+        if (buf.capacity() < size) {
+            throw new IllegalArgumentException("YuvConverter.convert called with too small buffer");
+        }
+        long start = System.nanoTime();
+        GLES20.glReadPixels(0, 0, stride / 4, size / stride, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
+        GlUtil.checkNoGLES2Error("YuvConverter.convert");
+        recordReadbackTime(System.nanoTime() - start);
+        unbind();
+    }
+
+    /**
+     * 异步转换：发起本帧的读回，并把上一帧的结果拷贝到buf。未开启异步读回时等同于convert
+     *
+     * @param tag 本帧的标记(例如时间戳)，随读回结果一起返回
+     * @return 写入buf的帧的tag，没有可用的帧(第一帧)时返回-1
+     */
+    @TargetApi(Build.VERSION_CODES.N)
+    public long convertAsync(ByteBuffer buf, int width, int height, int stride, int srcTextureId,
+                             float[] transformMatrix, long tag) {
+        if (!this.mAsyncReadback) {
+            convert(buf, width, height, stride, srcTextureId, transformMatrix);
+            return tag;
+        }
+        int size = drawYuv(width, height, stride, srcTextureId, transformMatrix);
+        if (buf.capacity() < size) {
+            throw new IllegalArgumentException("YuvConverter.convert called with too small buffer");
+        }
+        long start = System.nanoTime();
+        if (!ensurePbos(size, stride / 4, size / stride)) {
+            // PBO不可用，退回同步读回
+            GLES20.glReadPixels(0, 0, stride / 4, size / stride, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
+            GlUtil.checkNoGLES2Error("YuvConverter.convert");
+            recordReadbackTime(System.nanoTime() - start);
+            unbind();
+            return tag;
+        }
+        int index = this.mPboIndex;
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, this.mPbos[index]);
+        GLES30.glReadPixels(0, 0, this.mPboWidth, this.mPboHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        this.mPboTags[index] = tag;
+        this.mPboIndex = (index + 1) % PBO_COUNT;
+        long result = -1L;
+        if (this.mPendingPboCount == PBO_COUNT - 1) {
+            // 环满，取出最早的一帧(即上一帧)
+            result = mapPbo((index + 1) % PBO_COUNT, buf);
+        } else {
+            this.mPendingPboCount++;
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GlUtil.checkNoGLES2Error("YuvConverter.convertAsync");
+        recordReadbackTime(System.nanoTime() - start);
+        unbind();
+        return result;
+    }
+
+    /**
+     * 取出还在PBO中的最后一帧，停止录制前调用
+     *
+     * @return 写入buf的帧的tag，没有时返回-1
+     */
+    @TargetApi(Build.VERSION_CODES.N)
+    public long flushAsync(ByteBuffer buf) {
+        this.mThreadChecker.checkIsOnValidThread();
+        if (this.mPbos == null || this.mPendingPboCount == 0) {
+            return -1L;
+        }
+        int index = (this.mPboIndex - this.mPendingPboCount + PBO_COUNT) % PBO_COUNT;
+        long result = mapPbo(index, buf);
+        this.mPendingPboCount--;
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        return result;
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private long mapPbo(int index, ByteBuffer buf) {
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, this.mPbos[index]);
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0,
+                this.mPboSize, GLES30.GL_MAP_READ_BIT);
+        if (mapped == null) {
+            Logging.e(TAG, "glMapBufferRange failed: " + GLES20.glGetError());
+            return -1L;
+        }
+        buf.clear();
+        mapped.limit(this.mPboSize);
+        buf.put(mapped);
+        buf.clear();
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        return this.mPboTags[index];
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private boolean ensurePbos(int size, int width, int height) {
+        if (this.mPbos != null && this.mPboSize == size && this.mPboWidth == width && this.mPboHeight == height) {
+            return true;
+        }
+        // 尺寸变化时丢弃还没取出的帧
+        releasePbos();
+        int[] pbos = new int[PBO_COUNT];
+        GLES30.glGenBuffers(PBO_COUNT, pbos, 0);
+        for (int i = 0; i < PBO_COUNT; i++) {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pbos[i]);
+            GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        int error = GLES20.glGetError();
+        if (error != GLES20.GL_NO_ERROR) {
+            // GLES2上下文不支持PBO，以后都用同步读回
+            Logging.w(TAG, "PBO not available, error: " + error + ", fall back to glReadPixels");
+            GLES30.glDeleteBuffers(PBO_COUNT, pbos, 0);
+            this.mAsyncReadback = false;
+            this.mAsyncSupported = false;
+            return false;
+        }
+        this.mPbos = pbos;
+        this.mPboSize = size;
+        this.mPboWidth = width;
+        this.mPboHeight = height;
+        this.mPboIndex = 0;
+        this.mPendingPboCount = 0;
+        return true;
+    }
+
+    private void releasePbos() {
+        if (this.mPbos != null) {
+            GLES20.glDeleteBuffers(PBO_COUNT, this.mPbos, 0);
+            this.mPbos = null;
+        }
+        this.mPendingPboCount = 0;
+    }
+
+    private void recordReadbackTime(long timeNs) {
+        this.mLastReadbackTimeNs = timeNs;
+        this.mAverageReadbackTimeNs = this.mAverageReadbackTimeNs == 0f ? timeNs
+                : this.mAverageReadbackTimeNs + (timeNs - this.mAverageReadbackTimeNs) * READBACK_TIME_ALPHA;
+    }
+
+    /**
+     * 把纹理转换为YUV画到帧缓冲区中，返回结果的字节数，调用后帧缓冲区保持绑定
+     */
+    private int drawYuv(int width, int height, int stride, int srcTextureId, float[] transformMatrix) {
         this.mThreadChecker.checkIsOnValidThread();
         if (this.mReleased) {
             throw new IllegalStateException("YuvConverter.convert called on released object");
@@ -51,110 +250,65 @@ public class YuvConverter {
             throw new IllegalArgumentException("Invalid stride, must be a multiple of 8");
         } else if (stride < width) {
             throw new IllegalArgumentException("Invalid stride, must >= width");
-        } else {
-            int y_width = (width + 3) / 4;
-            int uv_width = (width + 7) / 8;
-            int uv_height = (height + 1) / 2;
-            int total_height = height + uv_height;
-            int size = stride * total_height;
-            if (buf.capacity() < size) {
-                throw new IllegalArgumentException("YuvConverter.convert called with too small buffer");
-            } else {
-                transformMatrix = RendererCommon.multiplyMatrices(transformMatrix, RendererCommon.verticalFlipMatrix());
-                int frameBufferWidth = stride / 4;
-                this.mTextureFrameBuffer.setSize(frameBufferWidth, total_height);
-                GLES20.glBindFramebuffer('赀', this.mTextureFrameBuffer.getFrameBufferId());
-                GlUtil.checkNoGLES2Error("glBindFramebuffer");
-                GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-                GLES20.glBindTexture('赥', srcTextureId);
-                GLES20.glUniformMatrix4fv(this.mTexMatrixLoc, 1, false, transformMatrix, 0);
-                GLES20.glViewport(0, 0, y_width, height);
-                GLES20.glUniform2f(this.mXUnitLoc, transformMatrix[0] / (float) width, transformMatrix[1] / (float) width);
-                GLES20.glUniform4f(this.mCoeffsLoc, 0.299F, 0.587F, 0.114F, 0.0F);
-                GLES20.glDrawArrays(5, 0, 4);
-                GLES20.glViewport(0, height, uv_width, uv_height);
-                GLES20.glUniform2f(this.mXUnitLoc, 2.0F * transformMatrix[0] / (float) width, 2.0F * transformMatrix[1] / (float) width);
-                GLES20.glUniform4f(this.mCoeffsLoc, -0.169F, -0.331F, 0.499F, 0.5F);
-                GLES20.glDrawArrays(5, 0, 4);
-                GLES20.glViewport(stride / 8, height, uv_width, uv_height);
-                GLES20.glUniform4f(this.mCoeffsLoc, 0.499F, -0.418F, -0.0813F, 0.5F);
-                GLES20.glDrawArrays(5, 0, 4);
-                GLES20.glReadPixels(0, 0, frameBufferWidth, total_height, 6408, 5121, buf);
-                GlUtil.checkNoGLES2Error("YuvConverter.convert");
-                GLES20.glBindFramebuffer('赀', 0);
-                GLES20.glBindTexture(3553, 0);
-                GLES20.glBindTexture('赥', 0);
-            }
         }
+        int y_width = (width + 3) / 4;
+        int uv_width = (width + 7) / 8;
+        int uv_height = (height + 1) / 2;
+        int total_height = height + uv_height;
+        int size = stride * total_height;
+        transformMatrix = RendererCommon.multiplyMatrices(transformMatrix, RendererCommon.verticalFlipMatrix());
+        int frameBufferWidth = stride / 4;
+        this.mTextureFrameBuffer.setSize(frameBufferWidth, total_height);
+        GLES20.glBindFramebuffer('赀', this.mTextureFrameBuffer.getFrameBufferId());
+        GlUtil.checkNoGLES2Error("glBindFramebuffer");
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture('赥', srcTextureId);
+        GLES20.glUniformMatrix4fv(this.mTexMatrixLoc, 1, false, transformMatrix, 0);
+        GLES20.glViewport(0, 0, y_width, height);
+        GLES20.glUniform2f(this.mXUnitLoc, transformMatrix[0] / (float) width, transformMatrix[1] / (float) width);
+        GLES20.glUniform4f(this.mCoeffsLoc, 0.299F, 0.587F, 0.114F, 0.0F);
+        GLES20.glDrawArrays(5, 0, 4);
+        GLES20.glViewport(0, height, uv_width, uv_height);
+        GLES20.glUniform2f(this.mXUnitLoc, 2.0F * transformMatrix[0] / (float) width, 2.0F * transformMatrix[1] / (float) width);
+        GLES20.glUniform4f(this.mCoeffsLoc, -0.169F, -0.331F, 0.499F, 0.5F);
+        GLES20.glDrawArrays(5, 0, 4);
+        GLES20.glViewport(stride / 8, height, uv_width, uv_height);
+        GLES20.glUniform4f(this.mCoeffsLoc, 0.499F, -0.418F, -0.0813F, 0.5F);
+        GLES20.glDrawArrays(5, 0, 4);
+        return size;
     }
 
-    /**
-     * Test Code (not correct) begin
-     **/
+    private void unbind() {
+        GLES20.glBindFramebuffer('赀', 0);
+        GLES20.glBindTexture(3553, 0);
+        GLES20.glBindTexture('赥', 0);
+    }
 
+    /**
+     * 紧凑排列的I420顺时针旋转90度，desBuffer中为height x width的I420
+     */
     public void yuvRotate90(ByteBuffer srcBuffer, ByteBuffer desBuffer, int width, int height) {
-        int size = width * height;
-        int n = 0;
-        int pos = 0;
-        //copy y
-        for (int j = 0; j < width; j++) {
-            pos = size;
-            for (int i = height - 1; i >= 0; i--) {
-                pos -= width;
-                desBuffer.put(n++, srcBuffer.get(pos + j));
-            }
-        }
-        int hw = width >> 1;
-        int hh = height >> 1;
-        int hSize = size >> 2;
-        //copy uv
-        int m = n + hSize;
-        for (int j = 0; j < hw; j++) {
-            pos = hSize;
-            for (int i = hh - 1; i >= 0; i--) {
-                pos -= hw;
-                desBuffer.put(n++, srcBuffer.get(size + pos + j));
-                desBuffer.put(m++, srcBuffer.get(size + pos + j + hSize));
-            }
-        }
+        mYuvKernels.rotate(YuvKernels.Image.wrapI420(srcBuffer, width, height),
+                YuvKernels.Image.wrapI420(desBuffer, height, width), 90);
     }
 
+    /**
+     * 把分开的Y/U/V平面(stride分别为width、width/2)顺时针旋转90度写入desBuffer
+     */
     public void scaleYuvAndRotate90(ByteBuffer desBuffer, ByteBuffer yBuffer, ByteBuffer uBuffer,
                                     ByteBuffer vBuffer, int width, int height) {
-        int size = width * height;
-        int n = 0;
-        int pos = 0;
-        //copy y
-        for (int j = 0; j < width; j++) {
-            pos = size;
-            for (int i = height - 1; i >= 0; i--) {
-                pos -= width;
-                desBuffer.put(n++, yBuffer.get(pos + j));
-            }
-        }
-        int hw = width >> 1;
-        int hh = height >> 1;
-        int hSize = size >> 2;
-        //copy uv
-        int m = n + hSize;
-        for (int j = 0; j < hw; j++) {
-            pos = hSize;
-            for (int i = hh - 1; i >= 0; i--) {
-                pos -= hw;
-                desBuffer.put(n++, uBuffer.get(pos + j));
-                desBuffer.put(m++, vBuffer.get(pos + j));
-            }
-        }
+        YuvKernels.Image src = new YuvKernels.Image(YuvKernels.FORMAT_I420, width, height,
+                new YuvKernels.Plane(yBuffer, 0, width),
+                new YuvKernels.Plane(uBuffer, 0, width / 2),
+                new YuvKernels.Plane(vBuffer, 0, width / 2));
+        mYuvKernels.rotate(src, YuvKernels.Image.wrapI420(desBuffer, height, width), 90);
         desBuffer.rewind();
     }
 
-    /**
-     * Test Code (not correct) end
-     **/
-
     public void release() {
         this.mThreadChecker.checkIsOnValidThread();
         this.mReleased = true;
+        releasePbos();
         this.mShader.release();
         this.mTextureFrameBuffer.release();
     }
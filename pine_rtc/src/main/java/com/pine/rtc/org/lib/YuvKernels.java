@@ -0,0 +1,605 @@
+package com.pine.rtc.org.lib;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 纯Java的I420/NV12处理：旋转90/180/270、水平镜像、裁剪、双线性/区域平均缩放。
+ * <p>
+ * 每个平面由Plane描述(byte[]或ByteBuffer + offset + stride)，支持带stride的数据。
+ * 旋转按TILE_SIZE x TILE_SIZE的块处理：整块按行批量读入线程私有的块缓冲区，在缓冲区内转置后再按行批量写出，
+ * 读写都是连续内存，避免原来逐列逐字节get/put(index)导致的缓存失效。NV12的UV平面按2字节一个元素处理。
+ * <p>
+ * 构造时传入ForkJoinPool则按行带拆分到多个线程，为null时在调用线程中完成。
+ * src和dst不能重叠。实例本身无状态，可以在多个线程中同时使用(ForkJoinPool需要Android 5.0)。
+ */
+public class YuvKernels {
+    public static final int FORMAT_I420 = 0;
+    public static final int FORMAT_NV12 = 1;
+
+    public static final int FILTER_BILINEAR = 0;
+    public static final int FILTER_BOX = 1;
+
+    // 块越大每次批量get/put的调用开销占比越小，128x128的输入和输出块合计32KB(NV12的UV为64KB)
+    private static final int TILE_SIZE = 128;
+    // 每个并行任务至少处理的像素行数
+    private static final int MIN_ROWS_PER_TASK = 64;
+    private static final int MIN_TILE_ROWS_PER_TASK = Math.max(1, MIN_ROWS_PER_TASK / TILE_SIZE);
+    private static final int FIXED_SHIFT = 16;
+    private static final int FIXED_ONE = 1 << FIXED_SHIFT;
+
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private final ForkJoinPool mPool;
+
+    public YuvKernels(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * 一个平面。array和buffer二选一，buffer可以是direct buffer
+     */
+    public static class Plane {
+        final byte[] mArray;
+        final ByteBuffer mBuffer;
+        final int mOffset;
+        final int mStride;
+
+        public Plane(byte[] array, int offset, int stride) {
+            mArray = array;
+            mBuffer = null;
+            mOffset = offset;
+            mStride = stride;
+        }
+
+        public Plane(ByteBuffer buffer, int offset, int stride) {
+            if (buffer.hasArray()) {
+                mArray = buffer.array();
+                mBuffer = null;
+                mOffset = buffer.arrayOffset() + offset;
+            } else {
+                mArray = null;
+                mBuffer = buffer;
+                mOffset = offset;
+            }
+            mStride = stride;
+        }
+
+        /**
+         * 每个任务取一个独立的视图，读写时只改视图的position，不影响调用者的buffer
+         */
+        ByteBuffer view() {
+            if (mBuffer == null) {
+                return null;
+            }
+            ByteBuffer view = mBuffer.duplicate();
+            view.clear();
+            return view;
+        }
+
+        void readRow(ByteBuffer view, int x, int y, byte[] dst, int dstOffset, int length) {
+            int pos = mOffset + y * mStride + x;
+            if (mArray != null) {
+                System.arraycopy(mArray, pos, dst, dstOffset, length);
+            } else {
+                view.position(pos);
+                view.get(dst, dstOffset, length);
+            }
+        }
+
+        void writeRow(ByteBuffer view, int x, int y, byte[] src, int srcOffset, int length) {
+            int pos = mOffset + y * mStride + x;
+            if (mArray != null) {
+                System.arraycopy(src, srcOffset, mArray, pos, length);
+            } else {
+                view.position(pos);
+                view.put(src, srcOffset, length);
+            }
+        }
+
+        Plane offset(int x, int y) {
+            return mArray != null ? new Plane(mArray, mOffset + y * mStride + x, mStride)
+                    : new Plane(mBuffer, mOffset + y * mStride + x, mStride);
+        }
+    }
+
+    /**
+     * 一帧I420(y/u/v三个平面)或NV12(y/uv两个平面，v为null)
+     */
+    public static class Image {
+        public final int format;
+        public final int width;
+        public final int height;
+        final Plane mY;
+        final Plane mU;
+        final Plane mV;
+
+        public Image(int format, int width, int height, Plane y, Plane u, Plane v) {
+            if ((width & 1) != 0 || (height & 1) != 0) {
+                throw new IllegalArgumentException("width and height must be even");
+            }
+            if (format == FORMAT_I420 && v == null) {
+                throw new IllegalArgumentException("I420 needs a V plane");
+            }
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            mY = y;
+            mU = u;
+            mV = v;
+        }
+
+        /**
+         * 紧凑排列的I420，stride为width
+         */
+        public static Image wrapI420(ByteBuffer data, int width, int height) {
+            int ySize = width * height;
+            return new Image(FORMAT_I420, width, height, new Plane(data, 0, width),
+                    new Plane(data, ySize, width / 2), new Plane(data, ySize + ySize / 4, width / 2));
+        }
+
+        public static Image wrapI420(byte[] data, int width, int height) {
+            int ySize = width * height;
+            return new Image(FORMAT_I420, width, height, new Plane(data, 0, width),
+                    new Plane(data, ySize, width / 2), new Plane(data, ySize + ySize / 4, width / 2));
+        }
+
+        /**
+         * NV12，Y和UV平面的stride都为stride，UV平面从stride * sliceHeight开始
+         */
+        public static Image wrapNV12(ByteBuffer data, int width, int height, int stride, int sliceHeight) {
+            return new Image(FORMAT_NV12, width, height, new Plane(data, 0, stride),
+                    new Plane(data, stride * sliceHeight, stride), null);
+        }
+
+        public static Image wrapNV12(byte[] data, int width, int height, int stride, int sliceHeight) {
+            return new Image(FORMAT_NV12, width, height, new Plane(data, 0, stride),
+                    new Plane(data, stride * sliceHeight, stride), null);
+        }
+
+        int chromaElementSize() {
+            return format == FORMAT_NV12 ? 2 : 1;
+        }
+    }
+
+    /**
+     * 顺时针旋转，dst的宽高在90/270时与src互换
+     */
+    public void rotate(Image src, Image dst, int degrees) {
+        checkFormat(src, dst);
+        degrees = ((degrees % 360) + 360) % 360;
+        boolean swap = degrees == 90 || degrees == 270;
+        if ((swap ? dst.width != src.height || dst.height != src.width
+                : dst.width != src.width || dst.height != src.height)) {
+            throw new IllegalArgumentException("dst size does not match rotation");
+        }
+        int cw = src.width / 2;
+        int ch = src.height / 2;
+        int es = src.chromaElementSize();
+        rotatePlane(src.mY, dst.mY, src.width, src.height, 1, degrees);
+        rotatePlane(src.mU, dst.mU, cw, ch, es, degrees);
+        if (src.mV != null) {
+            rotatePlane(src.mV, dst.mV, cw, ch, 1, degrees);
+        }
+    }
+
+    /**
+     * 水平镜像
+     */
+    public void mirror(Image src, Image dst) {
+        checkFormat(src, dst);
+        checkSameSize(src, dst);
+        mirrorPlane(src.mY, dst.mY, src.width, src.height, 1, false);
+        mirrorPlane(src.mU, dst.mU, src.width / 2, src.height / 2, src.chromaElementSize(), false);
+        if (src.mV != null) {
+            mirrorPlane(src.mV, dst.mV, src.width / 2, src.height / 2, 1, false);
+        }
+    }
+
+    /**
+     * 把src中(x, y)开始的dst.width x dst.height区域拷贝到dst，x、y必须为偶数
+     */
+    public void crop(Image src, int x, int y, Image dst) {
+        checkFormat(src, dst);
+        if ((x & 1) != 0 || (y & 1) != 0 || x < 0 || y < 0
+                || x + dst.width > src.width || y + dst.height > src.height) {
+            throw new IllegalArgumentException("invalid crop rect");
+        }
+        int es = src.chromaElementSize();
+        copyPlane(src.mY.offset(x, y), dst.mY, dst.width, dst.height);
+        copyPlane(src.mU.offset(x / 2 * es, y / 2), dst.mU, dst.width / 2 * es, dst.height / 2);
+        if (src.mV != null) {
+            copyPlane(src.mV.offset(x / 2, y / 2), dst.mV, dst.width / 2, dst.height / 2);
+        }
+    }
+
+    /**
+     * 缩放到dst的大小
+     *
+     * @param filter FILTER_BILINEAR或FILTER_BOX(区域平均，适合缩小)
+     */
+    public void scale(Image src, Image dst, int filter) {
+        checkFormat(src, dst);
+        int es = src.chromaElementSize();
+        scalePlane(src.mY, src.width, src.height, dst.mY, dst.width, dst.height, 1, filter);
+        scalePlane(src.mU, src.width / 2, src.height / 2, dst.mU, dst.width / 2, dst.height / 2, es, filter);
+        if (src.mV != null) {
+            scalePlane(src.mV, src.width / 2, src.height / 2, dst.mV, dst.width / 2, dst.height / 2, 1, filter);
+        }
+    }
+
+    private static void checkFormat(Image src, Image dst) {
+        if (src.format != dst.format) {
+            throw new IllegalArgumentException("src and dst format differ");
+        }
+    }
+
+    private static void checkSameSize(Image src, Image dst) {
+        if (src.width != dst.width || src.height != dst.height) {
+            throw new IllegalArgumentException("src and dst size differ");
+        }
+    }
+
+    private void run(RowTask task, int rows) {
+        run(task, rows, MIN_ROWS_PER_TASK);
+    }
+
+    /**
+     * 在[0, rows)上执行task，有线程池且行数足够时拆分并行，每个任务至少minRows行
+     */
+    private void run(RowTask task, int rows, int minRows) {
+        if (mPool == null || rows < minRows * 2) {
+            task.run(0, rows);
+        } else {
+            mPool.invoke(new RowAction(task, 0, rows, minRows));
+        }
+    }
+
+    private void rotatePlane(final Plane src, final Plane dst, final int width, final int height,
+                             final int es, final int degrees) {
+        if (degrees == 0) {
+            copyPlane(src, dst, width * es, height);
+            return;
+        }
+        if (degrees == 180) {
+            mirrorPlane(src, dst, width, height, es, true);
+            return;
+        }
+        // 按块行拆分，每个任务处理若干整块行
+        int tileRows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        run(new RowTask() {
+            @Override
+            public void run(int start, int end) {
+                ByteBuffer srcView = src.view();
+                ByteBuffer dstView = dst.view();
+                Scratch scratch = SCRATCH.get();
+                byte[] in = scratch.tile(0, TILE_SIZE * TILE_SIZE * es);
+                byte[] out = scratch.tile(1, TILE_SIZE * TILE_SIZE * es);
+                for (int tr = start; tr < end; tr++) {
+                    int ty = tr * TILE_SIZE;
+                    int th = Math.min(TILE_SIZE, height - ty);
+                    for (int tx = 0; tx < width; tx += TILE_SIZE) {
+                        int tw = Math.min(TILE_SIZE, width - tx);
+                        for (int r = 0; r < th; r++) {
+                            src.readRow(srcView, tx * es, ty + r, in, r * tw * es, tw * es);
+                        }
+                        int dx;
+                        int dy;
+                        if (degrees == 90) {
+                            transpose90(in, out, tw, th, es);
+                            dx = height - ty - th;
+                            dy = tx;
+                        } else {
+                            transpose270(in, out, tw, th, es);
+                            dx = ty;
+                            dy = width - tx - tw;
+                        }
+                        // 转置后的块宽th高tw
+                        for (int r = 0; r < tw; r++) {
+                            dst.writeRow(dstView, dx * es, dy + r, out, r * th * es, th * es);
+                        }
+                    }
+                }
+            }
+        }, tileRows, MIN_TILE_ROWS_PER_TASK);
+    }
+
+    /**
+     * 顺时针90度：in(r, c) -> out(c, th - 1 - r)
+     */
+    private static void transpose90(byte[] in, byte[] out, int tw, int th, int es) {
+        if (es == 1) {
+            for (int r = 0; r < th; r++) {
+                int src = r * tw;
+                int dst = th - 1 - r;
+                for (int c = 0; c < tw; c++) {
+                    out[dst + c * th] = in[src + c];
+                }
+            }
+        } else {
+            for (int r = 0; r < th; r++) {
+                int src = r * tw * 2;
+                int dst = (th - 1 - r) * 2;
+                int dstStride = th * 2;
+                for (int c = 0; c < tw; c++) {
+                    out[dst + c * dstStride] = in[src + 2 * c];
+                    out[dst + c * dstStride + 1] = in[src + 2 * c + 1];
+                }
+            }
+        }
+    }
+
+    /**
+     * 顺时针270度：in(r, c) -> out(tw - 1 - c, r)
+     */
+    private static void transpose270(byte[] in, byte[] out, int tw, int th, int es) {
+        if (es == 1) {
+            for (int r = 0; r < th; r++) {
+                int src = r * tw;
+                for (int c = 0; c < tw; c++) {
+                    out[(tw - 1 - c) * th + r] = in[src + c];
+                }
+            }
+        } else {
+            int dstStride = th * 2;
+            for (int r = 0; r < th; r++) {
+                int src = r * tw * 2;
+                for (int c = 0; c < tw; c++) {
+                    int dst = (tw - 1 - c) * dstStride + r * 2;
+                    out[dst] = in[src + 2 * c];
+                    out[dst + 1] = in[src + 2 * c + 1];
+                }
+            }
+        }
+    }
+
+    /**
+     * 按行反转元素顺序，flipVertical为true时同时上下翻转(即旋转180度)
+     */
+    private void mirrorPlane(final Plane src, final Plane dst, final int width, final int height,
+                             final int es, final boolean flipVertical) {
+        run(new RowTask() {
+            @Override
+            public void run(int start, int end) {
+                ByteBuffer srcView = src.view();
+                ByteBuffer dstView = dst.view();
+                Scratch scratch = SCRATCH.get();
+                int rowBytes = width * es;
+                byte[] in = scratch.row(0, rowBytes);
+                byte[] out = scratch.row(1, rowBytes);
+                for (int y = start; y < end; y++) {
+                    src.readRow(srcView, 0, y, in, 0, rowBytes);
+                    if (es == 1) {
+                        for (int x = 0, last = width - 1; x < width; x++) {
+                            out[last - x] = in[x];
+                        }
+                    } else {
+                        for (int x = 0, last = (width - 1) * 2; x < width; x++) {
+                            out[last - 2 * x] = in[2 * x];
+                            out[last - 2 * x + 1] = in[2 * x + 1];
+                        }
+                    }
+                    dst.writeRow(dstView, 0, flipVertical ? height - 1 - y : y, out, 0, rowBytes);
+                }
+            }
+        }, height);
+    }
+
+    private void copyPlane(final Plane src, final Plane dst, final int rowBytes, final int height) {
+        run(new RowTask() {
+            @Override
+            public void run(int start, int end) {
+                ByteBuffer srcView = src.view();
+                ByteBuffer dstView = dst.view();
+                byte[] row = SCRATCH.get().row(0, rowBytes);
+                for (int y = start; y < end; y++) {
+                    src.readRow(srcView, 0, y, row, 0, rowBytes);
+                    dst.writeRow(dstView, 0, y, row, 0, rowBytes);
+                }
+            }
+        }, height);
+    }
+
+    private void scalePlane(final Plane src, final int sw, final int sh, final Plane dst,
+                            final int dw, final int dh, final int es, final int filter) {
+        if (sw == dw && sh == dh) {
+            copyPlane(src, dst, sw * es, sh);
+            return;
+        }
+        if (filter == FILTER_BOX) {
+            scalePlaneBox(src, sw, sh, dst, dw, dh, es);
+            return;
+        }
+        final int[] xIndex = new int[dw];
+        final int[] xWeight = new int[dw];
+        for (int x = 0; x < dw; x++) {
+            int fx = toSourceCoordinate(x, sw, dw);
+            int ix = Math.min(fx >> FIXED_SHIFT, sw - 1);
+            xIndex[x] = ix;
+            xWeight[x] = ix >= sw - 1 ? 0 : toWeight(fx);
+        }
+        run(new RowTask() {
+            @Override
+            public void run(int start, int end) {
+                ByteBuffer srcView = src.view();
+                ByteBuffer dstView = dst.view();
+                Scratch scratch = SCRATCH.get();
+                byte[] row0 = scratch.row(0, sw * es);
+                byte[] row1 = scratch.row(1, sw * es);
+                byte[] out = scratch.row(2, dw * es);
+                int loaded0 = -1;
+                int loaded1 = -1;
+                for (int y = start; y < end; y++) {
+                    int fy = toSourceCoordinate(y, sh, dh);
+                    int y0 = Math.min(fy >> FIXED_SHIFT, sh - 1);
+                    int y1 = Math.min(y0 + 1, sh - 1);
+                    int wy = y0 == y1 ? 0 : toWeight(fy);
+                    if (loaded0 != y0) {
+                        if (loaded1 == y0) {
+                            byte[] t = row0;
+                            row0 = row1;
+                            row1 = t;
+                            loaded1 = -1;
+                        } else {
+                            src.readRow(srcView, 0, y0, row0, 0, sw * es);
+                        }
+                        loaded0 = y0;
+                    }
+                    if (loaded1 != y1) {
+                        src.readRow(srcView, 0, y1, row1, 0, sw * es);
+                        loaded1 = y1;
+                    }
+                    for (int x = 0; x < dw; x++) {
+                        int ix = xIndex[x];
+                        int ix1 = Math.min(ix + 1, sw - 1);
+                        int wx = xWeight[x];
+                        for (int c = 0; c < es; c++) {
+                            int p00 = row0[ix * es + c] & 0xff;
+                            int p01 = row0[ix1 * es + c] & 0xff;
+                            int p10 = row1[ix * es + c] & 0xff;
+                            int p11 = row1[ix1 * es + c] & 0xff;
+                            int top = (p00 << 8) + (p01 - p00) * wx;
+                            int bottom = (p10 << 8) + (p11 - p10) * wx;
+                            int value = (top << 8) + (bottom - top) * wy;
+                            out[x * es + c] = (byte) ((value + (1 << 15)) >> 16);
+                        }
+                    }
+                    dst.writeRow(dstView, 0, y, out, 0, dw * es);
+                }
+            }
+        }, dh);
+    }
+
+    /**
+     * dst第i个像素中心在src中的16.16定点坐标，每个像素单独计算，不累加步长的截断误差
+     */
+    private static int toSourceCoordinate(int i, int srcSize, int dstSize) {
+        long center = ((2L * i + 1) * srcSize << FIXED_SHIFT) / (2L * dstSize);
+        return (int) Math.max(0L, center - (FIXED_ONE >> 1));
+    }
+
+    /**
+     * 定点坐标的小数部分四舍五入为8bit权重[0, 256]
+     */
+    private static int toWeight(int fixed) {
+        return ((fixed & (FIXED_ONE - 1)) + (1 << 7)) >> 8;
+    }
+
+    /**
+     * 区域平均：dst的每个像素为src中对应矩形区域的平均值，放大时退化为最近邻
+     */
+    private void scalePlaneBox(final Plane src, final int sw, final int sh, final Plane dst,
+                               final int dw, final int dh, final int es) {
+        final int[] xStart = new int[dw + 1];
+        for (int x = 0; x <= dw; x++) {
+            xStart[x] = (int) ((long) x * sw / dw);
+        }
+        run(new RowTask() {
+            @Override
+            public void run(int start, int end) {
+                ByteBuffer srcView = src.view();
+                ByteBuffer dstView = dst.view();
+                Scratch scratch = SCRATCH.get();
+                byte[] row = scratch.row(0, sw * es);
+                byte[] out = scratch.row(1, dw * es);
+                int[] sums = scratch.sums(dw * es);
+                for (int y = start; y < end; y++) {
+                    int y0 = (int) ((long) y * sh / dh);
+                    int y1 = Math.max(y0 + 1, (int) ((long) (y + 1) * sh / dh));
+                    for (int i = 0; i < dw * es; i++) {
+                        sums[i] = 0;
+                    }
+                    for (int sy = y0; sy < y1; sy++) {
+                        src.readRow(srcView, 0, sy, row, 0, sw * es);
+                        for (int x = 0; x < dw; x++) {
+                            int x0 = xStart[x];
+                            int x1 = Math.max(x0 + 1, xStart[x + 1]);
+                            for (int c = 0; c < es; c++) {
+                                int sum = 0;
+                                for (int sx = x0; sx < x1; sx++) {
+                                    sum += row[sx * es + c] & 0xff;
+                                }
+                                sums[x * es + c] += sum;
+                            }
+                        }
+                    }
+                    int rows = y1 - y0;
+                    for (int x = 0; x < dw; x++) {
+                        int count = (Math.max(xStart[x] + 1, xStart[x + 1]) - xStart[x]) * rows;
+                        for (int c = 0; c < es; c++) {
+                            out[x * es + c] = (byte) ((sums[x * es + c] + count / 2) / count);
+                        }
+                    }
+                    dst.writeRow(dstView, 0, y, out, 0, dw * es);
+                }
+            }
+        }, dh);
+    }
+
+    private interface RowTask {
+        void run(int start, int end);
+    }
+
+    private static class RowAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RowTask mTask;
+        private final int mStart;
+        private final int mEnd;
+        private final int mMinRows;
+
+        RowAction(RowTask task, int start, int end, int minRows) {
+            mTask = task;
+            mStart = start;
+            mEnd = end;
+            mMinRows = minRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart < mMinRows * 2) {
+                mTask.run(mStart, mEnd);
+                return;
+            }
+            int mid = (mStart + mEnd) >>> 1;
+            invokeAll(new RowAction(mTask, mStart, mid, mMinRows),
+                    new RowAction(mTask, mid, mEnd, mMinRows));
+        }
+    }
+
+    /**
+     * 线程私有的行/块缓冲区，按需增大后复用
+     */
+    private static class Scratch {
+        private final byte[][] mRows = new byte[3][];
+        private final byte[][] mTiles = new byte[2][];
+        private int[] mSums;
+
+        byte[] row(int index, int size) {
+            if (mRows[index] == null || mRows[index].length < size) {
+                mRows[index] = new byte[size];
+            }
+            return mRows[index];
+        }
+
+        byte[] tile(int index, int size) {
+            if (mTiles[index] == null || mTiles[index].length < size) {
+                mTiles[index] = new byte[size];
+            }
+            return mTiles[index];
+        }
+
+        int[] sums(int size) {
+            if (mSums == null || mSums.length < size) {
+                mSums = new int[size];
+            }
+            return mSums;
+        }
+    }
+}
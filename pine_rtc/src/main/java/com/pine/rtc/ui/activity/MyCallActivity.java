@@ -31,8 +31,11 @@ import androidx.annotation.RequiresApi;
 import com.pine.rtc.R;
 import com.pine.rtc.controller.MediaProjectionScreenShot;
 import com.pine.rtc.controller.MediaRecordController;
+import com.pine.rtc.controller.RecordingStorage;
+import com.pine.rtc.controller.SharedScreenCapturer;
 import com.pine.rtc.org.component.AppRTCAudioManager;
 import com.pine.rtc.org.component.AppRTCClient;
+import com.pine.rtc.org.component.CpuMonitor;
 import com.pine.rtc.org.component.DirectRTCClient;
 import com.pine.rtc.org.component.PeerConnectionClient;
 import com.pine.rtc.org.component.UnhandledExceptionHandler;
@@ -123,6 +126,8 @@ public class MyCallActivity extends Activity implements AppRTCClient.SignalingEv
     private static final int MEDIA_PROJECTION_REQUEST_CODE = 1;
     // Peer connection statistics callback period in ms.
     private static final int STAT_CALLBACK_PERIOD = 1000;
+    // 录制前按这个时长估算文件大小，用于检查空间和预分配
+    private static final long RECORD_PLANNED_DURATION_MS = 10L * 60L * 1000L;
     private final int MSG_TIME_TICK = 1;
 
     public static final String EXTRA_NEED_CHECK_AUDIO_RECORDER = "check_audio_recorder";
@@ -155,11 +160,14 @@ public class MyCallActivity extends Activity implements AppRTCClient.SignalingEv
     // True if local view is in the fullscreen renderer.
     private boolean mIsSwappedFeeds;
     private MediaRecordController mMediaRecordController;
+    private CpuMonitor mCpuMonitor;
     private MyCallFragment mMyCallFragment;
     private String mRoomId;
     private boolean mIsRecording;
     private MediaProjection mMediaProjection;
     private MediaProjectionScreenShot mMediaProjectionScreenShot;
+    // 屏幕共享时通话和录屏共用的屏幕采集
+    private SharedScreenCapturer mSharedScreenCapturer;
     private String mRemoteVideoFilePath;
 
     private TextView recordTimeText;
@@ -322,7 +330,7 @@ public class MyCallActivity extends Activity implements AppRTCClient.SignalingEv
             mAppRtcClient = new WebSocketRTCClient(this);
         } else {
             Log.i(TAG, "Using DirectRTCClient because room name looks like an IP.");
-            mAppRtcClient = new DirectRTCClient(this);
+            mAppRtcClient = new DirectRTCClient(this, true);
         }
 
         String urlParameters = intent.getStringExtra(EXTRA_URLPARAMETERS);
@@ -343,6 +351,9 @@ public class MyCallActivity extends Activity implements AppRTCClient.SignalingEv
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             mMediaRecordController = MediaRecordController.getInstance();
             mMediaRecordController.onCreate();
+            // 录屏码率根据CPU占用自适应
+            mCpuMonitor = new CpuMonitor(this);
+            mMediaRecordController.setCpuMonitor(mCpuMonitor);
         }
         startCall();
     }
@@ -371,6 +382,11 @@ public class MyCallActivity extends Activity implements AppRTCClient.SignalingEv
                     }
                     setupMediaProjectionScreenShot();
                     setupMediaRecordController();
+                    // 提前测量存储的写入速度，开始录制时据此决定码率
+                    RecordingStorage.probeAsync(file.getParentFile());
+                    if (mSharedScreenCapturer != null) {
+                        mSharedScreenCapturer.setMediaProjection(mMediaProjection);
+                    }
                     mMyCallFragment.enableSupportButtons(true, true);
                     return;
                 }
@@ -392,7 +408,7 @@ public class MyCallActivity extends Activity implements AppRTCClient.SignalingEv
 
                         @Override
                         public void onSaveFinish(String filePath) {
-                            String msg = "截图已经保存在 " + filePath;
+                            String msg = filePath == null ? "截图保存失败" : "截图已经保存在 " + filePath;
                             Toast.makeText(MyCallActivity.this, msg, Toast.LENGTH_SHORT).show();
                         }
                     }, mMediaProjection);
@@ -421,6 +437,7 @@ public class MyCallActivity extends Activity implements AppRTCClient.SignalingEv
                     });
                 }
             }, mMediaProjection);
+            mMediaRecordController.setSharedCapturer(mSharedScreenCapturer);
         }
     }
 
@@ -515,8 +532,13 @@ public class MyCallActivity extends Activity implements AppRTCClient.SignalingEv
         }
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             if (mMediaRecordController != null) {
+                mMediaRecordController.setCpuMonitor(null);
+                mMediaRecordController.setSharedCapturer(null);
                 mMediaRecordController.release(true);
             }
+            if (mCpuMonitor != null) {
+                mCpuMonitor.pause();
+            }
         }
         mHandler.removeMessages(MSG_TIME_TICK);
         super.onDestroy();
@@ -622,6 +644,12 @@ public class MyCallActivity extends Activity implements AppRTCClient.SignalingEv
 //                }
 //
 //                @Override
+//                public void onRecorderStats(long queuedFrames, long droppedFrames, long encodedFrames) {
+//                    Log.d(TAG, "recorder queued:" + queuedFrames + ", dropped:" + droppedFrames
+//                            + ", encoded:" + encodedFrames);
+//                }
+//
+//                @Override
 //                public void onRecorderError() {
 //                    mIsRecording = false;
 //                    mInterViewFragment.onRecorderChange(false);
@@ -724,6 +752,12 @@ public class MyCallActivity extends Activity implements AppRTCClient.SignalingEv
 
     private VideoCapturer createVideoCapturer() {
         VideoCapturer videoCapturer = null;
+        if (mScreenCaptureEnabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // MediaProjection在通话连通后才申请，拿到后再设置给采集
+            Logging.d(TAG, "Creating shared screen capturer.");
+            mSharedScreenCapturer = new SharedScreenCapturer(mRootEglBase.getEglBaseContext());
+            return mSharedScreenCapturer;
+        }
         if (useCamera2()) {
             Logging.d(TAG, "Creating capturer using camera2 API.");
             videoCapturer = createCameraCapturer(new Camera2Enumerator(this));
@@ -764,8 +798,8 @@ public class MyCallActivity extends Activity implements AppRTCClient.SignalingEv
 
     @Override
     public void onScreenCapture() {
-        if (mMediaProjectionScreenShot != null) {
-            mMediaProjectionScreenShot.startScreenShot();
+        if (mMediaProjectionScreenShot != null && !mMediaProjectionScreenShot.startScreenShot()) {
+            Toast.makeText(MyCallActivity.this, "截图过于频繁，请稍后再试", Toast.LENGTH_SHORT).show();
         }
 
         /** For EglRenderScreenShot(Another way of Screenshot) begin **/
@@ -823,16 +857,27 @@ public class MyCallActivity extends Activity implements AppRTCClient.SignalingEv
 
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     private void startRecorder() {
-        if (DeviceInfoUtil.getSDAvailableSize() < 1024L * 1024L * 1024L * 8L) {
-            Toast.makeText(MyCallActivity.this, "SD卡空间不足1G，无法录像",
-                    Toast.LENGTH_LONG).show();
-            return;
-        }
         if (mMediaRecordController != null) {
+            RecordingStorage.Plan plan = RecordingStorage.plan(new File(FILE_SAVE_DIR),
+                    mMediaRecordController.getVideoBitRate(), mMediaRecordController.getAudioBitRate(),
+                    RECORD_PLANNED_DURATION_MS);
+            Log.d(TAG, "recording storage plan: " + plan);
+            if (plan.result == RecordingStorage.RESULT_NO_SPACE) {
+                Toast.makeText(MyCallActivity.this, "SD卡空间不足"
+                                + Math.max(1L, RecordingStorage.MIN_FREE_BYTES / (1024L * 1024L * 1024L))
+                                + "G，无法录像", Toast.LENGTH_LONG).show();
+                return;
+            } else if (plan.result == RecordingStorage.RESULT_DOWNGRADE) {
+                // 磁盘写入跟不上时本次录制降低码率，避免录制中编码器被磁盘拖住；设置的码率不变，下次录制重新评估
+                logAndToast("存储写入速度较慢，已降低录制画质");
+            } else if (plan.result == RecordingStorage.RESULT_SLOW_DISK) {
+                logAndToast("存储写入速度较慢，录制可能卡顿");
+            }
+            mMediaRecordController.setPreallocation(RECORD_PLANNED_DURATION_MS);
             logAndToast("开始录制");
             mIsRecording = true;
             mRemoteVideoFilePath = FILE_SAVE_DIR + "/room_" + mRoomId + ".mp4";
-            mMediaRecordController.startRecord(mRemoteVideoFilePath);
+            mMediaRecordController.startRecord(mRemoteVideoFilePath, plan.videoBitRate);
             mMyCallFragment.onRecorderChange(true);
             mRecordStartTime = System.currentTimeMillis();
             mHandler.sendEmptyMessage(MSG_TIME_TICK);
@@ -1069,6 +1114,18 @@ public class MyCallActivity extends Activity implements AppRTCClient.SignalingEv
         });
     }
 
+    @Override
+    public void onIceGatheringComplete() {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mAppRtcClient != null) {
+                    mAppRtcClient.flushLocalIceCandidates();
+                }
+            }
+        });
+    }
+
     @Override
     public void onIceConnected() {
         final long delta = System.currentTimeMillis() - mCallStartedTimeMs;
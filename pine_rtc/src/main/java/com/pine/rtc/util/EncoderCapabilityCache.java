@@ -0,0 +1,273 @@
+package com.pine.rtc.util;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Process;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.Logging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 进程内的编码器能力缓存。
+ * <p>
+ * MediaCodecVideoEncoderUtil.findColorFormat要遍历MediaCodecList并逐个查询编码器能力，比较耗时。
+ * 查询结果(包括不支持)按MIME、编码器列表和颜色格式列表缓存，并以Build.FINGERPRINT为key持久化到文件，
+ * 系统升级后自动失效。init在后台线程中加载文件并预查询常用的编码格式，之后的录制启动直接命中缓存。
+ * 未init或后台查询还没完成时，findColorFormat照常同步查询并写入缓存。
+ */
+public class EncoderCapabilityCache {
+    private static final String TAG = "EncoderCapabilityCache";
+    private static final String CACHE_FILE_NAME = "encoder_capabilities.json";
+    private static final int CACHE_VERSION = 1;
+
+    private static final EncoderCapabilityCache sInstance = new EncoderCapabilityCache();
+
+    private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<String, Entry>();
+    private ExecutorService mExecutor;
+    private File mCacheFile;
+    private volatile boolean mLoaded;
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+
+    private EncoderCapabilityCache() {
+    }
+
+    public static EncoderCapabilityCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * 在后台线程中加载缓存文件并预查询常用编码格式，应用启动时调用，重复调用无效
+     */
+    public synchronized void init(Context context) {
+        if (mExecutor != null) {
+            return;
+        }
+        mCacheFile = new File(context.getApplicationContext().getFilesDir(), CACHE_FILE_NAME);
+        mExecutor = Executors.newSingleThreadExecutor();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                long start = System.currentTimeMillis();
+                int loaded = load();
+                int probed = 0;
+                for (String mime : MediaCodecVideoEncoderUtil.SUPPORTED_MIME_TYPES) {
+                    if (!contains(MediaCodecVideoEncoderUtil.getCacheKey(mime))) {
+                        MediaCodecVideoEncoderUtil.getEncoderProperties(mime);
+                        probed++;
+                    }
+                }
+                // 包括加载期间同步查询写入的结果
+                if (mEntries.size() > loaded) {
+                    save();
+                }
+                mLoaded = true;
+                Logging.d(TAG, "Encoder capabilities ready in " + (System.currentTimeMillis() - start)
+                        + " ms, loaded " + loaded + ", probed " + probed);
+            }
+        });
+    }
+
+    /**
+     * 后台加载和预查询是否已完成
+     */
+    public boolean isLoaded() {
+        return mLoaded;
+    }
+
+    public boolean contains(String key) {
+        return mEntries.containsKey(key);
+    }
+
+    /**
+     * 取缓存的查询结果，不支持或没有缓存时返回null，用contains区分两者
+     */
+    public MediaCodecVideoEncoderUtil.EncoderProperties get(String key) {
+        Entry entry = mEntries.get(key);
+        (entry != null ? mHitCount : mMissCount).incrementAndGet();
+        return entry == null ? null : entry.mProperties;
+    }
+
+    /**
+     * 写入查询结果，properties为null表示不支持。后台预查询完成后的新结果会再次持久化
+     */
+    public void put(String key, MediaCodecVideoEncoderUtil.EncoderProperties properties) {
+        Entry old = mEntries.put(key, new Entry(properties));
+        if (old == null && mLoaded) {
+            synchronized (this) {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        save();
+                    }
+                });
+            }
+        }
+    }
+
+    public int getHitCount() {
+        return mHitCount.get();
+    }
+
+    public int getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * 清空内存和文件中的缓存，下次查询时重新探测
+     */
+    public void clear() {
+        mEntries.clear();
+        File file = mCacheFile;
+        if (file != null && file.exists() && !file.delete()) {
+            Logging.w(TAG, "Delete cache file failed: " + file);
+        }
+    }
+
+    private int load() {
+        if (!mCacheFile.exists()) {
+            return 0;
+        }
+        try {
+            JSONObject json = new JSONObject(readFile(mCacheFile));
+            if (json.optInt("version") != CACHE_VERSION
+                    || !Build.FINGERPRINT.equals(json.optString("fingerprint"))) {
+                Logging.d(TAG, "Cache file is out of date, probe again");
+                return 0;
+            }
+            JSONObject entries = json.getJSONObject("entries");
+            int count = 0;
+            Iterator<String> keys = entries.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                JSONObject entry = entries.getJSONObject(key);
+                // 运行中已经查询过的结果优先
+                if (mEntries.putIfAbsent(key, new Entry(entry.optBoolean("supported")
+                        ? fromJson(entry) : null)) == null) {
+                    count++;
+                }
+            }
+            return count;
+        } catch (IOException e) {
+            Logging.e(TAG, "Read cache file failed", e);
+        } catch (JSONException e) {
+            Logging.e(TAG, "Parse cache file failed", e);
+        }
+        return 0;
+    }
+
+    private synchronized void save() {
+        File tmpFile = new File(mCacheFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            JSONObject entries = new JSONObject();
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                MediaCodecVideoEncoderUtil.EncoderProperties properties = entry.getValue().mProperties;
+                JSONObject value = properties == null ? new JSONObject() : toJson(properties);
+                value.put("supported", properties != null);
+                entries.put(entry.getKey(), value);
+            }
+            JSONObject json = new JSONObject();
+            json.put("version", CACHE_VERSION);
+            json.put("fingerprint", Build.FINGERPRINT);
+            json.put("entries", entries);
+            out = new FileOutputStream(tmpFile);
+            out.write(json.toString().getBytes("UTF-8"));
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(mCacheFile)) {
+                Logging.w(TAG, "Rename cache file failed: " + mCacheFile);
+            }
+        } catch (IOException e) {
+            Logging.e(TAG, "Write cache file failed", e);
+        } catch (JSONException e) {
+            Logging.e(TAG, "Serialize cache failed", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static JSONObject toJson(MediaCodecVideoEncoderUtil.EncoderProperties properties)
+            throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("codecName", properties.codecName);
+        json.put("colorFormat", properties.colorFormat);
+        json.put("bitrateAdjustmentType", properties.bitrateAdjustmentType.name());
+        json.put("maxWidth", properties.maxWidth);
+        json.put("maxHeight", properties.maxHeight);
+        json.put("maxBitRate", properties.maxBitRate);
+        JSONArray profiles = new JSONArray();
+        JSONArray levels = new JSONArray();
+        for (int i = 0; i < properties.profiles.length; i++) {
+            profiles.put(properties.profiles[i]);
+            levels.put(properties.levels[i]);
+        }
+        json.put("profiles", profiles);
+        json.put("levels", levels);
+        return json;
+    }
+
+    private static MediaCodecVideoEncoderUtil.EncoderProperties fromJson(JSONObject json)
+            throws JSONException {
+        JSONArray profiles = json.getJSONArray("profiles");
+        JSONArray levels = json.getJSONArray("levels");
+        int[] profileArray = new int[profiles.length()];
+        int[] levelArray = new int[profiles.length()];
+        for (int i = 0; i < profileArray.length; i++) {
+            profileArray[i] = profiles.getInt(i);
+            levelArray[i] = levels.getInt(i);
+        }
+        return new MediaCodecVideoEncoderUtil.EncoderProperties(json.getString("codecName"),
+                json.getInt("colorFormat"),
+                MediaCodecVideoEncoderUtil.BitrateAdjustmentType.valueOf(
+                        json.getString("bitrateAdjustmentType")),
+                profileArray, levelArray, json.getInt("maxWidth"), json.getInt("maxHeight"),
+                json.getInt("maxBitRate"));
+    }
+
+    private static String readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static class Entry {
+        final MediaCodecVideoEncoderUtil.EncoderProperties mProperties;
+
+        Entry(MediaCodecVideoEncoderUtil.EncoderProperties properties) {
+            mProperties = properties;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.pine.rtc.util;
 import android.annotation.TargetApi;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
+import android.media.MediaFormat;
 import android.os.Build;
 
 import org.webrtc.Logging;
@@ -26,6 +27,12 @@ public class MediaCodecVideoEncoderUtil {
     private static final MediaCodecVideoEncoderUtil.MediaCodecProperties MTK_H264HW_PROPERTIES;
     private static final MediaCodecVideoEncoderUtil.MediaCodecProperties EXYNOS_H264HW_PROPERTIES;
     public static final MediaCodecVideoEncoderUtil.MediaCodecProperties[] H264HW_LIST;
+    public static final MediaCodecVideoEncoderUtil.MediaCodecProperties[] H265HW_LIST;
+    public static final MediaCodecVideoEncoderUtil.MediaCodecProperties[] VP8HW_LIST;
+    public static final MediaCodecVideoEncoderUtil.MediaCodecProperties[] VP9HW_LIST;
+    // EncoderCapabilityCache启动时预查询的编码格式
+    public static final String[] SUPPORTED_MIME_TYPES = new String[]{MediaFormat.MIMETYPE_VIDEO_AVC,
+            MediaFormat.MIMETYPE_VIDEO_HEVC, MediaFormat.MIMETYPE_VIDEO_VP8, MediaFormat.MIMETYPE_VIDEO_VP9};
     private static final String[] H264_HW_EXCEPTION_MODELS =
             new String[]{"SAMSUNG-SGH-I337", "Nexus 7", "Nexus 4"};
 
@@ -44,6 +51,74 @@ public class MediaCodecVideoEncoderUtil {
                 21, MediaCodecVideoEncoderUtil.BitrateAdjustmentType.FRAMERATE_ADJUSTMENT);
         H264HW_LIST = new MediaCodecVideoEncoderUtil.MediaCodecProperties[]{QCOM_H264HW_PROPERTIES,
                 EXYNOS_H264HW_PROPERTIES, MTK_H264HW_PROPERTIES, IMG_H264HW_PROPERTIES, GOOGLE_H264HW_PROPERTIES};
+        H265HW_LIST = new MediaCodecVideoEncoderUtil.MediaCodecProperties[]{
+                new MediaCodecVideoEncoderUtil.MediaCodecProperties("OMX.qcom.",
+                        21, MediaCodecVideoEncoderUtil.BitrateAdjustmentType.NO_ADJUSTMENT),
+                new MediaCodecVideoEncoderUtil.MediaCodecProperties("OMX.Exynos.",
+                        21, MediaCodecVideoEncoderUtil.BitrateAdjustmentType.FRAMERATE_ADJUSTMENT),
+                new MediaCodecVideoEncoderUtil.MediaCodecProperties("OMX.MTK.",
+                        21, MediaCodecVideoEncoderUtil.BitrateAdjustmentType.NO_ADJUSTMENT),
+                new MediaCodecVideoEncoderUtil.MediaCodecProperties("OMX.hisi.",
+                        21, MediaCodecVideoEncoderUtil.BitrateAdjustmentType.NO_ADJUSTMENT)};
+        VP8HW_LIST = new MediaCodecVideoEncoderUtil.MediaCodecProperties[]{
+                new MediaCodecVideoEncoderUtil.MediaCodecProperties("OMX.qcom.",
+                        19, MediaCodecVideoEncoderUtil.BitrateAdjustmentType.NO_ADJUSTMENT),
+                new MediaCodecVideoEncoderUtil.MediaCodecProperties("OMX.Exynos.",
+                        23, MediaCodecVideoEncoderUtil.BitrateAdjustmentType.DYNAMIC_ADJUSTMENT),
+                new MediaCodecVideoEncoderUtil.MediaCodecProperties("OMX.Intel.",
+                        21, MediaCodecVideoEncoderUtil.BitrateAdjustmentType.NO_ADJUSTMENT)};
+        VP9HW_LIST = new MediaCodecVideoEncoderUtil.MediaCodecProperties[]{
+                new MediaCodecVideoEncoderUtil.MediaCodecProperties("OMX.qcom.",
+                        24, MediaCodecVideoEncoderUtil.BitrateAdjustmentType.NO_ADJUSTMENT),
+                new MediaCodecVideoEncoderUtil.MediaCodecProperties("OMX.Exynos.",
+                        24, MediaCodecVideoEncoderUtil.BitrateAdjustmentType.FRAMERATE_ADJUSTMENT)};
+    }
+
+    /**
+     * 返回mime对应的硬件编码器列表，不支持的mime返回null
+     */
+    public static MediaCodecVideoEncoderUtil.MediaCodecProperties[] getHwList(String mime) {
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            return H264HW_LIST;
+        } else if (MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime)) {
+            return H265HW_LIST;
+        } else if (MediaFormat.MIMETYPE_VIDEO_VP8.equals(mime)) {
+            return VP8HW_LIST;
+        } else if (MediaFormat.MIMETYPE_VIDEO_VP9.equals(mime)) {
+            return VP9HW_LIST;
+        }
+        return null;
+    }
+
+    /**
+     * 按mime的默认硬件编码器列表和SUPPORTED_COLOR_LIST查询编码器，结果包含支持的profile/level和最大分辨率
+     */
+    public static MediaCodecVideoEncoderUtil.EncoderProperties getEncoderProperties(String mime) {
+        MediaCodecVideoEncoderUtil.MediaCodecProperties[] hwList = getHwList(mime);
+        if (hwList == null) {
+            return null;
+        }
+        return findColorFormat(mime, hwList, SUPPORTED_COLOR_LIST);
+    }
+
+    static String getCacheKey(String mime) {
+        MediaCodecVideoEncoderUtil.MediaCodecProperties[] hwList = getHwList(mime);
+        return hwList == null ? mime : getCacheKey(mime, hwList, SUPPORTED_COLOR_LIST);
+    }
+
+    private static String getCacheKey(String mime,
+                                      MediaCodecVideoEncoderUtil.MediaCodecProperties[] supportedHwCodecProperties,
+                                      int[] colorList) {
+        StringBuilder builder = new StringBuilder(mime).append('|');
+        for (int i = 0; i < supportedHwCodecProperties.length; i++) {
+            builder.append(supportedHwCodecProperties[i].codecPrefix)
+                    .append(supportedHwCodecProperties[i].minSdk).append(',');
+        }
+        builder.append('|');
+        for (int i = 0; i < colorList.length; i++) {
+            builder.append(Integer.toHexString(colorList[i])).append(',');
+        }
+        return builder.toString();
     }
 
     public static boolean isDeviceSupportRecorder(String mimeType) {
@@ -59,6 +134,9 @@ public class MediaCodecVideoEncoderUtil {
         return true;
     }
 
+    /**
+     * 查询结果缓存在EncoderCapabilityCache中，同一进程内只遍历一次MediaCodecList
+     */
     public static MediaCodecVideoEncoderUtil.EncoderProperties findColorFormat(
             String mime, MediaCodecVideoEncoderUtil.MediaCodecProperties[] supportedHwCodecProperties,
             int[] colorList) {
@@ -71,6 +149,22 @@ public class MediaCodecVideoEncoderUtil {
                 return null;
             }
         }
+        EncoderCapabilityCache cache = EncoderCapabilityCache.getInstance();
+        String key = getCacheKey(mime, supportedHwCodecProperties, colorList);
+        MediaCodecVideoEncoderUtil.EncoderProperties properties = cache.get(key);
+        if (properties != null || cache.contains(key)) {
+            return properties;
+        }
+        long start = System.currentTimeMillis();
+        properties = queryEncoder(mime, supportedHwCodecProperties, colorList);
+        Logging.d(TAG, "Query encoder for " + mime + " took " + (System.currentTimeMillis() - start) + " ms");
+        cache.put(key, properties);
+        return properties;
+    }
+
+    private static MediaCodecVideoEncoderUtil.EncoderProperties queryEncoder(
+            String mime, MediaCodecVideoEncoderUtil.MediaCodecProperties[] supportedHwCodecProperties,
+            int[] colorList) {
         MediaCodecInfo mediaCodecInfo = null;
         for (int i = 0; i < MediaCodecList.getCodecCount(); i++) {
             mediaCodecInfo = MediaCodecList.getCodecInfoAt(i);
@@ -136,8 +230,8 @@ public class MediaCodecVideoEncoderUtil {
                                             mime + " : " + name + ". Color: 0x"
                                             + Integer.toHexString(codecColorFormat)
                                             + ". Bitrate adjustment: " + bitrateAdjustmentType);
-                                    return new MediaCodecVideoEncoderUtil.EncoderProperties(name,
-                                            codecColorFormat, bitrateAdjustmentType);
+                                    return createEncoderProperties(name, codecColorFormat,
+                                            bitrateAdjustmentType, codecCapabilities);
                                 }
                             }
                         }
@@ -148,6 +242,31 @@ public class MediaCodecVideoEncoderUtil {
         return null;
     }
 
+    private static MediaCodecVideoEncoderUtil.EncoderProperties createEncoderProperties(
+            String name, int colorFormat, MediaCodecVideoEncoderUtil.BitrateAdjustmentType bitrateAdjustmentType,
+            MediaCodecInfo.CodecCapabilities codecCapabilities) {
+        MediaCodecInfo.CodecProfileLevel[] profileLevels = codecCapabilities.profileLevels;
+        int count = profileLevels == null ? 0 : profileLevels.length;
+        int[] profiles = new int[count];
+        int[] levels = new int[count];
+        for (int i = 0; i < count; i++) {
+            profiles[i] = profileLevels[i].profile;
+            levels[i] = profileLevels[i].level;
+        }
+        int maxWidth = 0;
+        int maxHeight = 0;
+        int maxBitRate = 0;
+        MediaCodecInfo.VideoCapabilities videoCapabilities = codecCapabilities.getVideoCapabilities();
+        if (videoCapabilities != null) {
+            maxWidth = videoCapabilities.getSupportedWidths().getUpper();
+            maxHeight = videoCapabilities.getSupportedHeights().getUpper();
+            maxBitRate = videoCapabilities.getBitrateRange().getUpper();
+        }
+        Logging.d(TAG, "   Profile levels: " + count + ", max size: " + maxWidth + "x" + maxHeight
+                + ", max bitrate: " + maxBitRate);
+        return new MediaCodecVideoEncoderUtil.EncoderProperties(name, colorFormat, bitrateAdjustmentType,
+                profiles, levels, maxWidth, maxHeight, maxBitRate);
+    }
 
     public static enum BitrateAdjustmentType {
         NO_ADJUSTMENT,
@@ -162,15 +281,56 @@ public class MediaCodecVideoEncoderUtil {
         public final String codecName;
         public final int colorFormat;
         public final MediaCodecVideoEncoderUtil.BitrateAdjustmentType bitrateAdjustmentType;
+        // 支持的profile及对应的最高level，两个数组一一对应
+        public final int[] profiles;
+        public final int[] levels;
+        // 最大宽高和码率，未知时为0
+        public final int maxWidth;
+        public final int maxHeight;
+        public final int maxBitRate;
 
         public EncoderProperties(String codecName, int colorFormat, MediaCodecVideoEncoderUtil.BitrateAdjustmentType bitrateAdjustmentType) {
+            this(codecName, colorFormat, bitrateAdjustmentType, new int[0], new int[0], 0, 0, 0);
+        }
+
+        public EncoderProperties(String codecName, int colorFormat, MediaCodecVideoEncoderUtil.BitrateAdjustmentType bitrateAdjustmentType,
+                                 int[] profiles, int[] levels, int maxWidth, int maxHeight, int maxBitRate) {
             this.codecName = codecName;
             this.colorFormat = colorFormat;
             this.bitrateAdjustmentType = bitrateAdjustmentType;
+            this.profiles = profiles;
+            this.levels = levels;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.maxBitRate = maxBitRate;
+        }
+
+        public boolean isProfileSupported(int profile) {
+            return getMaxLevel(profile) > 0;
+        }
+
+        /**
+         * 返回profile支持的最高level，不支持时返回0
+         */
+        public int getMaxLevel(int profile) {
+            int maxLevel = 0;
+            for (int i = 0; i < profiles.length; i++) {
+                if (profiles[i] == profile) {
+                    maxLevel = Math.max(maxLevel, levels[i]);
+                }
+            }
+            return maxLevel;
+        }
+
+        /**
+         * 宽高是否在编码器支持的范围内，最大值未知时认为支持
+         */
+        public boolean isSizeSupported(int width, int height) {
+            return (maxWidth <= 0 || width <= maxWidth) && (maxHeight <= 0 || height <= maxHeight);
         }
     }
 
-    private static class MediaCodecProperties {
+    public static class MediaCodecProperties {
         public final String codecPrefix;
         public final int minSdk;
         public final MediaCodecVideoEncoderUtil.BitrateAdjustmentType bitrateAdjustmentType;
@@ -0,0 +1,70 @@
+package com.pine.rtc.controller;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * AdaptiveBitrateController的JVM单元测试
+ */
+public class AdaptiveBitrateControllerTest {
+    private static final int BASE_BIT_RATE = 4000000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static List<String> readLines(File file) throws Exception {
+        return Files.readAllLines(file.toPath(), Charset.forName("UTF-8"));
+    }
+
+    /**
+     * 持续CPU过载时降档，保持若干周期后再继续降
+     */
+    @Test
+    public void stepsDownUnderLoad() {
+        AdaptiveBitrateController controller = new AdaptiveBitrateController(BASE_BIT_RATE);
+        assertEquals(AdaptiveBitrateController.ACTION_HOLD, controller.onSample(0, 90, 100, 0, 0));
+        assertEquals(AdaptiveBitrateController.ACTION_DOWN, controller.onSample(1000, 90, 100, 0, 0));
+        assertEquals(1, controller.getTier());
+        assertEquals(BASE_BIT_RATE * 3 / 4, controller.getBitRate());
+        assertEquals("cpu", controller.getLastReason());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(AdaptiveBitrateController.ACTION_HOLD, controller.onSample(2000 + i * 1000, 90, 100, 0, 0));
+        }
+        assertEquals(1, controller.getTier());
+    }
+
+    /**
+     * 每个决策写入后立即可以从文件中读到，不需要等closeTrace
+     */
+    @Test
+    public void traceLinesReachFileBeforeClose() throws Exception {
+        File trace = mFolder.newFile("abr.jsonl");
+        AdaptiveBitrateController controller = new AdaptiveBitrateController(BASE_BIT_RATE);
+        controller.openTrace(trace.getPath());
+        controller.onSample(0, 90, 100, 0, 0);
+        assertEquals(1, readLines(trace).size());
+        controller.onSample(1000, 90, 600, 0, 0);
+
+        // 模拟进程被杀：不调用closeTrace直接读取
+        List<String> lines = readLines(trace);
+        assertEquals(2, lines.size());
+        JSONObject first = new JSONObject(lines.get(0));
+        assertEquals("hold", first.getString("action"));
+        JSONObject second = new JSONObject(lines.get(1));
+        assertEquals(1000, second.getLong("t"));
+        assertEquals(600, second.getLong("latencyMs"));
+        assertEquals("down", second.getString("action"));
+        assertEquals("cpu", second.getString("reason"));
+        assertEquals(BASE_BIT_RATE * 3 / 4, second.getInt("bitrate"));
+        controller.closeTrace();
+    }
+}
@@ -0,0 +1,98 @@
+package com.pine.rtc.controller;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DiskThroughputProbe在本机文件系统上的压力测试
+ */
+public class DiskThroughputProbeTest {
+    private static final long TOTAL_BYTES = 32L * 1024L * 1024L;
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final long SYNC_INTERVAL = 1024L * 1024L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static void assertSane(DiskThroughputProbe.Result result, long totalBytes) {
+        assertEquals(totalBytes, result.bytes);
+        assertTrue(result.elapsedNs > 0);
+        assertTrue(result.getBytesPerSecond() > 0);
+        assertTrue(result.averageSyncNs <= result.maxSyncNs);
+        assertTrue(result.maxSyncNs <= result.elapsedNs);
+    }
+
+    @Test
+    public void measuresAndRemovesProbeFile() throws IOException {
+        File dir = mFolder.newFolder();
+        DiskThroughputProbe.Result result = DiskThroughputProbe.run(dir, TOTAL_BYTES, CHUNK_SIZE, SYNC_INTERVAL);
+        assertSane(result, TOTAL_BYTES);
+        assertEquals(0, dir.list().length);
+    }
+
+    /**
+     * 总大小不是块大小的整数倍，最后一块只写剩余部分，结束时总会fsync
+     */
+    @Test
+    public void writesPartialLastChunk() throws IOException {
+        File dir = mFolder.newFolder();
+        long total = 3L * CHUNK_SIZE + 1234L;
+        DiskThroughputProbe.Result result = DiskThroughputProbe.run(dir, total, CHUNK_SIZE, Long.MAX_VALUE);
+        assertSane(result, total);
+        assertTrue(result.maxSyncNs > 0);
+    }
+
+    @Test
+    public void createsMissingDirectory() throws IOException {
+        File dir = new File(mFolder.getRoot(), "a/b");
+        DiskThroughputProbe.Result result = DiskThroughputProbe.run(dir, CHUNK_SIZE, CHUNK_SIZE / 4, CHUNK_SIZE);
+        assertSane(result, CHUNK_SIZE);
+        assertTrue(dir.isDirectory());
+    }
+
+    /**
+     * 多个线程同时在同一目录测量，模拟录制时存储被其它写入占用
+     */
+    @Test
+    public void concurrentProbesInSameDirectory() throws Exception {
+        final File dir = mFolder.newFolder();
+        final int threads = 4;
+        final DiskThroughputProbe.Result[] results = new DiskThroughputProbe.Result[threads];
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        results[index] = DiskThroughputProbe.run(dir, TOTAL_BYTES / threads, CHUNK_SIZE,
+                                SYNC_INTERVAL);
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        for (DiskThroughputProbe.Result result : results) {
+            assertSane(result, TOTAL_BYTES / threads);
+        }
+        assertEquals(0, dir.list().length);
+    }
+}
@@ -0,0 +1,128 @@
+package com.pine.rtc.controller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 原averageMix与PcmMixKernel的JMH对比，48kHz双声道两路输入，10ms和20ms的buffer。
+ * <p>
+ * averageMix是原实现(每次分配short[][]和short[])；averageMixNoAlloc是同样的解码、求平均、写回，
+ * 但使用预分配的数组，与kernel做同样的工作。kernel和生产中一样，在本机字节序的direct ByteBuffer
+ * 的asShortBuffer()视图上运算；kernelHeap使用包装short[]的视图，作为参考。
+ * <p>
+ * 运行：在IDE中执行main，或把测试classpath交给org.openjdk.jmh.Main。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PcmMixKernelBenchmark {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+
+    @Param({"10", "20"})
+    public int bufferMs;
+
+    @Param({"SATURATE", "SOFT_KNEE", "NORMALIZED"})
+    public PcmMixKernel.Strategy strategy;
+
+    private byte[] mMic;
+    private byte[] mRemote;
+    private short[][] mSamples2d;
+    private short[] mMix;
+    private ShortBuffer[] mViews;
+    private ShortBuffer[] mHeapViews;
+    private ShortBuffer mOut;
+    private PcmMixKernel mKernel;
+    private int mSamples;
+    private byte[][] mSources;
+
+    @Setup
+    public void setup() {
+        mSamples = SAMPLE_RATE * bufferMs / 1000 * CHANNELS;
+        Random random = new Random(0);
+        mMic = new byte[mSamples * 2];
+        mRemote = new byte[mSamples * 2];
+        random.nextBytes(mMic);
+        random.nextBytes(mRemote);
+        mSources = new byte[][]{mMic, mRemote};
+        mSamples2d = new short[2][mSamples];
+        mMix = new short[mSamples];
+        mViews = new ShortBuffer[]{toDirectView(mMic), toDirectView(mRemote)};
+        mHeapViews = new ShortBuffer[]{toHeapView(mMic), toHeapView(mRemote)};
+        mOut = ByteBuffer.allocateDirect(mSamples * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+        mKernel = new PcmMixKernel(strategy);
+    }
+
+    private static short[] decode(byte[] pcm) {
+        short[] samples = new short[pcm.length / 2];
+        ByteBuffer.wrap(pcm).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+        return samples;
+    }
+
+    /**
+     * 与录制时各路源的环形缓冲区一样，是本机字节序direct ByteBuffer的ShortBuffer视图
+     */
+    private static ShortBuffer toDirectView(byte[] pcm) {
+        ShortBuffer view = ByteBuffer.allocateDirect(pcm.length).order(ByteOrder.nativeOrder()).asShortBuffer();
+        view.put(decode(pcm));
+        view.clear();
+        return view;
+    }
+
+    private static ShortBuffer toHeapView(byte[] pcm) {
+        return ShortBuffer.wrap(decode(pcm));
+    }
+
+    /**
+     * 原实现只有平均一种策略，与strategy参数无关；包含每次调用的数组分配
+     */
+    @Benchmark
+    public byte[] averageMix() {
+        return PcmMixReference.averageMix(new byte[][]{mMic, mRemote});
+    }
+
+    /**
+     * 原实现的解码、求平均和写回，不含分配
+     */
+    @Benchmark
+    public byte[] averageMixNoAlloc() {
+        return PcmMixReference.averageMixInto(mSources, mSamples2d, mMix);
+    }
+
+    @Benchmark
+    public int kernel() {
+        return mKernel.mix(mViews, null, 2, mOut, mSamples);
+    }
+
+    @Benchmark
+    public int kernelHeap() {
+        return mKernel.mix(mHeapViews, null, 2, mOut, mSamples);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(PcmMixKernelBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,138 @@
+package com.pine.rtc.controller;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PcmMixKernel与原averageMix的等价性测试，以及各策略的截断行为
+ */
+public class PcmMixKernelTest {
+    // 48kHz双声道20ms
+    private static final int SAMPLES = 1920;
+
+    private static short[] randomPcm(Random random, int samples) {
+        short[] pcm = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            pcm[i] = (short) random.nextInt(1 << 16);
+        }
+        return pcm;
+    }
+
+    private static byte[] toLittleEndian(short[] pcm) {
+        byte[] bytes = new byte[pcm.length * 2];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().put(pcm);
+        return bytes;
+    }
+
+    private static ShortBuffer toNativeView(short[] pcm) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(pcm.length * 2).order(ByteOrder.nativeOrder());
+        ShortBuffer view = buffer.asShortBuffer();
+        view.put(pcm);
+        view.clear();
+        return view;
+    }
+
+    /**
+     * 增益都为1时NORMALIZED与原averageMix逐采样一致
+     */
+    @Test
+    public void normalizedMatchesAverageMix() {
+        Random random = new Random(1);
+        PcmMixKernel kernel = new PcmMixKernel(PcmMixKernel.Strategy.NORMALIZED);
+        for (int sources = 2; sources <= 4; sources++) {
+            short[][] pcm = new short[sources][];
+            byte[][] bytes = new byte[sources][];
+            ShortBuffer[] views = new ShortBuffer[sources];
+            for (int s = 0; s < sources; s++) {
+                pcm[s] = randomPcm(random, SAMPLES);
+                bytes[s] = toLittleEndian(pcm[s]);
+                views[s] = toNativeView(pcm[s]);
+            }
+            byte[][] copies = new byte[sources][];
+            for (int s = 0; s < sources; s++) {
+                copies[s] = bytes[s].clone();
+            }
+            byte[] expected = PcmMixReference.averageMix(bytes);
+            // 基准测试中不分配的对照版本结果相同
+            assertArrayEquals(expected, PcmMixReference.averageMixInto(copies,
+                    new short[sources][SAMPLES], new short[SAMPLES]));
+            short[] out = new short[SAMPLES];
+            assertEquals(0, kernel.mix(views, null, sources, ShortBuffer.wrap(out), SAMPLES));
+            assertArrayEquals(expected, toLittleEndian(out));
+        }
+    }
+
+    @Test
+    public void saturateMatchesClampedSum() {
+        Random random = new Random(2);
+        short[] a = randomPcm(random, SAMPLES);
+        short[] b = randomPcm(random, SAMPLES);
+        int expectedClipped = 0;
+        short[] expected = new short[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            int sum = a[i] + b[i];
+            if (sum > Short.MAX_VALUE || sum < Short.MIN_VALUE) {
+                expectedClipped++;
+            }
+            expected[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sum));
+        }
+        PcmMixKernel kernel = new PcmMixKernel(PcmMixKernel.Strategy.SATURATE);
+        short[] out = new short[SAMPLES];
+        int clipped = kernel.mix(new ShortBuffer[]{toNativeView(a), toNativeView(b)}, null, 2,
+                ShortBuffer.wrap(out), SAMPLES);
+        assertArrayEquals(expected, out);
+        assertEquals(expectedClipped, clipped);
+        assertEquals(expectedClipped, kernel.getTotalClippedCount());
+    }
+
+    /**
+     * 拐点以下不改变采样，拐点以上单调且不超过满幅
+     */
+    @Test
+    public void softKneeIsTransparentBelowKneeAndMonotonicAbove() {
+        PcmMixKernel kernel = new PcmMixKernel(PcmMixKernel.Strategy.SOFT_KNEE);
+        kernel.setKnee(0.5f);
+        int samples = 2 * Short.MAX_VALUE;
+        short[] a = new short[samples];
+        short[] b = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            a[i] = (short) (i / 2);
+            b[i] = (short) (i - i / 2);
+        }
+        short[] out = new short[samples];
+        kernel.mix(new ShortBuffer[]{ShortBuffer.wrap(a), ShortBuffer.wrap(b)}, null, 2,
+                ShortBuffer.wrap(out), samples);
+        int knee = Short.MAX_VALUE / 2;
+        for (int i = 0; i <= knee; i++) {
+            assertEquals(i, out[i]);
+        }
+        for (int i = knee + 1; i < samples; i++) {
+            assertTrue(out[i] >= out[i - 1]);
+            assertTrue(out[i] < Short.MAX_VALUE);
+        }
+        assertEquals(samples - Short.MAX_VALUE - 1, kernel.getLastClippedCount());
+    }
+
+    @Test
+    public void appliesPerSourceGain() {
+        short[] a = {1000, -1000, 20000};
+        short[] b = {1000, 1000, 20000};
+        short[] out = new short[3];
+        PcmMixKernel kernel = new PcmMixKernel(PcmMixKernel.Strategy.NORMALIZED);
+        kernel.mix(new ShortBuffer[]{ShortBuffer.wrap(a), ShortBuffer.wrap(b)},
+                new float[]{0.5f, 1.5f}, 2, ShortBuffer.wrap(out), 3);
+        assertArrayEquals(new short[]{1000, 500, 20000}, out);
+        kernel.setStrategy(PcmMixKernel.Strategy.SATURATE);
+        kernel.mix(new ShortBuffer[]{ShortBuffer.wrap(a), ShortBuffer.wrap(b)},
+                new float[]{0.5f, 0f}, 2, ShortBuffer.wrap(out), 3);
+        assertArrayEquals(new short[]{500, -500, 10000}, out);
+    }
+}
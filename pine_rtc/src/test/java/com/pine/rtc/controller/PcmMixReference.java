@@ -0,0 +1,80 @@
+package com.pine.rtc.controller;
+
+/**
+ * 原MediaRecordController.averageMix的实现，作为PcmMixKernel的对照
+ */
+final class PcmMixReference {
+    private PcmMixReference() {
+    }
+
+    /**
+     * 逐字节拼出little-endian采样后求平均，结果写回第一路
+     */
+    static byte[] averageMix(byte[][] bMulRoadAudios) {
+        if (bMulRoadAudios == null || bMulRoadAudios.length == 0) {
+            return null;
+        }
+        byte[] realMixAudio = bMulRoadAudios[0];
+        if (bMulRoadAudios.length == 1) {
+            return realMixAudio;
+        }
+        for (int rw = 0; rw < bMulRoadAudios.length; ++rw) {
+            if (bMulRoadAudios[rw].length != realMixAudio.length) {
+                return null;
+            }
+        }
+        int row = bMulRoadAudios.length;
+        int column = realMixAudio.length / 2;
+        short[][] sMulRoadAudios = new short[row][column];
+        for (int r = 0; r < row; ++r) {
+            for (int c = 0; c < column; ++c) {
+                sMulRoadAudios[r][c] = (short) ((bMulRoadAudios[r][c * 2] & 0xff) | (bMulRoadAudios[r][c * 2 + 1] & 0xff) << 8);
+            }
+        }
+        short[] sMixAudio = new short[column];
+        int mixVal;
+        int sr = 0;
+        for (int sc = 0; sc < column; ++sc) {
+            mixVal = 0;
+            sr = 0;
+            for (; sr < row; ++sr) {
+                mixVal += sMulRoadAudios[sr][sc];
+            }
+            sMixAudio[sc] = (short) (mixVal / row);
+        }
+        for (sr = 0; sr < column; ++sr) {
+            realMixAudio[sr * 2] = (byte) (sMixAudio[sr] & 0x00FF);
+            realMixAudio[sr * 2 + 1] = (byte) ((sMixAudio[sr] & 0xFF00) >> 8);
+        }
+        return realMixAudio;
+    }
+
+    /**
+     * 与averageMix相同的运算，但使用调用方预先分配的samples[row][column]和mix[column]，
+     * 只用于在基准测试中把分配的开销与解码、混音的开销分开
+     */
+    static byte[] averageMixInto(byte[][] bMulRoadAudios, short[][] samples, short[] mix) {
+        byte[] realMixAudio = bMulRoadAudios[0];
+        int row = bMulRoadAudios.length;
+        int column = realMixAudio.length / 2;
+        for (int r = 0; r < row; ++r) {
+            byte[] audio = bMulRoadAudios[r];
+            short[] rowSamples = samples[r];
+            for (int c = 0; c < column; ++c) {
+                rowSamples[c] = (short) ((audio[c * 2] & 0xff) | (audio[c * 2 + 1] & 0xff) << 8);
+            }
+        }
+        for (int sc = 0; sc < column; ++sc) {
+            int mixVal = 0;
+            for (int sr = 0; sr < row; ++sr) {
+                mixVal += samples[sr][sc];
+            }
+            mix[sc] = (short) (mixVal / row);
+        }
+        for (int sc = 0; sc < column; ++sc) {
+            realMixAudio[sc * 2] = (byte) (mix[sc] & 0x00FF);
+            realMixAudio[sc * 2 + 1] = (byte) ((mix[sc] & 0xFF00) >> 8);
+        }
+        return realMixAudio;
+    }
+}
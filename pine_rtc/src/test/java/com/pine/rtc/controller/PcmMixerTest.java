@@ -0,0 +1,214 @@
+package com.pine.rtc.controller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PcmMixer的JVM单元测试，输入均为合成的正弦波
+ */
+public class PcmMixerTest {
+    private static final long JITTER_WINDOW_US = 20000L;
+    private static final long CAPACITY_US = 500000L;
+    private static final long START_US = 1000000L;
+    private static final int BLOCK_MS = 10;
+
+    /**
+     * 生成frames帧交错的正弦波，所有声道相同
+     */
+    private static short[] sine(int sampleRate, int channels, double frequency, int amplitude,
+                                long startFrame, int frames) {
+        short[] pcm = new short[frames * channels];
+        for (int f = 0; f < frames; f++) {
+            short v = (short) Math.round(amplitude
+                    * Math.sin(2 * Math.PI * frequency * (startFrame + f) / sampleRate));
+            for (int c = 0; c < channels; c++) {
+                pcm[f * channels + c] = v;
+            }
+        }
+        return pcm;
+    }
+
+    private static long blockTimeUs(int block) {
+        return START_US + block * BLOCK_MS * 1000L;
+    }
+
+    /**
+     * 两路同格式的源直接相加，SATURATE在不超出范围时结果与逐点相加一致
+     */
+    @Test
+    public void mixesSourcesWithSameFormat() {
+        PcmMixer mixer = new PcmMixer(48000, 1, JITTER_WINDOW_US, CAPACITY_US);
+        mixer.setStrategy(PcmMixKernel.Strategy.SATURATE);
+        PcmMixer.Source a = mixer.addSource(48000, 1);
+        PcmMixer.Source b = mixer.addSource(48000, 1);
+        int frames = 480;
+        short[] out = new short[frames];
+        int mixed = 0;
+        for (int block = 0; block < 20; block++) {
+            short[] pa = sine(48000, 1, 440, 8000, block * frames, frames);
+            short[] pb = sine(48000, 1, 1000, 8000, block * frames, frames);
+            mixer.push(a, pa, 0, frames, blockTimeUs(block));
+            mixer.push(b, pb, 0, frames, blockTimeUs(block));
+            long timeUs;
+            while ((timeUs = mixer.mix(out, 0, frames)) >= 0) {
+                assertEquals(blockTimeUs(mixed), timeUs);
+                short[] ea = sine(48000, 1, 440, 8000, mixed * frames, frames);
+                short[] eb = sine(48000, 1, 1000, 8000, mixed * frames, frames);
+                for (int i = 0; i < frames; i++) {
+                    assertEquals(ea[i] + eb[i], out[i], 1);
+                }
+                mixed++;
+            }
+        }
+        assertTrue(mixed >= 18);
+        assertEquals(0, mixer.getTotalClippedCount());
+    }
+
+    /**
+     * 两路满幅同相正弦波相加必然超出16bit范围
+     */
+    @Test
+    public void saturateClipsAndCountsClippedSamples() {
+        short[] out = mixLoudSines(PcmMixKernel.Strategy.SATURATE);
+        int max = 0;
+        int min = 0;
+        for (short v : out) {
+            max = Math.max(max, v);
+            min = Math.min(min, v);
+        }
+        assertEquals(Short.MAX_VALUE, max);
+        assertEquals(Short.MIN_VALUE, min);
+    }
+
+    @Test
+    public void softKneeCompressesInsteadOfClipping() {
+        short[] out = mixLoudSines(PcmMixKernel.Strategy.SOFT_KNEE);
+        int peak = 0;
+        for (short v : out) {
+            peak = Math.max(peak, Math.abs(v));
+        }
+        // 压缩后渐近满幅，不会出现截断的平顶
+        assertTrue("peak " + peak, peak < Short.MAX_VALUE);
+        assertTrue("peak " + peak, peak > Short.MAX_VALUE * 3 / 4);
+    }
+
+    @Test
+    public void normalizedAveragesSources() {
+        short[] out = mixLoudSines(PcmMixKernel.Strategy.NORMALIZED);
+        short[] expected = sine(48000, 1, 440, 30000, 0, out.length);
+        for (int i = 0; i < out.length; i++) {
+            assertEquals(expected[i], out[i], 1);
+        }
+    }
+
+    private short[] mixLoudSines(PcmMixKernel.Strategy strategy) {
+        PcmMixer mixer = new PcmMixer(48000, 1, JITTER_WINDOW_US, CAPACITY_US);
+        mixer.setStrategy(strategy);
+        PcmMixer.Source a = mixer.addSource(48000, 1);
+        PcmMixer.Source b = mixer.addSource(48000, 1);
+        int frames = 480;
+        short[] pcm = sine(48000, 1, 440, 30000, 0, frames * 2);
+        mixer.push(a, pcm, 0, frames * 2, START_US);
+        mixer.push(b, pcm, 0, frames * 2, START_US);
+        short[] out = new short[frames];
+        assertEquals(START_US, mixer.mix(out, 0, frames));
+        if (strategy == PcmMixKernel.Strategy.NORMALIZED) {
+            assertEquals(0, mixer.getLastClippedCount());
+        } else {
+            assertTrue(mixer.getLastClippedCount() > 0);
+        }
+        return out;
+    }
+
+    /**
+     * 16kHz单声道重采样到48kHz双声道后频率和音量不变
+     */
+    @Test
+    public void resamplesAndUpmixesToOutputFormat() {
+        PcmMixer mixer = new PcmMixer(48000, 2, JITTER_WINDOW_US, CAPACITY_US);
+        PcmMixer.Source source = mixer.addSource(16000, 1);
+        int inFrames = 160;
+        int outFrames = 480;
+        short[] out = new short[outFrames * 2];
+        short[] left = new short[48000];
+        int count = 0;
+        for (int block = 0; block < 110; block++) {
+            mixer.push(source, sine(16000, 1, 440, 10000, block * inFrames, inFrames), 0,
+                    inFrames, blockTimeUs(block));
+            while (mixer.mix(out, 0, outFrames) >= 0) {
+                for (int f = 0; f < outFrames && count < left.length; f++) {
+                    assertEquals(out[2 * f], out[2 * f + 1]);
+                    left[count++] = out[2 * f];
+                }
+            }
+        }
+        assertEquals(left.length, count);
+        int crossings = 0;
+        int peak = 0;
+        for (int i = 1; i < left.length; i++) {
+            if ((left[i - 1] < 0) != (left[i] < 0)) {
+                crossings++;
+            }
+            peak = Math.max(peak, Math.abs(left[i]));
+        }
+        // 440Hz一秒内过零880次
+        assertEquals(880, crossings, 4);
+        assertEquals(10000, peak, 200);
+        assertEquals(0, source.getGapCount());
+    }
+
+    /**
+     * 晚开始的源按时间戳放到对应位置，之前保持静音
+     */
+    @Test
+    public void alignsSourcesOnSharedClock() {
+        PcmMixer mixer = new PcmMixer(48000, 1, JITTER_WINDOW_US, CAPACITY_US);
+        mixer.setStrategy(PcmMixKernel.Strategy.SATURATE);
+        PcmMixer.Source silent = mixer.addSource(48000, 1);
+        PcmMixer.Source late = mixer.addSource(48000, 1);
+        int frames = 480;
+        mixer.push(silent, new short[frames * 4], 0, frames * 4, START_US);
+        // 晚5ms，即240帧
+        mixer.push(late, sine(48000, 1, 1000, 8000, 0, frames * 4), 0, frames * 4, START_US + 5000L);
+        short[] out = new short[frames];
+        assertEquals(START_US, mixer.mix(out, 0, frames));
+        short[] expected = sine(48000, 1, 1000, 8000, 0, frames);
+        for (int i = 0; i < 240; i++) {
+            assertEquals(0, out[i]);
+        }
+        for (int i = 240; i < frames; i++) {
+            assertEquals(expected[i - 240], out[i], 1);
+        }
+    }
+
+    /**
+     * 超出抖动窗口的空缺填充静音，并计入gapCount
+     */
+    @Test
+    public void insertsSilenceForGaps() {
+        PcmMixer mixer = new PcmMixer(48000, 1, JITTER_WINDOW_US, CAPACITY_US);
+        PcmMixer.Source source = mixer.addSource(48000, 1);
+        int frames = 480;
+        mixer.push(source, sine(48000, 1, 440, 8000, 0, frames), 0, frames, START_US);
+        // 跳过50ms
+        mixer.push(source, sine(48000, 1, 440, 8000, 0, frames * 2), 0, frames * 2,
+                START_US + 60000L);
+        assertEquals(1, source.getGapCount());
+        short[] out = new short[frames];
+        assertEquals(START_US, mixer.mix(out, 0, frames));
+        for (int block = 1; block < 6; block++) {
+            assertEquals(blockTimeUs(block), mixer.mix(out, 0, frames));
+            for (short v : out) {
+                assertEquals(0, v);
+            }
+        }
+        assertEquals(blockTimeUs(6), mixer.mix(out, 0, frames));
+        int peak = 0;
+        for (short v : out) {
+            peak = Math.max(peak, Math.abs(v));
+        }
+        assertTrue(peak > 7000);
+    }
+}
@@ -0,0 +1,148 @@
+package com.pine.rtc.controller;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * PcmRingBuffer的JVM单元测试，写入与WebRtc一样使用direct buffer
+ */
+public class PcmRingBufferTest {
+    private static final int FRAME_SIZE = 4;
+
+    /**
+     * 与WebRtcAudioRecord/WebRtcAudioTrack相同，用allocateDirect分配，内容为从start开始递增的字节
+     */
+    private static ByteBuffer directBuffer(int size, int start) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < size; i++) {
+            buffer.put(i, (byte) (start + i));
+        }
+        return buffer;
+    }
+
+    private static void assertBytes(ByteBuffer buffer, int size, int start) {
+        for (int i = 0; i < size; i++) {
+            assertEquals("byte " + i, (byte) (start + i), buffer.get(i));
+        }
+    }
+
+    @Test
+    public void writesDirectBuffers() {
+        PcmRingBuffer ring = new PcmRingBuffer(64, FRAME_SIZE, PcmRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+        ByteBuffer src = directBuffer(40, 1);
+        // 写入不受src的position影响，也不改变它
+        src.position(12);
+        assertEquals(40, ring.write(src, 40, 1000L));
+        assertEquals(12, src.position());
+        assertEquals(40, ring.available());
+
+        ByteBuffer dst = ByteBuffer.allocateDirect(40);
+        assertEquals(1000L, ring.read(dst, 40));
+        assertBytes(dst, 40, 1);
+        assertEquals(0, ring.available());
+    }
+
+    /**
+     * 写入跨过环的末尾，分两段拷贝
+     */
+    @Test
+    public void writesDirectBufferAcrossEnd() {
+        PcmRingBuffer ring = new PcmRingBuffer(64, FRAME_SIZE, PcmRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+        ByteBuffer dst = ByteBuffer.allocateDirect(64);
+        assertEquals(48, ring.write(directBuffer(48, 0), 48, 0L));
+        ring.read(dst, 48);
+        // 写位置48，40字节中前16字节写到末尾，后24字节从0开始
+        assertEquals(40, ring.write(directBuffer(40, 100), 40, 0L));
+        dst.clear();
+        ring.read(dst, 40);
+        assertBytes(dst, 40, 100);
+
+        // 多次绕过末尾，数据保持连续
+        for (int round = 0; round < 20; round++) {
+            assertEquals(36, ring.write(directBuffer(36, round * 7), 36, 0L));
+            dst.clear();
+            ring.read(dst, 36);
+            assertBytes(dst, 36, round * 7);
+        }
+        assertEquals(0, ring.getOverrunCount());
+    }
+
+    @Test
+    public void dropsOldestWhenFull() {
+        PcmRingBuffer ring = new PcmRingBuffer(64, FRAME_SIZE, PcmRingBuffer.OverflowPolicy.DROP_OLDEST, 0);
+        assertEquals(40, ring.write(directBuffer(40, 0), 40, 0L));
+        // 环中只剩24字节空闲，丢弃最旧的16字节，新数据跨过末尾
+        assertEquals(40, ring.write(directBuffer(40, 40), 40, 0L));
+        assertEquals(64, ring.available());
+        assertEquals(1, ring.getOverrunCount());
+        assertEquals(16, ring.getOverrunBytes());
+
+        ByteBuffer dst = ByteBuffer.allocateDirect(64);
+        ring.read(dst, 64);
+        assertBytes(dst, 64, 16);
+    }
+
+    @Test
+    public void dropsNewestWhenFull() {
+        PcmRingBuffer ring = new PcmRingBuffer(64, FRAME_SIZE, PcmRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+        assertEquals(40, ring.write(directBuffer(40, 0), 40, 0L));
+        assertEquals(0, ring.write(directBuffer(40, 40), 40, 0L));
+        assertEquals(0, ring.write(directBuffer(80, 0), 80, 0L));
+        assertEquals(2, ring.getOverrunCount());
+        assertEquals(40, ring.available());
+        ByteBuffer dst = ByteBuffer.allocateDirect(40);
+        ring.read(dst, 40);
+        assertBytes(dst, 40, 0);
+    }
+
+    /**
+     * oversize和full是overrun的细分原因
+     */
+    @Test
+    public void countsOversizeAndFullWrites() {
+        PcmRingBuffer ring = new PcmRingBuffer(64, FRAME_SIZE, PcmRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+        ring.write(directBuffer(80, 0), 80, 0L);
+        assertEquals(1, ring.getOversizeCount());
+        assertEquals(0, ring.getFullCount());
+        ring.write(directBuffer(40, 0), 40, 0L);
+        ring.write(directBuffer(40, 0), 40, 0L);
+        assertEquals(1, ring.getFullCount());
+        assertEquals(2, ring.getOverrunCount());
+
+        // BLOCK等到空间时只计full，不计overrun
+        final PcmRingBuffer blocking = new PcmRingBuffer(64, FRAME_SIZE, PcmRingBuffer.OverflowPolicy.BLOCK, 5000);
+        blocking.write(directBuffer(40, 0), 40, 0L);
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                blocking.awaitData(64, 100000000L);
+                blocking.read(ByteBuffer.allocate(40), 40);
+            }
+        });
+        consumer.start();
+        assertEquals(40, blocking.write(directBuffer(40, 0), 40, 0L));
+        assertEquals(1, blocking.getFullCount());
+        assertEquals(0, blocking.getOverrunCount());
+    }
+
+    @Test
+    public void writesHeapBuffers() {
+        PcmRingBuffer ring = new PcmRingBuffer(64, FRAME_SIZE, PcmRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+        byte[] array = new byte[60];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = (byte) i;
+        }
+        // 从偏移4开始的slice，arrayOffset不为0
+        ByteBuffer src = ByteBuffer.wrap(array, 4, 56).slice();
+        ring.write(directBuffer(32, 0), 32, 0L);
+        ring.read(ByteBuffer.allocate(32), 32);
+        assertEquals(56, ring.write(src, 56, 0L));
+        ByteBuffer dst = ByteBuffer.allocate(56);
+        ring.read(dst, 56);
+        assertBytes(dst, 56, 4);
+    }
+}
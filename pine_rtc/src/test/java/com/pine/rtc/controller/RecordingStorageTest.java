@@ -0,0 +1,149 @@
+package com.pine.rtc.controller;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * RecordingStorage.findMp4End的测试，文件为合成的MP4顶层box，后面补0模拟预分配的空间
+ */
+public class RecordingStorageTest {
+    private static final int FTYP_SIZE = 24;
+    private static final long MDAT_SIZE = 16 + 4096;
+    private static final int MOOV_SIZE = 512;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private RandomAccessFile createFile() throws IOException {
+        File file = mFolder.newFile();
+        return new RandomAccessFile(file, "rw");
+    }
+
+    private static void writeBox(RandomAccessFile file, String type, int size) throws IOException {
+        file.writeInt(size);
+        file.writeBytes(type);
+        file.write(new byte[size - 8]);
+    }
+
+    /**
+     * 64位长度的mdat，与MediaMuxer的输出一致
+     */
+    private static void writeLargeBox(RandomAccessFile file, String type, long size) throws IOException {
+        file.writeInt(1);
+        file.writeBytes(type);
+        file.writeLong(size);
+        file.write(new byte[(int) (size - 16)]);
+    }
+
+    private static long writeMp4(RandomAccessFile file) throws IOException {
+        writeBox(file, "ftyp", FTYP_SIZE);
+        writeLargeBox(file, "mdat", MDAT_SIZE);
+        writeBox(file, "moov", MOOV_SIZE);
+        return file.getFilePointer();
+    }
+
+    @Test
+    public void findsEndBeforePreallocatedZeros() throws IOException {
+        RandomAccessFile file = createFile();
+        try {
+            long end = writeMp4(file);
+            file.setLength(end + 1024L * 1024L);
+            assertEquals(FTYP_SIZE + MDAT_SIZE + MOOV_SIZE, end);
+            assertEquals(end, RecordingStorage.findMp4End(file));
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void findsEndWithoutPadding() throws IOException {
+        RandomAccessFile file = createFile();
+        try {
+            long end = writeMp4(file);
+            assertEquals(end, RecordingStorage.findMp4End(file));
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * 没写完的box(例如muxer异常退出时的moov)不计入
+     */
+    @Test
+    public void stopsBeforeTruncatedBox() throws IOException {
+        RandomAccessFile file = createFile();
+        try {
+            writeBox(file, "ftyp", FTYP_SIZE);
+            writeLargeBox(file, "mdat", MDAT_SIZE);
+            file.writeInt(MOOV_SIZE);
+            file.writeBytes("moov");
+            file.write(new byte[100]);
+            assertEquals(FTYP_SIZE + MDAT_SIZE, RecordingStorage.findMp4End(file));
+            // 只剩半个64位长度
+            file.setLength(FTYP_SIZE);
+            file.seek(FTYP_SIZE);
+            file.writeInt(1);
+            file.writeBytes("mdat");
+            file.writeInt(0);
+            assertEquals(FTYP_SIZE, RecordingStorage.findMp4End(file));
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void stopsAtInvalidBoxHeader() throws IOException {
+        RandomAccessFile file = createFile();
+        try {
+            writeBox(file, "ftyp", FTYP_SIZE);
+            // 类型不是可打印字符
+            file.writeInt(64);
+            file.writeInt(0x01020304);
+            file.write(new byte[56]);
+            assertEquals(FTYP_SIZE, RecordingStorage.findMp4End(file));
+            // 长度小于box头
+            file.seek(FTYP_SIZE);
+            file.writeInt(4);
+            file.writeBytes("free");
+            assertEquals(FTYP_SIZE, RecordingStorage.findMp4End(file));
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * 长度为0的box延伸到文件末尾，无法判断实际长度，不截断
+     */
+    @Test
+    public void keepsWholeFileForBoxToEnd() throws IOException {
+        RandomAccessFile file = createFile();
+        try {
+            writeBox(file, "ftyp", FTYP_SIZE);
+            file.writeInt(0);
+            file.writeBytes("mdat");
+            file.write(new byte[1000]);
+            assertEquals(file.length(), RecordingStorage.findMp4End(file));
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void emptyFileEndsAtZero() throws IOException {
+        RandomAccessFile file = createFile();
+        try {
+            assertEquals(0L, RecordingStorage.findMp4End(file));
+            file.setLength(4096L);
+            assertEquals(0L, RecordingStorage.findMp4End(file));
+        } finally {
+            file.close();
+        }
+    }
+}
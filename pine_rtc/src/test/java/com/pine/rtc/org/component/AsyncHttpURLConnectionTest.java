@@ -0,0 +1,237 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package com.pine.rtc.org.component;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests AsyncHttpURLConnection and HttpRequestExecutor against a local HTTP server.
+ */
+public class AsyncHttpURLConnectionTest {
+    private static final long TIMEOUT_MS = 10000;
+
+    private HttpServer mServer;
+    private String mBaseUrl;
+    // Request bodies in the order the server received them.
+    private final List<String> mReceived = Collections.synchronizedList(new ArrayList<String>());
+    // Remote ports of the requests, one per TCP connection.
+    private final Set<Integer> mClientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+    private final AtomicInteger mRunning = new AtomicInteger();
+    private final AtomicInteger mMaxRunning = new AtomicInteger();
+    // Status codes returned before answering 200, consumed one per request.
+    private final LinkedBlockingQueue<Integer> mFailures = new LinkedBlockingQueue<Integer>();
+
+    private static String read(InputStream in) {
+        Scanner s = new Scanner(in, "UTF-8").useDelimiter("\\A");
+        return s.hasNext() ? s.next() : "";
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int running = mRunning.incrementAndGet();
+                mMaxRunning.set(Math.max(mMaxRunning.get(), running));
+                try {
+                    String body = read(exchange.getRequestBody());
+                    mReceived.add(body);
+                    mClientPorts.add(exchange.getRemoteAddress().getPort());
+                    // Give a second request to the host the chance to overlap.
+                    Thread.sleep(5);
+                    Integer failure = mFailures.poll();
+                    int status = failure != null ? failure : 200;
+                    byte[] response = ("echo " + body).getBytes("UTF-8");
+                    exchange.sendResponseHeaders(status, response.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(response);
+                    out.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    mRunning.decrementAndGet();
+                }
+            }
+        });
+        // Several server threads, so that overlapping requests would be seen.
+        mServer.setExecutor(Executors.newFixedThreadPool(4));
+        mServer.start();
+        mBaseUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/message/room/client";
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    private static class Events implements AsyncHttpURLConnection.AsyncHttpEvents {
+        final LinkedBlockingQueue<String> results = new LinkedBlockingQueue<String>();
+
+        @Override
+        public void onHttpError(String errorMessage) {
+            results.add("error: " + errorMessage);
+        }
+
+        @Override
+        public void onHttpComplete(String response) {
+            results.add(response);
+        }
+
+        String take() throws InterruptedException {
+            String result = results.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertTrue("no response", result != null);
+            return result;
+        }
+    }
+
+    private AsyncHttpURLConnection post(String message, Events events) {
+        return new AsyncHttpURLConnection("POST", "http://localhost", mBaseUrl, message, events);
+    }
+
+    @Test
+    public void requestsToOneHostRunInOrderOnOneConnection() throws InterruptedException {
+        Events events = new Events();
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 30; i++) {
+            expected.add("message " + i);
+            post("message " + i, events).send();
+        }
+        for (String message : expected) {
+            assertEquals("echo " + message, events.take());
+        }
+        assertEquals(expected, mReceived);
+        assertEquals(1, mMaxRunning.get());
+        // The kept-alive connection is reused for every request.
+        assertEquals(mClientPorts.toString(), 1, mClientPorts.size());
+    }
+
+    @Test
+    public void errorResponsesKeepConnectionReusable() throws InterruptedException {
+        Events events = new Events();
+        mFailures.add(404);
+        post("a", events).send();
+        post("b", events).send();
+        assertTrue(events.take().startsWith("error: Non-200 response"));
+        assertEquals("echo b", events.take());
+        assertEquals(1, mClientPorts.size());
+    }
+
+    @Test
+    public void retriesServerErrors() throws InterruptedException {
+        Events events = new Events();
+        mFailures.add(503);
+        mFailures.add(500);
+        AsyncHttpURLConnection connection = post("retried", events);
+        connection.setMaxRetries(2);
+        connection.send();
+        assertEquals("echo retried", events.take());
+        assertEquals(3, mReceived.size());
+    }
+
+    @Test
+    public void reportsErrorWhenRetriesRunOut() throws InterruptedException {
+        Events events = new Events();
+        mFailures.add(503);
+        mFailures.add(503);
+        AsyncHttpURLConnection connection = post("failing", events);
+        connection.setMaxRetries(1);
+        connection.send();
+        String result = events.take();
+        assertTrue(result, result.startsWith("error: Non-200 response"));
+        assertEquals(2, mReceived.size());
+    }
+
+    @Test
+    public void doesNotRetryClientErrors() throws InterruptedException {
+        Events events = new Events();
+        mFailures.add(400);
+        AsyncHttpURLConnection connection = post("bad", events);
+        connection.setMaxRetries(3);
+        connection.send();
+        assertTrue(events.take().startsWith("error: Non-200 response"));
+        post("next", events).send();
+        assertEquals("echo next", events.take());
+        assertEquals(2, mReceived.size());
+    }
+
+    /**
+     * The backoff of a retry doesn't block the host: a request sent meanwhile goes first.
+     */
+    @Test
+    public void retryBackoffDoesNotBlockHost() throws InterruptedException {
+        Events retriedEvents = new Events();
+        Events otherEvents = new Events();
+        mFailures.add(503);
+        AsyncHttpURLConnection retried = post("retried", retriedEvents);
+        retried.setMaxRetries(1);
+        retried.send();
+        post("other", otherEvents).send();
+        assertEquals("echo other", otherEvents.take());
+        assertEquals("echo retried", retriedEvents.take());
+        List<String> expected = new ArrayList<String>();
+        expected.add("retried");
+        expected.add("other");
+        expected.add("retried");
+        assertEquals(expected, mReceived);
+    }
+
+    @Test
+    public void retriesConnectionErrors() throws InterruptedException {
+        mServer.stop(0);
+        Events events = new Events();
+        AsyncHttpURLConnection connection = post("refused", events);
+        connection.setMaxRetries(2);
+        connection.send();
+        String result = events.take();
+        assertTrue(result, result.startsWith("error: HTTP POST to " + mBaseUrl + " error"));
+    }
+
+    @Test
+    public void recordsLatencyPerEndpoint() throws InterruptedException {
+        HttpRequestExecutor.getInstance().resetLatencyHistograms();
+        Events events = new Events();
+        mFailures.add(404);
+        post("a", events).send();
+        post("b", events).send();
+        events.take();
+        events.take();
+        HttpRequestExecutor.LatencyHistogram histogram = HttpRequestExecutor.getInstance()
+                .getLatencyHistograms().get("POST 127.0.0.1/message");
+        assertEquals(2, histogram.getCount());
+        assertEquals(1, histogram.getErrorCount());
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package com.pine.rtc.org.component;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Loopback tests for DirectSignalingServer with many plain socket peers.
+ */
+public class DirectSignalingServerTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String LOOPBACK = "127.0.0.1";
+    private static final long TIMEOUT_MS = 20000;
+    private static final int PEERS = 300;
+    private static final int MESSAGES_PER_PEER = 5;
+    private static final long MAX_ROUND_TRIP_P99_US = 5000000;
+
+    private DirectSignalingServer mServer;
+    private final List<Socket> mPeers = new ArrayList<Socket>();
+    private final List<Session> mSessions = Collections.synchronizedList(new ArrayList<Session>());
+    private final LinkedBlockingQueue<String> mServerErrors = new LinkedBlockingQueue<String>();
+    private final AtomicInteger mRejected = new AtomicInteger();
+    private CountDownLatch mConnected;
+    private CountDownLatch mAnswered;
+    private CountDownLatch mClosed;
+
+    /**
+     * The events of one accepted session. Like an application, it disconnects the client once the
+     * channel is closed.
+     */
+    private class Session implements AppRTCClient.SignalingEvents {
+        final AppRTCClient mClient;
+        final List<String> mCandidates = Collections.synchronizedList(new ArrayList<String>());
+        final LinkedBlockingQueue<String> mErrors = new LinkedBlockingQueue<String>();
+        volatile long mOfferSentNs;
+        volatile long mAnswerReceivedNs;
+
+        Session(AppRTCClient client) {
+            mClient = client;
+        }
+
+        @Override
+        public void onConnectedToRoom(AppRTCClient.SignalingParameters params) {
+            mOfferSentNs = System.nanoTime();
+            mClient.sendOfferSdp(new SessionDescription(SessionDescription.Type.OFFER, "v=0"));
+            mConnected.countDown();
+        }
+
+        @Override
+        public void onRemoteDescription(SessionDescription sdp) {
+            if (sdp.type == SessionDescription.Type.ANSWER) {
+                mAnswerReceivedNs = System.nanoTime();
+                mAnswered.countDown();
+            }
+        }
+
+        @Override
+        public void onRemoteIceCandidate(IceCandidate candidate) {
+            mCandidates.add(candidate.sdp);
+        }
+
+        @Override
+        public void onRemoteIceCandidatesRemoved(IceCandidate[] candidates) {
+        }
+
+        @Override
+        public void onChannelClose() {
+            try {
+                mClient.disconnectFromRoom();
+            } catch (RejectedExecutionException e) {
+                mRejected.incrementAndGet();
+            }
+            mClosed.countDown();
+        }
+
+        @Override
+        public void onChannelError(String description) {
+            mErrors.add(description);
+        }
+    }
+
+    private final DirectSignalingServer.SessionListener mListener =
+            new DirectSignalingServer.SessionListener() {
+                @Override
+                public AppRTCClient.SignalingEvents onSessionAccepted(AppRTCClient client,
+                                                                     String remoteAddress) {
+                    Session session = new Session(client);
+                    mSessions.add(session);
+                    return session;
+                }
+
+                @Override
+                public void onServerError(String description) {
+                    mServerErrors.add(description);
+                }
+            };
+
+    @Before
+    public void setUp() {
+        mConnected = new CountDownLatch(PEERS);
+        mAnswered = new CountDownLatch(PEERS);
+        mClosed = new CountDownLatch(PEERS);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mServer != null) {
+            mServer.stop();
+        }
+        for (Socket peer : mPeers) {
+            peer.close();
+        }
+    }
+
+    private static int findFreePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName(LOOPBACK));
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    // Starts a server with the default settings.
+    private int startServer() throws IOException {
+        int port = findFreePort();
+        // Server owned executor, so stop() also covers its shutdown.
+        mServer = new DirectSignalingServer(null, mListener, LOOPBACK, port);
+        mServer.start();
+        return port;
+    }
+
+    private int startServer(long idleTimeoutMs) throws IOException {
+        int port = findFreePort();
+        mServer = new DirectSignalingServer(null, mListener, LOOPBACK, port);
+        mServer.setIdleTimeoutMs(idleTimeoutMs);
+        mServer.start();
+        return port;
+    }
+
+    private Socket connectPeer(int port) throws IOException {
+        Socket peer = new Socket(LOOPBACK, port);
+        peer.setSoTimeout((int) TIMEOUT_MS);
+        mPeers.add(peer);
+        return peer;
+    }
+
+    private static String candidate(String sdp) {
+        return SignalingMessageCodec.encodeCandidate(new IceCandidate("0", 0, sdp));
+    }
+
+    /**
+     * Reads one message with the framing of TCPFrameCodec, null on end of stream.
+     */
+    private static String readMessage(Socket peer, TCPFrameCodec codec) throws IOException {
+        final String[] message = new String[1];
+        TCPFrameCodec.MessageListener listener = new TCPFrameCodec.MessageListener() {
+            @Override
+            public void onMessage(String decoded) {
+                if (message[0] == null) {
+                    message[0] = decoded;
+                }
+            }
+        };
+        InputStream in = peer.getInputStream();
+        while (message[0] == null) {
+            ByteBuffer buffer = codec.getReadBuffer();
+            // One byte at a time, so nothing past the first message is consumed.
+            int b = in.read();
+            if (b < 0) {
+                return null;
+            }
+            buffer.put((byte) b);
+            codec.decode(listener);
+        }
+        return message[0];
+    }
+
+    private int receivedCandidates() {
+        int count = 0;
+        synchronized (mSessions) {
+            for (Session session : mSessions) {
+                count += session.mCandidates.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the given percentile (0-100) of the sorted values, nearest rank.
+     */
+    private static long percentile(long[] sorted, int percentile) {
+        int rank = (int) Math.ceil(sorted.length * percentile / 100.0);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * Every peer answers the offer of its session as soon as it arrives, then sends its
+     * candidates, each on its own thread like a separate device. The offer/answer round trip of
+     * each session is timed from sending the offer until the answer is delivered to its events.
+     */
+    @Test
+    public void servesHundredsOfPeers() throws Exception {
+        final int port = startServer(0);
+        final LinkedBlockingQueue<String> peerErrors = new LinkedBlockingQueue<String>();
+        List<Thread> peerThreads = new ArrayList<Thread>();
+        for (int p = 0; p < PEERS; p++) {
+            final int peerIndex = p;
+            final Socket peer = connectPeer(port);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        String offer = readMessage(peer, new TCPFrameCodec());
+                        if (offer == null || !offer.contains("\"type\":\"offer\"")) {
+                            peerErrors.add("Peer " + peerIndex + " got " + offer);
+                            return;
+                        }
+                        // Even peers use framing, odd peers plain lines like TCPChannelClient.
+                        OutputStream out = peer.getOutputStream();
+                        List<String> messages = new ArrayList<String>();
+                        messages.add(SignalingMessageCodec.encodeSdp(
+                                SignalingMessageCodec.TYPE_ANSWER, "v=0"));
+                        for (int i = 0; i < MESSAGES_PER_PEER; i++) {
+                            messages.add(candidate("candidate:" + peerIndex + ":" + i));
+                        }
+                        for (String message : messages) {
+                            out.write(peerIndex % 2 == 0 ? TCPFrameCodecTest.frame(message)
+                                    : (message + "\n").getBytes(UTF_8));
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        peerErrors.add("Peer " + peerIndex + ": " + e);
+                    }
+                }
+            }, "Peer-" + p);
+            thread.start();
+            peerThreads.add(thread);
+        }
+        assertTrue(mConnected.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(mAnswered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        for (Thread thread : peerThreads) {
+            thread.join(TIMEOUT_MS);
+        }
+        assertEquals(String.valueOf(peerErrors), 0, peerErrors.size());
+        assertEquals(PEERS, mServer.getSessionCount());
+
+        long[] roundTripsUs = new long[PEERS];
+        synchronized (mSessions) {
+            for (int i = 0; i < PEERS; i++) {
+                Session session = mSessions.get(i);
+                roundTripsUs[i] = (session.mAnswerReceivedNs - session.mOfferSentNs) / 1000;
+            }
+        }
+        Arrays.sort(roundTripsUs);
+        long p50 = percentile(roundTripsUs, 50);
+        long p90 = percentile(roundTripsUs, 90);
+        long p99 = percentile(roundTripsUs, 99);
+        System.out.println("Offer/answer round trip over " + PEERS + " peers: p50=" + p50
+                + "us p90=" + p90 + "us p99=" + p99 + "us max=" + roundTripsUs[PEERS - 1] + "us");
+        // Generous, so that a slow or loaded CI machine does not fail; loopback takes milliseconds.
+        assertTrue("p99 " + p99 + "us", p99 < MAX_ROUND_TRIP_P99_US);
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (receivedCandidates() < PEERS * MESSAGES_PER_PEER) {
+            assertTrue("Received " + receivedCandidates(), System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        // Each session only sees its own peer's messages, in order.
+        boolean[] seen = new boolean[PEERS];
+        for (Session session : mSessions) {
+            assertEquals(MESSAGES_PER_PEER, session.mCandidates.size());
+            String peer = session.mCandidates.get(0).split(":")[1];
+            for (int i = 0; i < MESSAGES_PER_PEER; i++) {
+                assertEquals("candidate:" + peer + ":" + i, session.mCandidates.get(i));
+            }
+            seen[Integer.parseInt(peer)] = true;
+        }
+        for (boolean peerSeen : seen) {
+            assertTrue(peerSeen);
+        }
+
+        // stop() closes every session before the owned executor stops accepting work, so the
+        // disconnectFromRoom posted from onChannelClose is not rejected.
+        mServer.stop();
+        assertTrue(mClosed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(0, mRejected.get());
+        assertEquals(0, mServer.getSessionCount());
+        for (Socket peer : mPeers) {
+            assertEquals(-1, peer.getInputStream().read());
+        }
+        assertTrue(mServerErrors.isEmpty());
+    }
+
+    /**
+     * With the default settings, a session that is set up and then goes quiet, as signaling does
+     * for the rest of a call, stays open.
+     */
+    @Test
+    public void closesSessionsIdleAfterSetUp() throws Exception {
+        mConnected = new CountDownLatch(1);
+        mClosed = new CountDownLatch(1);
+        int port = startServer();
+        Socket peer = connectPeer(port);
+        assertTrue(mConnected.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        TCPFrameCodec codec = new TCPFrameCodec();
+        assertTrue(readMessage(peer, codec).contains("offer"));
+        OutputStream out = peer.getOutputStream();
+        out.write(TCPFrameCodecTest.frame(SignalingMessageCodec.encodeSdp(
+                SignalingMessageCodec.TYPE_ANSWER, "v=0")));
+        out.write(TCPFrameCodecTest.frame(candidate("candidate:set-up")));
+        out.flush();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (receivedCandidates() < 1) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        // Any default timeout would eventually hang up the call; waiting it out is too slow for a
+        // unit test, so check that it is disabled, then that the sweeps leave the session alone.
+        assertEquals(0, DirectSignalingServer.DEFAULT_IDLE_TIMEOUT_MS);
+        Thread.sleep(3500);
+        assertEquals(1, mServer.getSessionCount());
+        assertEquals(1, mClosed.getCount());
+        assertEquals(null, mSessions.get(0).mErrors.poll());
+        // The session still works.
+        out.write(TCPFrameCodecTest.frame(candidate("candidate:later")));
+        out.flush();
+        while (receivedCandidates() < 2) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * With an idle timeout set, a peer that has set up its session and then goes silent is
+     * closed, a peer that keeps sending is not.
+     */
+    @Test
+    public void closesSessionsIdleWithTimeout() throws Exception {
+        mClosed = new CountDownLatch(1);
+        mConnected = new CountDownLatch(2);
+        int port = startServer(1500);
+        Socket silent = connectPeer(port);
+        Socket active = connectPeer(port);
+        assertTrue(mConnected.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        silent.getOutputStream().write((candidate("candidate:silent") + "\n").getBytes(UTF_8));
+        silent.getOutputStream().flush();
+
+        long deadline = System.currentTimeMillis() + 4000;
+        int sent = 0;
+        while (System.currentTimeMillis() < deadline) {
+            active.getOutputStream().write((candidate("candidate:" + sent++) + "\n").getBytes(UTF_8));
+            active.getOutputStream().flush();
+            Thread.sleep(300);
+        }
+        assertTrue(mClosed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, mServer.getSessionCount());
+
+        Session silentSession = null;
+        for (Session session : mSessions) {
+            if (session.mCandidates.contains("candidate:silent")) {
+                silentSession = session;
+            }
+        }
+        String error = silentSession.mErrors.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertTrue(error, error.contains("idle"));
+        TCPFrameCodec codec = new TCPFrameCodec();
+        assertTrue(readMessage(silent, codec).contains("offer"));
+        assertEquals(null, readMessage(silent, codec));
+    }
+}
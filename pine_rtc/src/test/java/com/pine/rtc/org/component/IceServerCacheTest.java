@@ -0,0 +1,226 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package com.pine.rtc.org.component;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.PeerConnection;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests IceServerCache against a fake TURN endpoint.
+ */
+public class IceServerCacheTest {
+    private static final String REFERER = "https://appr.tc";
+    private static final String RESPONSE = "{\"lifetimeDuration\":\"86400s\",\"iceServers\":[{"
+            + "\"urls\":[\"turn:turn.example.com:3478?transport=udp\","
+            + "\"turn:turn.example.com:443?transport=tcp\"],"
+            + "\"username\":\"user\",\"credential\":\"secret\"}]}";
+    private static final long TIMEOUT_MS = 10000;
+
+    private final IceServerCache mCache = IceServerCache.getInstance();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    // Status codes returned instead of RESPONSE, consumed one per request.
+    private final LinkedBlockingQueue<Integer> mFailures = new LinkedBlockingQueue<Integer>();
+    private volatile CountDownLatch mRequestReceived = new CountDownLatch(0);
+    private volatile CountDownLatch mReleaseResponse = new CountDownLatch(0);
+    private HttpServer mServer;
+    private String mUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        mCache.clear();
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mRequestCount.incrementAndGet();
+                mRequestReceived.countDown();
+                try {
+                    mReleaseResponse.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                Integer failure = mFailures.poll();
+                byte[] response = RESPONSE.getBytes("UTF-8");
+                exchange.sendResponseHeaders(failure != null ? failure : 200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        mServer.setExecutor(Executors.newFixedThreadPool(4));
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/v1alpha/iceconfig?key=k";
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        mCache.clear();
+    }
+
+    private static void assertServers(LinkedList<PeerConnection.IceServer> servers) {
+        assertEquals(2, servers.size());
+        assertEquals("turn:turn.example.com:3478?transport=udp", servers.get(0).uri);
+        assertEquals("turn:turn.example.com:443?transport=tcp", servers.get(1).uri);
+        assertEquals("user", servers.get(1).username);
+        assertEquals("secret", servers.get(1).password);
+    }
+
+    // Makes the entry known to prefetch() with a failed request.
+    private void addFailedEntry() throws JSONException {
+        mFailures.add(500);
+        try {
+            mCache.getIceServers(mUrl, REFERER);
+            fail("Expected IOException");
+        } catch (IOException expected) {
+            // Expected.
+        }
+        assertEquals(1, mRequestCount.get());
+    }
+
+    @Test
+    public void servesCachedServers() throws IOException, JSONException {
+        assertServers(mCache.getIceServers(mUrl, REFERER));
+        assertServers(mCache.getIceServers(mUrl, REFERER));
+        assertServers(mCache.getIceServers(mUrl, REFERER));
+        assertEquals(1, mRequestCount.get());
+        assertEquals(1, mCache.getMissCount());
+        assertEquals(2, mCache.getHitCount());
+    }
+
+    @Test
+    public void fetchesAgainAfterError() throws IOException, JSONException {
+        addFailedEntry();
+        assertServers(mCache.getIceServers(mUrl, REFERER));
+        assertEquals(2, mRequestCount.get());
+        assertEquals(2, mCache.getMissCount());
+    }
+
+    /**
+     * A room response runs on HttpRequestExecutor and holds the slot of its host. A refresh of a
+     * TURN server on the same host queued behind it must not be waited for.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void doesNotWaitForRefreshQueuedBehindCaller() throws Exception {
+        addFailedEntry();
+        final LinkedBlockingQueue<Object> result = new LinkedBlockingQueue<Object>();
+        final long[] elapsedMs = new long[1];
+        HttpRequestExecutor.getInstance().execute(AsyncHttpURLConnection.getHost(mUrl), new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                // Queued behind this request.
+                mCache.prefetch();
+                Object servers;
+                try {
+                    servers = mCache.getIceServers(mUrl, REFERER);
+                } catch (Exception e) {
+                    servers = e;
+                }
+                elapsedMs[0] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                result.add(servers);
+            }
+        });
+        Object servers = result.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertTrue(String.valueOf(servers), servers instanceof LinkedList);
+        assertServers((LinkedList<PeerConnection.IceServer>) servers);
+        assertTrue("waited " + elapsedMs[0] + " ms", elapsedMs[0] < 2000);
+
+        // The queued refresh was cancelled once the caller fetched the entry.
+        final CountDownLatch drained = new CountDownLatch(1);
+        HttpRequestExecutor.getInstance().execute(AsyncHttpURLConnection.getHost(mUrl), new Runnable() {
+            @Override
+            public void run() {
+                drained.countDown();
+            }
+        });
+        assertTrue(drained.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(2, mRequestCount.get());
+        assertEquals(0, mCache.getRefreshCount());
+    }
+
+    /**
+     * A miss during a running refresh waits for it instead of sending a second request.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void waitsForRunningRefresh() throws Exception {
+        addFailedEntry();
+        mRequestReceived = new CountDownLatch(1);
+        mReleaseResponse = new CountDownLatch(1);
+        mCache.prefetch();
+        assertTrue(mRequestReceived.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        final LinkedBlockingQueue<Object> result = new LinkedBlockingQueue<Object>();
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.add(mCache.getIceServers(mUrl, REFERER));
+                } catch (Exception e) {
+                    result.add(e);
+                }
+            }
+        });
+        caller.start();
+        // Still waiting for the refresh.
+        assertEquals(null, result.poll(200, TimeUnit.MILLISECONDS));
+        mReleaseResponse.countDown();
+        Object servers = result.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertTrue(String.valueOf(servers), servers instanceof LinkedList);
+        assertServers((LinkedList<PeerConnection.IceServer>) servers);
+        assertEquals(2, mRequestCount.get());
+        assertEquals(1, mCache.getRefreshCount());
+        assertEquals(0, mCache.getRefreshErrorCount());
+    }
+
+    @Test
+    public void countsRefreshErrors() throws Exception {
+        addFailedEntry();
+        mFailures.add(503);
+        mRequestReceived = new CountDownLatch(1);
+        mCache.prefetch();
+        assertTrue(mRequestReceived.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        final CountDownLatch drained = new CountDownLatch(1);
+        HttpRequestExecutor.getInstance().execute(AsyncHttpURLConnection.getHost(mUrl), new Runnable() {
+            @Override
+            public void run() {
+                drained.countDown();
+            }
+        });
+        assertTrue(drained.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, mCache.getRefreshCount());
+        assertEquals(1, mCache.getRefreshErrorCount());
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package com.pine.rtc.org.component;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Loopback tests for NioTCPChannelClient against a plain blocking socket peer and against itself.
+ */
+public class NioTCPChannelClientTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long TIMEOUT_MS = 5000;
+    private static final String LOOPBACK = "127.0.0.1";
+
+    private ExecutorService mExecutor;
+    private ServerSocket mPeerServer;
+    private Socket mPeer;
+
+    /**
+     * Records the events of one client, in the order they were delivered on the executor.
+     */
+    private static class Events implements TCPChannelClient.TCPChannelEvents {
+        final LinkedBlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+
+        @Override
+        public void onTCPConnected(boolean server) {
+            mEvents.add(server ? "connected:server" : "connected:client");
+        }
+
+        @Override
+        public void onTCPMessage(String message) {
+            mEvents.add("message:" + message);
+        }
+
+        @Override
+        public void onTCPError(String description) {
+            mEvents.add("error:" + description);
+        }
+
+        @Override
+        public void onTCPClose() {
+            mEvents.add("close");
+        }
+
+        String next() throws InterruptedException {
+            String event = mEvents.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull("Timed out waiting for an event", event);
+            return event;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mExecutor = Executors.newSingleThreadExecutor();
+        mPeerServer = new ServerSocket(0, 1, InetAddress.getByName(LOOPBACK));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mPeer != null) {
+            mPeer.close();
+        }
+        mPeerServer.close();
+        mExecutor.shutdown();
+        assertTrue(mExecutor.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private NioTCPChannelClient connect(Events events) throws Exception {
+        NioTCPChannelClient client = new NioTCPChannelClient(mExecutor, events, LOOPBACK,
+                mPeerServer.getLocalPort());
+        mPeer = mPeerServer.accept();
+        mPeer.setSoTimeout((int) TIMEOUT_MS);
+        assertEquals("connected:client", events.next());
+        return client;
+    }
+
+    private void send(final NioTCPChannelClient client, final String message) throws Exception {
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                client.send(message);
+            }
+        }).get();
+    }
+
+    private void disconnect(final NioTCPChannelClient client) throws Exception {
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                client.disconnect();
+            }
+        }).get();
+    }
+
+    /**
+     * Writes data one small piece at a time so the client sees it across several reads.
+     */
+    private static void writeInPieces(OutputStream out, byte[] data, int pieceSize) throws Exception {
+        for (int offset = 0; offset < data.length; offset += pieceSize) {
+            out.write(data, offset, Math.min(pieceSize, data.length - offset));
+            out.flush();
+            Thread.sleep(2);
+        }
+    }
+
+    private static String readFrame(DataInputStream in) throws IOException {
+        assertEquals(TCPFrameCodec.FRAME_MARKER, in.readByte());
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        return new String(payload, UTF_8);
+    }
+
+    /**
+     * A TCPChannelClient peer sends "\n" lines and reads with readLine(); the client must keep
+     * sending lines that readLine() understands.
+     */
+    @Test
+    public void talksLinesToLegacyPeer() throws Exception {
+        Events events = new Events();
+        NioTCPChannelClient client = connect(events);
+        OutputStream out = mPeer.getOutputStream();
+        out.write("{\"type\":\"offer\"}\nsecond\n".getBytes(UTF_8));
+        out.flush();
+        assertEquals("message:{\"type\":\"offer\"}", events.next());
+        assertEquals("message:second", events.next());
+
+        send(client, "answer");
+        send(client, "candidate");
+        BufferedReader reader = new BufferedReader(new InputStreamReader(mPeer.getInputStream(), UTF_8));
+        assertEquals("answer", reader.readLine());
+        assertEquals("candidate", reader.readLine());
+
+        disconnect(client);
+        assertEquals("close", events.next());
+        assertEquals(null, reader.readLine());
+    }
+
+    /**
+     * Before the peer is known to support framing the client sends "\r\n" lines; after a framed
+     * message arrives it switches to 0x00 + 4 byte length frames.
+     */
+    @Test
+    public void switchesToFramingAfterFramedMessage() throws Exception {
+        Events events = new Events();
+        NioTCPChannelClient client = connect(events);
+        DataInputStream in = new DataInputStream(mPeer.getInputStream());
+
+        send(client, "hello");
+        byte[] line = new byte["hello\r\n".length()];
+        in.readFully(line);
+        assertArrayEquals("hello\r\n".getBytes(UTF_8), line);
+
+        mPeer.getOutputStream().write(TCPFrameCodecTest.frame("multi\nline"));
+        mPeer.getOutputStream().flush();
+        assertEquals("message:multi\nline", events.next());
+
+        send(client, "framed\nmessage");
+        assertEquals("framed\nmessage", readFrame(in));
+        disconnect(client);
+        assertEquals("close", events.next());
+    }
+
+    /**
+     * Frames and lines split into tiny writes, with a split inside the length header.
+     */
+    @Test
+    public void reassemblesMessagesSplitAcrossReads() throws Exception {
+        Events events = new Events();
+        NioTCPChannelClient client = connect(events);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 4000; i++) {
+            large.append("a=candidate:").append(i).append(' ');
+        }
+        byte[] first = TCPFrameCodecTest.frame("你好");
+        byte[] second = TCPFrameCodecTest.frame(large.toString());
+        byte[] third = "line 😀\r\n".getBytes(UTF_8);
+        OutputStream out = mPeer.getOutputStream();
+        writeInPieces(out, first, 1);
+        writeInPieces(out, second, 4093);
+        writeInPieces(out, third, 3);
+        assertEquals("message:你好", events.next());
+        assertEquals("message:" + large, events.next());
+        assertEquals("message:line 😀", events.next());
+        disconnect(client);
+        assertEquals("close", events.next());
+    }
+
+    @Test
+    public void reportsCloseWhenPeerCloses() throws Exception {
+        Events events = new Events();
+        connect(events);
+        mPeer.close();
+        mPeer = null;
+        assertEquals("close", events.next());
+    }
+
+    @Test
+    public void reportsErrorForInvalidFrame() throws Exception {
+        Events events = new Events();
+        connect(events);
+        OutputStream out = mPeer.getOutputStream();
+        out.write(new byte[]{TCPFrameCodec.FRAME_MARKER, (byte) 0x7f, 0, 0, 0});
+        out.flush();
+        assertTrue(events.next().startsWith("error:"));
+        assertEquals("close", events.next());
+    }
+
+    /**
+     * Two NIO clients: both start with "\r\n" lines and end up exchanging frames.
+     */
+    @Test
+    public void nioClientsTalkToEachOther() throws Exception {
+        int port = mPeerServer.getLocalPort();
+        mPeerServer.close();
+        Events serverEvents = new Events();
+        Events clientEvents = new Events();
+        NioTCPChannelClient server = new NioTCPChannelClient(mExecutor, serverEvents, "0.0.0.0", port);
+        NioTCPChannelClient client = null;
+        // The server binds on its own thread, retry until it listens.
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (client == null) {
+            Events attempt = new Events();
+            NioTCPChannelClient candidate = new NioTCPChannelClient(mExecutor, attempt, LOOPBACK, port);
+            String event = attempt.next();
+            if (event.equals("connected:client")) {
+                client = candidate;
+                clientEvents = attempt;
+            } else {
+                assertTrue(event, System.currentTimeMillis() < deadline);
+                Thread.sleep(20);
+            }
+        }
+        assertEquals("connected:server", serverEvents.next());
+
+        send(client, "offer");
+        assertEquals("message:offer", serverEvents.next());
+        send(server, "answer");
+        assertEquals("message:answer", clientEvents.next());
+        for (int i = 0; i < 100; i++) {
+            send(client, "candidate " + i + "\nwith newline");
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("message:candidate " + i + "\nwith newline", serverEvents.next());
+        }
+        disconnect(client);
+        assertEquals("close", clientEvents.next());
+        assertEquals("close", serverEvents.next());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package com.pine.rtc.org.component;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH comparison of SignalingMessageCodec with the org.json code it replaced, for a 6 KB offer
+ * sent directly and inside a WebSocket envelope.
+ * <p>
+ * <p>Run main() from the IDE, or pass the test classpath to org.openjdk.jmh.Main.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignalingMessageCodecBenchmark {
+    private static final int OFFER_SIZE = 6 * 1024;
+
+    private final SignalingMessageCodec mCodec = new SignalingMessageCodec();
+    private String mSdp;
+    private String mOffer;
+    private String mEnvelope;
+
+    /**
+     * A video call offer of about size characters, lines ending with "\r\n".
+     */
+    static String offerSdp(int size) {
+        String[] lines = {
+                "v=0",
+                "o=- 4611731400430051336 2 IN IP4 127.0.0.1",
+                "s=-",
+                "t=0 0",
+                "a=group:BUNDLE audio video",
+                "a=msid-semantic: WMS ARDAMS",
+                "m=audio 9 UDP/TLS/RTP/SAVPF 111 103 104 9 102 0 8 106 105 13 110 112 113 126",
+                "c=IN IP4 0.0.0.0",
+                "a=rtcp:9 IN IP4 0.0.0.0",
+                "a=ice-ufrag:Wx6h",
+                "a=ice-pwd:tPCnPd6bJZ5U5m6i5JXXaZ0k",
+                "a=ice-options:trickle renomination",
+                "a=fingerprint:sha-256 5B:D3:8E:66:0E:7D:D3:F3:8F:69:C9:1E:B4:C8:2D:7B:"
+                        + "2E:4E:35:7A:71:C4:3C:0E:3B:9E:5B:33:9D:3A:51:22",
+                "a=setup:actpass",
+                "a=mid:audio",
+                "a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level",
+                "a=sendrecv",
+                "a=rtcp-mux",
+                "a=rtpmap:111 opus/48000/2",
+                "a=rtcp-fb:111 transport-cc",
+                "a=fmtp:111 minptime=10;useinbandfec=1",
+                "a=ssrc:1398573458 cname:QnE8HkTPD7zd6f3h",
+                "a=ssrc:1398573458 msid:ARDAMS ARDAMSa0",
+                "m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101 127",
+                "a=rtpmap:96 VP8/90000",
+                "a=rtcp-fb:96 goog-remb",
+                "a=rtcp-fb:96 transport-cc",
+                "a=rtcp-fb:96 ccm fir",
+                "a=rtcp-fb:96 nack",
+                "a=rtcp-fb:96 nack pli",
+                "a=rtpmap:100 H264/90000",
+                "a=fmtp:100 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f",
+        };
+        StringBuilder builder = new StringBuilder(size + 128);
+        for (int i = 0; builder.length() < size; i++) {
+            builder.append(lines[i % lines.length]).append("\r\n");
+        }
+        return builder.toString();
+    }
+
+    @Setup
+    public void setup() throws JSONException {
+        mSdp = offerSdp(OFFER_SIZE);
+        mOffer = SignalingMessageCodec.encodeSdp(SignalingMessageCodec.TYPE_OFFER, mSdp);
+        mEnvelope = new JSONObject().put("msg", mOffer).put("error", "").toString();
+    }
+
+    @Benchmark
+    public String decode() throws JSONException {
+        return mCodec.decode(mOffer).sdp;
+    }
+
+    @Benchmark
+    public String decodeOrgJson() throws JSONException {
+        JSONObject json = new JSONObject(mOffer);
+        json.optString("type");
+        return json.getString("sdp");
+    }
+
+    @Benchmark
+    public String decodeEnvelope() throws JSONException {
+        return mCodec.decodeEnvelope(mEnvelope).sdp;
+    }
+
+    /**
+     * The envelope string is extracted first and then parsed again.
+     */
+    @Benchmark
+    public String decodeEnvelopeOrgJson() throws JSONException {
+        JSONObject envelope = new JSONObject(mEnvelope);
+        envelope.optString("error");
+        JSONObject json = new JSONObject(envelope.getString("msg"));
+        json.optString("type");
+        return json.getString("sdp");
+    }
+
+    @Benchmark
+    public String encode() {
+        return SignalingMessageCodec.encodeSdp(SignalingMessageCodec.TYPE_OFFER, mSdp);
+    }
+
+    @Benchmark
+    public String encodeOrgJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("sdp", mSdp);
+        json.put("type", "offer");
+        return json.toString();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SignalingMessageCodecBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package com.pine.rtc.org.component;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for SignalingMessageCodec, using org.json as the reference encoder and decoder.
+ */
+public class SignalingMessageCodecTest {
+    // Quotes, backslashes, control characters, an escaped-looking sequence, non-ASCII, a surrogate
+    // pair and the JavaScript line terminators.
+    private static final String AWKWARD = "a\"b\\c/d\r\n\t\b\f\u0001\\u0041 é中😀 \u2028\u2029 end";
+
+    private final SignalingMessageCodec mCodec = new SignalingMessageCodec();
+
+    private static void assertCandidateEquals(IceCandidate expected, IceCandidate actual) {
+        assertEquals(expected.sdpMid, actual.sdpMid);
+        assertEquals(expected.sdpMLineIndex, actual.sdpMLineIndex);
+        assertEquals(expected.sdp, actual.sdp);
+    }
+
+    private static String envelope(String message) throws JSONException {
+        return new JSONObject().put("msg", message).put("error", "").toString();
+    }
+
+    @Test
+    public void sdpRoundTrips() throws JSONException {
+        for (String sdp : Arrays.asList("", "v=0\r\n", AWKWARD,
+                SignalingMessageCodecBenchmark.offerSdp(6 * 1024))) {
+            String encoded = SignalingMessageCodec.encodeSdp(SignalingMessageCodec.TYPE_OFFER, sdp);
+            // Valid JSON with the same content for org.json.
+            JSONObject json = new JSONObject(encoded);
+            assertEquals(sdp, json.getString("sdp"));
+            assertEquals("offer", json.getString("type"));
+
+            SignalingMessageCodec.Message message = mCodec.decode(encoded);
+            assertEquals(SignalingMessageCodec.TYPE_OFFER, message.type);
+            assertEquals(SessionDescription.Type.OFFER, message.getSdpType());
+            assertEquals(sdp, message.sdp);
+        }
+    }
+
+    @Test
+    public void candidatesRoundTrip() throws JSONException {
+        IceCandidate first = new IceCandidate("audio", 0,
+                "candidate:1 1 udp 2122260223 192.168.1.2 50000 typ host generation 0");
+        IceCandidate second = new IceCandidate("vi\"deo", 1, AWKWARD);
+
+        SignalingMessageCodec.Message single = mCodec.decode(SignalingMessageCodec.encodeCandidate(second));
+        assertEquals(SignalingMessageCodec.TYPE_CANDIDATE, single.type);
+        assertCandidateEquals(second, single.candidate);
+
+        for (String type : Arrays.asList(SignalingMessageCodec.TYPE_CANDIDATES,
+                SignalingMessageCodec.TYPE_REMOVE_CANDIDATES)) {
+            String encoded = SignalingMessageCodec.encodeCandidates(type, Arrays.asList(first, second));
+            JSONArray array = new JSONObject(encoded).getJSONArray("candidates");
+            assertEquals(2, array.length());
+            assertEquals(AWKWARD, array.getJSONObject(1).getString("candidate"));
+
+            SignalingMessageCodec.Message message = mCodec.decode(encoded);
+            assertEquals(type, message.type);
+            assertEquals(2, message.candidates.length);
+            assertCandidateEquals(first, message.candidates[0]);
+            assertCandidateEquals(second, message.candidates[1]);
+        }
+        SignalingMessageCodec.Message empty = mCodec.decode(SignalingMessageCodec.encodeCandidates(
+                SignalingMessageCodec.TYPE_CANDIDATES, Arrays.<IceCandidate>asList()));
+        assertEquals(0, empty.candidates.length);
+    }
+
+    @Test
+    public void decodesMessagesWrittenByOrgJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("type", "answer");
+        json.put("sdp", AWKWARD);
+        assertEquals(AWKWARD, mCodec.decode(json.toString()).sdp);
+
+        JSONObject candidate = new JSONObject();
+        candidate.put("type", "candidate");
+        candidate.put("label", 2);
+        candidate.put("id", "data");
+        candidate.put("candidate", AWKWARD);
+        assertCandidateEquals(new IceCandidate("data", 2, AWKWARD),
+                mCodec.decode(candidate.toString()).candidate);
+    }
+
+    @Test
+    public void encodesCommands() throws JSONException {
+        JSONObject register = new JSONObject(SignalingMessageCodec.encodeRegister("room\"1", "client\\2"));
+        assertEquals("register", register.getString("cmd"));
+        assertEquals("room\"1", register.getString("roomid"));
+        assertEquals("client\\2", register.getString("clientid"));
+
+        String inner = SignalingMessageCodec.encodeSdp(SignalingMessageCodec.TYPE_ANSWER, AWKWARD);
+        JSONObject send = new JSONObject(SignalingMessageCodec.encodeSend(inner));
+        assertEquals("send", send.getString("cmd"));
+        assertEquals(inner, send.getString("msg"));
+        assertEquals("bye", new JSONObject(SignalingMessageCodec.encodeBye()).getString("type"));
+    }
+
+    /**
+     * The envelope carries the message as a JSON string, so every escape of the message is
+     * escaped again, and \\u escapes may stand for either level.
+     */
+    @Test
+    public void decodesNestedEscapesInEnvelope() throws JSONException {
+        String inner = SignalingMessageCodec.encodeSdp(SignalingMessageCodec.TYPE_OFFER, AWKWARD);
+        SignalingMessageCodec.Message message = mCodec.decodeEnvelope(envelope(inner));
+        assertEquals(SignalingMessageCodec.TYPE_OFFER, message.type);
+        assertEquals(AWKWARD, message.sdp);
+        assertEquals("", message.error);
+
+        // Structural characters of the message written as \\u escapes of the envelope.
+        String escaped = "{\"msg\":\"\\u007b\\u0022type\\u0022:\\u0022candidate\\u0022,"
+                + "\\\"label\\\":1,\\\"id\\\":\\\"a\\\\\\\"b\\\",\\\"candidate\\\":\\\"x\\\\u0041\\\\ny\\\"}\","
+                + "\"error\":\"\"}";
+        assertEquals("{\"type\":\"candidate\",\"label\":1,\"id\":\"a\\\"b\",\"candidate\":\"x\\u0041\\ny\"}",
+                new JSONObject(escaped).getString("msg"));
+        SignalingMessageCodec.Message candidate = mCodec.decodeEnvelope(escaped);
+        assertCandidateEquals(new IceCandidate("a\"b", 1, "xA\ny"), candidate.candidate);
+
+        // A message stored twice over, as the room server does for queued messages.
+        String twice = envelope(envelope(inner));
+        JSONObject outer = new JSONObject(new JSONObject(twice).getString("msg"));
+        assertEquals(inner, outer.getString("msg"));
+    }
+
+    @Test
+    public void decodesEnvelopeWithoutMessage() throws JSONException {
+        SignalingMessageCodec.Message message = mCodec.decodeEnvelope("{\"msg\":\"\",\"error\":\"full\"}");
+        assertNull(message.type);
+        assertEquals("full", message.error);
+        message = mCodec.decodeEnvelope("{\"error\":\"\",\"msg\":\"\"}");
+        assertNull(message.type);
+    }
+
+    @Test
+    public void skipsUnknownFields() throws JSONException {
+        String text = " {\"extra\":{\"a\":[1,-2.5e+3,true,false,null,\"}\"],\"b\":{}},"
+                + "\"type\":\"answer\",\"n\":12,\"sdp\":\"v=0\",\"z\":[[[]]]} ";
+        SignalingMessageCodec.Message message = mCodec.decode(text);
+        assertEquals("answer", message.type);
+        assertEquals("v=0", message.sdp);
+
+        SignalingMessageCodec.Message bye = mCodec.decode("{\"type\":\"bye\"}");
+        assertEquals(SignalingMessageCodec.TYPE_BYE, bye.type);
+        assertEquals("", mCodec.decode("{}").type);
+    }
+
+    private void assertMalformed(String text) {
+        try {
+            mCodec.decode(text);
+            fail("Expected JSONException for " + text);
+        } catch (JSONException expected) {
+            // Expected.
+        }
+    }
+
+    private void assertMalformedEnvelope(String text) {
+        try {
+            mCodec.decodeEnvelope(text);
+            fail("Expected JSONException for " + text);
+        } catch (JSONException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void rejectsMalformedMessages() {
+        assertMalformed("");
+        assertMalformed("[]");
+        assertMalformed("{");
+        assertMalformed("{\"type\":\"offer\"");
+        assertMalformed("{\"type\" \"offer\"}");
+        assertMalformed("{\"type\":\"offer\" \"sdp\":\"v=0\"}");
+        assertMalformed("{type:\"offer\",\"sdp\":\"v=0\"}");
+        assertMalformed("{\"type\":\"offer\",\"sdp\":\"v=0}");
+        assertMalformed("{\"type\":\"offer\",\"sdp\":\"v=0\\");
+        assertMalformed("{\"type\":\"offer\",\"sdp\":\"\\x\"}");
+        assertMalformed("{\"type\":\"offer\",\"sdp\":\"\\u12\"}");
+        assertMalformed("{\"type\":\"offer\",\"sdp\":\"\\u12g4\"}");
+        assertMalformed("{\"type\":\"offer\",\"sdp\":\"v=0\"} trailing");
+        assertMalformed("{\"type\":\"offer\",\"sdp\":\"v=0\"}{}");
+        assertMalformed("{\"type\":1}");
+        // Required fields.
+        assertMalformed("{\"type\":\"offer\"}");
+        assertMalformed("{\"type\":\"candidate\",\"id\":\"0\",\"candidate\":\"c\"}");
+        assertMalformed("{\"type\":\"candidate\",\"label\":0,\"candidate\":\"c\"}");
+        assertMalformed("{\"type\":\"candidates\"}");
+        assertMalformed("{\"type\":\"candidates\",\"candidates\":{}}");
+        assertMalformed("{\"type\":\"candidates\",\"candidates\":[1]}");
+        assertMalformed("{\"type\":\"candidates\",\"candidates\":[{\"label\":0}]}");
+        // Labels must be ints.
+        assertMalformed("{\"type\":\"candidate\",\"label\":1.5,\"id\":\"0\",\"candidate\":\"c\"}");
+        assertMalformed("{\"type\":\"candidate\",\"label\":\"1\",\"id\":\"0\",\"candidate\":\"c\"}");
+        assertMalformed("{\"type\":\"candidate\",\"label\":99999999999,\"id\":\"0\",\"candidate\":\"c\"}");
+        // Unknown values must still be well formed.
+        assertMalformed("{\"x\":#,\"type\":\"bye\"}");
+        StringBuilder deep = new StringBuilder("{\"x\":");
+        for (int i = 0; i < 100; i++) {
+            deep.append('[');
+        }
+        assertMalformed(deep.toString());
+    }
+
+    @Test
+    public void rejectsMalformedEnvelopes() {
+        assertMalformedEnvelope("{\"error\":\"\"}");
+        assertMalformedEnvelope("{\"msg\":{\"type\":\"bye\"}}");
+        assertMalformedEnvelope("{\"msg\":\"{\\\"type\\\":\\\"bye\\\"}");
+        assertMalformedEnvelope("{\"msg\":\"{\\\"type\\\":\\\"bye\\\"} x\"}");
+        assertMalformedEnvelope("{\"msg\":\"{\\\"type\\\":\\\"offer\\\"}\"}");
+        assertMalformedEnvelope("{\"msg\":\"{\\\"type\\\":\\\"bye}\"}");
+        assertMalformedEnvelope("{\"msg\":\"{\\\"type\\\":\\\"bye\\\"}\"} x");
+        assertMalformedEnvelope("{\"msg\":\"{\\\"sdp\\\":\\\"\\\\q\\\"}\"}");
+    }
+
+    /**
+     * A decoder is reused for every message; a failed decode must not affect the next one.
+     */
+    @Test
+    public void decoderIsReusableAfterErrors() throws JSONException {
+        String inner = SignalingMessageCodec.encodeSdp(SignalingMessageCodec.TYPE_ANSWER, AWKWARD);
+        assertMalformedEnvelope("{\"msg\":\"{\\\"sdp\\\":\\\"abc");
+        assertEquals(AWKWARD, mCodec.decode(inner).sdp);
+        assertMalformed("{\"sdp\":\"\\");
+        assertEquals(AWKWARD, mCodec.decodeEnvelope(envelope(inner)).sdp);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package com.pine.rtc.org.component;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for TCPFrameCodec, feeding bytes the way the selector thread does.
+ */
+public class TCPFrameCodecTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private TCPFrameCodec mCodec;
+    private List<String> mMessages;
+    private TCPFrameCodec.MessageListener mListener;
+
+    @Before
+    public void setUp() {
+        mCodec = new TCPFrameCodec();
+        mMessages = new ArrayList<String>();
+        mListener = new TCPFrameCodec.MessageListener() {
+            @Override
+            public void onMessage(String message) {
+                mMessages.add(message);
+            }
+        };
+    }
+
+    static byte[] frame(String message) {
+        byte[] payload = message.getBytes(UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(TCPFrameCodec.HEADER_SIZE + payload.length);
+        buffer.put(TCPFrameCodec.FRAME_MARKER).putInt(payload.length).put(payload);
+        return buffer.array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Copies data into the read buffer in chunks of at most chunkSize bytes, decoding after each.
+     */
+    private void feed(byte[] data, int chunkSize) throws IOException {
+        int offset = 0;
+        while (offset < data.length) {
+            ByteBuffer buffer = mCodec.getReadBuffer();
+            int size = Math.min(Math.min(chunkSize, data.length - offset), buffer.remaining());
+            buffer.put(data, offset, size);
+            offset += size;
+            mCodec.decode(mListener);
+        }
+    }
+
+    private static byte[] toBytes(ByteBuffer[] buffers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : buffers) {
+            ByteBuffer copy = buffer.duplicate();
+            byte[] bytes = new byte[copy.remaining()];
+            copy.get(bytes);
+            out.write(bytes, 0, bytes.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void decodesFramedMessages() throws IOException {
+        feed(concat(frame("{\"type\":\"offer\"}"), frame(""), frame("bye")), Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("{\"type\":\"offer\"}", "", "bye"), mMessages);
+        assertTrue(mCodec.isPeerSupportsFraming());
+    }
+
+    @Test
+    public void decodesPlainLinesWithoutEnablingFraming() throws IOException {
+        feed("first\nsecond\n\nthird".getBytes(UTF_8), Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("first", "second", ""), mMessages);
+        assertFalse(mCodec.isPeerSupportsFraming());
+        feed("\n".getBytes(UTF_8), 1);
+        assertEquals(Arrays.asList("first", "second", "", "third"), mMessages);
+        assertFalse(mCodec.isPeerSupportsFraming());
+    }
+
+    @Test
+    public void crlfLineEnablesFraming() throws IOException {
+        feed("hello\r\n".getBytes(UTF_8), Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("hello"), mMessages);
+        assertTrue(mCodec.isPeerSupportsFraming());
+    }
+
+    @Test
+    public void decodesMixedFramesAndLines() throws IOException {
+        feed(concat("line\n".getBytes(UTF_8), frame("multi\nline"), "after\r\n".getBytes(UTF_8),
+                frame("end")), Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("line", "multi\nline", "after", "end"), mMessages);
+    }
+
+    /**
+     * Every split point, including inside the length header and inside a multi-byte character.
+     */
+    @Test
+    public void decodesMessagesSplitAcrossReads() throws IOException {
+        String unicode = "你好 😀 candidate";
+        byte[] data = concat(frame(unicode), (unicode + "\r\n").getBytes(UTF_8), frame("tail"));
+        for (int chunkSize = 1; chunkSize <= data.length; chunkSize++) {
+            setUp();
+            feed(data, chunkSize);
+            assertEquals("chunk " + chunkSize, Arrays.asList(unicode, unicode, "tail"), mMessages);
+        }
+    }
+
+    /**
+     * Messages larger than the initial 16 KB buffer grow it, framed or not.
+     */
+    @Test
+    public void decodesMessagesLargerThanReadBuffer() throws IOException {
+        char[] chars = new char[100 * 1024];
+        Arrays.fill(chars, 'a');
+        String large = new String(chars);
+        feed(concat(frame(large), (large + "\n").getBytes(UTF_8)), 8 * 1024);
+        assertEquals(Arrays.asList(large, large), mMessages);
+    }
+
+    @Test
+    public void rejectsInvalidFrameLength() {
+        byte[] header = ByteBuffer.allocate(TCPFrameCodec.HEADER_SIZE)
+                .put(TCPFrameCodec.FRAME_MARKER).putInt(TCPFrameCodec.MAX_MESSAGE_SIZE + 1).array();
+        try {
+            feed(header, Integer.MAX_VALUE);
+            fail("Expected IOException");
+        } catch (IOException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void rejectsOverlongLine() {
+        byte[] line = new byte[TCPFrameCodec.MAX_MESSAGE_SIZE + 1];
+        Arrays.fill(line, (byte) 'x');
+        try {
+            feed(line, 64 * 1024);
+            fail("Expected IOException");
+        } catch (IOException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void encodesLinesUntilPeerSupportsFraming() throws IOException {
+        assertEquals("hi\r\n", new String(toBytes(mCodec.encode("hi")), UTF_8));
+        feed(frame("peer"), Integer.MAX_VALUE);
+        assertTrue(Arrays.equals(frame("你好"), toBytes(mCodec.encode("你好"))));
+    }
+
+    @Test
+    public void encodedFramesRoundTrip() throws IOException {
+        feed("x\r\n".getBytes(UTF_8), Integer.MAX_VALUE);
+        mMessages.clear();
+        TCPFrameCodec receiver = new TCPFrameCodec();
+        List<String> sent = Arrays.asList("a", "", "line\nbreak", "é中");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String message : sent) {
+            byte[] bytes = toBytes(mCodec.encode(message));
+            out.write(bytes, 0, bytes.length);
+        }
+        mCodec = receiver;
+        feed(out.toByteArray(), 3);
+        assertEquals(sent, mMessages);
+    }
+}
@@ -0,0 +1,163 @@
+package com.pine.rtc.org.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * YuvKernels在480p、720p和1080p下的JMH测试，数据都在direct buffer中(与YuvConverter一致)。
+ * threads为0时不使用线程池。rotate90Legacy为原YuvConverter.yuvRotate90，作为对照。
+ * <p>
+ * 运行：在IDE中执行main，或把测试classpath交给org.openjdk.jmh.Main。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YuvKernelsBenchmark {
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String size;
+
+    @Param({"0", "4"})
+    public int threads;
+
+    private int mWidth;
+    private int mHeight;
+    private ForkJoinPool mPool;
+    private YuvKernels mKernels;
+    private ByteBuffer mSrc;
+    private ByteBuffer mDst;
+    private YuvKernels.Image mI420;
+    private YuvKernels.Image mNV12;
+    private YuvKernels.Image mI420Rotated;
+    private YuvKernels.Image mNV12Rotated;
+    private YuvKernels.Image mI420Same;
+    private YuvKernels.Image mI420Half;
+
+    @Setup
+    public void setup() {
+        String[] parts = size.split("x");
+        mWidth = Integer.parseInt(parts[0]);
+        mHeight = Integer.parseInt(parts[1]);
+        mPool = threads > 0 ? new ForkJoinPool(threads) : null;
+        mKernels = new YuvKernels(mPool);
+        int frameSize = mWidth * mHeight * 3 / 2;
+        byte[] data = new byte[frameSize];
+        new Random(0).nextBytes(data);
+        mSrc = ByteBuffer.allocateDirect(frameSize);
+        mSrc.put(data);
+        mSrc.clear();
+        mDst = ByteBuffer.allocateDirect(frameSize);
+        mI420 = YuvKernels.Image.wrapI420(mSrc, mWidth, mHeight);
+        mNV12 = YuvKernels.Image.wrapNV12(mSrc, mWidth, mHeight, mWidth, mHeight);
+        mI420Rotated = YuvKernels.Image.wrapI420(mDst, mHeight, mWidth);
+        mNV12Rotated = YuvKernels.Image.wrapNV12(mDst, mHeight, mWidth, mHeight, mWidth);
+        mI420Same = YuvKernels.Image.wrapI420(mDst, mWidth, mHeight);
+        mI420Half = YuvKernels.Image.wrapI420(mDst, mWidth / 2, mHeight / 2);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mPool != null) {
+            mPool.shutdown();
+        }
+    }
+
+    @Benchmark
+    public void rotate90I420() {
+        mKernels.rotate(mI420, mI420Rotated, 90);
+    }
+
+    @Benchmark
+    public void rotate90NV12() {
+        mKernels.rotate(mNV12, mNV12Rotated, 90);
+    }
+
+    @Benchmark
+    public void rotate180I420() {
+        mKernels.rotate(mI420, mI420Same, 180);
+    }
+
+    @Benchmark
+    public void mirrorI420() {
+        mKernels.mirror(mI420, mI420Same);
+    }
+
+    @Benchmark
+    public void cropI420() {
+        mKernels.crop(mI420, mWidth / 4 & ~1, mHeight / 4 & ~1, mI420Half);
+    }
+
+    @Benchmark
+    public void scaleBilinearHalfI420() {
+        mKernels.scale(mI420, mI420Half, YuvKernels.FILTER_BILINEAR);
+    }
+
+    @Benchmark
+    public void scaleBoxHalfI420() {
+        mKernels.scale(mI420, mI420Half, YuvKernels.FILTER_BOX);
+    }
+
+    /**
+     * 原实现是单线程的，与threads参数无关
+     */
+    @Benchmark
+    public void rotate90Legacy() {
+        legacyRotate90(mSrc, mDst, mWidth, mHeight);
+    }
+
+    /**
+     * 原YuvConverter.yuvRotate90，逐列逐字节get/put
+     */
+    private static void legacyRotate90(ByteBuffer srcBuffer, ByteBuffer desBuffer, int width, int height) {
+        int size = width * height;
+        int n = 0;
+        int pos = 0;
+        //copy y
+        for (int j = 0; j < width; j++) {
+            pos = size;
+            for (int i = height - 1; i >= 0; i--) {
+                pos -= width;
+                desBuffer.put(n++, srcBuffer.get(pos + j));
+            }
+        }
+        int hw = width >> 1;
+        int hh = height >> 1;
+        int hSize = size >> 2;
+        //copy uv
+        int m = n + hSize;
+        for (int j = 0; j < hw; j++) {
+            pos = hSize;
+            for (int i = hh - 1; i >= 0; i--) {
+                pos -= hw;
+                desBuffer.put(n++, srcBuffer.get(size + pos + j));
+                desBuffer.put(m++, srcBuffer.get(size + pos + j + hSize));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(YuvKernelsBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,392 @@
+package com.pine.rtc.org.lib;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * YuvKernels与逐像素参考实现的对比测试。
+ * <p>
+ * 源图像带stride和sliceHeight的填充，目标分别用byte[]和direct buffer，单线程和ForkJoinPool的结果都要一致。
+ */
+public class YuvKernelsTest {
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+    private static final YuvKernels SINGLE = new YuvKernels(null);
+    private static final YuvKernels PARALLEL = new YuvKernels(POOL);
+    // 包含不足一个tile、非tile整数倍和需要拆分并行的尺寸
+    private static final int[][] SIZES = {{2, 2}, {34, 18}, {98, 66}, {640, 480}};
+    private static final int[] FORMATS = {YuvKernels.FORMAT_I420, YuvKernels.FORMAT_NV12};
+
+    private final Random mRandom = new Random(1);
+
+    @AfterClass
+    public static void shutdownPool() {
+        POOL.shutdown();
+    }
+
+    /**
+     * 测试用的一帧：所有平面都在data中，用stride和sliceHeight描述布局
+     */
+    private static class Frame {
+        final int format;
+        final int width;
+        final int height;
+        final int stride;
+        final int sliceHeight;
+        final byte[] data;
+
+        Frame(int format, int width, int height, int stride, int sliceHeight, byte[] data) {
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.stride = stride;
+            this.sliceHeight = sliceHeight;
+            this.data = data;
+        }
+
+        Frame(int format, int width, int height) {
+            this(format, width, height, width, height, new byte[width * height * 3 / 2]);
+        }
+
+        int chromaOffset() {
+            return stride * sliceHeight;
+        }
+
+        int chromaStride() {
+            return format == YuvKernels.FORMAT_NV12 ? stride : stride / 2;
+        }
+
+        int y(int x, int y) {
+            return data[y * stride + x] & 0xff;
+        }
+
+        /**
+         * 第c个色度分量(0为U，1为V)
+         */
+        int chroma(int c, int x, int y) {
+            if (format == YuvKernels.FORMAT_NV12) {
+                return data[chromaOffset() + y * stride + 2 * x + c] & 0xff;
+            }
+            int plane = chromaOffset() + c * chromaStride() * (sliceHeight / 2);
+            return data[plane + y * chromaStride() + x] & 0xff;
+        }
+
+        void setY(int x, int y, int value) {
+            data[y * stride + x] = (byte) value;
+        }
+
+        void setChroma(int c, int x, int y, int value) {
+            if (format == YuvKernels.FORMAT_NV12) {
+                data[chromaOffset() + y * stride + 2 * x + c] = (byte) value;
+            } else {
+                int plane = chromaOffset() + c * chromaStride() * (sliceHeight / 2);
+                data[plane + y * chromaStride() + x] = (byte) value;
+            }
+        }
+
+        YuvKernels.Image image() {
+            return image(ByteBuffer.wrap(data));
+        }
+
+        YuvKernels.Image image(ByteBuffer buffer) {
+            if (format == YuvKernels.FORMAT_NV12) {
+                return YuvKernels.Image.wrapNV12(buffer, width, height, stride, sliceHeight);
+            }
+            int chromaSize = chromaStride() * (sliceHeight / 2);
+            return new YuvKernels.Image(format, width, height,
+                    new YuvKernels.Plane(buffer, 0, stride),
+                    new YuvKernels.Plane(buffer, chromaOffset(), chromaStride()),
+                    new YuvKernels.Plane(buffer, chromaOffset() + chromaSize, chromaStride()));
+        }
+    }
+
+    private Frame randomFrame(int format, int width, int height) {
+        // 右侧和下方都有填充
+        int stride = width + 6;
+        int sliceHeight = height + 2;
+        byte[] data = new byte[stride * sliceHeight * 3 / 2];
+        mRandom.nextBytes(data);
+        return new Frame(format, width, height, stride, sliceHeight, data);
+    }
+
+    /**
+     * 用kernels处理后分别写入byte[]和direct buffer，两者必须一致，返回byte[]的结果
+     */
+    private interface Operation {
+        void apply(YuvKernels kernels, YuvKernels.Image dst);
+    }
+
+    private static Frame run(Operation operation, int format, int width, int height) {
+        Frame result = null;
+        for (YuvKernels kernels : new YuvKernels[]{SINGLE, PARALLEL}) {
+            Frame array = new Frame(format, width, height);
+            operation.apply(kernels, array.image());
+            ByteBuffer direct = ByteBuffer.allocateDirect(array.data.length);
+            operation.apply(kernels, array.image(direct));
+            byte[] directData = new byte[array.data.length];
+            direct.get(directData);
+            assertArrayEquals(array.data, directData);
+            if (result != null) {
+                assertArrayEquals(result.data, array.data);
+            }
+            result = array;
+        }
+        return result;
+    }
+
+    @Test
+    public void rotateMatchesReference() {
+        for (int[] size : SIZES) {
+            for (int format : FORMATS) {
+                for (final int degrees : new int[]{0, 90, 180, 270}) {
+                    final Frame src = randomFrame(format, size[0], size[1]);
+                    boolean swap = degrees % 180 != 0;
+                    Frame dst = run(new Operation() {
+                        @Override
+                        public void apply(YuvKernels kernels, YuvKernels.Image dst) {
+                            kernels.rotate(src.image(), dst, degrees);
+                        }
+                    }, format, swap ? src.height : src.width, swap ? src.width : src.height);
+                    assertArrayEquals("rotate " + degrees + " " + size[0] + "x" + size[1]
+                            + " format " + format, referenceRotate(src, degrees).data, dst.data);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void mirrorMatchesReference() {
+        for (int[] size : SIZES) {
+            for (int format : FORMATS) {
+                final Frame src = randomFrame(format, size[0], size[1]);
+                Frame dst = run(new Operation() {
+                    @Override
+                    public void apply(YuvKernels kernels, YuvKernels.Image dst) {
+                        kernels.mirror(src.image(), dst);
+                    }
+                }, format, src.width, src.height);
+                Frame expected = new Frame(format, src.width, src.height);
+                for (int y = 0; y < src.height; y++) {
+                    for (int x = 0; x < src.width; x++) {
+                        expected.setY(x, y, src.y(src.width - 1 - x, y));
+                    }
+                }
+                int cw = src.width / 2;
+                for (int y = 0; y < src.height / 2; y++) {
+                    for (int x = 0; x < cw; x++) {
+                        for (int c = 0; c < 2; c++) {
+                            expected.setChroma(c, x, y, src.chroma(c, cw - 1 - x, y));
+                        }
+                    }
+                }
+                assertArrayEquals(expected.data, dst.data);
+            }
+        }
+    }
+
+    @Test
+    public void cropMatchesReference() {
+        for (int format : FORMATS) {
+            final Frame src = randomFrame(format, 98, 66);
+            final int left = 4;
+            final int top = 6;
+            Frame dst = run(new Operation() {
+                @Override
+                public void apply(YuvKernels kernels, YuvKernels.Image dst) {
+                    kernels.crop(src.image(), left, top, dst);
+                }
+            }, format, 40, 20);
+            Frame expected = new Frame(format, 40, 20);
+            for (int y = 0; y < 20; y++) {
+                for (int x = 0; x < 40; x++) {
+                    expected.setY(x, y, src.y(left + x, top + y));
+                }
+            }
+            for (int y = 0; y < 10; y++) {
+                for (int x = 0; x < 20; x++) {
+                    for (int c = 0; c < 2; c++) {
+                        expected.setChroma(c, x, y, src.chroma(c, left / 2 + x, top / 2 + y));
+                    }
+                }
+            }
+            assertArrayEquals(expected.data, dst.data);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cropRejectsOddOrigin() {
+        SINGLE.crop(randomFrame(YuvKernels.FORMAT_I420, 32, 32).image(), 1, 0,
+                new Frame(YuvKernels.FORMAT_I420, 8, 8).image());
+    }
+
+    @Test
+    public void boxScaleMatchesReference() {
+        int[][] scales = {{640, 480, 320, 240}, {640, 480, 426, 240}, {98, 66, 34, 18}, {34, 18, 98, 66}};
+        for (int[] scale : scales) {
+            for (int format : FORMATS) {
+                final Frame src = randomFrame(format, scale[0], scale[1]);
+                Frame dst = run(new Operation() {
+                    @Override
+                    public void apply(YuvKernels kernels, YuvKernels.Image dst) {
+                        kernels.scale(src.image(), dst, YuvKernels.FILTER_BOX);
+                    }
+                }, format, scale[2], scale[3]);
+                assertArrayEquals(referenceScale(src, scale[2], scale[3], false).data, dst.data);
+            }
+        }
+    }
+
+    @Test
+    public void bilinearScaleMatchesReference() {
+        int[][] scales = {{640, 480, 1280, 720}, {640, 480, 320, 240}, {98, 66, 34, 18}, {34, 18, 98, 66}};
+        for (int[] scale : scales) {
+            for (int format : FORMATS) {
+                final Frame src = randomFrame(format, scale[0], scale[1]);
+                Frame dst = run(new Operation() {
+                    @Override
+                    public void apply(YuvKernels kernels, YuvKernels.Image dst) {
+                        kernels.scale(src.image(), dst, YuvKernels.FILTER_BILINEAR);
+                    }
+                }, format, scale[2], scale[3]);
+                Frame expected = referenceScale(src, scale[2], scale[3], true);
+                // 定点权重只有8bit，允许1的误差
+                for (int i = 0; i < expected.data.length; i++) {
+                    int diff = Math.abs((expected.data[i] & 0xff) - (dst.data[i] & 0xff));
+                    assertTrue("bilinear " + scale[0] + "x" + scale[1] + "->" + scale[2] + "x"
+                            + scale[3] + " at " + i + " diff " + diff, diff <= 1);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void bilinearScaleKeepsConstantAndGradient() {
+        Frame src = new Frame(YuvKernels.FORMAT_I420, 64, 32);
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 64; x++) {
+                src.setY(x, y, x * 4);
+            }
+        }
+        for (int y = 0; y < 16; y++) {
+            for (int x = 0; x < 32; x++) {
+                src.setChroma(0, x, y, 128);
+                src.setChroma(1, x, y, 200);
+            }
+        }
+        Frame dst = new Frame(YuvKernels.FORMAT_I420, 128, 64);
+        SINGLE.scale(src.image(), dst.image(), YuvKernels.FILTER_BILINEAR);
+        for (int x = 1; x < 127; x++) {
+            double expected = ((x + 0.5) / 2 - 0.5) * 4;
+            assertEquals(expected, dst.y(x, 10), 1.0);
+        }
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 64; x++) {
+                assertEquals(128, dst.chroma(0, x, y));
+                assertEquals(200, dst.chroma(1, x, y));
+            }
+        }
+    }
+
+    /**
+     * 逐像素的顺时针旋转
+     */
+    private static Frame referenceRotate(Frame src, int degrees) {
+        boolean swap = degrees % 180 != 0;
+        Frame dst = new Frame(src.format, swap ? src.height : src.width, swap ? src.width : src.height);
+        for (int y = 0; y < src.height; y++) {
+            for (int x = 0; x < src.width; x++) {
+                int[] p = rotatePoint(x, y, src.width, src.height, degrees);
+                dst.setY(p[0], p[1], src.y(x, y));
+            }
+        }
+        for (int y = 0; y < src.height / 2; y++) {
+            for (int x = 0; x < src.width / 2; x++) {
+                int[] p = rotatePoint(x, y, src.width / 2, src.height / 2, degrees);
+                for (int c = 0; c < 2; c++) {
+                    dst.setChroma(c, p[0], p[1], src.chroma(c, x, y));
+                }
+            }
+        }
+        return dst;
+    }
+
+    private static int[] rotatePoint(int x, int y, int width, int height, int degrees) {
+        switch (degrees) {
+            case 90:
+                return new int[]{height - 1 - y, x};
+            case 180:
+                return new int[]{width - 1 - x, height - 1 - y};
+            case 270:
+                return new int[]{y, width - 1 - x};
+            default:
+                return new int[]{x, y};
+        }
+    }
+
+    private static Frame referenceScale(Frame src, int width, int height, boolean bilinear) {
+        Frame dst = new Frame(src.format, width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                dst.setY(x, y, bilinear ? bilinear(src, -1, x, y, src.width, src.height, width, height)
+                        : box(src, -1, x, y, src.width, src.height, width, height));
+            }
+        }
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                for (int c = 0; c < 2; c++) {
+                    int sw = src.width / 2;
+                    int sh = src.height / 2;
+                    dst.setChroma(c, x, y, bilinear ? bilinear(src, c, x, y, sw, sh, width / 2, height / 2)
+                            : box(src, c, x, y, sw, sh, width / 2, height / 2));
+                }
+            }
+        }
+        return dst;
+    }
+
+    private static int sample(Frame src, int plane, int x, int y) {
+        return plane < 0 ? src.y(x, y) : src.chroma(plane, x, y);
+    }
+
+    /**
+     * 像素中心对齐的双线性插值，边缘取最近的像素
+     */
+    private static int bilinear(Frame src, int plane, int x, int y, int sw, int sh, int dw, int dh) {
+        double fx = Math.max(0d, (x + 0.5) * sw / dw - 0.5);
+        double fy = Math.max(0d, (y + 0.5) * sh / dh - 0.5);
+        int x0 = Math.min((int) fx, sw - 1);
+        int y0 = Math.min((int) fy, sh - 1);
+        int x1 = Math.min(x0 + 1, sw - 1);
+        int y1 = Math.min(y0 + 1, sh - 1);
+        double wx = x0 == x1 ? 0d : fx - x0;
+        double wy = y0 == y1 ? 0d : fy - y0;
+        double top = sample(src, plane, x0, y0) * (1 - wx) + sample(src, plane, x1, y0) * wx;
+        double bottom = sample(src, plane, x0, y1) * (1 - wx) + sample(src, plane, x1, y1) * wx;
+        return (int) Math.round(top * (1 - wy) + bottom * wy);
+    }
+
+    /**
+     * dst像素覆盖的src矩形区域的平均值，放大时为最近邻
+     */
+    private static int box(Frame src, int plane, int x, int y, int sw, int sh, int dw, int dh) {
+        int x0 = (int) ((long) x * sw / dw);
+        int x1 = Math.max(x0 + 1, (int) ((long) (x + 1) * sw / dw));
+        int y0 = (int) ((long) y * sh / dh);
+        int y1 = Math.max(y0 + 1, (int) ((long) (y + 1) * sh / dh));
+        int sum = 0;
+        for (int sy = y0; sy < y1; sy++) {
+            for (int sx = x0; sx < x1; sx++) {
+                sum += sample(src, plane, sx, sy);
+            }
+        }
+        int count = (x1 - x0) * (y1 - y0);
+        return (sum + count / 2) / count;
+    }
+}